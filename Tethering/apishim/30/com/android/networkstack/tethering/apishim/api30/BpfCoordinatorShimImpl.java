@@ -31,8 +31,15 @@ import com.android.networkstack.tethering.BpfCoordinator.Dependencies;
 import com.android.networkstack.tethering.BpfCoordinator.Ipv6ForwardingRule;
 import com.android.networkstack.tethering.Tether4Key;
 import com.android.networkstack.tethering.Tether4Value;
+import com.android.networkstack.tethering.TetherClientStatsKey;
+import com.android.networkstack.tethering.TetherClientStatsValue;
+import com.android.networkstack.tethering.TetherDownstream64Key;
+import com.android.networkstack.tethering.TetherDownstream64Value;
 import com.android.networkstack.tethering.TetherStatsValue;
 
+import java.nio.ByteBuffer;
+import java.util.function.BiConsumer;
+
 /**
  * Bpf coordinator class for API shims.
  */
@@ -148,14 +155,76 @@ public class BpfCoordinatorShimImpl
     }
 
     @Override
-    public boolean tetherOffloadRuleAdd(boolean downstream, @NonNull Tether4Key key,
-            @NonNull Tether4Value value) {
+    public boolean tetherOffloadRuleAdd(boolean downstream, @NonNull ByteBuffer keys,
+            @NonNull ByteBuffer values, int count) {
+        /* no op */
+        return true;
+    }
+
+    @Override
+    public boolean tetherOffloadRuleRemove(boolean downstream, @NonNull ByteBuffer keys,
+            int count) {
+        /* no op */
+        return true;
+    }
+
+    @Override
+    public void tetherOffloadRuleForEach(boolean downstream,
+            @NonNull BiConsumer<Tether4Key, Tether4Value> action) {
+        /* no op */
+    }
+
+    @Override
+    public boolean tetherOffloadRule64Add(@NonNull ByteBuffer keys, @NonNull ByteBuffer values,
+            int count) {
+        /* no op */
+        return true;
+    }
+
+    @Override
+    public boolean tetherOffloadRule64Remove(@NonNull ByteBuffer keys, int count) {
+        /* no op */
+        return true;
+    }
+
+    @Override
+    public void tetherOffloadRule64ForEach(
+            @NonNull BiConsumer<TetherDownstream64Key, TetherDownstream64Value> action) {
+        /* no op */
+    }
+
+    @Override
+    public boolean tetherOffloadClientStatsAdd(int downstreamIfindex,
+            @NonNull MacAddress clientMac) {
+        // Per-client stats are not supported.
+        return false;
+    }
+
+    @Override
+    @Nullable
+    public TetherClientStatsValue tetherOffloadClientStatsGetAndRemove(int downstreamIfindex,
+            @NonNull MacAddress clientMac) {
+        /* no op */
+        return null;
+    }
+
+    @Override
+    public boolean tetherOffloadClientStatsForEach(
+            @NonNull BiConsumer<TetherClientStatsKey, TetherClientStatsValue> action) {
         /* no op */
         return true;
     }
 
     @Override
-    public boolean tetherOffloadRuleRemove(boolean downstream, @NonNull Tether4Key key) {
+    public boolean tetherOffloadClientRateLimitSet(int downstreamIfindex,
+            @NonNull MacAddress clientMac, long rateBytesPerSec, long burstBytes) {
+        // Per-client rate limits are not supported.
+        return false;
+    }
+
+    @Override
+    public boolean tetherOffloadClientRateLimitRemove(int downstreamIfindex,
+            @NonNull MacAddress clientMac) {
         /* no op */
         return true;
     }
@@ -172,6 +241,30 @@ public class BpfCoordinatorShimImpl
         return true;
     }
 
+    @Override
+    public boolean attachXdpProgram(String iface, boolean downstream, boolean nativeMode) {
+        // XDP offload is not supported.
+        return false;
+    }
+
+    @Override
+    public boolean detachXdpProgram(String iface, boolean nativeMode) {
+        /* no op */
+        return true;
+    }
+
+    @Override
+    public boolean addXdpDevice(int ifIndex) {
+        // XDP offload is not supported.
+        return false;
+    }
+
+    @Override
+    public boolean removeXdpDevice(int ifIndex) {
+        /* no op */
+        return true;
+    }
+
     @Override
     public boolean isAnyIpv4RuleOnUpstream(int ifIndex) {
         /* no op */
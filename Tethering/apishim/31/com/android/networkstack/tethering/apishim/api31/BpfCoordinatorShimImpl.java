@@ -29,6 +29,7 @@ import android.util.SparseArray;
 import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
 
+import com.android.net.module.util.Struct;
 import com.android.networkstack.tethering.BpfCoordinator.Dependencies;
 import com.android.networkstack.tethering.BpfCoordinator.Ipv6ForwardingRule;
 import com.android.networkstack.tethering.BpfMap;
@@ -36,15 +37,28 @@ import com.android.networkstack.tethering.BpfUtils;
 import com.android.networkstack.tethering.Tether4Key;
 import com.android.networkstack.tethering.Tether4Value;
 import com.android.networkstack.tethering.Tether6Value;
+import com.android.networkstack.tethering.TetherClientRateLimitKey;
+import com.android.networkstack.tethering.TetherClientRateLimitValue;
+import com.android.networkstack.tethering.TetherClientStatsKey;
+import com.android.networkstack.tethering.TetherClientStatsValue;
+import com.android.networkstack.tethering.TetherDevKey;
+import com.android.networkstack.tethering.TetherDevValue;
+import com.android.networkstack.tethering.TetherDownstream64Key;
+import com.android.networkstack.tethering.TetherDownstream64Value;
 import com.android.networkstack.tethering.TetherDownstream6Key;
 import com.android.networkstack.tethering.TetherLimitKey;
 import com.android.networkstack.tethering.TetherLimitValue;
+import com.android.networkstack.tethering.TetherQuotaKey;
+import com.android.networkstack.tethering.TetherQuotaValue;
 import com.android.networkstack.tethering.TetherStatsKey;
 import com.android.networkstack.tethering.TetherStatsValue;
 import com.android.networkstack.tethering.TetherUpstream6Key;
 
 import java.io.FileDescriptor;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.function.BiConsumer;
 
 /**
  * Bpf coordinator class for API shims.
@@ -58,6 +72,12 @@ public class BpfCoordinatorShimImpl
     // PFKEYv2 constants. See include/uapi/linux/pfkeyv2.h.
     private static final int PF_KEY_V2 = 2;
 
+    private static final long NANOS_PER_SECOND = 1_000_000_000L;
+
+    private static final int TETHER4_KEY_SIZE = Struct.getSize(Tether4Key.class);
+    private static final int TETHER_DOWNSTREAM64_KEY_SIZE =
+            Struct.getSize(TetherDownstream64Key.class);
+
     @NonNull
     private final SharedLog mLog;
 
@@ -77,14 +97,45 @@ public class BpfCoordinatorShimImpl
     @Nullable
     private final BpfMap<TetherUpstream6Key, Tether6Value> mBpfUpstream6Map;
 
-    // BPF map of tethering statistics of the upstream interface since tethering startup.
+    // BPF map for downstream 464xlat forwarding. 464xlat offload is only used if this map is
+    // available.
+    @Nullable
+    private final BpfMap<TetherDownstream64Key, TetherDownstream64Value> mBpfDownstream64Map;
+
+    // BPF map of tethering statistics of the upstream interface since tethering startup. The map
+    // is per-cpu and the values read from it are the sums over all cpus.
     @Nullable
     private final BpfMap<TetherStatsKey, TetherStatsValue> mBpfStatsMap;
 
+    // BPF map of tethering statistics of the counted clients since they were added. Per-client
+    // stats are only available if this map is.
+    @Nullable
+    private final BpfMap<TetherClientStatsKey, TetherClientStatsValue> mBpfClientStatsMap;
+
+    // BPF map of the token buckets limiting the offloaded traffic of the rate limited clients.
+    // Per-client rate limits are only available if this map is.
+    @Nullable
+    private final BpfMap<TetherClientRateLimitKey, TetherClientRateLimitValue>
+            mBpfClientRateLimitMap;
+
     // BPF map of per-interface quota for tethering offload.
     @Nullable
     private final BpfMap<TetherLimitKey, TetherLimitValue> mBpfLimitMap;
 
+    // BPF maps of the bytes reserved from the limit by all cpus, and of the reserved bytes not
+    // used yet by each cpu. Their entries are created and deleted with the stats entry of the
+    // upstream interface. The BPF programs enforce the limit with these maps rather than with the
+    // per-cpu stats, see take_quota in offload.c.
+    @Nullable
+    private final BpfMap<TetherQuotaKey, TetherQuotaValue> mBpfQuotaMap;
+    @Nullable
+    private final BpfMap<TetherQuotaKey, TetherQuotaValue> mBpfQuotaCacheMap;
+
+    // BPF map of the interfaces the XDP programs can redirect packets to. XDP offload is only
+    // used if this map is available.
+    @Nullable
+    private final BpfMap<TetherDevKey, TetherDevValue> mBpfXdpDevMap;
+
     // Tracking IPv4 rule count while any rule is using the given upstream interfaces. Used for
     // reducing the BPF map iteration query. The count is increased or decreased when the rule is
     // added or removed successfully on mBpfDownstream4Map. Counting the rules on downstream4 map
@@ -96,9 +147,12 @@ public class BpfCoordinatorShimImpl
     // this counter as well.
     // TODO: Count the rule on upstream if multi-upstream is supported and the
     // packet needs to be sent and responded on different upstream interfaces.
+    // Rules of mBpfDownstream64Map are counted as well, keyed by TetherDownstream64Key.iif.
     // TODO: Add IPv6 rule count.
     private final SparseArray<Integer> mRule4CountOnUpstream = new SparseArray<>();
 
+    private int[] mBatchErrnos = new int[0];
+
     public BpfCoordinatorShimImpl(@NonNull final Dependencies deps) {
         mLog = deps.getSharedLog().forSubComponent(TAG);
 
@@ -106,8 +160,14 @@ public class BpfCoordinatorShimImpl
         mBpfUpstream4Map = deps.getBpfUpstream4Map();
         mBpfDownstream6Map = deps.getBpfDownstream6Map();
         mBpfUpstream6Map = deps.getBpfUpstream6Map();
+        mBpfDownstream64Map = deps.getBpfDownstream64Map();
         mBpfStatsMap = deps.getBpfStatsMap();
+        mBpfClientStatsMap = deps.getBpfClientStatsMap();
+        mBpfClientRateLimitMap = deps.getBpfClientRateLimitMap();
         mBpfLimitMap = deps.getBpfLimitMap();
+        mBpfQuotaMap = deps.getBpfQuotaMap();
+        mBpfQuotaCacheMap = deps.getBpfQuotaCacheMap();
+        mBpfXdpDevMap = deps.getBpfXdpDevMap();
 
         // Clear the stubs of the maps for handling the system service crash if any.
         // Doesn't throw the exception and clear the stubs as many as possible.
@@ -131,22 +191,53 @@ public class BpfCoordinatorShimImpl
         } catch (ErrnoException e) {
             mLog.e("Could not clear mBpfUpstream6Map: " + e);
         }
+        try {
+            if (mBpfDownstream64Map != null) mBpfDownstream64Map.clear();
+        } catch (ErrnoException e) {
+            mLog.e("Could not clear mBpfDownstream64Map: " + e);
+        }
         try {
             if (mBpfStatsMap != null) mBpfStatsMap.clear();
         } catch (ErrnoException e) {
             mLog.e("Could not clear mBpfStatsMap: " + e);
         }
+        try {
+            if (mBpfClientStatsMap != null) mBpfClientStatsMap.clear();
+        } catch (ErrnoException e) {
+            mLog.e("Could not clear mBpfClientStatsMap: " + e);
+        }
+        try {
+            if (mBpfClientRateLimitMap != null) mBpfClientRateLimitMap.clear();
+        } catch (ErrnoException e) {
+            mLog.e("Could not clear mBpfClientRateLimitMap: " + e);
+        }
         try {
             if (mBpfLimitMap != null) mBpfLimitMap.clear();
         } catch (ErrnoException e) {
             mLog.e("Could not clear mBpfLimitMap: " + e);
         }
+        try {
+            if (mBpfQuotaMap != null) mBpfQuotaMap.clear();
+        } catch (ErrnoException e) {
+            mLog.e("Could not clear mBpfQuotaMap: " + e);
+        }
+        try {
+            if (mBpfQuotaCacheMap != null) mBpfQuotaCacheMap.clear();
+        } catch (ErrnoException e) {
+            mLog.e("Could not clear mBpfQuotaCacheMap: " + e);
+        }
+        try {
+            if (mBpfXdpDevMap != null) mBpfXdpDevMap.clear();
+        } catch (ErrnoException e) {
+            mLog.e("Could not clear mBpfXdpDevMap: " + e);
+        }
     }
 
     @Override
     public boolean isInitialized() {
         return mBpfDownstream4Map != null && mBpfUpstream4Map != null && mBpfDownstream6Map != null
-                && mBpfUpstream6Map != null && mBpfStatsMap != null && mBpfLimitMap != null;
+                && mBpfUpstream6Map != null && mBpfStatsMap != null && mBpfLimitMap != null
+                && mBpfQuotaMap != null && mBpfQuotaCacheMap != null;
     }
 
     @Override
@@ -268,11 +359,23 @@ public class BpfCoordinatorShimImpl
                 mLog.e("Could not create stats entry: ", e);
                 return false;
             }
+            // Nothing is reserved from the limit yet. Overwrite any stale reservation.
+            try {
+                mBpfQuotaMap.updateEntry(new TetherQuotaKey(ifIndex), new TetherQuotaValue(0));
+                mBpfQuotaCacheMap.updateEntry(new TetherQuotaKey(ifIndex),
+                        new TetherQuotaValue(0));
+            } catch (ErrnoException e) {
+                mLog.e("Could not create quota entries: ", e);
+                return false;
+            }
             rxBytes = 0;
             txBytes = 0;
         }
 
         // rxBytes + txBytes won't overflow even at 5gbps for ~936 years.
+        // The BPF programs compare the limit to the bytes reserved by the cpus rather than to
+        // the stats. The reserved bytes not used yet can still be used by the cpus which reserved
+        // them, so quotaBytes more bytes can be forwarded either way.
         long newLimit = rxBytes + txBytes + quotaBytes;
 
         // if adding limit (e.g., if limit is QUOTA_UNLIMITED) caused overflow: clamp to 'infinity'
@@ -332,70 +435,299 @@ public class BpfCoordinatorShimImpl
             return null;
         }
 
+        try {
+            mBpfQuotaMap.deleteEntry(new TetherQuotaKey(ifIndex));
+            mBpfQuotaCacheMap.deleteEntry(new TetherQuotaKey(ifIndex));
+        } catch (ErrnoException e) {
+            mLog.e("Could not delete quota entries for interface index " + ifIndex + ": ", e);
+            return null;
+        }
+
         return statsValue;
     }
 
+    // Only used for logging errors. Decodes a copy so that the position of the buffer is kept.
+    private static String tether4KeyToString(@NonNull ByteBuffer keys, int index) {
+        final ByteBuffer key = keys.duplicate().order(keys.order());
+        key.position(keys.position() + index * TETHER4_KEY_SIZE);
+        return Tether4Key.decode(key).toString();
+    }
+
+    // Per-entry results of the batch map operations. Grown as needed and only used on the
+    // handler thread, as for the other methods of this class.
+    @NonNull
+    private int[] getBatchErrnos(int count) {
+        if (mBatchErrnos.length < count) mBatchErrnos = new int[count];
+        // Clear the results of the previous batch in case the map does not fill all of them.
+        Arrays.fill(mBatchErrnos, 0, count, 0);
+        return mBatchErrnos;
+    }
+
     @Override
-    public boolean tetherOffloadRuleAdd(boolean downstream, @NonNull Tether4Key key,
-            @NonNull Tether4Value value) {
+    public boolean tetherOffloadRuleAdd(boolean downstream, @NonNull ByteBuffer keys,
+            @NonNull ByteBuffer values, int count) {
         if (!isInitialized()) return false;
+        if (count == 0) return true;
+
+        final int[] errnos = getBatchErrnos(count);
+        final BpfMap<Tether4Key, Tether4Value> map =
+                downstream ? mBpfDownstream4Map : mBpfUpstream4Map;
+        map.insertEntriesDirect(keys, values, count, errnos);
+
+        boolean success = true;
+        for (int i = 0; i < count; i++) {
+            // Silent if the rule already exists: conntrack reports the updates of a flow as new
+            // events too. The existing rule is kept and not counted again on its upstream.
+            if (errnos[i] == OsConstants.EEXIST) continue;
+            if (errnos[i] != 0) {
+                mLog.e("Could not insert entry (" + tether4KeyToString(keys, i) + "): "
+                        + Os.strerror(errnos[i]));
+                success = false;
+                continue;
+            }
+            if (!downstream) continue;
 
-        try {
-            if (downstream) {
-                mBpfDownstream4Map.insertEntry(key, value);
+            // Increase the rule count while a adding rule is using a given upstream interface.
+            incrementRuleCount((int) Tether4Key.getIif(keys,
+                    keys.position() + i * TETHER4_KEY_SIZE));
+        }
+        return success;
+    }
 
-                // Increase the rule count while a adding rule is using a given upstream interface.
-                final int upstreamIfindex = (int) key.iif;
-                int count = mRule4CountOnUpstream.get(upstreamIfindex, 0 /* default */);
-                mRule4CountOnUpstream.put(upstreamIfindex, ++count);
-            } else {
-                mBpfUpstream4Map.insertEntry(key, value);
+    @Override
+    public boolean tetherOffloadRuleRemove(boolean downstream, @NonNull ByteBuffer keys,
+            int count) {
+        if (!isInitialized()) return false;
+        if (count == 0) return true;
+
+        final int[] errnos = getBatchErrnos(count);
+        final BpfMap<Tether4Key, Tether4Value> map =
+                downstream ? mBpfDownstream4Map : mBpfUpstream4Map;
+        map.deleteEntriesDirect(keys, count, errnos);
+
+        boolean success = true;
+        for (int i = 0; i < count; i++) {
+            // Silent if the rule did not exist. The conntrack DELETE event of a flow is applied
+            // even if its NEW event was coalesced with it and its rules were never written. The
+            // rule count is not decremented since the rule was not counted.
+            if (errnos[i] == OsConstants.ENOENT) continue;
+            if (errnos[i] != 0) {
+                mLog.e("Could not delete entry (" + tether4KeyToString(keys, i) + "): "
+                        + Os.strerror(errnos[i]));
+                success = false;
+                continue;
             }
-        } catch (ErrnoException e) {
-            mLog.e("Could not insert entry (" + key + ", " + value + "): " + e);
+            if (!downstream) continue;
+
+            // Decrease the rule count while a deleting rule is not using a given upstream
+            // interface anymore.
+            if (!decrementRuleCount((int) Tether4Key.getIif(keys,
+                    keys.position() + i * TETHER4_KEY_SIZE))) {
+                success = false;
+            }
+        }
+        return success;
+    }
+
+    private void incrementRuleCount(int upstreamIfindex) {
+        int ruleCount = mRule4CountOnUpstream.get(upstreamIfindex, 0 /* default */);
+        mRule4CountOnUpstream.put(upstreamIfindex, ++ruleCount);
+    }
+
+    private boolean decrementRuleCount(int upstreamIfindex) {
+        Integer ruleCount = mRule4CountOnUpstream.get(upstreamIfindex);
+        if (ruleCount == null) {
+            Log.wtf(TAG, "Could not delete count for interface " + upstreamIfindex);
             return false;
-        } catch (IllegalStateException e) {
-            // Silent if the rule already exists. Note that the errno EEXIST was rethrown as
-            // IllegalStateException. See BpfMap#insertEntry.
+        }
+
+        if (--ruleCount == 0) {
+            // Remove the entry if the count decreases to zero.
+            mRule4CountOnUpstream.remove(upstreamIfindex);
+        } else {
+            mRule4CountOnUpstream.put(upstreamIfindex, ruleCount);
         }
         return true;
     }
 
     @Override
-    public boolean tetherOffloadRuleRemove(boolean downstream, @NonNull Tether4Key key) {
-        if (!isInitialized()) return false;
+    public void tetherOffloadRuleForEach(boolean downstream,
+            @NonNull BiConsumer<Tether4Key, Tether4Value> action) {
+        if (!isInitialized()) return;
 
         try {
             if (downstream) {
-                if (!mBpfDownstream4Map.deleteEntry(key)) {
-                    mLog.e("Could not delete entry (key: " + key + ")");
-                    return false;
-                }
-
-                // Decrease the rule count while a deleting rule is not using a given upstream
-                // interface anymore.
-                final int upstreamIfindex = (int) key.iif;
-                Integer count = mRule4CountOnUpstream.get(upstreamIfindex);
-                if (count == null) {
-                    Log.wtf(TAG, "Could not delete count for interface " + upstreamIfindex);
-                    return false;
-                }
-
-                if (--count == 0) {
-                    // Remove the entry if the count decreases to zero.
-                    mRule4CountOnUpstream.remove(upstreamIfindex);
-                } else {
-                    mRule4CountOnUpstream.put(upstreamIfindex, count);
-                }
+                mBpfDownstream4Map.forEach(action);
             } else {
-                mBpfUpstream4Map.deleteEntry(key);
+                mBpfUpstream4Map.forEach(action);
             }
         } catch (ErrnoException e) {
-            // Silent if the rule did not exist.
-            if (e.errno != OsConstants.ENOENT) {
-                mLog.e("Could not delete entry: ", e);
-                return false;
+            mLog.e("Could not iterate " + (downstream ? "downstream" : "upstream")
+                    + " IPv4 map: " + e);
+        }
+    }
+
+    // Only used for logging errors. Decodes a copy so that the position of the buffer is kept.
+    private static String tether64KeyToString(@NonNull ByteBuffer keys, int index) {
+        final ByteBuffer key = keys.duplicate().order(keys.order());
+        key.position(keys.position() + index * TETHER_DOWNSTREAM64_KEY_SIZE);
+        return TetherDownstream64Key.decode(key).toString();
+    }
+
+    @Override
+    public boolean tetherOffloadRule64Add(@NonNull ByteBuffer keys, @NonNull ByteBuffer values,
+            int count) {
+        if (!isInitialized() || mBpfDownstream64Map == null) return false;
+        if (count == 0) return true;
+
+        final int[] errnos = getBatchErrnos(count);
+        mBpfDownstream64Map.insertEntriesDirect(keys, values, count, errnos);
+
+        boolean success = true;
+        for (int i = 0; i < count; i++) {
+            // Silent if the rule already exists. See #tetherOffloadRuleAdd.
+            if (errnos[i] == OsConstants.EEXIST) continue;
+            if (errnos[i] != 0) {
+                mLog.e("Could not insert downstream64 entry (" + tether64KeyToString(keys, i)
+                        + "): " + Os.strerror(errnos[i]));
+                success = false;
+                continue;
             }
+            incrementRuleCount((int) TetherDownstream64Key.getIif(keys,
+                    keys.position() + i * TETHER_DOWNSTREAM64_KEY_SIZE));
+        }
+        return success;
+    }
+
+    @Override
+    public boolean tetherOffloadRule64Remove(@NonNull ByteBuffer keys, int count) {
+        if (!isInitialized() || mBpfDownstream64Map == null) return false;
+        if (count == 0) return true;
+
+        final int[] errnos = getBatchErrnos(count);
+        mBpfDownstream64Map.deleteEntriesDirect(keys, count, errnos);
+
+        boolean success = true;
+        for (int i = 0; i < count; i++) {
+            // Silent if the rule did not exist. See #tetherOffloadRuleRemove.
+            if (errnos[i] == OsConstants.ENOENT) continue;
+            if (errnos[i] != 0) {
+                mLog.e("Could not delete downstream64 entry (" + tether64KeyToString(keys, i)
+                        + "): " + Os.strerror(errnos[i]));
+                success = false;
+                continue;
+            }
+            if (!decrementRuleCount((int) TetherDownstream64Key.getIif(keys,
+                    keys.position() + i * TETHER_DOWNSTREAM64_KEY_SIZE))) {
+                success = false;
+            }
+        }
+        return success;
+    }
+
+    @Override
+    public void tetherOffloadRule64ForEach(
+            @NonNull BiConsumer<TetherDownstream64Key, TetherDownstream64Value> action) {
+        if (!isInitialized() || mBpfDownstream64Map == null) return;
+
+        try {
+            mBpfDownstream64Map.forEach(action);
+        } catch (ErrnoException e) {
+            mLog.e("Could not iterate downstream64 map: " + e);
+        }
+    }
+
+    @Override
+    public boolean tetherOffloadClientStatsAdd(int downstreamIfindex,
+            @NonNull MacAddress clientMac) {
+        if (!isInitialized() || mBpfClientStatsMap == null) return false;
+
+        try {
+            // The entry is only created if it doesn't exist, so that the counters of a client
+            // which is added again are not reset.
+            mBpfClientStatsMap.insertEntry(new TetherClientStatsKey(downstreamIfindex, clientMac),
+                    new TetherClientStatsValue(0 /* rxPackets */, 0 /* rxBytes */,
+                            0 /* txPackets */, 0 /* txBytes */));
+        } catch (IllegalStateException e) {
+            // Already counted.
+        } catch (ErrnoException e) {
+            mLog.e("Could not add client stats of " + clientMac + " on interface index "
+                    + downstreamIfindex + ": " + e);
+            return false;
+        }
+        return true;
+    }
+
+    @Override
+    @Nullable
+    public TetherClientStatsValue tetherOffloadClientStatsGetAndRemove(int downstreamIfindex,
+            @NonNull MacAddress clientMac) {
+        if (!isInitialized() || mBpfClientStatsMap == null) return null;
+
+        // The packets counted between the read and the deletion are lost. Unlike for the upstream
+        // stats, this is not worth a synchronizeKernelRCU per client.
+        final TetherClientStatsKey key = new TetherClientStatsKey(downstreamIfindex, clientMac);
+        final TetherClientStatsValue value;
+        try {
+            value = mBpfClientStatsMap.getValue(key);
+            mBpfClientStatsMap.deleteEntry(key);
+        } catch (ErrnoException e) {
+            mLog.e("Could not remove client stats of " + clientMac + " on interface index "
+                    + downstreamIfindex + ": " + e);
+            return null;
+        }
+        return value;
+    }
+
+    @Override
+    public boolean tetherOffloadClientStatsForEach(
+            @NonNull BiConsumer<TetherClientStatsKey, TetherClientStatsValue> action) {
+        if (!isInitialized() || mBpfClientStatsMap == null) return true;
+
+        try {
+            mBpfClientStatsMap.forEach(action);
+        } catch (ErrnoException e) {
+            mLog.e("Could not iterate client stats map: " + e);
+            return false;
+        }
+        return true;
+    }
+
+    @Override
+    public boolean tetherOffloadClientRateLimitSet(int downstreamIfindex,
+            @NonNull MacAddress clientMac, long rateBytesPerSec, long burstBytes) {
+        if (!isInitialized() || mBpfClientRateLimitMap == null) return false;
+
+        // The BPF programs refill a bucket entirely after this time, which also bounds their
+        // refill computation. Rounded up, so that the refill never exceeds the rate.
+        final long fillTimeNs = (burstBytes * NANOS_PER_SECOND + rateBytesPerSec - 1)
+                / rateBytesPerSec;
+        try {
+            mBpfClientRateLimitMap.updateEntry(
+                    new TetherClientRateLimitKey(downstreamIfindex, clientMac),
+                    new TetherClientRateLimitValue(rateBytesPerSec, burstBytes, fillTimeNs,
+                            0 /* rxTokens */, 0 /* rxLastRefill */,
+                            0 /* txTokens */, 0 /* txLastRefill */));
+        } catch (ErrnoException e) {
+            mLog.e("Could not set rate limit of " + clientMac + " on interface index "
+                    + downstreamIfindex + ": " + e);
+            return false;
+        }
+        return true;
+    }
+
+    @Override
+    public boolean tetherOffloadClientRateLimitRemove(int downstreamIfindex,
+            @NonNull MacAddress clientMac) {
+        if (!isInitialized() || mBpfClientRateLimitMap == null) return true;
+
+        try {
+            mBpfClientRateLimitMap.deleteEntry(
+                    new TetherClientRateLimitKey(downstreamIfindex, clientMac));
+        } catch (ErrnoException e) {
+            mLog.e("Could not remove rate limit of " + clientMac + " on interface index "
+                    + downstreamIfindex + ": " + e);
+            return false;
         }
         return true;
     }
@@ -426,6 +758,61 @@ public class BpfCoordinatorShimImpl
         return true;
     }
 
+    @Override
+    public boolean attachXdpProgram(String iface, boolean downstream, boolean nativeMode) {
+        if (!isInitialized() || mBpfXdpDevMap == null) return false;
+
+        try {
+            BpfUtils.attachXdpProgram(iface, downstream, nativeMode);
+        } catch (IOException e) {
+            mLog.e("Could not attach XDP program: " + e);
+            return false;
+        }
+        return true;
+    }
+
+    @Override
+    public boolean detachXdpProgram(String iface, boolean nativeMode) {
+        if (!isInitialized()) return false;
+
+        try {
+            BpfUtils.detachXdpProgram(iface, nativeMode);
+        } catch (IOException e) {
+            mLog.e("Could not detach XDP program: " + e);
+            return false;
+        }
+        return true;
+    }
+
+    @Override
+    public boolean addXdpDevice(int ifIndex) {
+        if (!isInitialized() || mBpfXdpDevMap == null) return false;
+
+        try {
+            mBpfXdpDevMap.updateEntry(new TetherDevKey(ifIndex), new TetherDevValue(ifIndex));
+        } catch (ErrnoException e) {
+            mLog.e("Could not add interface " + ifIndex + " to XDP devmap: " + e);
+            return false;
+        }
+        return true;
+    }
+
+    @Override
+    public boolean removeXdpDevice(int ifIndex) {
+        if (!isInitialized() || mBpfXdpDevMap == null) return false;
+
+        try {
+            mBpfXdpDevMap.deleteEntry(new TetherDevKey(ifIndex));
+        } catch (ErrnoException e) {
+            // Silent if the interface was not added.
+            if (e.errno != OsConstants.ENOENT) {
+                mLog.e("Could not remove interface " + ifIndex + " from XDP devmap: " + e);
+                return false;
+            }
+        }
+        return true;
+    }
+
     @Override
     public boolean isAnyIpv4RuleOnUpstream(int ifIndex) {
         // No entry means no rule for the given interface because 0 has never been stored.
@@ -443,8 +830,14 @@ public class BpfCoordinatorShimImpl
                 mapStatus(mBpfUpstream6Map, "mBpfUpstream6Map"),
                 mapStatus(mBpfDownstream4Map, "mBpfDownstream4Map"),
                 mapStatus(mBpfUpstream4Map, "mBpfUpstream4Map"),
+                mapStatus(mBpfDownstream64Map, "mBpfDownstream64Map"),
                 mapStatus(mBpfStatsMap, "mBpfStatsMap"),
-                mapStatus(mBpfLimitMap, "mBpfLimitMap")
+                mapStatus(mBpfClientStatsMap, "mBpfClientStatsMap"),
+                mapStatus(mBpfClientRateLimitMap, "mBpfClientRateLimitMap"),
+                mapStatus(mBpfLimitMap, "mBpfLimitMap"),
+                mapStatus(mBpfQuotaMap, "mBpfQuotaMap"),
+                mapStatus(mBpfQuotaCacheMap, "mBpfQuotaCacheMap"),
+                mapStatus(mBpfXdpDevMap, "mBpfXdpDevMap")
         });
     }
 
@@ -26,8 +26,15 @@ import com.android.networkstack.tethering.BpfCoordinator.Dependencies;
 import com.android.networkstack.tethering.BpfCoordinator.Ipv6ForwardingRule;
 import com.android.networkstack.tethering.Tether4Key;
 import com.android.networkstack.tethering.Tether4Value;
+import com.android.networkstack.tethering.TetherClientStatsKey;
+import com.android.networkstack.tethering.TetherClientStatsValue;
+import com.android.networkstack.tethering.TetherDownstream64Key;
+import com.android.networkstack.tethering.TetherDownstream64Value;
 import com.android.networkstack.tethering.TetherStatsValue;
 
+import java.nio.ByteBuffer;
+import java.util.function.BiConsumer;
+
 /**
  * Bpf coordinator class for API shims.
  */
@@ -138,21 +145,113 @@ public abstract class BpfCoordinatorShim {
     public abstract TetherStatsValue tetherOffloadGetAndClearStats(int ifIndex);
 
     /**
-     * Adds a tethering IPv4 offload rule to appropriate BPF map.
+     * Adds a batch of tethering IPv4 offload rules to the appropriate BPF map.
+     *
+     * The keys and values are direct buffers in native byte order which hold count consecutive
+     * Tether4Key and Tether4Value structs from their current position, see Tether4Key#encode and
+     * Tether4Value#encode. They are owned by the caller and may be reused once this method
+     * returns. Rules which already exist are silently skipped.
+     *
+     * @return false if any rule of the batch could not be added.
      */
-    public abstract boolean tetherOffloadRuleAdd(boolean downstream, @NonNull Tether4Key key,
-            @NonNull Tether4Value value);
+    public abstract boolean tetherOffloadRuleAdd(boolean downstream, @NonNull ByteBuffer keys,
+            @NonNull ByteBuffer values, int count);
 
     /**
-     * Deletes a tethering IPv4 offload rule from the appropriate BPF map.
+     * Deletes a batch of tethering IPv4 offload rules from the appropriate BPF map.
+     *
+     * The keys are a direct buffer which holds count consecutive Tether4Key structs, see
+     * #tetherOffloadRuleAdd. Rules which do not exist are silently skipped.
+     *
+     * @return false if any rule of the batch could not be deleted.
      */
-    public abstract boolean tetherOffloadRuleRemove(boolean downstream, @NonNull Tether4Key key);
+    public abstract boolean tetherOffloadRuleRemove(boolean downstream, @NonNull ByteBuffer keys,
+            int count);
 
     /**
      * Whether there is currently any IPv4 rule on the specified upstream.
      */
     public abstract boolean isAnyIpv4RuleOnUpstream(int ifIndex);
 
+    /**
+     * Iterate through the IPv4 rules of the appropriate BPF map. The action must not modify the
+     * map, see BpfMap#forEach.
+     */
+    public abstract void tetherOffloadRuleForEach(boolean downstream,
+            @NonNull BiConsumer<Tether4Key, Tether4Value> action);
+
+    /**
+     * Adds a batch of downstream 464xlat offload rules to the downstream64 BPF map.
+     *
+     * The keys and values are direct buffers which hold count consecutive TetherDownstream64Key
+     * and TetherDownstream64Value structs, see #tetherOffloadRuleAdd.
+     *
+     * @return false if any rule of the batch could not be added, or if the map is not available.
+     */
+    public abstract boolean tetherOffloadRule64Add(@NonNull ByteBuffer keys,
+            @NonNull ByteBuffer values, int count);
+
+    /**
+     * Deletes a batch of downstream 464xlat offload rules from the downstream64 BPF map. Rules
+     * which do not exist are silently skipped.
+     *
+     * @return false if any rule of the batch could not be deleted, or if the map is not available.
+     */
+    public abstract boolean tetherOffloadRule64Remove(@NonNull ByteBuffer keys, int count);
+
+    /**
+     * Iterate through the rules of the downstream64 BPF map. The action must not modify the map,
+     * see BpfMap#forEach.
+     */
+    public abstract void tetherOffloadRule64ForEach(
+            @NonNull BiConsumer<TetherDownstream64Key, TetherDownstream64Value> action);
+
+    /**
+     * Start counting the offloaded traffic of the given client in the client stats BPF map. The
+     * BPF programs only count the traffic of the clients which were added.
+     *
+     * @return false if the client could not be added, or if the map is not available.
+     */
+    public abstract boolean tetherOffloadClientStatsAdd(int downstreamIfindex,
+            @NonNull MacAddress clientMac);
+
+    /**
+     * Stop counting the offloaded traffic of the given client.
+     *
+     * @return the traffic of the client since it was added, or null if it was not counted or if
+     *         its stats could not be read.
+     */
+    @Nullable
+    public abstract TetherClientStatsValue tetherOffloadClientStatsGetAndRemove(
+            int downstreamIfindex, @NonNull MacAddress clientMac);
+
+    /**
+     * Iterate through the client stats BPF map. The action must not modify the map, see
+     * BpfMap#forEach.
+     *
+     * @return false if the map could not be read.
+     */
+    public abstract boolean tetherOffloadClientStatsForEach(
+            @NonNull BiConsumer<TetherClientStatsKey, TetherClientStatsValue> action);
+
+    /**
+     * Limit the rate of the offloaded traffic of the given client in each direction with a token
+     * bucket in the client rate limit BPF map, replacing any existing limit. The buckets start
+     * full.
+     *
+     * @return false if the limit could not be set, or if the map is not available.
+     */
+    public abstract boolean tetherOffloadClientRateLimitSet(int downstreamIfindex,
+            @NonNull MacAddress clientMac, long rateBytesPerSec, long burstBytes);
+
+    /**
+     * Stop limiting the rate of the offloaded traffic of the given client.
+     *
+     * @return false if the limit could not be removed. Removing a non-existent limit succeeds.
+     */
+    public abstract boolean tetherOffloadClientRateLimitRemove(int downstreamIfindex,
+            @NonNull MacAddress clientMac);
+
     /**
      * Attach BPF program.
      *
@@ -166,5 +265,30 @@ public abstract class BpfCoordinatorShim {
      * TODO: consider using InterfaceParams to replace interface name.
      */
     public abstract boolean detachProgram(@NonNull String iface);
+
+    /**
+     * Attach XDP program in the native driver mode or the generic mode. Return false if XDP is
+     * not supported in that mode on the given interface, in which case only the tc programs
+     * attached by #attachProgram forward the packets.
+     */
+    public abstract boolean attachXdpProgram(@NonNull String iface, boolean downstream,
+            boolean nativeMode);
+
+    /**
+     * Detach XDP program attached in the given mode.
+     */
+    public abstract boolean detachXdpProgram(@NonNull String iface, boolean nativeMode);
+
+    /**
+     * Allow the XDP programs to redirect packets to the given interface. The interface must have
+     * the XDP program attached in the native driver mode, which also provides the transmit path
+     * the redirected frames are sent on.
+     */
+    public abstract boolean addXdpDevice(int ifIndex);
+
+    /**
+     * Stop the XDP programs from redirecting packets to the given interface.
+     */
+    public abstract boolean removeXdpDevice(int ifIndex);
 }
 
@@ -51,6 +51,16 @@
     ERR(SHORT_UDP_HEADER)    \
     ERR(UDP_CSUM_ZERO)       \
     ERR(TRUNCATED_IPV4)      \
+    ERR(ABOVE_MTU)           \
+    ERR(CLAT_NO_STATS_ENTRY) \
+    ERR(CLAT_NO_LIMIT_ENTRY) \
+    ERR(CLAT_LIMIT_REACHED)  \
+    ERR(CLAT_ABOVE_MTU)      \
+    ERR(CLAT_UDP_CSUM_ZERO)  \
+    ERR(CLAT_CHANGE_PROTO)   \
+    ERR(CLAT_CHANGE_HEAD)    \
+    ERR(CLAT_TOO_SHORT)      \
+    ERR(CLIENT_RATE_LIMITED) \
     ERR(_MAX)
 
 #define ERR(x) BPF_TETHER_ERR_ ##x,
@@ -89,11 +99,50 @@ typedef struct {
 } TetherStatsValue;
 STRUCT_SIZE(TetherStatsValue, 6 * 8);  // 48
 
+#define TETHER_CLIENT_STATS_MAP_PATH BPF_PATH_TETHER "map_offload_tether_client_stats_map"
+
+typedef struct {
+    uint32_t downstreamIfindex;   // The downstream interface index
+    uint8_t clientMac[ETH_ALEN];  // client ethernet mac address
+    uint8_t zero[2];              // zero pad for 8 byte alignment
+} TetherClientStatsKey;
+STRUCT_SIZE(TetherClientStatsKey, 4 + 6 + 2);  // 12
+
+typedef struct {
+    uint64_t rxPackets;  // to the client
+    uint64_t rxBytes;
+    uint64_t txPackets;  // from the client
+    uint64_t txBytes;
+} TetherClientStatsValue;
+STRUCT_SIZE(TetherClientStatsValue, 4 * 8);  // 32
+
+#define TETHER_CLIENT_RATE_LIMIT_MAP_PATH BPF_PATH_TETHER "map_offload_tether_client_rate_limit_map"
+
+typedef TetherClientStatsKey TetherClientRateLimitKey;  // downstream ifindex and client mac
+
+// One token bucket in each direction, both with the same rate and burst size.
+typedef struct {
+    uint64_t rateBytesPerSec;  // token refill rate
+    uint64_t burstBytes;       // bucket size
+    uint64_t fillTimeNs;       // time to refill an empty bucket
+    uint64_t rxTokens;         // to the client, in bytes
+    uint64_t rxLastRefill;     // Kernel updates on each refill with bpf_ktime_get_ns()
+    uint64_t txTokens;         // from the client, in bytes
+    uint64_t txLastRefill;     // Kernel updates on each refill with bpf_ktime_get_ns()
+} TetherClientRateLimitValue;
+STRUCT_SIZE(TetherClientRateLimitValue, 7 * 8);  // 56
+
 #define TETHER_LIMIT_MAP_PATH BPF_PATH_TETHER "map_offload_tether_limit_map"
 
 typedef uint32_t TetherLimitKey;    // upstream ifindex
 typedef uint64_t TetherLimitValue;  // in bytes
 
+#define TETHER_QUOTA_MAP_PATH BPF_PATH_TETHER "map_offload_tether_quota_map"
+#define TETHER_QUOTA_CACHE_MAP_PATH BPF_PATH_TETHER "map_offload_tether_quota_cache_map"
+
+typedef uint32_t TetherQuotaKey;    // upstream ifindex
+typedef uint64_t TetherQuotaValue;  // in bytes
+
 #define TETHER_DOWNSTREAM6_TC_PROG_RAWIP_NAME "prog_offload_schedcls_tether_downstream6_rawip"
 #define TETHER_DOWNSTREAM6_TC_PROG_ETHER_NAME "prog_offload_schedcls_tether_downstream6_ether"
 
@@ -214,4 +263,9 @@ STRUCT_SIZE(Tether4Value, 4 + 14 + 2 + 16 + 16 + 2 + 2 + 8);  // 64
 #define TETHER_UPSTREAM_XDP_PROG_RAWIP_PATH BPF_PATH_TETHER TETHER_UPSTREAM_XDP_PROG_RAWIP_NAME
 #define TETHER_UPSTREAM_XDP_PROG_ETHER_PATH BPF_PATH_TETHER TETHER_UPSTREAM_XDP_PROG_ETHER_NAME
 
+#define TETHER_XDP_DEVMAP_PATH BPF_PATH_TETHER "map_offload_tether_xdp_devmap"
+
+typedef uint32_t TetherDevKey;    // ifindex of an interface the XDP programs can redirect to
+typedef uint32_t TetherDevValue;  // same ifindex
+
 #undef STRUCT_SIZE
@@ -69,13 +69,16 @@
 
 // ----- Tethering Error Counters -----
 
-DEFINE_BPF_MAP_GRW(tether_error_map, ARRAY, uint32_t, uint32_t, BPF_TETHER_ERR__MAX,
+// The counters are per cpu, so that the cpus processing packets concurrently do not contend
+// for the same cache lines. tc and XDP programs cannot migrate to another cpu while running, so
+// the counters are incremented without atomic operations. Userspace sums the values of all cpus.
+DEFINE_BPF_MAP_GRW(tether_error_map, PERCPU_ARRAY, uint32_t, uint32_t, BPF_TETHER_ERR__MAX,
                    AID_NETWORK_STACK)
 
 #define COUNT_AND_RETURN(counter, ret) do {                     \
     uint32_t code = BPF_TETHER_ERR_ ## counter;                 \
     uint32_t *count = bpf_tether_error_map_lookup_elem(&code);  \
-    if (count) __sync_fetch_and_add(count, 1);                  \
+    if (count) ++*count;                                        \
     return ret;                                                 \
 } while(0)
 
@@ -87,13 +90,153 @@ DEFINE_BPF_MAP_GRW(tether_error_map, ARRAY, uint32_t, uint32_t, BPF_TETHER_ERR__
 
 // ----- Tethering Data Stats and Limits -----
 
-// Tethering stats, indexed by upstream interface.
-DEFINE_BPF_MAP_GRW(tether_stats_map, HASH, TetherStatsKey, TetherStatsValue, 16, AID_NETWORK_STACK)
+// Tethering stats, indexed by upstream interface. Per cpu and updated without atomic operations,
+// like tether_error_map. Userspace sums the values of all cpus.
+DEFINE_BPF_MAP_GRW(tether_stats_map, PERCPU_HASH, TetherStatsKey, TetherStatsValue, 16,
+                   AID_NETWORK_STACK)
 
-// Tethering data limit, indexed by upstream interface.
-// (tethering allowed when stats[iif].rxBytes + stats[iif].txBytes < limit[iif])
+// Tethering data limit, indexed by upstream interface. The stats are not compared to the limit:
+// the packets are forwarded while the bytes reserved in tether_quota_map stay within the limit,
+// see take_quota.
 DEFINE_BPF_MAP_GRW(tether_limit_map, HASH, TetherLimitKey, TetherLimitValue, 16, AID_NETWORK_STACK)
 
+// Since the stats are per cpu, no cpu knows the total usage of the upstream interface. Instead,
+// the cpus reserve the bytes they forward from the limit in chunks, and each cpu spends its
+// reserved bytes locally. Only reserving a chunk touches shared memory. The entries of both maps
+// are created with zeroes by the tethering module together with the stats entry, and are indexed
+// by upstream interface.
+#define QUOTA_CHUNK_BYTES (256 * 1024)
+
+// Bytes reserved by all the cpus, at least the bytes they forwarded and at most the limit.
+DEFINE_BPF_MAP_GRW(tether_quota_map, HASH, TetherQuotaKey, TetherQuotaValue, 16, AID_NETWORK_STACK)
+
+// Bytes reserved by each cpu and not forwarded yet.
+DEFINE_BPF_MAP_GRW(tether_quota_cache_map, PERCPU_HASH, TetherQuotaKey, TetherQuotaValue, 16,
+                   AID_NETWORK_STACK)
+
+// Takes the bytes of the packet from the quota of the upstream interface. Returns false if the
+// limit would be exceeded, in which case the packet must be punted.
+static inline __always_inline bool take_quota(const TetherQuotaKey* k, const uint64_t limit,
+        const uint64_t bytes) {
+    TetherQuotaValue* cached = bpf_tether_quota_cache_map_lookup_elem(k);
+    if (!cached) return false;
+
+    if (*cached >= bytes) {
+        *cached -= bytes;
+        return true;
+    }
+
+    TetherQuotaValue* reserved = bpf_tether_quota_map_lookup_elem(k);
+    if (!reserved) return false;
+
+    // Reserve a whole chunk while the limit is far, and only the missing bytes close to it.
+    const uint64_t needed = bytes - *cached;
+    uint64_t chunk = (needed > QUOTA_CHUNK_BYTES) ? needed : QUOTA_CHUNK_BYTES;
+    if (*reserved + chunk > limit) chunk = needed;
+
+    // The value returned by atomic fetch and add needs a 5.12+ kernel, so read the counter again
+    // after adding to it. Whichever cpu reads last sees all the concurrent reservations and gives
+    // its own back if they exceed the limit, so the reserved bytes never stay above the limit.
+    // Concurrent reservations close to the limit may all be given back: the packets are punted.
+    __sync_fetch_and_add(reserved, chunk);
+    if (*reserved > limit) {
+        __sync_fetch_and_add(reserved, -chunk);
+        return false;
+    }
+    *cached = *cached + chunk - bytes;
+    return true;
+}
+
+// Gives the bytes taken by take_quota back to the cache of this cpu, for a packet which failed to
+// be forwarded after its quota was taken. The quota is taken before the packet is modified, so
+// that the packet can still be punted when the limit is reached.
+static inline __always_inline void give_back_quota(const TetherQuotaKey* k,
+        const uint64_t bytes) {
+    TetherQuotaValue* cached = bpf_tether_quota_cache_map_lookup_elem(k);
+    if (cached) *cached += bytes;
+}
+
+// Tethering stats of each client, indexed by downstream interface and client mac address. The
+// entries are only created by the tethering module, for the clients it counts. The traffic of
+// the other clients is only counted in tether_stats_map.
+DEFINE_BPF_MAP_GRW(tether_client_stats_map, HASH, TetherClientStatsKey, TetherClientStatsValue, 64,
+                   AID_NETWORK_STACK)
+
+// Fills in the key of the client which sends or receives the packet. The client is the
+// destination of the output mac header in the downstream direction, and the source of the input
+// mac header in the upstream direction, so this must be called before the mac header is
+// overwritten. The key is left zeroed if the client is unknown, as for a rawip downstream.
+static inline __always_inline void get_client_stats_key(TetherClientStatsKey* k,
+        const bool downstream, const uint32_t iif, const struct ethhdr* in_eth,
+        const uint32_t oif, const struct ethhdr* out_eth) {
+    if (downstream) {
+        k->downstreamIfindex = oif;
+        __builtin_memcpy(k->clientMac, out_eth->h_dest, ETH_ALEN);
+    } else if (in_eth) {
+        k->downstreamIfindex = iif;
+        __builtin_memcpy(k->clientMac, in_eth->h_source, ETH_ALEN);
+    }
+}
+
+static inline __always_inline void update_client_stats(const TetherClientStatsKey* k,
+        const bool downstream, const uint64_t packets, const uint64_t bytes) {
+    if (!k->downstreamIfindex) return;
+
+    TetherClientStatsValue* v = bpf_tether_client_stats_map_lookup_elem(k);
+    if (!v) return;
+
+    __sync_fetch_and_add(downstream ? &v->rxPackets : &v->txPackets, packets);
+    __sync_fetch_and_add(downstream ? &v->rxBytes : &v->txBytes, bytes);
+}
+
+// ----- Tethering Client Rate Limits -----
+
+#define NSEC_PER_SEC 1000000000ULL
+
+// Token buckets limiting the offloaded traffic of each client, indexed by downstream interface
+// and client mac address. As for tether_client_stats_map, the entries are only created by the
+// tethering module, for the clients it limits. The client is found with get_client_stats_key.
+DEFINE_BPF_MAP_GRW(tether_client_rate_limit_map, HASH, TetherClientRateLimitKey,
+                   TetherClientRateLimitValue, 64, AID_NETWORK_STACK)
+
+// Refills the bucket of the client for the direction of the packet, then takes the tokens for
+// its bytes. Returns false if there are not enough tokens, in which case the packet must be
+// dropped: if punted, the core stack would forward it anyway. The bucket is not locked, so the
+// packets of a client processed concurrently on several cpus may slightly exceed the rate.
+static inline __always_inline bool take_client_tokens(const TetherClientRateLimitKey* k,
+        const bool downstream, const uint64_t bytes) {
+    if (!k->downstreamIfindex) return true;
+
+    TetherClientRateLimitValue* v = bpf_tether_client_rate_limit_map_lookup_elem(k);
+    if (!v) return true;
+
+    uint64_t* tokens = downstream ? &v->rxTokens : &v->txTokens;
+    uint64_t* last_refill = downstream ? &v->rxLastRefill : &v->txLastRefill;
+    const uint64_t now = bpf_ktime_get_ns();
+    const uint64_t elapsed = now - *last_refill;
+
+    // Also true for the first packet, since the buckets are created with no refill time. This
+    // bounds elapsed below, so that the refill computation cannot overflow.
+    if (elapsed >= v->fillTimeNs) {
+        *tokens = v->burstBytes;
+        *last_refill = now;
+    } else {
+        const uint64_t refill = elapsed * v->rateBytesPerSec / NSEC_PER_SEC;
+        if (*tokens + refill >= v->burstBytes) {
+            *tokens = v->burstBytes;
+            *last_refill = now;
+        } else if (refill) {
+            // Only account for the time of the whole tokens, the remainder is not lost.
+            *tokens += refill;
+            *last_refill += refill * NSEC_PER_SEC / v->rateBytesPerSec;
+        }
+    }
+
+    if (*tokens < bytes) return false;
+    *tokens -= bytes;
+    return true;
+}
+
 // ----- IPv6 Support -----
 
 DEFINE_BPF_MAP_GRW(tether_downstream6_map, HASH, TetherDownstream6Key, Tether6Value, 64,
@@ -105,8 +248,180 @@ DEFINE_BPF_MAP_GRW(tether_downstream64_map, HASH, TetherDownstream64Key, TetherD
 DEFINE_BPF_MAP_GRW(tether_upstream6_map, HASH, TetherUpstream6Key, Tether6Value, 64,
                    AID_NETWORK_STACK)
 
+// Translates the IPv6 packets of the 464xlat flows of the tethered clients to IPv4, and forwards
+// them to the downstream interface. This does the job of both clatd and the IPv4 NAT of the core
+// stack, see TetherDownstream64Value. Only called for IPv6 packets without a downstream6 rule.
+static inline __always_inline int do_forward64(struct __sk_buff* skb, const bool is_ethernet,
+        const bool updatetime) {
+    const int l2_header_size = is_ethernet ? sizeof(struct ethhdr) : 0;
+
+    void* data = (void*)(long)skb->data;
+    const void* data_end = (void*)(long)skb->data_end;
+    struct ethhdr* eth = is_ethernet ? data : NULL;  // used iff is_ethernet
+    struct ipv6hdr* ip6 = is_ethernet ? (void*)(eth + 1) : data;
+
+    // Must have (ethernet and) ipv6 header
+    if (data + l2_header_size + sizeof(*ip6) > data_end) return TC_ACT_OK;
+
+    // Only TCP & UDP without extension headers can be translated and NATed, and only TCP if
+    // 'lastUsed' cannot be updated, see do_forward4. Nothing is counted before the lookup,
+    // since every IPv6 packet without a downstream6 rule gets here.
+    if (!updatetime && ip6->nexthdr != IPPROTO_TCP) return TC_ACT_OK;
+    if ((ip6->nexthdr != IPPROTO_TCP) && (ip6->nexthdr != IPPROTO_UDP)) return TC_ACT_OK;
+    const bool is_tcp = !updatetime || (ip6->nexthdr == IPPROTO_TCP);
+
+    if (data + l2_header_size + sizeof(*ip6) + (is_tcp ? sizeof(struct tcphdr)
+                                                       : sizeof(struct udphdr)) > data_end)
+        return TC_ACT_OK;
+
+    struct tcphdr* tcph = is_tcp ? (void*)(ip6 + 1) : NULL;
+    struct udphdr* udph = is_tcp ? NULL : (void*)(ip6 + 1);
+
+    TetherDownstream64Key k = {
+            .iif = skb->ifindex,
+            .l4Proto = ip6->nexthdr,
+            .src6 = ip6->saddr,
+            .dst6 = ip6->daddr,
+            .srcPort = is_tcp ? tcph->source : udph->source,
+            .dstPort = is_tcp ? tcph->dest : udph->dest,
+    };
+    if (is_ethernet) __builtin_memcpy(k.dstMac, eth->h_dest, ETH_ALEN);
+
+    TetherDownstream64Value* v = bpf_tether_downstream64_map_lookup_elem(&k);
+
+    // If we don't find any offload information then simply let the core stack handle it...
+    if (!v) return TC_ACT_OK;
+
+    TetherClientStatsKey client_k = {};
+    get_client_stats_key(&client_k, /* downstream */ true, skb->ifindex, eth, v->oif,
+                         &v->macHeader);
+
+    uint32_t stat_and_limit_k = skb->ifindex;
+
+    TetherStatsValue* stat_v = bpf_tether_stats_map_lookup_elem(&stat_and_limit_k);
+
+    // If we don't have anywhere to put stats, then abort...
+    if (!stat_v) TC_PUNT(CLAT_NO_STATS_ENTRY);
+
+    uint64_t* limit_v = bpf_tether_limit_map_lookup_elem(&stat_and_limit_k);
+
+    // If we don't have a limit, then abort...
+    if (!limit_v) TC_PUNT(CLAT_NO_LIMIT_ENTRY);
+
+    // Required IPv4 minimum mtu is 68, below that not clear what we should do, abort...
+    if (v->pmtu < 68) TC_PUNT(BELOW_IPV4_MTU);
+
+    // An IPv6 UDP checksum of zero is invalid, let clatd drop it.
+    if (!is_tcp && !udph->check) TC_PUNT(CLAT_UDP_CSUM_ZERO);
+
+    // The translated packet is 20 bytes shorter. Approximate handling of LRO/GRO packets,
+    // see do_forward4.
+    uint64_t packets = 1;
+    uint64_t bytes = skb->len - (sizeof(struct ipv6hdr) - sizeof(struct iphdr));
+    if (bytes > v->pmtu) {
+        const int tcp_overhead = sizeof(struct iphdr) + sizeof(struct tcphdr) + 12;
+        const int mss = v->pmtu - tcp_overhead;
+        const uint64_t payload = bytes - tcp_overhead;
+        packets = (payload + mss - 1) / mss;
+        bytes = tcp_overhead * packets + payload;
+    }
+
+    // Is the client past its rate limit?  If so, then drop... See take_client_tokens.
+    if (!take_client_tokens(&client_k, /* downstream */ true, bytes)) TC_DROP(CLIENT_RATE_LIMITED);
+
+    // Are we past the limit?  If so, then abort... See do_forward6.
+    if (!take_quota(&stat_and_limit_k, *limit_v, bytes)) TC_PUNT(CLAT_LIMIT_REACHED);
+
+    struct iphdr ip = {
+            .version = 4,                                                      // u4
+            .ihl = sizeof(struct iphdr) / sizeof(__u32),                       // u4
+            .tos = (ip6->priority << 4) + (ip6->flow_lbl[0] >> 4),             // u8
+            .tot_len = htons(ntohs(ip6->payload_len) + sizeof(struct iphdr)),  // u16
+            .id = 0,                                                           // u16
+            .frag_off = htons(IP_DF),                                          // u16
+            .ttl = ip6->hop_limit - 1,                                         // u8
+            .protocol = ip6->nexthdr,                                          // u8
+            .check = 0,                                                        // u16
+            .saddr = v->src4.s_addr,                                           // u32
+            .daddr = v->dst4.s_addr,                                           // u32
+    };
+
+    // Calculate the IPv4 one's complement checksum of the IPv4 header.
+    __wsum sum4 = 0;
+    for (int i = 0; i < sizeof(ip) / sizeof(__u16); ++i) {
+        sum4 += ((__u16*)&ip)[i];
+    }
+    sum4 = (sum4 & 0xFFFF) + (sum4 >> 16);  // collapse u32 into range 1 .. 0x1FFFE
+    sum4 = (sum4 & 0xFFFF) + (sum4 >> 16);  // collapse any potential carry into u16
+    ip.check = (__u16)~sum4;                // sum4 cannot be zero, so this is never 0xFFFF
+
+    // Calculate the *negative* IPv6 16-bit one's complement checksum of the IPv6 header, which
+    // is removed from skb->csum of CHECKSUM_COMPLETE packets. The IPv4 header sums to zero.
+    __wsum sum6 = 0;
+    for (int i = 0; i < sizeof(*ip6) / sizeof(__u16); ++i) {
+        sum6 += ~((__u16*)ip6)[i];  // note the bitwise negation
+    }
+
+    // The L4 pseudo header changes from the IPv6 to the IPv4 addresses. The length and the
+    // protocol are the same in both.
+    struct in6_addr old_addrs[2] = { ip6->saddr, ip6->daddr };
+    struct in_addr new_addrs[2] = { v->src4, v->dst4 };
+    const __wsum l4_diff = bpf_csum_diff((__be32*)old_addrs, sizeof(old_addrs),
+                                         (__be32*)new_addrs, sizeof(new_addrs), 0);
+
+    // Packet mutations begin - point of no return, but if this first modification fails
+    // the packet is probably still pristine, so let clatd handle it.
+    if (bpf_skb_change_proto(skb, htons(ETH_P_IP), 0)) {
+        stat_v->rxErrors += 1;
+        give_back_quota(&stat_and_limit_k, bytes);
+        TC_PUNT(CLAT_CHANGE_PROTO);
+    }
+
+    // This takes care of updating the skb->csum field for a CHECKSUM_COMPLETE packet.
+    bpf_csum_update(skb, sum6);
+
+    if (!is_ethernet) {
+        // Inject an ethernet header, see do_forward6. The packet is no longer IPv6, so it
+        // cannot be handed back to the core stack anymore.
+        if (bpf_skb_change_head(skb, sizeof(struct ethhdr), /*flags*/ 0)) {
+            stat_v->rxErrors += 1;
+            give_back_quota(&stat_and_limit_k, bytes);
+            TC_DROP(CLAT_CHANGE_HEAD);
+        }
+    }
+
+    // At this point we always have an ethernet header, followed by the space for the IPv4
+    // header. Overwrite both.
+    bpf_skb_store_bytes(skb, 0, &v->macHeader, sizeof(v->macHeader), 0);
+    bpf_skb_store_bytes(skb, ETH_HLEN, &ip, sizeof(ip), 0);
+
+    const int l4_offs_csum = is_tcp ? ETH_IP4_TCP_OFFSET(check) : ETH_IP4_UDP_OFFSET(check);
+    // UDP 0 is special and stored as FFFF (this flag also causes a csum of 0 to be unmodified)
+    const int l4_flags = is_tcp ? 0 : BPF_F_MARK_MANGLED_0;
+    bpf_l4_csum_replace(skb, l4_offs_csum, 0, l4_diff, BPF_F_PSEUDO_HDR | l4_flags);
+
+    const int sz2 = sizeof(__be16);
+    bpf_l4_csum_replace(skb, l4_offs_csum, k.srcPort, v->srcPort, sz2 | l4_flags);
+    bpf_skb_store_bytes(skb, is_tcp ? ETH_IP4_TCP_OFFSET(source) : ETH_IP4_UDP_OFFSET(source),
+                        &v->srcPort, sz2, 0);
+
+    bpf_l4_csum_replace(skb, l4_offs_csum, k.dstPort, v->outPort, sz2 | l4_flags);
+    bpf_skb_store_bytes(skb, is_tcp ? ETH_IP4_TCP_OFFSET(dest) : ETH_IP4_UDP_OFFSET(dest),
+                        &v->outPort, sz2, 0);
+
+    // See do_forward4.
+    if (updatetime) v->lastUsed = bpf_ktime_get_boot_ns();
+
+    stat_v->rxPackets += packets;
+    stat_v->rxBytes += bytes;
+    update_client_stats(&client_k, /* downstream */ true, packets, bytes);
+
+    // Redirect to forwarded interface, see do_forward6.
+    return bpf_redirect(v->oif, 0 /* this is effectively BPF_F_EGRESS */);
+}
+
 static inline __always_inline int do_forward6(struct __sk_buff* skb, const bool is_ethernet,
-        const bool downstream) {
+        const bool downstream, const bool updatetime) {
     // Must be meta-ethernet IPv6 frame
     if (skb->protocol != htons(ETH_P_IPV6)) return TC_ACT_OK;
 
@@ -181,9 +496,15 @@ static inline __always_inline int do_forward6(struct __sk_buff* skb, const bool
     Tether6Value* v = downstream ? bpf_tether_downstream6_map_lookup_elem(&kd)
                                  : bpf_tether_upstream6_map_lookup_elem(&ku);
 
+    // The packet may belong to an IPv4 flow of a tethered client going through 464xlat.
+    if (!v && downstream) return do_forward64(skb, is_ethernet, updatetime);
+
     // If we don't find any offload information then simply let the core stack handle it...
     if (!v) return TC_ACT_OK;
 
+    TetherClientStatsKey client_k = {};
+    get_client_stats_key(&client_k, downstream, skb->ifindex, eth, v->oif, &v->macHeader);
+
     uint32_t stat_and_limit_k = downstream ? skb->ifindex : v->oif;
 
     TetherStatsValue* stat_v = bpf_tether_stats_map_lookup_elem(&stat_and_limit_k);
@@ -216,20 +537,25 @@ static inline __always_inline int do_forward6(struct __sk_buff* skb, const bool
         bytes = tcp_overhead * packets + payload;
     }
 
-    // Are we past the limit?  If so, then abort...
+    // Is the client past its rate limit?  If so, then drop... See take_client_tokens.
+    // This is checked first, so that the dropped packets do not use up the quota.
+    if (!take_client_tokens(&client_k, downstream, bytes)) TC_DROP(CLIENT_RATE_LIMITED);
+
+    // Are we past the limit?  If so, then abort... See take_quota.
     // Note: will not overflow since u64 is 936 years even at 5Gbps.
     // Do not drop here.  Offload is just that, whenever we fail to handle
     // a packet we let the core stack deal with things.
     // (The core stack needs to handle limits correctly anyway,
     // since we don't offload all traffic in both directions)
-    if (stat_v->rxBytes + stat_v->txBytes + bytes > *limit_v) TC_PUNT(LIMIT_REACHED);
+    if (!take_quota(&stat_and_limit_k, *limit_v, bytes)) TC_PUNT(LIMIT_REACHED);
 
     if (!is_ethernet) {
         // Try to inject an ethernet header, and simply return if we fail.
         // We do this even if TX interface is RAWIP and thus does not need an ethernet header,
         // because this is easier and the kernel will strip extraneous ethernet header.
         if (bpf_skb_change_head(skb, sizeof(struct ethhdr), /*flags*/ 0)) {
-            __sync_fetch_and_add(downstream ? &stat_v->rxErrors : &stat_v->txErrors, 1);
+            *(downstream ? &stat_v->rxErrors : &stat_v->txErrors) += 1;
+            give_back_quota(&stat_and_limit_k, bytes);
             TC_PUNT(CHANGE_HEAD_FAILED);
         }
 
@@ -241,7 +567,8 @@ static inline __always_inline int do_forward6(struct __sk_buff* skb, const bool
 
         // I do not believe this can ever happen, but keep the verifier happy...
         if (data + sizeof(struct ethhdr) + sizeof(*ip6) > data_end) {
-            __sync_fetch_and_add(downstream ? &stat_v->rxErrors : &stat_v->txErrors, 1);
+            *(downstream ? &stat_v->rxErrors : &stat_v->txErrors) += 1;
+            give_back_quota(&stat_and_limit_k, bytes);
             TC_DROP(TOO_SHORT);
         }
     };
@@ -261,8 +588,9 @@ static inline __always_inline int do_forward6(struct __sk_buff* skb, const bool
     // (-ENOTSUPP) if it isn't.
     bpf_csum_update(skb, 0xFFFF - ntohs(old_hl) + ntohs(new_hl));
 
-    __sync_fetch_and_add(downstream ? &stat_v->rxPackets : &stat_v->txPackets, packets);
-    __sync_fetch_and_add(downstream ? &stat_v->rxBytes : &stat_v->txBytes, bytes);
+    *(downstream ? &stat_v->rxPackets : &stat_v->txPackets) += packets;
+    *(downstream ? &stat_v->rxBytes : &stat_v->txBytes) += bytes;
+    update_client_stats(&client_k, downstream, packets, bytes);
 
     // Overwrite any mac header with the new one
     // For a rawip tx interface it will simply be a bunch of zeroes and later stripped.
@@ -277,22 +605,40 @@ static inline __always_inline int do_forward6(struct __sk_buff* skb, const bool
     return bpf_redirect(v->oif, 0 /* this is effectively BPF_F_EGRESS */);
 }
 
-DEFINE_BPF_PROG("schedcls/tether_downstream6_ether", AID_ROOT, AID_NETWORK_STACK,
-                sched_cls_tether_downstream6_ether)
+// Note: section names must be unique to prevent programs from appending to each other,
+// so instead the bpf loader will strip everything past the final $ symbol when actually
+// pinning the program into the filesystem.
+//
+// The downstream programs also translate the 464xlat flows, see do_forward64, which needs the
+// bpf_ktime_get_boot_ns() helper to offload UDP. As for IPv4, the full featured versions are
+// mandatory for 5.8+ kernels and optional before, with TCP-only fallbacks.
+
+DEFINE_BPF_PROG_KVER("schedcls/tether_downstream6_ether$5_8", AID_ROOT, AID_NETWORK_STACK,
+                     sched_cls_tether_downstream6_ether_5_8, KVER(5, 8, 0))
+(struct __sk_buff* skb) {
+    return do_forward6(skb, /* is_ethernet */ true, /* downstream */ true, /* updatetime */ true);
+}
+
+DEFINE_OPTIONAL_BPF_PROG_KVER_RANGE("schedcls/tether_downstream6_ether$opt",
+                                    AID_ROOT, AID_NETWORK_STACK,
+                                    sched_cls_tether_downstream6_ether_opt,
+                                    KVER(4, 14, 0), KVER(5, 8, 0))
 (struct __sk_buff* skb) {
-    return do_forward6(skb, /* is_ethernet */ true, /* downstream */ true);
+    return do_forward6(skb, /* is_ethernet */ true, /* downstream */ true, /* updatetime */ true);
+}
+
+DEFINE_BPF_PROG_KVER_RANGE("schedcls/tether_downstream6_ether$compat", AID_ROOT, AID_NETWORK_STACK,
+                           sched_cls_tether_downstream6_ether_compat, KVER_NONE, KVER(5, 8, 0))
+(struct __sk_buff* skb) {
+    return do_forward6(skb, /* is_ethernet */ true, /* downstream */ true, /* updatetime */ false);
 }
 
 DEFINE_BPF_PROG("schedcls/tether_upstream6_ether", AID_ROOT, AID_NETWORK_STACK,
                 sched_cls_tether_upstream6_ether)
 (struct __sk_buff* skb) {
-    return do_forward6(skb, /* is_ethernet */ true, /* downstream */ false);
+    return do_forward6(skb, /* is_ethernet */ true, /* downstream */ false, /* updatetime */ false);
 }
 
-// Note: section names must be unique to prevent programs from appending to each other,
-// so instead the bpf loader will strip everything past the final $ symbol when actually
-// pinning the program into the filesystem.
-//
 // bpf_skb_change_head() is only present on 4.14+ and 2 trivial kernel patches are needed:
 //   ANDROID: net: bpf: Allow TC programs to call BPF_FUNC_skb_change_head
 //   ANDROID: net: bpf: permit redirect from ingress L3 to egress L2 devices at near max mtu
@@ -302,16 +648,30 @@ DEFINE_BPF_PROG("schedcls/tether_upstream6_ether", AID_ROOT, AID_NETWORK_STACK,
 // and thus a 5.4 kernel always supports this.
 //
 // Hence, these mandatory (must load successfully) implementations for 5.4+ kernels:
-DEFINE_BPF_PROG_KVER("schedcls/tether_downstream6_rawip$5_4", AID_ROOT, AID_NETWORK_STACK,
-                     sched_cls_tether_downstream6_rawip_5_4, KVER(5, 4, 0))
+DEFINE_BPF_PROG_KVER("schedcls/tether_downstream6_rawip$5_8", AID_ROOT, AID_NETWORK_STACK,
+                     sched_cls_tether_downstream6_rawip_5_8, KVER(5, 8, 0))
+(struct __sk_buff* skb) {
+    return do_forward6(skb, /* is_ethernet */ false, /* downstream */ true, /* updatetime */ true);
+}
+
+DEFINE_OPTIONAL_BPF_PROG_KVER_RANGE("schedcls/tether_downstream6_rawip$opt",
+                                    AID_ROOT, AID_NETWORK_STACK,
+                                    sched_cls_tether_downstream6_rawip_opt,
+                                    KVER(4, 14, 0), KVER(5, 8, 0))
+(struct __sk_buff* skb) {
+    return do_forward6(skb, /* is_ethernet */ false, /* downstream */ true, /* updatetime */ true);
+}
+
+DEFINE_BPF_PROG_KVER_RANGE("schedcls/tether_downstream6_rawip$5_4", AID_ROOT, AID_NETWORK_STACK,
+                           sched_cls_tether_downstream6_rawip_5_4, KVER(5, 4, 0), KVER(5, 8, 0))
 (struct __sk_buff* skb) {
-    return do_forward6(skb, /* is_ethernet */ false, /* downstream */ true);
+    return do_forward6(skb, /* is_ethernet */ false, /* downstream */ true, /* updatetime */ false);
 }
 
 DEFINE_BPF_PROG_KVER("schedcls/tether_upstream6_rawip$5_4", AID_ROOT, AID_NETWORK_STACK,
                      sched_cls_tether_upstream6_rawip_5_4, KVER(5, 4, 0))
 (struct __sk_buff* skb) {
-    return do_forward6(skb, /* is_ethernet */ false, /* downstream */ false);
+    return do_forward6(skb, /* is_ethernet */ false, /* downstream */ false, /* updatetime */ false);
 }
 
 // and these identical optional (may fail to load) implementations for [4.14..5.4) patched kernels:
@@ -320,7 +680,7 @@ DEFINE_OPTIONAL_BPF_PROG_KVER_RANGE("schedcls/tether_downstream6_rawip$4_14",
                                     sched_cls_tether_downstream6_rawip_4_14,
                                     KVER(4, 14, 0), KVER(5, 4, 0))
 (struct __sk_buff* skb) {
-    return do_forward6(skb, /* is_ethernet */ false, /* downstream */ true);
+    return do_forward6(skb, /* is_ethernet */ false, /* downstream */ true, /* updatetime */ false);
 }
 
 DEFINE_OPTIONAL_BPF_PROG_KVER_RANGE("schedcls/tether_upstream6_rawip$4_14",
@@ -328,7 +688,7 @@ DEFINE_OPTIONAL_BPF_PROG_KVER_RANGE("schedcls/tether_upstream6_rawip$4_14",
                                     sched_cls_tether_upstream6_rawip_4_14,
                                     KVER(4, 14, 0), KVER(5, 4, 0))
 (struct __sk_buff* skb) {
-    return do_forward6(skb, /* is_ethernet */ false, /* downstream */ false);
+    return do_forward6(skb, /* is_ethernet */ false, /* downstream */ false, /* updatetime */ false);
 }
 
 // and define no-op stubs for [4.9,4.14) and unpatched [4.14,5.4) kernels.
@@ -352,6 +712,150 @@ DEFINE_BPF_MAP_GRW(tether_downstream4_map, HASH, Tether4Key, Tether4Value, 1024,
 
 DEFINE_BPF_MAP_GRW(tether_upstream4_map, HASH, Tether4Key, Tether4Value, 1024, AID_NETWORK_STACK)
 
+// The upstream rules of the flows going through 464xlat translate to IPv6 addresses, the others
+// to IPv4-mapped addresses.
+static inline __always_inline bool is_ipv4_mapped(const struct in6_addr* addr) {
+    return !addr->s6_addr32[0] && !addr->s6_addr32[1] && addr->s6_addr32[2] == htonl(0xFFFF);
+}
+
+// Translates the IPv4 packets of the 464xlat flows of the tethered clients to IPv6, and forwards
+// them to the upstream interface. This does the job of both the IPv4 NAT of the core stack and
+// clatd. Called by do_forward4 once the packet is validated and its upstream4 rule found.
+static inline __always_inline int do_forward46(struct __sk_buff* skb, const bool is_ethernet,
+        const bool updatetime, const bool is_tcp, const Tether4Key* k, Tether4Value* v,
+        const TetherClientStatsKey* client_k) {
+    const int l2_header_size = is_ethernet ? sizeof(struct ethhdr) : 0;
+
+    void* data = (void*)(long)skb->data;
+    const void* data_end = (void*)(long)skb->data_end;
+    struct iphdr* ip = (void*)(data + l2_header_size);
+
+    // I do not believe this can ever happen since do_forward4 checked it, but keep the verifier
+    // happy...
+    if (data + l2_header_size + sizeof(*ip) + (is_tcp ? sizeof(struct tcphdr)
+                                                      : sizeof(struct udphdr)) > data_end)
+        TC_PUNT(CLAT_TOO_SHORT);
+
+    struct udphdr* udph = is_tcp ? NULL : (void*)(ip + 1);
+
+    // IPv6 requires a UDP checksum, which cannot be computed incrementally from no checksum.
+    if (!is_tcp && !udph->check) TC_PUNT(CLAT_UDP_CSUM_ZERO);
+
+    uint32_t stat_and_limit_k = v->oif;
+
+    TetherStatsValue* stat_v = bpf_tether_stats_map_lookup_elem(&stat_and_limit_k);
+
+    // If we don't have anywhere to put stats, then abort...
+    if (!stat_v) TC_PUNT(CLAT_NO_STATS_ENTRY);
+
+    uint64_t* limit_v = bpf_tether_limit_map_lookup_elem(&stat_and_limit_k);
+
+    // If we don't have a limit, then abort...
+    if (!limit_v) TC_PUNT(CLAT_NO_LIMIT_ENTRY);
+
+    // Required IPv6 minimum mtu is 1280, below that not clear what we should do, abort...
+    if (v->pmtu < IPV6_MIN_MTU) TC_PUNT(BELOW_IPV6_MTU);
+
+    // The translated packet is 20 bytes longer, and may not fit anymore. Let clatd handle it, it
+    // can send the ICMP errors. Not checked for TCP, whose MSS is clamped to the clat interface
+    // MTU when the connection is set up, and whose LRO/GRO packets are segmented on transmit.
+    const int tot_len6 = ntohs(ip->tot_len) + (sizeof(struct ipv6hdr) - sizeof(struct iphdr));
+    if (!is_tcp && tot_len6 > v->pmtu) TC_PUNT(CLAT_ABOVE_MTU);
+
+    // Approximate handling of LRO/GRO packets, see do_forward4.
+    uint64_t packets = 1;
+    uint64_t bytes = skb->len + (sizeof(struct ipv6hdr) - sizeof(struct iphdr));
+    if (bytes > v->pmtu) {
+        const int tcp_overhead = sizeof(struct ipv6hdr) + sizeof(struct tcphdr) + 12;
+        const int mss = v->pmtu - tcp_overhead;
+        const uint64_t payload = bytes - tcp_overhead;
+        packets = (payload + mss - 1) / mss;
+        bytes = tcp_overhead * packets + payload;
+    }
+
+    // Is the client past its rate limit?  If so, then drop... See take_client_tokens.
+    if (!take_client_tokens(client_k, /* downstream */ false, bytes)) TC_DROP(CLIENT_RATE_LIMITED);
+
+    // Are we past the limit?  If so, then abort... See do_forward4.
+    if (!take_quota(&stat_and_limit_k, *limit_v, bytes)) TC_PUNT(CLAT_LIMIT_REACHED);
+
+    struct ipv6hdr ip6 = {
+            .version = 6,                                                     // __u8:4
+            .priority = ip->tos >> 4,                                         // __u8:4
+            .flow_lbl = {(ip->tos & 0xF) << 4, 0, 0},                         // __u8[3]
+            .payload_len = htons(ntohs(ip->tot_len) - sizeof(struct iphdr)),  // __be16
+            .nexthdr = ip->protocol,                                          // __u8
+            .hop_limit = ip->ttl - 1,                                         // __u8
+            .saddr = v->src46,                                                // struct in6_addr
+            .daddr = v->dst46,                                                // struct in6_addr
+    };
+
+    // Calculate the IPv6 16-bit one's complement checksum of the IPv6 header, which is added to
+    // skb->csum of CHECKSUM_COMPLETE packets. The IPv4 header sums to zero, as do_forward4
+    // checked its checksum.
+    __wsum sum6 = 0;
+    for (int i = 0; i < sizeof(ip6) / sizeof(__u16); ++i) {
+        sum6 += ((__u16*)&ip6)[i];
+    }
+
+    // The L4 pseudo header changes from the IPv4 to the IPv6 addresses. The length and the
+    // protocol are the same in both.
+    struct in_addr old_addrs[2] = { k->src4, k->dst4 };
+    struct in6_addr new_addrs[2] = { v->src46, v->dst46 };
+    const __wsum l4_diff = bpf_csum_diff((__be32*)old_addrs, sizeof(old_addrs),
+                                         (__be32*)new_addrs, sizeof(new_addrs), 0);
+
+    // Packet mutations begin - point of no return, but if this first modification fails
+    // the packet is probably still pristine, so let the core stack handle it.
+    if (bpf_skb_change_proto(skb, htons(ETH_P_IPV6), 0)) {
+        stat_v->txErrors += 1;
+        give_back_quota(&stat_and_limit_k, bytes);
+        TC_PUNT(CLAT_CHANGE_PROTO);
+    }
+
+    // This takes care of updating the skb->csum field for a CHECKSUM_COMPLETE packet.
+    bpf_csum_update(skb, sum6);
+
+    if (!is_ethernet) {
+        // Inject an ethernet header, see do_forward4. The packet is no longer IPv4, so it
+        // cannot be handed back to the core stack anymore.
+        if (bpf_skb_change_head(skb, sizeof(struct ethhdr), /*flags*/ 0)) {
+            stat_v->txErrors += 1;
+            give_back_quota(&stat_and_limit_k, bytes);
+            TC_DROP(CLAT_CHANGE_HEAD);
+        }
+    }
+
+    // At this point we always have an ethernet header, followed by the space for the IPv6
+    // header. Overwrite both. For a rawip tx interface the ethernet header is later stripped.
+    bpf_skb_store_bytes(skb, 0, &v->macHeader, sizeof(v->macHeader), 0);
+    bpf_skb_store_bytes(skb, ETH_HLEN, &ip6, sizeof(ip6), 0);
+
+    const int l4_offs_csum = is_tcp ? ETH_IP6_TCP_OFFSET(check) : ETH_IP6_UDP_OFFSET(check);
+    // UDP 0 is special and stored as FFFF (this flag also causes a csum of 0 to be unmodified)
+    const int l4_flags = is_tcp ? 0 : BPF_F_MARK_MANGLED_0;
+    bpf_l4_csum_replace(skb, l4_offs_csum, 0, l4_diff, BPF_F_PSEUDO_HDR | l4_flags);
+
+    const int sz2 = sizeof(__be16);
+    bpf_l4_csum_replace(skb, l4_offs_csum, k->srcPort, v->srcPort, sz2 | l4_flags);
+    bpf_skb_store_bytes(skb, is_tcp ? ETH_IP6_TCP_OFFSET(source) : ETH_IP6_UDP_OFFSET(source),
+                        &v->srcPort, sz2, 0);
+
+    bpf_l4_csum_replace(skb, l4_offs_csum, k->dstPort, v->dstPort, sz2 | l4_flags);
+    bpf_skb_store_bytes(skb, is_tcp ? ETH_IP6_TCP_OFFSET(dest) : ETH_IP6_UDP_OFFSET(dest),
+                        &v->dstPort, sz2, 0);
+
+    // See do_forward4.
+    if (updatetime) v->last_used = bpf_ktime_get_boot_ns();
+
+    stat_v->txPackets += packets;
+    stat_v->txBytes += bytes;
+    update_client_stats(client_k, /* downstream */ false, packets, bytes);
+
+    // Redirect to forwarded interface, see do_forward4.
+    return bpf_redirect(v->oif, 0 /* this is effectively BPF_F_EGRESS */);
+}
+
 static inline __always_inline int do_forward4(struct __sk_buff* skb, const bool is_ethernet,
         const bool downstream, const bool updatetime) {
     // Require ethernet dst mac address to be our unicast address.
@@ -497,6 +1001,13 @@ static inline __always_inline int do_forward4(struct __sk_buff* skb, const bool
     // If we don't find any offload information then simply let the core stack handle it...
     if (!v) return TC_ACT_OK;
 
+    TetherClientStatsKey client_k = {};
+    get_client_stats_key(&client_k, downstream, skb->ifindex, eth, v->oif, &v->macHeader);
+
+    // The flow goes through 464xlat, the packet needs to be translated to IPv6.
+    if (!downstream && !is_ipv4_mapped(&v->dst46))
+        return do_forward46(skb, is_ethernet, updatetime, is_tcp, &k, v, &client_k);
+
     uint32_t stat_and_limit_k = downstream ? skb->ifindex : v->oif;
 
     TetherStatsValue* stat_v = bpf_tether_stats_map_lookup_elem(&stat_and_limit_k);
@@ -529,20 +1040,25 @@ static inline __always_inline int do_forward4(struct __sk_buff* skb, const bool
         bytes = tcp_overhead * packets + payload;
     }
 
-    // Are we past the limit?  If so, then abort...
+    // Is the client past its rate limit?  If so, then drop... See take_client_tokens.
+    // This is checked first, so that the dropped packets do not use up the quota.
+    if (!take_client_tokens(&client_k, downstream, bytes)) TC_DROP(CLIENT_RATE_LIMITED);
+
+    // Are we past the limit?  If so, then abort... See take_quota.
     // Note: will not overflow since u64 is 936 years even at 5Gbps.
     // Do not drop here.  Offload is just that, whenever we fail to handle
     // a packet we let the core stack deal with things.
     // (The core stack needs to handle limits correctly anyway,
     // since we don't offload all traffic in both directions)
-    if (stat_v->rxBytes + stat_v->txBytes + bytes > *limit_v) TC_PUNT(LIMIT_REACHED);
+    if (!take_quota(&stat_and_limit_k, *limit_v, bytes)) TC_PUNT(LIMIT_REACHED);
 
     if (!is_ethernet) {
         // Try to inject an ethernet header, and simply return if we fail.
         // We do this even if TX interface is RAWIP and thus does not need an ethernet header,
         // because this is easier and the kernel will strip extraneous ethernet header.
         if (bpf_skb_change_head(skb, sizeof(struct ethhdr), /*flags*/ 0)) {
-            __sync_fetch_and_add(downstream ? &stat_v->rxErrors : &stat_v->txErrors, 1);
+            *(downstream ? &stat_v->rxErrors : &stat_v->txErrors) += 1;
+            give_back_quota(&stat_and_limit_k, bytes);
             TC_PUNT(CHANGE_HEAD_FAILED);
         }
 
@@ -556,7 +1072,8 @@ static inline __always_inline int do_forward4(struct __sk_buff* skb, const bool
 
         // I do not believe this can ever happen, but keep the verifier happy...
         if (data + sizeof(struct ethhdr) + sizeof(*ip) + (is_tcp ? sizeof(*tcph) : sizeof(*udph)) > data_end) {
-            __sync_fetch_and_add(downstream ? &stat_v->rxErrors : &stat_v->txErrors, 1);
+            *(downstream ? &stat_v->rxErrors : &stat_v->txErrors) += 1;
+            give_back_quota(&stat_and_limit_k, bytes);
             TC_DROP(TOO_SHORT);
         }
     };
@@ -603,8 +1120,9 @@ static inline __always_inline int do_forward4(struct __sk_buff* skb, const bool
     // and backported to all Android Common Kernel 4.14+ trees.
     if (updatetime) v->last_used = bpf_ktime_get_boot_ns();
 
-    __sync_fetch_and_add(downstream ? &stat_v->rxPackets : &stat_v->txPackets, packets);
-    __sync_fetch_and_add(downstream ? &stat_v->rxBytes : &stat_v->txBytes, bytes);
+    *(downstream ? &stat_v->rxPackets : &stat_v->txPackets) += packets;
+    *(downstream ? &stat_v->rxBytes : &stat_v->txBytes) += bytes;
+    update_client_stats(&client_k, downstream, packets, bytes);
 
     // Redirect to forwarded interface.
     //
@@ -770,14 +1288,354 @@ DEFINE_BPF_PROG_KVER_RANGE("schedcls/tether_upstream4_ether$stub", AID_ROOT, AID
 DEFINE_BPF_MAP_GRW(tether_xdp_devmap, DEVMAP_HASH, uint32_t, uint32_t, 64,
                    AID_NETWORK_STACK)
 
+// Both XDP programs forward to the interfaces in tether_xdp_devmap, which only contains the
+// interfaces able to transmit XDP frames, and hand everything else to the tc programs by
+// returning XDP_PASS. The packet must not be modified before it is known to be redirected.
+
+// Fold a 32-bit one's complement sum into 16 bits.
+static inline __always_inline __u16 csum_fold32(__u32 sum) {
+    sum = (sum & 0xFFFF) + (sum >> 16);
+    sum = (sum & 0xFFFF) + (sum >> 16);
+    return (__u16)sum;
+}
+
+// Incrementally update a checksum when a 16-bit word changes, see RFC 1624 equation 3.
+// The one's complement sum does not depend on the byte order, so the words are used as stored.
+static inline __always_inline void csum_replace2(__u16* csum, __u16 from, __u16 to) {
+    *csum = ~csum_fold32((__u16)~*csum + (__u16)~from + to);
+}
+
+static inline __always_inline void csum_replace4(__u16* csum, __be32 from, __be32 to) {
+    csum_replace2(csum, (__u16)from, (__u16)to);
+    csum_replace2(csum, (__u16)(from >> 16), (__u16)(to >> 16));
+}
+
+// Returns whether the output interface can be redirected to by XDP.
+static inline __always_inline bool is_xdp_redirectable(uint32_t oif) {
+    return bpf_tether_xdp_devmap_lookup_elem(&oif) != NULL;
+}
+
+// Same checks as do_forward6, without the skb metadata. The native XDP hook runs before GRO, and
+// drivers turn LRO off while an XDP program is attached, so each frame is exactly one packet. The
+// generic XDP hook runs after GRO, but the coalesced packets are above the MTU and are left to
+// the tc program by the MTU check below.
+//
+// Every packet passed here is seen again by the tc program, which does the same checks and counts
+// the same errors. So the checks shared with the tc program just pass the packet on, and only the
+// errors specific to XDP are counted here.
 static inline __always_inline int do_xdp_forward6(struct xdp_md *ctx, const bool is_ethernet,
         const bool downstream) {
-    return XDP_PASS;
+    void* data = (void*)(long)ctx->data;
+    const void* data_end = (void*)(long)ctx->data_end;
+    struct ethhdr* eth = is_ethernet ? data : NULL;  // used iff is_ethernet
+    struct ipv6hdr* ip6 = is_ethernet ? (void*)(eth + 1) : data;
+    const int l2_header_size = is_ethernet ? sizeof(struct ethhdr) : 0;
+
+    // Must have (ethernet and) ipv6 header
+    if (data + l2_header_size + sizeof(*ip6) > data_end) return XDP_PASS;
+
+    // IP version must be 6
+    if (ip6->version != 6) return XDP_PASS;
+
+    // Cannot decrement during forward if already zero or would be zero,
+    // Let the kernel's stack handle these cases and generate appropriate ICMP errors.
+    if (ip6->hop_limit <= 1) return XDP_PASS;
+
+    // If hardware offload is running and programming flows based on conntrack entries,
+    // try not to interfere with it.
+    if (ip6->nexthdr == IPPROTO_TCP) {
+        struct tcphdr* tcph = (void*)(ip6 + 1);
+
+        // Make sure we can get at the tcp header
+        if (data + l2_header_size + sizeof(*ip6) + sizeof(*tcph) > data_end)
+            return XDP_PASS;
+
+        // Do not offload TCP packets with any one of the SYN/FIN/RST flags
+        if (tcph->syn || tcph->fin || tcph->rst) return XDP_PASS;
+    }
+
+    // Protect against forwarding packets sourced from ::1 or fe80::/64 or other weirdness.
+    __be32 src32 = ip6->saddr.s6_addr32[0];
+    if (src32 != htonl(0x0064ff9b) &&                        // 64:ff9b:/32 incl. XLAT464 WKP
+        (src32 & htonl(0xe0000000)) != htonl(0x20000000))    // 2000::/3 Global Unicast
+        return XDP_PASS;
+
+    // Protect against forwarding packets destined to ::1 or fe80::/64 or other weirdness.
+    __be32 dst32 = ip6->daddr.s6_addr32[0];
+    if (dst32 != htonl(0x0064ff9b) &&                        // 64:ff9b:/32 incl. XLAT464 WKP
+        (dst32 & htonl(0xe0000000)) != htonl(0x20000000))    // 2000::/3 Global Unicast
+        return XDP_PASS;
+
+    // In the upstream direction do not forward traffic within the same /64 subnet.
+    if (!downstream && (src32 == dst32) && (ip6->saddr.s6_addr32[1] == ip6->daddr.s6_addr32[1]))
+        return XDP_PASS;
+
+    TetherDownstream6Key kd = {
+            .iif = ctx->ingress_ifindex,
+            .neigh6 = ip6->daddr,
+    };
+
+    TetherUpstream6Key ku = {
+            .iif = ctx->ingress_ifindex,
+    };
+    // The dst mac address is part of the key, so frames not addressed to us never match.
+    if (is_ethernet) __builtin_memcpy(downstream ? kd.dstMac : ku.dstMac, eth->h_dest, ETH_ALEN);
+
+    Tether6Value* v = downstream ? bpf_tether_downstream6_map_lookup_elem(&kd)
+                                 : bpf_tether_upstream6_map_lookup_elem(&ku);
+
+    // If we don't find any offload information then simply let the core stack handle it...
+    if (!v) return XDP_PASS;
+
+    // Let the tc program handle the output interfaces which XDP cannot transmit on.
+    if (!is_xdp_redirectable(v->oif)) return XDP_PASS;
+
+    TetherClientStatsKey client_k = {};
+    get_client_stats_key(&client_k, downstream, ctx->ingress_ifindex, eth, v->oif,
+                         &v->macHeader);
+
+    uint32_t stat_and_limit_k = downstream ? ctx->ingress_ifindex : v->oif;
+
+    TetherStatsValue* stat_v = bpf_tether_stats_map_lookup_elem(&stat_and_limit_k);
+
+    // If we don't have anywhere to put stats, then abort...
+    if (!stat_v) return XDP_PASS;
+
+    uint64_t* limit_v = bpf_tether_limit_map_lookup_elem(&stat_and_limit_k);
+
+    // If we don't have a limit, then abort...
+    if (!limit_v) return XDP_PASS;
+
+    // Required IPv6 minimum mtu is 1280, below that not clear what we should do, abort...
+    if (v->pmtu < IPV6_MIN_MTU) return XDP_PASS;
+
+    // XDP cannot fragment nor send ICMP errors, let the core stack deal with big packets.
+    const uint64_t bytes = data_end - data;
+    if (bytes - l2_header_size > v->pmtu) XDP_PUNT(ABOVE_MTU);
+
+    // Is the client past its rate limit?  If so, then drop... See take_client_tokens.
+    if (!take_client_tokens(&client_k, downstream, bytes)) XDP_DROP(CLIENT_RATE_LIMITED);
+
+    // Are we past the limit?  If so, then abort... See do_forward6.
+    if (!take_quota(&stat_and_limit_k, *limit_v, bytes)) return XDP_PASS;
+
+    if (!is_ethernet) {
+        // Make room for the ethernet header, see do_forward6.
+        if (bpf_xdp_adjust_head(ctx, -(int)sizeof(struct ethhdr))) {
+            *(downstream ? &stat_v->rxErrors : &stat_v->txErrors) += 1;
+            give_back_quota(&stat_and_limit_k, bytes);
+            XDP_PUNT(CHANGE_HEAD_FAILED);
+        }
+
+        // bpf_xdp_adjust_head() invalidates all pointers - reload them
+        data = (void*)(long)ctx->data;
+        data_end = (void*)(long)ctx->data_end;
+        eth = data;
+        ip6 = (void*)(eth + 1);
+
+        // I do not believe this can ever happen, but keep the verifier happy...
+        if (data + sizeof(struct ethhdr) + sizeof(*ip6) > data_end) {
+            *(downstream ? &stat_v->rxErrors : &stat_v->txErrors) += 1;
+            give_back_quota(&stat_and_limit_k, bytes);
+            XDP_DROP(TOO_SHORT);
+        }
+    }
+
+    // IPv6 has no header checksum, and the hop limit is not part of the L4 pseudo header.
+    --ip6->hop_limit;
+
+    *(downstream ? &stat_v->rxPackets : &stat_v->txPackets) += 1;
+    *(downstream ? &stat_v->rxBytes : &stat_v->txBytes) += bytes;
+    update_client_stats(&client_k, downstream, 1, bytes);
+
+    // Overwrite any mac header with the new one
+    *eth = v->macHeader;
+
+    // Redirect to forwarded interface. The output interface is in the devmap, so this only fails
+    // if the devmap entry was removed meanwhile, in which case the frame is dropped.
+    return bpf_redirect_map(&tether_xdp_devmap, v->oif, 0);
 }
 
+// Same checks as do_forward4, without the skb metadata. See do_xdp_forward6 for the packets seen
+// by XDP and the errors counted here.
 static inline __always_inline int do_xdp_forward4(struct xdp_md *ctx, const bool is_ethernet,
         const bool downstream) {
-    return XDP_PASS;
+    void* data = (void*)(long)ctx->data;
+    const void* data_end = (void*)(long)ctx->data_end;
+    struct ethhdr* eth = is_ethernet ? data : NULL;  // used iff is_ethernet
+    struct iphdr* ip = is_ethernet ? (void*)(eth + 1) : data;
+    const int l2_header_size = is_ethernet ? sizeof(struct ethhdr) : 0;
+
+    // Must have (ethernet and) ipv4 header
+    if (data + l2_header_size + sizeof(*ip) > data_end) return XDP_PASS;
+
+    // IP version must be 4
+    if (ip->version != 4) return XDP_PASS;
+
+    // We cannot handle IP options, just standard 20 byte == 5 dword minimal IPv4 header
+    if (ip->ihl != 5) return XDP_PASS;
+
+    // Calculate the IPv4 one's complement checksum of the IPv4 header.
+    __wsum sum4 = 0;
+    for (int i = 0; i < sizeof(*ip) / sizeof(__u16); ++i) {
+        sum4 += ((__u16*)ip)[i];
+    }
+    // for a correct checksum we should get *a* zero, but sum4 must be positive, ie 0xFFFF
+    if (csum_fold32(sum4) != 0xFFFF) return XDP_PASS;
+
+    // Minimum IPv4 total length is the size of the header
+    if (ntohs(ip->tot_len) < sizeof(*ip)) return XDP_PASS;
+
+    // We are incapable of dealing with IPv4 fragments
+    if (ip->frag_off & ~htons(IP_DF)) return XDP_PASS;
+
+    // Cannot decrement during forward if already zero or would be zero,
+    // Let the kernel's stack handle these cases and generate appropriate ICMP errors.
+    if (ip->ttl <= 1) return XDP_PASS;
+
+    // We do not support offloading anything besides IPv4 TCP and UDP, due to need for NAT.
+    if ((ip->protocol != IPPROTO_TCP) && (ip->protocol != IPPROTO_UDP)) return XDP_PASS;
+
+    const bool is_tcp = (ip->protocol == IPPROTO_TCP);
+
+    // Both TCP and UDP need at least 8 bytes of L4 header, see do_forward4.
+    if (data + l2_header_size + sizeof(*ip) + 8 > data_end) return XDP_PASS;
+
+    struct tcphdr* tcph = is_tcp ? (void*)(ip + 1) : NULL;
+    struct udphdr* udph = is_tcp ? NULL : (void*)(ip + 1);
+
+    if (is_tcp) {
+        // Make sure we can get at the tcp header
+        if (data + l2_header_size + sizeof(*ip) + sizeof(*tcph) > data_end)
+            return XDP_PASS;
+
+        // If hardware offload is running and programming flows based on conntrack entries, try not
+        // to interfere with it, so do not offload TCP packets with any one of the SYN/FIN/RST flags
+        if (tcph->syn || tcph->fin || tcph->rst) return XDP_PASS;
+    } else { // UDP
+        // Make sure we can get at the udp header
+        if (data + l2_header_size + sizeof(*ip) + sizeof(*udph) > data_end)
+            return XDP_PASS;
+    }
+
+    Tether4Key k = {
+            .iif = ctx->ingress_ifindex,
+            .l4Proto = ip->protocol,
+            .src4.s_addr = ip->saddr,
+            .dst4.s_addr = ip->daddr,
+            .srcPort = is_tcp ? tcph->source : udph->source,
+            .dstPort = is_tcp ? tcph->dest : udph->dest,
+    };
+    // The dst mac address is part of the key, so frames not addressed to us never match.
+    if (is_ethernet) __builtin_memcpy(k.dstMac, eth->h_dest, ETH_ALEN);
+
+    Tether4Value* v = downstream ? bpf_tether_downstream4_map_lookup_elem(&k)
+                                 : bpf_tether_upstream4_map_lookup_elem(&k);
+
+    // If we don't find any offload information then simply let the core stack handle it...
+    if (!v) return XDP_PASS;
+
+    // Translating the 464xlat flows is left to the tc program.
+    if (!is_ipv4_mapped(&v->dst46)) return XDP_PASS;
+
+    // Let the tc program handle the output interfaces which XDP cannot transmit on.
+    if (!is_xdp_redirectable(v->oif)) return XDP_PASS;
+
+    TetherClientStatsKey client_k = {};
+    get_client_stats_key(&client_k, downstream, ctx->ingress_ifindex, eth, v->oif,
+                         &v->macHeader);
+
+    uint32_t stat_and_limit_k = downstream ? ctx->ingress_ifindex : v->oif;
+
+    TetherStatsValue* stat_v = bpf_tether_stats_map_lookup_elem(&stat_and_limit_k);
+
+    // If we don't have anywhere to put stats, then abort...
+    if (!stat_v) return XDP_PASS;
+
+    uint64_t* limit_v = bpf_tether_limit_map_lookup_elem(&stat_and_limit_k);
+
+    // If we don't have a limit, then abort...
+    if (!limit_v) return XDP_PASS;
+
+    // Required IPv4 minimum mtu is 68, below that not clear what we should do, abort...
+    if (v->pmtu < 68) return XDP_PASS;
+
+    // XDP cannot fragment nor send ICMP errors, let the core stack deal with big packets.
+    const uint64_t bytes = data_end - data;
+    if (bytes - l2_header_size > v->pmtu) XDP_PUNT(ABOVE_MTU);
+
+    // Is the client past its rate limit?  If so, then drop... See take_client_tokens.
+    if (!take_client_tokens(&client_k, downstream, bytes)) XDP_DROP(CLIENT_RATE_LIMITED);
+
+    // Are we past the limit?  If so, then abort... See do_forward4.
+    if (!take_quota(&stat_and_limit_k, *limit_v, bytes)) return XDP_PASS;
+
+    if (!is_ethernet) {
+        // Make room for the ethernet header, see do_forward4.
+        if (bpf_xdp_adjust_head(ctx, -(int)sizeof(struct ethhdr))) {
+            *(downstream ? &stat_v->rxErrors : &stat_v->txErrors) += 1;
+            give_back_quota(&stat_and_limit_k, bytes);
+            XDP_PUNT(CHANGE_HEAD_FAILED);
+        }
+
+        // bpf_xdp_adjust_head() invalidates all pointers - reload them
+        data = (void*)(long)ctx->data;
+        data_end = (void*)(long)ctx->data_end;
+        eth = data;
+        ip = (void*)(eth + 1);
+        tcph = is_tcp ? (void*)(ip + 1) : NULL;
+        udph = is_tcp ? NULL : (void*)(ip + 1);
+
+        // I do not believe this can ever happen, but keep the verifier happy...
+        if (data + sizeof(struct ethhdr) + sizeof(*ip) + (is_tcp ? sizeof(*tcph) : sizeof(*udph)) > data_end) {
+            *(downstream ? &stat_v->rxErrors : &stat_v->txErrors) += 1;
+            give_back_quota(&stat_and_limit_k, bytes);
+            XDP_DROP(TOO_SHORT);
+        }
+    }
+
+    // Overwrite any mac header with the new one
+    *eth = v->macHeader;
+
+    const __be32 new_daddr = v->dst46.s6_addr32[3];
+    const __be32 new_saddr = v->src46.s6_addr32[3];
+
+    // The addresses are part of the L4 pseudo header, so both checksums need updating.
+    // A zero UDP checksum means no checksum and must stay zero, and a computed zero is sent as
+    // 0xFFFF instead.
+    __u16* l4_csum = is_tcp ? &tcph->check : &udph->check;
+    const bool update_l4_csum = is_tcp || *l4_csum;
+
+    csum_replace4(&ip->check, ip->daddr, new_daddr);
+    csum_replace4(&ip->check, ip->saddr, new_saddr);
+    if (update_l4_csum) {
+        csum_replace4(l4_csum, ip->daddr, new_daddr);
+        csum_replace4(l4_csum, ip->saddr, new_saddr);
+        csum_replace2(l4_csum, k.srcPort, v->srcPort);
+        csum_replace2(l4_csum, k.dstPort, v->dstPort);
+        if (!is_tcp && !*l4_csum) *l4_csum = 0xFFFF;
+    }
+    ip->daddr = new_daddr;
+    ip->saddr = new_saddr;
+    if (is_tcp) {
+        tcph->source = v->srcPort;
+        tcph->dest = v->dstPort;
+    } else {
+        udph->source = v->srcPort;
+        udph->dest = v->dstPort;
+    }
+
+    // TEMP HACK: lack of TTL decrement, to match do_forward4.
+
+    v->last_used = bpf_ktime_get_boot_ns();
+
+    *(downstream ? &stat_v->rxPackets : &stat_v->txPackets) += 1;
+    *(downstream ? &stat_v->rxBytes : &stat_v->txBytes) += bytes;
+    update_client_stats(&client_k, downstream, 1, bytes);
+
+    // Redirect to forwarded interface. The output interface is in the devmap, so this only fails
+    // if the devmap entry was removed meanwhile, in which case the frame is dropped.
+    return bpf_redirect_map(&tether_xdp_devmap, v->oif, 0);
 }
 
 static inline __always_inline int do_xdp_forward_ether(struct xdp_md *ctx, const bool downstream) {
@@ -26,6 +26,10 @@
 DEFINE_BPF_MAP_GRW(tether_downstream6_map, HASH, TetherDownstream6Key, Tether6Value, 16,
                    AID_NETWORK_STACK)
 
+// Used only by TetheringPrivilegedTests, not by production code. Per cpu like the offload map.
+DEFINE_BPF_MAP_GRW(tether_stats_map, PERCPU_HASH, TetherStatsKey, TetherStatsValue, 16,
+                   AID_NETWORK_STACK)
+
 DEFINE_BPF_PROG_KVER("xdp/drop_ipv4_udp_ether", AID_ROOT, AID_NETWORK_STACK,
                       xdp_test, KVER(5, 9, 0))
 (struct xdp_md *ctx) {
@@ -40,16 +40,35 @@ public final class TetheredClient implements Parcelable {
     private final List<AddressInfo> mAddresses;
     // TODO: use an @IntDef here
     private final int mTetheringType;
+    // Offloaded traffic of the client. rx is the traffic sent to the client, tx the traffic sent
+    // by the client.
+    private final long mRxBytes;
+    private final long mRxPackets;
+    private final long mTxBytes;
+    private final long mTxPackets;
 
     public TetheredClient(@NonNull MacAddress macAddress,
             @NonNull Collection<AddressInfo> addresses, int tetheringType) {
+        this(macAddress, addresses, tetheringType, 0 /* rxBytes */, 0 /* rxPackets */,
+                0 /* txBytes */, 0 /* txPackets */);
+    }
+
+    /** @hide */
+    public TetheredClient(@NonNull MacAddress macAddress,
+            @NonNull Collection<AddressInfo> addresses, int tetheringType, long rxBytes,
+            long rxPackets, long txBytes, long txPackets) {
         mMacAddress = macAddress;
         mAddresses = new ArrayList<>(addresses);
         mTetheringType = tetheringType;
+        mRxBytes = rxBytes;
+        mRxPackets = rxPackets;
+        mTxBytes = txBytes;
+        mTxPackets = txPackets;
     }
 
     private TetheredClient(@NonNull Parcel in) {
-        this(in.readParcelable(null), in.createTypedArrayList(AddressInfo.CREATOR), in.readInt());
+        this(in.readParcelable(null), in.createTypedArrayList(AddressInfo.CREATOR), in.readInt(),
+                in.readLong(), in.readLong(), in.readLong(), in.readLong());
     }
 
     @Override
@@ -57,6 +76,10 @@ public final class TetheredClient implements Parcelable {
         dest.writeParcelable(mMacAddress, flags);
         dest.writeTypedList(mAddresses);
         dest.writeInt(mTetheringType);
+        dest.writeLong(mRxBytes);
+        dest.writeLong(mRxPackets);
+        dest.writeLong(mTxBytes);
+        dest.writeLong(mTxPackets);
     }
 
     /**
@@ -83,6 +106,54 @@ public final class TetheredClient implements Parcelable {
         return mTetheringType;
     }
 
+    /**
+     * Get the number of bytes sent to the client that were forwarded by tethering offload.
+     *
+     * <p>This only includes the traffic forwarded by the BPF offload programs, and is only
+     * counted if per-client stats are enabled on the device. Otherwise it is 0.
+     */
+    public long getRxBytes() {
+        return mRxBytes;
+    }
+
+    /**
+     * Get the number of packets sent to the client that were forwarded by tethering offload.
+     *
+     * @see #getRxBytes()
+     */
+    public long getRxPackets() {
+        return mRxPackets;
+    }
+
+    /**
+     * Get the number of bytes sent by the client that were forwarded by tethering offload.
+     *
+     * @see #getRxBytes()
+     */
+    public long getTxBytes() {
+        return mTxBytes;
+    }
+
+    /**
+     * Get the number of packets sent by the client that were forwarded by tethering offload.
+     *
+     * @see #getRxBytes()
+     */
+    public long getTxPackets() {
+        return mTxPackets;
+    }
+
+    /**
+     * Return a new {@link TetheredClient} that has all the attributes of this instance, except
+     * for the offloaded traffic statistics which are replaced with the provided values.
+     * @hide
+     */
+    public TetheredClient withTrafficStats(long rxBytes, long rxPackets, long txBytes,
+            long txPackets) {
+        return new TetheredClient(mMacAddress, mAddresses, mTetheringType, rxBytes, rxPackets,
+                txBytes, txPackets);
+    }
+
     /**
      * Return a new {@link TetheredClient} that has all the attributes of this instance, plus the
      * {@link AddressInfo} of the provided {@link TetheredClient}.
@@ -95,12 +166,14 @@ public final class TetheredClient implements Parcelable {
                 mAddresses.size() + other.mAddresses.size());
         newAddresses.addAll(mAddresses);
         newAddresses.addAll(other.mAddresses);
-        return new TetheredClient(mMacAddress, newAddresses, mTetheringType);
+        return new TetheredClient(mMacAddress, newAddresses, mTetheringType, mRxBytes,
+                mRxPackets, mTxBytes, mTxPackets);
     }
 
     @Override
     public int hashCode() {
-        return Objects.hash(mMacAddress, mAddresses, mTetheringType);
+        return Objects.hash(mMacAddress, mAddresses, mTetheringType, mRxBytes, mRxPackets,
+                mTxBytes, mTxPackets);
     }
 
     @Override
@@ -109,7 +182,11 @@ public final class TetheredClient implements Parcelable {
         final TetheredClient other = (TetheredClient) obj;
         return mMacAddress.equals(other.mMacAddress)
                 && mAddresses.equals(other.mAddresses)
-                && mTetheringType == other.mTetheringType;
+                && mTetheringType == other.mTetheringType
+                && mRxBytes == other.mRxBytes
+                && mRxPackets == other.mRxPackets
+                && mTxBytes == other.mTxBytes
+                && mTxPackets == other.mTxPackets;
     }
 
     /**
@@ -234,6 +311,10 @@ public final class TetheredClient implements Parcelable {
         return "TetheredClient {hwAddr " + mMacAddress
                 + ", addresses " + mAddresses
                 + ", tetheringType " + mTetheringType
+                + ", rxBytes " + mRxBytes
+                + ", rxPackets " + mRxPackets
+                + ", txBytes " + mTxBytes
+                + ", txPackets " + mTxPackets
                 + "}";
     }
 }
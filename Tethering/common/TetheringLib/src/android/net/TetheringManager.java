@@ -30,6 +30,7 @@ import android.os.IBinder;
 import android.os.RemoteException;
 import android.os.ResultReceiver;
 import android.util.ArrayMap;
+import android.util.ArraySet;
 import android.util.Log;
 
 import com.android.internal.annotations.GuardedBy;
@@ -44,6 +45,9 @@ import java.util.HashMap;
 import java.util.List;
 import java.util.Objects;
 import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Consumer;
+import java.util.function.IntFunction;
 import java.util.function.Supplier;
 
 /**
@@ -58,6 +62,9 @@ public class TetheringManager {
     private static final String TAG = TetheringManager.class.getSimpleName();
     private static final int DEFAULT_TIMEOUT_MS = 60_000;
     private static final long CONNECTOR_POLL_INTERVAL_MILLIS = 200L;
+    // The maximum rate and burst size of the client rate limits, which the BPF programs enforce
+    // without overflow. See BpfCoordinator#MAX_CLIENT_RATE_LIMIT.
+    private static final long MAX_CLIENT_RATE_LIMIT = 1L << 32;
 
     @GuardedBy("mConnectorWaitQueue")
     @Nullable
@@ -66,6 +73,12 @@ public class TetheringManager {
     @NonNull
     private final List<ConnectorConsumer> mConnectorWaitQueue = new ArrayList<>();
     private final Supplier<IBinder> mConnectorSupplier;
+    // Whether the connector was obtained after the manager was created.
+    private final AtomicBoolean mConnecting = new AtomicBoolean(false);
+    // Results of the non-blocking requests and queries that were not sent yet. They are failed
+    // with TETHER_ERROR_SERVICE_UNAVAIL if the tethering service dies.
+    @GuardedBy("mPendingResults")
+    private final ArraySet<PendingResult<?>> mPendingResults = new ArraySet<>();
 
     private final TetheringCallbackInternal mCallback;
     private final Context mContext;
@@ -259,6 +272,29 @@ public class TetheringManager {
     @SystemApi(client = MODULE_LIBRARIES)
     public TetheringManager(@NonNull final Context context,
             @NonNull Supplier<IBinder> connectorSupplier) {
+        this(context, connectorSupplier,
+                onAvailable -> startPollingForConnector(connectorSupplier, onAvailable));
+    }
+
+    /**
+     * Create a TetheringManager object that is notified when the service is connected.
+     *
+     * <p>Unlike {@link #TetheringManager(Context, Supplier)}, this does not start a thread polling
+     * the connector supplier while the service is not connected. Calls made before the service is
+     * connected are queued and sent when the notification is received.
+     *
+     * @param context Context for the manager.
+     * @param connectorSupplier Supplier for the manager connector; may return null while the
+     *                          service is not connected.
+     * @param connectorAvailableNotifier Called once with a {@link Runnable} to run when the
+     *                                   connector supplier may return a non-null connector. The
+     *                                   Runnable may be run multiple times and on any thread.
+     * {@hide}
+     */
+    @SystemApi(client = MODULE_LIBRARIES)
+    public TetheringManager(@NonNull final Context context,
+            @NonNull Supplier<IBinder> connectorSupplier,
+            @NonNull Consumer<Runnable> connectorAvailableNotifier) {
         mContext = context;
         mCallback = new TetheringCallbackInternal();
         mConnectorSupplier = connectorSupplier;
@@ -276,15 +312,17 @@ public class TetheringManager {
         // better than inconsistent behavior persisting after boot.
         if (connector != null) {
             mConnector = ITetheringConnector.Stub.asInterface(connector);
+            linkToServiceDeath(connector);
         } else {
-            startPollingForConnector();
+            connectorAvailableNotifier.accept(this::maybeConnectToTethering);
         }
 
         Log.i(TAG, "registerTetheringEventCallback:" + pkgName);
         getConnector(c -> c.registerTetheringEventCallback(mCallback, pkgName));
     }
 
-    private void startPollingForConnector() {
+    private static void startPollingForConnector(@NonNull Supplier<IBinder> connectorSupplier,
+            @NonNull Runnable onAvailable) {
         new Thread(() -> {
             while (true) {
                 try {
@@ -293,15 +331,43 @@ public class TetheringManager {
                     // Not much to do here, the system needs to wait for the connector
                 }
 
-                final IBinder connector = mConnectorSupplier.get();
-                if (connector != null) {
-                    onTetheringConnected(ITetheringConnector.Stub.asInterface(connector));
+                if (connectorSupplier.get() != null) {
+                    onAvailable.run();
                     return;
                 }
             }
         }).start();
     }
 
+    private void maybeConnectToTethering() {
+        final IBinder connector = mConnectorSupplier.get();
+        if (connector == null) return;
+        // Only process the wait queue once, even if the notification is repeated.
+        if (!mConnecting.compareAndSet(false, true)) return;
+        linkToServiceDeath(connector);
+        onTetheringConnected(ITetheringConnector.Stub.asInterface(connector));
+    }
+
+    private void linkToServiceDeath(@NonNull IBinder connector) {
+        try {
+            connector.linkToDeath(this::onTetheringServiceDied, 0 /* flags */);
+        } catch (RemoteException e) {
+            // The service already died, so it will not reply to any request.
+            onTetheringServiceDied();
+        }
+    }
+
+    private void onTetheringServiceDied() {
+        Log.e(TAG, "Tethering service died");
+        final List<PendingResult<?>> pendingResults;
+        synchronized (mPendingResults) {
+            pendingResults = new ArrayList<>(mPendingResults);
+        }
+        for (PendingResult<?> result : pendingResults) {
+            result.sendError(TETHER_ERROR_SERVICE_UNAVAIL);
+        }
+    }
+
     private interface ConnectorConsumer {
         void onConnectorAvailable(ITetheringConnector connector) throws RemoteException;
     }
@@ -410,6 +476,61 @@ public class TetheringManager {
         }
     }
 
+    /**
+     * A result of a non-blocking request or query, sent at most once to the callback on its
+     * executor. The binder threads that receive the replies never run the callback themselves.
+     */
+    private class PendingResult<T> {
+        private final Executor mExecutor;
+        private final ResultCallback<T> mCallback;
+
+        PendingResult(@NonNull final Executor executor, @NonNull final ResultCallback<T> callback) {
+            mExecutor = Objects.requireNonNull(executor);
+            mCallback = Objects.requireNonNull(callback);
+            synchronized (mPendingResults) {
+                mPendingResults.add(this);
+            }
+        }
+
+        void sendResult(@NonNull final T result) {
+            if (!markSent()) return;
+            mExecutor.execute(() -> mCallback.onResult(result));
+        }
+
+        void sendError(final int error) {
+            if (!markSent()) return;
+            mExecutor.execute(() -> mCallback.onError(error));
+        }
+
+        private boolean markSent() {
+            synchronized (mPendingResults) {
+                return mPendingResults.remove(this);
+            }
+        }
+    }
+
+    private <T> void sendRequest(@NonNull final RequestHelper request,
+            @NonNull final IntFunction<T> resultConverter, @NonNull final Executor executor,
+            @NonNull final ResultCallback<T> callback) {
+        final PendingResult<T> result = new PendingResult<>(executor, callback);
+        final IIntResultListener listener = new IIntResultListener.Stub() {
+            @Override
+            public void onResult(final int resultCode) {
+                if (isPermissionFailure(resultCode)) {
+                    result.sendError(resultCode);
+                } else {
+                    result.sendResult(resultConverter.apply(resultCode));
+                }
+            }
+        };
+        getConnector(c -> request.runRequest(c, listener));
+    }
+
+    private static boolean isPermissionFailure(final int errorCode) {
+        return errorCode == TETHER_ERROR_NO_CHANGE_TETHERING_PERMISSION
+                || errorCode == TETHER_ERROR_NO_ACCESS_TETHERING_PERMISSION;
+    }
+
     private void throwIfPermissionFailure(final int errorCode) {
         switch (errorCode) {
             case TETHER_ERROR_NO_CHANGE_TETHERING_PERMISSION:
@@ -424,18 +545,24 @@ public class TetheringManager {
     private class TetheringCallbackInternal extends ITetheringEventCallback.Stub {
         private volatile int mError = TETHER_ERROR_NO_ERROR;
         private final ConditionVariable mWaitForCallback = new ConditionVariable();
+        // Queries to reply to once the callback is started, or null if it is started.
+        @GuardedBy("this")
+        @Nullable
+        private List<Runnable> mPendingQueries = new ArrayList<>();
 
         @Override
         public void onCallbackStarted(TetheringCallbackStartedParcel parcel) {
             mTetheringConfiguration = parcel.config;
             mTetherStatesParcel = parcel.states;
             mWaitForCallback.open();
+            replyToPendingQueries();
         }
 
         @Override
         public void onCallbackStopped(int errorCode) {
             mError = errorCode;
             mWaitForCallback.open();
+            replyToPendingQueries();
         }
 
         @Override
@@ -452,7 +579,8 @@ public class TetheringManager {
         }
 
         @Override
-        public void onTetherClientsChanged(List<TetheredClient> clients) { }
+        public void onTetherClientsUpdated(List<TetheredClient> addedOrUpdated,
+                List<TetheredClient> removed) { }
 
         @Override
         public void onOffloadStatusChanged(int status) { }
@@ -461,6 +589,73 @@ public class TetheringManager {
             mWaitForCallback.block(DEFAULT_TIMEOUT_MS);
             throwIfPermissionFailure(mError);
         }
+
+        /**
+         * Send the result of the query to the callback once the callback is started, without
+         * blocking the caller.
+         *
+         * <p>The query only reads the cached state. It runs on the binder thread that starts the
+         * callback, or on the caller thread if the callback is already started.
+         */
+        public <T> void whenStarted(@NonNull final Supplier<T> query,
+                @NonNull final Executor executor, @NonNull final ResultCallback<T> callback) {
+            final PendingResult<T> result = new PendingResult<>(executor, callback);
+            final Runnable reply = () -> {
+                final int error = mError;
+                if (error != TETHER_ERROR_NO_ERROR) {
+                    result.sendError(error);
+                } else {
+                    result.sendResult(query.get());
+                }
+            };
+            synchronized (this) {
+                if (mPendingQueries != null) {
+                    mPendingQueries.add(reply);
+                    return;
+                }
+            }
+            reply.run();
+        }
+
+        private void replyToPendingQueries() {
+            final List<Runnable> queries;
+            synchronized (this) {
+                queries = mPendingQueries;
+                mPendingQueries = null;
+            }
+            if (queries == null) return;
+            for (Runnable reply : queries) {
+                reply.run();
+            }
+        }
+    }
+
+    /**
+     * Callback for use with the non-blocking requests and queries, such as {@link #tetherAsync},
+     * to receive their result.
+     *
+     * @param <T> The type of the result.
+     * @hide
+     */
+    @SystemApi(client = MODULE_LIBRARIES)
+    public interface ResultCallback<T> {
+        /**
+         * Called when the request or query completed.
+         *
+         * @param result The result. For requests that return a {@code TETHER_ERROR} value, this
+         *         may indicate a failure that is not reported to {@link #onError}.
+         */
+        void onResult(@NonNull T result);
+
+        /**
+         * Called instead of {@link #onResult} when the request or query could not be completed.
+         *
+         * @param error {@link #TETHER_ERROR_NO_CHANGE_TETHERING_PERMISSION} or
+         *         {@link #TETHER_ERROR_NO_ACCESS_TETHERING_PERMISSION} if the caller does not have
+         *         the required permissions, or {@link #TETHER_ERROR_SERVICE_UNAVAIL} if the
+         *         tethering service died before replying.
+         */
+        default void onError(final int error) {}
     }
 
     /**
@@ -487,13 +682,37 @@ public class TetheringManager {
         Log.i(TAG, "tether caller:" + callerPkg);
         final RequestDispatcher dispatcher = new RequestDispatcher();
 
-        return dispatcher.waitForResult((connector, listener) -> {
+        return dispatcher.waitForResult(makeTetherRequest(iface, callerPkg));
+    }
+
+    /**
+     * Attempt to tether the named interface without blocking the caller.
+     *
+     * @see #tether(String)
+     * @param iface the interface name to tether.
+     * @param executor the executor on which the callback is called.
+     * @param callback called with a {@code TETHER_ERROR} value indicating success or failure
+     *         type.
+     *
+     * {@hide}
+     */
+    @SystemApi(client = MODULE_LIBRARIES)
+    public void tetherAsync(@NonNull final String iface, @NonNull final Executor executor,
+            @NonNull final ResultCallback<Integer> callback) {
+        final String callerPkg = mContext.getOpPackageName();
+        Log.i(TAG, "tetherAsync caller:" + callerPkg);
+
+        sendRequest(makeTetherRequest(iface, callerPkg), result -> result, executor, callback);
+    }
+
+    private RequestHelper makeTetherRequest(final String iface, final String callerPkg) {
+        return (connector, listener) -> {
             try {
                 connector.tether(iface, callerPkg, getAttributionTag(), listener);
             } catch (RemoteException e) {
                 throw new IllegalStateException(e);
             }
-        });
+        };
     }
 
     /**
@@ -519,13 +738,35 @@ public class TetheringManager {
 
         final RequestDispatcher dispatcher = new RequestDispatcher();
 
-        return dispatcher.waitForResult((connector, listener) -> {
+        return dispatcher.waitForResult(makeUntetherRequest(iface, callerPkg));
+    }
+
+    /**
+     * Stop tethering the named interface without blocking the caller.
+     *
+     * @see #untether(String)
+     * @param executor the executor on which the callback is called.
+     * @param callback called with a {@code TETHER_ERROR} value.
+     *
+     * {@hide}
+     */
+    @SystemApi(client = MODULE_LIBRARIES)
+    public void untetherAsync(@NonNull final String iface, @NonNull final Executor executor,
+            @NonNull final ResultCallback<Integer> callback) {
+        final String callerPkg = mContext.getOpPackageName();
+        Log.i(TAG, "untetherAsync caller:" + callerPkg);
+
+        sendRequest(makeUntetherRequest(iface, callerPkg), result -> result, executor, callback);
+    }
+
+    private RequestHelper makeUntetherRequest(final String iface, final String callerPkg) {
+        return (connector, listener) -> {
             try {
                 connector.untether(iface, callerPkg, getAttributionTag(), listener);
             } catch (RemoteException e) {
                 throw new IllegalStateException(e);
             }
-        });
+        };
     }
 
     /**
@@ -546,14 +787,38 @@ public class TetheringManager {
 
         final RequestDispatcher dispatcher = new RequestDispatcher();
 
-        return dispatcher.waitForResult((connector, listener) -> {
+        return dispatcher.waitForResult(makeSetUsbTetheringRequest(enable, callerPkg));
+    }
+
+    /**
+     * Attempt to both alter the mode of USB and Tethering of USB without blocking the caller.
+     *
+     * @see #setUsbTethering(boolean)
+     * @param executor the executor on which the callback is called.
+     * @param callback called with a {@code TETHER_ERROR} value.
+     *
+     * {@hide}
+     */
+    @SystemApi(client = MODULE_LIBRARIES)
+    public void setUsbTetheringAsync(final boolean enable, @NonNull final Executor executor,
+            @NonNull final ResultCallback<Integer> callback) {
+        final String callerPkg = mContext.getOpPackageName();
+        Log.i(TAG, "setUsbTetheringAsync caller:" + callerPkg);
+
+        sendRequest(makeSetUsbTetheringRequest(enable, callerPkg), result -> result, executor,
+                callback);
+    }
+
+    private RequestHelper makeSetUsbTetheringRequest(final boolean enable,
+            final String callerPkg) {
+        return (connector, listener) -> {
             try {
                 connector.setUsbTethering(enable, callerPkg, getAttributionTag(),
                         listener);
             } catch (RemoteException e) {
                 throw new IllegalStateException(e);
             }
-        });
+        };
     }
 
     /**
@@ -962,6 +1227,19 @@ public class TetheringManager {
          */
         default void onClientsChanged(@NonNull Collection<TetheredClient> clients) {}
 
+        /**
+         * Called when tethered clients are added, updated or removed.
+         *
+         * <p>This is called right after {@link #onClientsChanged} with only the clients that
+         * changed, so that callbacks tracking many clients do not need to compare the whole
+         * collection on every change. The same caveats as {@link #onClientsChanged} apply. It is
+         * not called when the callback is registered.
+         * @param addedOrUpdated The clients that were added, or whose addresses changed.
+         * @param removed The clients that are no longer tethered, as they were last reported.
+         */
+        default void onClientsUpdated(@NonNull Collection<TetheredClient> addedOrUpdated,
+                @NonNull Collection<TetheredClient> removed) {}
+
         /**
          * Called when tethering offload status changes.
          *
@@ -1045,6 +1323,10 @@ public class TetheringManager {
                 private final HashMap<String, Integer> mErrorStates = new HashMap<>();
                 private String[] mLastTetherableInterfaces = null;
                 private String[] mLastTetheredInterfaces = null;
+                // The service only sends changes to tethered clients, so the full collection
+                // passed to onClientsChanged is rebuilt here.
+                private final HashMap<MacAddress, TetheredClient> mTetheredClients =
+                        new HashMap<>();
 
                 @Override
                 public void onUpstreamChanged(Network network) throws RemoteException {
@@ -1082,9 +1364,29 @@ public class TetheringManager {
                             Collections.unmodifiableList(Arrays.asList(mLastTetheredInterfaces)));
                 }
 
+                private synchronized List<TetheredClient> updateTetheredClients(
+                        final List<TetheredClient> addedOrUpdated,
+                        final List<TetheredClient> removed) {
+                    for (TetheredClient client : removed) {
+                        mTetheredClients.remove(client.getMacAddress());
+                    }
+                    for (TetheredClient client : addedOrUpdated) {
+                        mTetheredClients.put(client.getMacAddress(), client);
+                    }
+                    return Collections.unmodifiableList(new ArrayList<>(mTetheredClients.values()));
+                }
+
                 // Called immediately after the callbacks are registered.
                 @Override
                 public void onCallbackStarted(TetheringCallbackStartedParcel parcel) {
+                    // Clients are tracked on the binder thread, as the executor may not run the
+                    // updates in order.
+                    final List<TetheredClient> clients;
+                    synchronized (this) {
+                        mTetheredClients.clear();
+                        clients = updateTetheredClients(parcel.tetheredClients,
+                                Collections.emptyList());
+                    }
                     executor.execute(() -> {
                         callback.onTetheringSupported(parcel.tetheringSupported);
                         callback.onUpstreamChanged(parcel.upstreamNetwork);
@@ -1092,7 +1394,7 @@ public class TetheringManager {
                         sendRegexpsChanged(parcel.config);
                         maybeSendTetherableIfacesChangedCallback(parcel.states);
                         maybeSendTetheredIfacesChangedCallback(parcel.states);
-                        callback.onClientsChanged(parcel.tetheredClients);
+                        callback.onClientsChanged(clients);
                         callback.onOffloadStatusChanged(parcel.offloadStatus);
                     });
                 }
@@ -1126,8 +1428,15 @@ public class TetheringManager {
                 }
 
                 @Override
-                public void onTetherClientsChanged(final List<TetheredClient> clients) {
-                    executor.execute(() -> callback.onClientsChanged(clients));
+                public void onTetherClientsUpdated(final List<TetheredClient> addedOrUpdated,
+                        final List<TetheredClient> removed) {
+                    final List<TetheredClient> clients =
+                            updateTetheredClients(addedOrUpdated, removed);
+                    executor.execute(() -> {
+                        callback.onClientsChanged(clients);
+                        callback.onClientsUpdated(Collections.unmodifiableList(addedOrUpdated),
+                                Collections.unmodifiableList(removed));
+                    });
                 }
 
                 @Override
@@ -1176,11 +1485,31 @@ public class TetheringManager {
     @SystemApi(client = MODULE_LIBRARIES)
     public int getLastTetherError(@NonNull final String iface) {
         mCallback.waitForStarted();
-        if (mTetherStatesParcel == null) return TETHER_ERROR_NO_ERROR;
+        return getLastTetherErrorInternal(iface);
+    }
+
+    /**
+     * Get the error code of the last error tethering or untethering the named interface, without
+     * blocking the caller.
+     *
+     * @see #getLastTetherError(String)
+     * @param executor the executor on which the callback is called.
+     * @param callback called with the error code.
+     * @hide
+     */
+    @SystemApi(client = MODULE_LIBRARIES)
+    public void getLastTetherErrorAsync(@NonNull final String iface,
+            @NonNull final Executor executor, @NonNull final ResultCallback<Integer> callback) {
+        mCallback.whenStarted(() -> getLastTetherErrorInternal(iface), executor, callback);
+    }
+
+    private int getLastTetherErrorInternal(@NonNull final String iface) {
+        final TetherStatesParcel states = mTetherStatesParcel;
+        if (states == null) return TETHER_ERROR_NO_ERROR;
 
         int i = 0;
-        for (String errored : mTetherStatesParcel.erroredIfaceList) {
-            if (iface.equals(errored)) return mTetherStatesParcel.lastErrorList[i];
+        for (String errored : states.erroredIfaceList) {
+            if (iface.equals(errored)) return states.lastErrorList[i];
 
             i++;
         }
@@ -1242,9 +1571,28 @@ public class TetheringManager {
     @SystemApi(client = MODULE_LIBRARIES)
     public @NonNull String[] getTetherableIfaces() {
         mCallback.waitForStarted();
-        if (mTetherStatesParcel == null) return new String[0];
+        return getTetherableIfacesInternal();
+    }
+
+    /**
+     * Get the set of tetherable, available interfaces without blocking the caller.
+     *
+     * @see #getTetherableIfaces()
+     * @param executor the executor on which the callback is called.
+     * @param callback called with the interface names.
+     * @hide
+     */
+    @SystemApi(client = MODULE_LIBRARIES)
+    public void getTetherableIfacesAsync(@NonNull final Executor executor,
+            @NonNull final ResultCallback<String[]> callback) {
+        mCallback.whenStarted(this::getTetherableIfacesInternal, executor, callback);
+    }
 
-        return mTetherStatesParcel.availableList;
+    private @NonNull String[] getTetherableIfacesInternal() {
+        final TetherStatesParcel states = mTetherStatesParcel;
+        if (states == null) return new String[0];
+
+        return states.availableList;
     }
 
     /**
@@ -1256,9 +1604,28 @@ public class TetheringManager {
     @SystemApi(client = MODULE_LIBRARIES)
     public @NonNull String[] getTetheredIfaces() {
         mCallback.waitForStarted();
-        if (mTetherStatesParcel == null) return new String[0];
+        return getTetheredIfacesInternal();
+    }
 
-        return mTetherStatesParcel.tetheredList;
+    /**
+     * Get the set of tethered interfaces without blocking the caller.
+     *
+     * @see #getTetheredIfaces()
+     * @param executor the executor on which the callback is called.
+     * @param callback called with the interface names.
+     * @hide
+     */
+    @SystemApi(client = MODULE_LIBRARIES)
+    public void getTetheredIfacesAsync(@NonNull final Executor executor,
+            @NonNull final ResultCallback<String[]> callback) {
+        mCallback.whenStarted(this::getTetheredIfacesInternal, executor, callback);
+    }
+
+    private @NonNull String[] getTetheredIfacesInternal() {
+        final TetherStatesParcel states = mTetherStatesParcel;
+        if (states == null) return new String[0];
+
+        return states.tetheredList;
     }
 
     /**
@@ -1276,9 +1643,29 @@ public class TetheringManager {
     @SystemApi(client = MODULE_LIBRARIES)
     public @NonNull String[] getTetheringErroredIfaces() {
         mCallback.waitForStarted();
-        if (mTetherStatesParcel == null) return new String[0];
+        return getTetheringErroredIfacesInternal();
+    }
 
-        return mTetherStatesParcel.erroredIfaceList;
+    /**
+     * Get the set of interface names which attempted to tether but failed, without blocking the
+     * caller.
+     *
+     * @see #getTetheringErroredIfaces()
+     * @param executor the executor on which the callback is called.
+     * @param callback called with the interface names.
+     * @hide
+     */
+    @SystemApi(client = MODULE_LIBRARIES)
+    public void getTetheringErroredIfacesAsync(@NonNull final Executor executor,
+            @NonNull final ResultCallback<String[]> callback) {
+        mCallback.whenStarted(this::getTetheringErroredIfacesInternal, executor, callback);
+    }
+
+    private @NonNull String[] getTetheringErroredIfacesInternal() {
+        final TetherStatesParcel states = mTetherStatesParcel;
+        if (states == null) return new String[0];
+
+        return states.erroredIfaceList;
     }
 
     /**
@@ -1325,15 +1712,36 @@ public class TetheringManager {
     public boolean isTetheringSupported(@NonNull final String callerPkg) {
 
         final RequestDispatcher dispatcher = new RequestDispatcher();
-        final int ret = dispatcher.waitForResult((connector, listener) -> {
+        final int ret = dispatcher.waitForResult(makeIsTetheringSupportedRequest(callerPkg));
+
+        return ret == TETHER_ERROR_NO_ERROR;
+    }
+
+    /**
+     * Check if the device allows for tethering without blocking the caller.
+     *
+     * @see #isTetheringSupported(String)
+     * @param callerPkg The caller package name, if it is not matching the calling uid,
+     *       {@link ResultCallback#onError} would be called with a permission failure.
+     * @param executor the executor on which the callback is called.
+     * @param callback called with {@code true} if Tethering is supported.
+     * @hide
+     */
+    @SystemApi(client = MODULE_LIBRARIES)
+    public void isTetheringSupportedAsync(@NonNull final String callerPkg,
+            @NonNull final Executor executor, @NonNull final ResultCallback<Boolean> callback) {
+        sendRequest(makeIsTetheringSupportedRequest(callerPkg),
+                ret -> ret == TETHER_ERROR_NO_ERROR, executor, callback);
+    }
+
+    private RequestHelper makeIsTetheringSupportedRequest(final String callerPkg) {
+        return (connector, listener) -> {
             try {
                 connector.isTetheringSupported(callerPkg, getAttributionTag(), listener);
             } catch (RemoteException e) {
                 throw new IllegalStateException(e);
             }
-        });
-
-        return ret == TETHER_ERROR_NO_ERROR;
+        };
     }
 
     /**
@@ -1361,4 +1769,79 @@ public class TetheringManager {
                     }
                 }));
     }
+
+    /**
+     * Limit the rate of the offloaded traffic of a tethered client, in each direction, replacing
+     * any existing limit. The client can send and receive bursts of up to {@code burstBytes},
+     * then {@code bytesPerSecond} on average, and its packets above the limit are dropped.
+     *
+     * <p>The limit is kept until removed with {@link #removeTetheredClientRateLimitAsync},
+     * whether or not the client is connected. It only applies to the traffic offloaded by the
+     * tethering module, so the traffic of the client is not limited when offload is not in use.
+     *
+     * @param clientMac the MAC address of the client.
+     * @param bytesPerSecond the rate, in bytes per second, between 1 and 2^32.
+     * @param burstBytes the burst size, in bytes, between 1 and 2^32. Larger packets are always
+     *         dropped, including the packets aggregated by the network interfaces, so this should
+     *         be at least 64 KiB.
+     * @param executor the executor on which the callback is called.
+     * @param callback called with {@link #TETHER_ERROR_NO_ERROR} if the limit was set,
+     *         {@link #TETHER_ERROR_UNSUPPORTED} if per-client rate limits are not supported, or
+     *         another {@code TETHER_ERROR} value indicating the failure type.
+     * @throws IllegalArgumentException if the rate or the burst size is out of range.
+     * @hide
+     */
+    @SystemApi(client = MODULE_LIBRARIES)
+    @RequiresPermission(android.Manifest.permission.TETHER_PRIVILEGED)
+    public void setTetheredClientRateLimitAsync(@NonNull final MacAddress clientMac,
+            final long bytesPerSecond, final long burstBytes, @NonNull final Executor executor,
+            @NonNull final ResultCallback<Integer> callback) {
+        Objects.requireNonNull(clientMac);
+        if (bytesPerSecond <= 0 || bytesPerSecond > MAX_CLIENT_RATE_LIMIT) {
+            throw new IllegalArgumentException("Invalid rate: " + bytesPerSecond);
+        }
+        if (burstBytes <= 0 || burstBytes > MAX_CLIENT_RATE_LIMIT) {
+            throw new IllegalArgumentException("Invalid burst size: " + burstBytes);
+        }
+        final String callerPkg = mContext.getOpPackageName();
+        Log.i(TAG, "setTetheredClientRateLimitAsync caller:" + callerPkg);
+
+        sendRequest(makeSetClientRateLimitRequest(clientMac, bytesPerSecond, burstBytes,
+                callerPkg), result -> result, executor, callback);
+    }
+
+    /**
+     * Stop limiting the rate of the offloaded traffic of a tethered client. Removing a
+     * non-existent limit succeeds.
+     *
+     * @param clientMac the MAC address of the client.
+     * @param executor the executor on which the callback is called.
+     * @param callback called with a {@code TETHER_ERROR} value, as for
+     *         {@link #setTetheredClientRateLimitAsync}.
+     * @hide
+     */
+    @SystemApi(client = MODULE_LIBRARIES)
+    @RequiresPermission(android.Manifest.permission.TETHER_PRIVILEGED)
+    public void removeTetheredClientRateLimitAsync(@NonNull final MacAddress clientMac,
+            @NonNull final Executor executor, @NonNull final ResultCallback<Integer> callback) {
+        Objects.requireNonNull(clientMac);
+        final String callerPkg = mContext.getOpPackageName();
+        Log.i(TAG, "removeTetheredClientRateLimitAsync caller:" + callerPkg);
+
+        sendRequest(makeSetClientRateLimitRequest(clientMac,
+                0 /* bytesPerSecond, removes the limit */, 0 /* burstBytes */, callerPkg),
+                result -> result, executor, callback);
+    }
+
+    private RequestHelper makeSetClientRateLimitRequest(final MacAddress clientMac,
+            final long bytesPerSecond, final long burstBytes, final String callerPkg) {
+        return (connector, listener) -> {
+            try {
+                connector.setTetheredClientRateLimit(clientMac.toString(), bytesPerSecond,
+                        burstBytes, callerPkg, getAttributionTag(), listener);
+            } catch (RemoteException e) {
+                throw new IllegalStateException(e);
+            }
+        };
+    }
 }
@@ -20,6 +20,7 @@
 #include <linux/filter.h>
 #include <nativehelper/JNIHelp.h>
 #include <nativehelper/ScopedUtfChars.h>
+#include <nativehelper/scoped_primitive_array.h>
 #include <netjniutils/netjniutils.h>
 #include <net/if.h>
 #include <netinet/ether.h>
@@ -27,12 +28,15 @@
 #include <netinet/icmp6.h>
 #include <sys/socket.h>
 #include <stdio.h>
+#include <string.h>
 
 namespace android {
 
 static const uint32_t kIPv6NextHeaderOffset = offsetof(ip6_hdr, ip6_nxt);
 static const uint32_t kIPv6PayloadStart = sizeof(ip6_hdr);
 static const uint32_t kICMPv6TypeOffset = kIPv6PayloadStart + offsetof(icmp6_hdr, icmp6_type);
+static const uint32_t kIPv6DstAddrOffset = offsetof(ip6_hdr, ip6_dst);
+static const jint kMaxPacketBatchSize = 64;
 
 static void android_net_util_setupIcmpFilter(JNIEnv *env, jobject javaFd, uint32_t type) {
     sock_filter filter_code[] = {
@@ -162,6 +166,54 @@ static void android_net_util_setupRaSocket(JNIEnv *env, jobject clazz, jobject j
     }
 }
 
+static jint android_net_util_sendPacketBatch(JNIEnv *env, jobject clazz, jobject javaFd,
+        jbyteArray packets, jint slotSize, jintArray lengths, jint start, jint count)
+{
+    ScopedByteArrayRO packetsRO(env, packets);
+    ScopedIntArrayRO lengthsRO(env, lengths);
+    if (packetsRO.get() == nullptr || lengthsRO.get() == nullptr) return 0;
+
+    if (slotSize <= 0 || start < 0 || count <= 0 || count > kMaxPacketBatchSize
+            || start + count > static_cast<jint>(lengthsRO.size())
+            || static_cast<size_t>(start + count) * slotSize > packetsRO.size()) {
+        jniThrowException(env, "java/lang/IllegalArgumentException", "invalid packet batch");
+        return 0;
+    }
+
+    struct mmsghdr msgs[kMaxPacketBatchSize];
+    struct iovec iovs[kMaxPacketBatchSize];
+    struct sockaddr_in6 dsts[kMaxPacketBatchSize];
+    memset(msgs, 0, sizeof(msgs[0]) * count);
+    memset(dsts, 0, sizeof(dsts[0]) * count);
+
+    for (jint i = 0; i < count; i++) {
+        const jint len = lengthsRO[start + i];
+        if (len < static_cast<jint>(sizeof(ip6_hdr)) || len > slotSize) {
+            jniThrowException(env, "java/lang/IllegalArgumentException", "invalid packet length");
+            return 0;
+        }
+        const jbyte* pkt = packetsRO.get() + static_cast<size_t>(start + i) * slotSize;
+
+        // IPPROTO_RAW sockets send the IPv6 header as is, but still need a destination address.
+        dsts[i].sin6_family = AF_INET6;
+        memcpy(&dsts[i].sin6_addr, pkt + kIPv6DstAddrOffset, sizeof(dsts[i].sin6_addr));
+        iovs[i].iov_base = const_cast<jbyte*>(pkt);
+        iovs[i].iov_len = len;
+        msgs[i].msg_hdr.msg_name = &dsts[i];
+        msgs[i].msg_hdr.msg_namelen = sizeof(dsts[i]);
+        msgs[i].msg_hdr.msg_iov = &iovs[i];
+        msgs[i].msg_hdr.msg_iovlen = 1;
+    }
+
+    int fd = netjniutils::GetNativeFileDescriptor(env, javaFd);
+    int sent = sendmmsg(fd, msgs, count, 0);
+    if (sent < 0) {
+        jniThrowExceptionFmt(env, "java/net/SocketException", "sendmmsg: %s", strerror(errno));
+        return 0;
+    }
+    return sent;
+}
+
 /*
  * JNI registration.
  */
@@ -173,6 +225,8 @@ static const JNINativeMethod gMethods[] = {
         (void*) android_net_util_setupNsSocket },
     { "setupRaSocket", "(Ljava/io/FileDescriptor;I)V",
         (void*) android_net_util_setupRaSocket },
+    { "sendPacketBatch", "(Ljava/io/FileDescriptor;[BI[III)I",
+        (void*) android_net_util_sendPacketBatch },
 };
 
 int register_android_net_util_TetheringUtils(JNIEnv* env) {
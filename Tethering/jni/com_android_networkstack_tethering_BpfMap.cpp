@@ -16,6 +16,10 @@
 
 #include <errno.h>
 #include <jni.h>
+#include <linux/bpf.h>
+#include <string.h>
+#include <sys/syscall.h>
+#include <unistd.h>
 #include <nativehelper/JNIHelp.h>
 #include <nativehelper/ScopedLocalRef.h>
 
@@ -134,6 +138,147 @@ static jboolean com_android_networkstack_tethering_BpfMap_findMapEntry(JNIEnv *e
     return throwIfNotEnoent(env, "findMapEntry", ret, errno);
 }
 
+// Returns the address at the given offset of a direct ByteBuffer, or throws and returns null if
+// the buffer is not direct. BpfMap checks that enough bytes remain after the offset.
+static void* getDirectBufferAddress(JNIEnv *env, jobject buffer, jint offset) {
+    uint8_t* addr = static_cast<uint8_t*>(env->GetDirectBufferAddress(buffer));
+    if (addr == nullptr) {
+        jniThrowException(env, "java/lang/IllegalArgumentException", "Not a direct buffer");
+        return nullptr;
+    }
+    return addr + offset;
+}
+
+static void com_android_networkstack_tethering_BpfMap_writeToMapEntryDirect(JNIEnv *env,
+        jobject clazz, jint fd, jobject key, jint keyOffset, jobject value, jint valueOffset,
+        jint flags) {
+    void* keyAddr = getDirectBufferAddress(env, key, keyOffset);
+    if (keyAddr == nullptr) return;
+    void* valueAddr = getDirectBufferAddress(env, value, valueOffset);
+    if (valueAddr == nullptr) return;
+
+    int ret = bpf::writeToMapEntry(static_cast<int>(fd), keyAddr, valueAddr,
+            static_cast<int>(flags));
+
+    if (ret) throwErrnoException(env, "writeToMapEntry", errno);
+}
+
+static jboolean com_android_networkstack_tethering_BpfMap_deleteMapEntryDirect(JNIEnv *env,
+        jobject clazz, jint fd, jobject key, jint keyOffset) {
+    void* keyAddr = getDirectBufferAddress(env, key, keyOffset);
+    if (keyAddr == nullptr) return false;
+
+    int ret = bpf::deleteMapEntry(static_cast<int>(fd), keyAddr);
+
+    return throwIfNotEnoent(env, "deleteMapEntry", ret, errno);
+}
+
+static jboolean com_android_networkstack_tethering_BpfMap_findMapEntryDirect(JNIEnv *env,
+        jobject clazz, jint fd, jobject key, jint keyOffset, jobject value, jint valueOffset) {
+    void* keyAddr = getDirectBufferAddress(env, key, keyOffset);
+    if (keyAddr == nullptr) return false;
+    void* valueAddr = getDirectBufferAddress(env, value, valueOffset);
+    if (valueAddr == nullptr) return false;
+
+    int ret = bpf::findMapEntry(static_cast<int>(fd), keyAddr, valueAddr);
+
+    return throwIfNotEnoent(env, "findMapEntry", ret, errno);
+}
+
+// BPF_MAP_LOOKUP_BATCH is not wrapped by BpfSyscallWrappers.h, which only covers the single
+// element commands. It is supported since kernel 5.6 for hash and array maps.
+static int lookupMapBatch(int fd, const void* inBatch, void* outBatch, void* keys, void* values,
+        uint32_t* count) {
+    union bpf_attr attr;
+    memset(&attr, 0, sizeof(attr));
+    attr.batch.in_batch = reinterpret_cast<uint64_t>(inBatch);
+    attr.batch.out_batch = reinterpret_cast<uint64_t>(outBatch);
+    attr.batch.keys = reinterpret_cast<uint64_t>(keys);
+    attr.batch.values = reinterpret_cast<uint64_t>(values);
+    attr.batch.count = *count;
+    attr.batch.map_fd = static_cast<uint32_t>(fd);
+
+    int ret = syscall(__NR_bpf, BPF_MAP_LOOKUP_BATCH, &attr, sizeof(attr));
+
+    // The kernel updates the count with the number of elements copied, including when the end of
+    // the map is reached (ENOENT).
+    *count = attr.batch.count;
+    return ret;
+}
+
+static jboolean com_android_networkstack_tethering_BpfMap_lookupMapBatch(JNIEnv *env,
+        jobject clazz, jint fd, jbyteArray inBatch, jbyteArray outBatch, jbyteArray keys,
+        jbyteArray values, jintArray count) {
+    ScopedByteArrayRW outBatchRW(env, outBatch);
+    ScopedByteArrayRW keysRW(env, keys);
+    ScopedByteArrayRW valuesRW(env, values);
+    ScopedIntArrayRW countRW(env, count);
+
+    // If some elements are found, the operation returns zero and stores the number of elements
+    // in "count" and the token of the next batch in "outBatch". If the end of the map is reached,
+    // the operation returns -1 and sets errno to ENOENT, but "count" is still valid. Kernels that
+    // do not support batch operations return EINVAL, and map types that do not support them
+    // return ENOTSUPP.
+    uint32_t elems = static_cast<uint32_t>(countRW[0]);
+    int ret;
+    if (inBatch == nullptr) {
+        // Start from the beginning of the map.
+        ret = lookupMapBatch(static_cast<int>(fd), nullptr, outBatchRW.get(), keysRW.get(),
+                valuesRW.get(), &elems);
+    } else {
+        ScopedByteArrayRO inBatchRO(env, inBatch);
+        ret = lookupMapBatch(static_cast<int>(fd), inBatchRO.get(), outBatchRW.get(),
+                keysRW.get(), valuesRW.get(), &elems);
+    }
+    const int err = errno;
+    countRW[0] = (ret == 0 || err == ENOENT) ? static_cast<jint>(elems) : 0;
+
+    return throwIfNotEnoent(env, "lookupMapBatch", ret, err);
+}
+
+// Runs BPF_MAP_UPDATE_BATCH or BPF_MAP_DELETE_BATCH on consecutive keys (and values) in direct
+// buffers. Like BPF_MAP_LOOKUP_BATCH, these are not wrapped by BpfSyscallWrappers.h and need
+// kernel 5.6. The kernel stops at the first element which fails and reports in "count" how many
+// elements were processed before it.
+static jint runMapBatchDirect(JNIEnv *env, int cmd, jint fd, jobject keys, jint keysOffset,
+        jobject values, jint valuesOffset, jintArray count, jint flags) {
+    void* keysAddr = getDirectBufferAddress(env, keys, keysOffset);
+    if (keysAddr == nullptr) return EINVAL;
+    void* valuesAddr = nullptr;
+    if (values != nullptr) {
+        valuesAddr = getDirectBufferAddress(env, values, valuesOffset);
+        if (valuesAddr == nullptr) return EINVAL;
+    }
+
+    ScopedIntArrayRW countRW(env, count);
+    union bpf_attr attr;
+    memset(&attr, 0, sizeof(attr));
+    attr.batch.keys = reinterpret_cast<uint64_t>(keysAddr);
+    attr.batch.values = reinterpret_cast<uint64_t>(valuesAddr);
+    attr.batch.count = static_cast<uint32_t>(countRW[0]);
+    attr.batch.map_fd = static_cast<uint32_t>(fd);
+    attr.batch.elem_flags = static_cast<uint64_t>(flags);
+
+    int ret = syscall(__NR_bpf, cmd, &attr, sizeof(attr));
+    const int err = (ret == 0) ? 0 : errno;
+    countRW[0] = static_cast<jint>(attr.batch.count);
+
+    return err;
+}
+
+static jint com_android_networkstack_tethering_BpfMap_updateMapBatchDirect(JNIEnv *env,
+        jobject clazz, jint fd, jobject keys, jint keysOffset, jobject values, jint valuesOffset,
+        jintArray count, jint flags) {
+    return runMapBatchDirect(env, BPF_MAP_UPDATE_BATCH, fd, keys, keysOffset, values,
+            valuesOffset, count, flags);
+}
+
+static jint com_android_networkstack_tethering_BpfMap_deleteMapBatchDirect(JNIEnv *env,
+        jobject clazz, jint fd, jobject keys, jint keysOffset, jintArray count) {
+    return runMapBatchDirect(env, BPF_MAP_DELETE_BATCH, fd, keys, keysOffset, nullptr, 0, count,
+            0 /* flags */);
+}
+
 /*
  * JNI registration.
  */
@@ -151,6 +296,18 @@ static const JNINativeMethod gMethods[] = {
         (void*) com_android_networkstack_tethering_BpfMap_getNextMapKey },
     { "findMapEntry", "(I[B[B)Z",
         (void*) com_android_networkstack_tethering_BpfMap_findMapEntry },
+    { "writeToMapEntryDirect", "(ILjava/nio/ByteBuffer;ILjava/nio/ByteBuffer;II)V",
+        (void*) com_android_networkstack_tethering_BpfMap_writeToMapEntryDirect },
+    { "deleteMapEntryDirect", "(ILjava/nio/ByteBuffer;I)Z",
+        (void*) com_android_networkstack_tethering_BpfMap_deleteMapEntryDirect },
+    { "findMapEntryDirect", "(ILjava/nio/ByteBuffer;ILjava/nio/ByteBuffer;I)Z",
+        (void*) com_android_networkstack_tethering_BpfMap_findMapEntryDirect },
+    { "updateMapBatchDirect", "(ILjava/nio/ByteBuffer;ILjava/nio/ByteBuffer;I[II)I",
+        (void*) com_android_networkstack_tethering_BpfMap_updateMapBatchDirect },
+    { "deleteMapBatchDirect", "(ILjava/nio/ByteBuffer;I[I)I",
+        (void*) com_android_networkstack_tethering_BpfMap_deleteMapBatchDirect },
+    { "lookupMapBatch", "(I[B[B[B[B[I)Z",
+        (void*) com_android_networkstack_tethering_BpfMap_lookupMapBatch },
 
 };
 
@@ -18,6 +18,7 @@
 #include <jni.h>
 #include <linux/if_arp.h>
 #include <linux/if_ether.h>
+#include <linux/if_link.h>
 #include <linux/netlink.h>
 #include <linux/pkt_cls.h>
 #include <linux/pkt_sched.h>
@@ -329,6 +330,88 @@ static void com_android_networkstack_tethering_BpfUtils_tcFilterDelDev(JNIEnv* e
     sendAndProcessNetlinkResponse(env, &req, sizeof(req));
 }
 
+// ip link set dev .. xdpdrv|xdpgeneric pinned /sys/fs/bpf/...
+// ip link set dev .. xdpdrv|xdpgeneric off
+static void com_android_networkstack_tethering_BpfUtils_xdpSetProgram(JNIEnv* env, jobject clazz,
+                                                                      jint ifIndex,
+                                                                      jstring bpfProgPath,
+                                                                      jboolean nativeMode) {
+    int bpfFd = -1;  // -1 detaches the program.
+    if (bpfProgPath != nullptr) {
+        ScopedUtfChars pathname(env, bpfProgPath);
+        bpfFd = bpf::retrieveProgram(pathname.c_str());
+        if (bpfFd == -1) {
+            jniThrowExceptionFmt(env, "java/io/IOException", "retrieveProgram failed %s",
+                                 strerror(errno));
+            return;
+        }
+    }
+
+    // The mode must also be given when detaching, since each mode has its own program slot.
+    __u32 xdpFlags = nativeMode ? XDP_FLAGS_DRV_MODE : XDP_FLAGS_SKB_MODE;
+    // Do not replace a program attached by someone else.
+    if (bpfFd != -1) xdpFlags |= XDP_FLAGS_UPDATE_IF_NOEXIST;
+
+    struct {
+        nlmsghdr n;
+        ifinfomsg i;
+        struct {
+            nlattr attr;
+            struct {
+                nlattr attr;
+                __s32 s32;
+            } fd;
+            struct {
+                nlattr attr;
+                __u32 u32;
+            } flags;
+        } xdp;
+    } req = {
+            .n =
+                    {
+                            .nlmsg_len = sizeof(req),
+                            .nlmsg_type = RTM_SETLINK,
+                            .nlmsg_flags = NETLINK_REQUEST_FLAGS,
+                    },
+            .i =
+                    {
+                            .ifi_family = AF_UNSPEC,
+                            .ifi_index = ifIndex,
+                    },
+            .xdp =
+                    {
+                            .attr =
+                                    {
+                                            .nla_len = sizeof(req.xdp),
+                                            .nla_type = NLA_F_NESTED | IFLA_XDP,
+                                    },
+                            .fd =
+                                    {
+                                            .attr =
+                                                    {
+                                                            .nla_len = sizeof(req.xdp.fd),
+                                                            .nla_type = IFLA_XDP_FD,
+                                                    },
+                                            .s32 = bpfFd,
+                                    },
+                            .flags =
+                                    {
+                                            .attr =
+                                                    {
+                                                            .nla_len = sizeof(req.xdp.flags),
+                                                            .nla_type = IFLA_XDP_FLAGS,
+                                                    },
+                                            .u32 = xdpFlags,
+                                    },
+                    },
+    };
+
+    // The exception may be thrown from sendAndProcessNetlinkResponse. Close the file descriptor of
+    // BPF program before returning the function in any case.
+    sendAndProcessNetlinkResponse(env, &req, sizeof(req));
+    if (bpfFd != -1) close(bpfFd);
+}
+
 /*
  * JNI registration.
  */
@@ -340,6 +423,8 @@ static const JNINativeMethod gMethods[] = {
          (void*)com_android_networkstack_tethering_BpfUtils_tcFilterAddDevBpf},
         {"tcFilterDelDev", "(IZSS)V",
          (void*)com_android_networkstack_tethering_BpfUtils_tcFilterDelDev},
+        {"xdpSetProgram", "(ILjava/lang/String;Z)V",
+         (void*)com_android_networkstack_tethering_BpfUtils_xdpSetProgram},
 };
 
 int register_com_android_networkstack_tethering_BpfUtils(JNIEnv* env) {
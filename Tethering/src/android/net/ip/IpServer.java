@@ -57,6 +57,7 @@ import android.os.Looper;
 import android.os.Message;
 import android.os.RemoteException;
 import android.os.ServiceSpecificException;
+import android.os.SystemClock;
 import android.util.Log;
 import android.util.SparseArray;
 
@@ -175,9 +176,14 @@ public class IpServer extends StateMachine {
             return new IpNeighborMonitor(handler, log, consumer);
         }
 
-        /** Create a RouterAdvertisementDaemon instance to be used by IpServer.*/
-        public RouterAdvertisementDaemon getRouterAdvertisementDaemon(InterfaceParams ifParams) {
-            return new RouterAdvertisementDaemon(ifParams);
+        /**
+         * Create a RouterAdvertisementDaemon instance to be used by IpServer.
+         * The daemon runs on the IpServer handler, so that the daemons of all the tethered
+         * interfaces share the same thread.
+         */
+        public RouterAdvertisementDaemon getRouterAdvertisementDaemon(Handler handler,
+                InterfaceParams ifParams) {
+            return new RouterAdvertisementDaemon(ifParams, handler);
         }
 
         /** Get |ifName|'s interface information.*/
@@ -234,6 +240,8 @@ public class IpServer extends StateMachine {
     private final Callback mCallback;
     private final InterfaceController mInterfaceCtrl;
     private final PrivateAddressCoordinator mPrivateAddressCoordinator;
+    // Whether the DHCP server is created while the interface is configured. See #configureIPv4.
+    private final boolean mUsingFastStart;
 
     private final String mIfaceName;
     private final int mInterfaceType;
@@ -260,6 +268,10 @@ public class IpServer extends StateMachine {
     // To be accessed only on the handler thread
     private int mDhcpServerStartIndex = 0;
     private IDhcpServer mDhcpServer;
+    // Bring-up timing, in the SystemClock#elapsedRealtime time base.
+    private long mBringUpStartMs;
+    private long mPhaseStartMs;
+    private long mDhcpRequestMs;
     private RaParams mLastRaParams;
 
     private LinkAddress mStaticIpv4ServerAddr;
@@ -286,7 +298,8 @@ public class IpServer extends StateMachine {
             String ifaceName, Looper looper, int interfaceType, SharedLog log,
             INetd netd, @NonNull BpfCoordinator coordinator, Callback callback,
             boolean usingLegacyDhcp, boolean usingBpfOffload,
-            PrivateAddressCoordinator addressCoordinator, Dependencies deps) {
+            PrivateAddressCoordinator addressCoordinator,
+            boolean usingFastStart, Dependencies deps) {
         super(ifaceName, looper);
         mLog = log.forSubComponent(ifaceName);
         mNetd = netd;
@@ -299,6 +312,7 @@ public class IpServer extends StateMachine {
         mUsingLegacyDhcp = usingLegacyDhcp;
         mUsingBpfOffload = usingBpfOffload;
         mPrivateAddressCoordinator = addressCoordinator;
+        mUsingFastStart = usingFastStart;
         mDeps = deps;
         resetLinkProperties();
         mLastError = TetheringManager.TETHER_ERROR_NO_ERROR;
@@ -439,33 +453,49 @@ public class IpServer extends StateMachine {
 
                 if (statusCode != STATUS_SUCCESS) {
                     mLog.e("Error obtaining DHCP server: " + statusCode);
-                    handleError();
+                    handleDhcpServerError();
                     return;
                 }
 
-                mDhcpServer = server;
-                try {
-                    mDhcpServer.startWithCallbacks(new OnHandlerStatusCallback() {
-                        @Override
-                        public void callback(int startStatusCode) {
-                            if (startStatusCode != STATUS_SUCCESS) {
-                                mLog.e("Error starting DHCP server: " + startStatusCode);
-                                handleError();
-                            }
-                        }
-                    }, new DhcpEventCallback());
-                } catch (RemoteException e) {
-                    throw new IllegalStateException(e);
-                }
+                logBringUpPhase("DHCP server creation", mDhcpRequestMs);
+                startDhcpServer(server);
             });
         }
+    }
 
-        private void handleError() {
-            mLastError = TetheringManager.TETHER_ERROR_DHCPSERVER_ERROR;
-            transitionTo(mInitialState);
+    private void handleDhcpServerError() {
+        mLastError = TetheringManager.TETHER_ERROR_DHCPSERVER_ERROR;
+        transitionTo(mInitialState);
+    }
+
+    // Start a DHCP server that was created with the current serving parameters.
+    private void startDhcpServer(@NonNull IDhcpServer server) {
+        final int startIndex = mDhcpServerStartIndex;
+        final long startMs = SystemClock.elapsedRealtime();
+        mDhcpServer = server;
+        try {
+            mDhcpServer.startWithCallbacks(new OnHandlerStatusCallback() {
+                @Override
+                public void callback(int startStatusCode) {
+                    if (startIndex != mDhcpServerStartIndex) return;
+                    if (startStatusCode == STATUS_SUCCESS) {
+                        logBringUpPhase("DHCP server start", startMs);
+                        logBringUpPhase("Time to DHCP server ready", mBringUpStartMs);
+                        return;
+                    }
+                    mLog.e("Error starting DHCP server: " + startStatusCode);
+                    handleDhcpServerError();
+                }
+            }, new DhcpEventCallback());
+        } catch (RemoteException e) {
+            throw new IllegalStateException(e);
         }
     }
 
+    private void logBringUpPhase(@NonNull String phase, long startMs) {
+        mLog.log(phase + " took " + (SystemClock.elapsedRealtime() - startMs) + "ms");
+    }
+
     private class DhcpEventCallback extends IDhcpEventCallbacks.Stub {
         @Override
         public void onLeasesChanged(List<DhcpLeaseParcelable> leaseParcelables) {
@@ -549,6 +579,7 @@ public class IpServer extends StateMachine {
         final DhcpServingParamsParcel params = makeServingParams(addr /* defaultRouter */,
                 addr /* dnsServer */, serverLinkAddr, clientAddr);
         mDhcpServerStartIndex++;
+        mDhcpRequestMs = SystemClock.elapsedRealtime();
         mDeps.makeDhcpServer(
                 mIfaceName, params, new DhcpServerCallbacksImpl(mDhcpServerStartIndex));
         return true;
@@ -605,7 +636,9 @@ public class IpServer extends StateMachine {
         if (VDBG) Log.d(TAG, "configureIPv4(" + enabled + ")");
 
         if (enabled) {
+            mPhaseStartMs = SystemClock.elapsedRealtime();
             mIpv4Address = requestIpv4Address(true /* useLastAddress */);
+            logBringUpPhase("IPv4 address request", mPhaseStartMs);
         }
 
         if (mIpv4Address == null) {
@@ -634,11 +667,23 @@ public class IpServer extends StateMachine {
         } else {
             setIfaceUp = enabled;
         }
+
+        // In fast start mode, the DHCP server is requested before configuring the interface, so
+        // that the network stack creates it while netd configures the interface. The server is
+        // only started once created, on the handler thread, so always after the configuration.
+        final boolean startDhcpFirst = enabled && mUsingFastStart;
+        if (startDhcpFirst
+                && !configureDhcp(true, mIpv4Address, mStaticIpv4ClientAddr)) {
+            return false;
+        }
+
+        if (enabled) mPhaseStartMs = SystemClock.elapsedRealtime();
         if (!mInterfaceCtrl.setInterfaceConfiguration(mIpv4Address, setIfaceUp)) {
             mLog.e("Error configuring interface");
-            if (!enabled) stopDhcp();
+            if (!enabled || startDhcpFirst) stopDhcp();
             return false;
         }
+        if (enabled) logBringUpPhase("Interface configuration", mPhaseStartMs);
 
         if (enabled) {
             mLinkProperties.addLinkAddress(mIpv4Address);
@@ -647,6 +692,7 @@ public class IpServer extends StateMachine {
             mLinkProperties.removeLinkAddress(mIpv4Address);
             mLinkProperties.removeRoute(getDirectConnectedRoute(mIpv4Address));
         }
+        if (startDhcpFirst) return true;
         return configureDhcp(enabled, mIpv4Address, mStaticIpv4ClientAddr);
     }
 
@@ -668,7 +714,7 @@ public class IpServer extends StateMachine {
             return false;
         }
 
-        mRaDaemon = mDeps.getRouterAdvertisementDaemon(mInterfaceParams);
+        mRaDaemon = mDeps.getRouterAdvertisementDaemon(getHandler(), mInterfaceParams);
         if (!mRaDaemon.start()) {
             stopIPv6();
             return false;
@@ -1136,6 +1182,7 @@ public class IpServer extends StateMachine {
     class BaseServingState extends State {
         @Override
         public void enter() {
+            mBringUpStartMs = SystemClock.elapsedRealtime();
             startConntrackMonitoring();
 
             if (!startIPv4()) {
@@ -1143,6 +1190,7 @@ public class IpServer extends StateMachine {
                 return;
             }
 
+            mPhaseStartMs = SystemClock.elapsedRealtime();
             try {
                 NetdUtils.tetherInterface(mNetd, mIfaceName, asIpPrefix(mIpv4Address));
             } catch (RemoteException | ServiceSpecificException | IllegalStateException e) {
@@ -1150,12 +1198,15 @@ public class IpServer extends StateMachine {
                 mLastError = TetheringManager.TETHER_ERROR_TETHER_IFACE_ERROR;
                 return;
             }
+            logBringUpPhase("Tether interface", mPhaseStartMs);
 
+            mPhaseStartMs = SystemClock.elapsedRealtime();
             if (!startIPv6()) {
                 mLog.e("Failed to startIPv6");
                 // TODO: Make this a fatal error once Bluetooth IPv6 is sorted.
                 return;
             }
+            logBringUpPhase("IPv6 setup", mPhaseStartMs);
         }
 
         @Override
@@ -24,6 +24,9 @@ import static android.system.OsConstants.SOCK_DGRAM;
 import static android.system.OsConstants.SOCK_NONBLOCK;
 import static android.system.OsConstants.SOCK_RAW;
 
+import static com.android.net.module.util.NetworkStackConstants.IPV6_MIN_MTU;
+import static com.android.net.module.util.PacketReader.DEFAULT_RECV_BUF_SIZE;
+
 import android.net.util.InterfaceParams;
 import android.net.util.SocketUtils;
 import android.net.util.TetheringUtils;
@@ -37,7 +40,6 @@ import com.android.net.module.util.PacketReader;
 import java.io.FileDescriptor;
 import java.io.IOException;
 import java.net.Inet6Address;
-import java.net.InetSocketAddress;
 import java.net.SocketAddress;
 import java.net.SocketException;
 import java.net.UnknownHostException;
@@ -49,6 +51,10 @@ import java.util.Arrays;
  * Forward NA packets from upstream iface to tethered iface
  * and NS packets from tethered iface to upstream iface.
  *
+ * Packets are sent on a raw socket that is kept open for as long as the upstream is set. The
+ * packets read in one pass of the receive loop are queued and sent together with sendmmsg once the
+ * loop has drained the socket.
+ *
  * @hide
  */
 public class NeighborPacketForwarder extends PacketReader {
@@ -56,6 +62,21 @@ public class NeighborPacketForwarder extends PacketReader {
 
     private FileDescriptor mFd;
 
+    // Raw socket bound to mSendIfaceParams. Only recreated when the upstream changes.
+    private FileDescriptor mSendFd;
+
+    // Packets waiting to be sent, each stored in a slot of SEND_SLOT_SIZE bytes. Neighbor
+    // solicitations and advertisements are much smaller than the IPv6 minimum MTU; larger packets
+    // are sent on their own. The queue is allocated when the first packet is queued and released
+    // with the send socket.
+    private static final int MAX_QUEUED_PACKETS = TetheringUtils.MAX_PACKET_BATCH_SIZE;
+    private static final int SEND_SLOT_SIZE = IPV6_MIN_MTU;
+    private byte[] mSendQueue;
+    private final int[] mSendLengths = new int[MAX_QUEUED_PACKETS];
+    private int mQueuedPackets = 0;
+    private final Handler mHandler;
+    private final Runnable mFlushRunnable = this::flushSendQueue;
+
     // TODO: get these from NetworkStackConstants.
     private static final int IPV6_ADDR_LEN = 16;
     private static final int IPV6_DST_ADDR_OFFSET = 24;
@@ -70,6 +91,7 @@ public class NeighborPacketForwarder extends PacketReader {
 
     public NeighborPacketForwarder(Handler h, InterfaceParams tetheredInterface, int type) {
         super(h);
+        mHandler = h;
         mTag = NeighborPacketForwarder.class.getSimpleName() + "-"
                 + tetheredInterface.name + "-" + type;
         mType = type;
@@ -102,6 +124,39 @@ public class NeighborPacketForwarder extends PacketReader {
             stop();
             start();
         }
+
+        if (!sameIface(oldUpstreamParams, upstreamParams)) {
+            closeSendSocket();
+            if (upstreamParams != null) mSendFd = createSendSocket();
+        }
+    }
+
+    private static boolean sameIface(InterfaceParams a, InterfaceParams b) {
+        if (a == null || b == null) return a == b;
+        return a.index == b.index && a.name.equals(b.name);
+    }
+
+    private FileDescriptor createSendSocket() {
+        FileDescriptor fd = null;
+        try {
+            fd = Os.socket(AF_INET6, SOCK_RAW | SOCK_NONBLOCK, IPPROTO_RAW);
+            SocketUtils.bindSocketToInterface(fd, mSendIfaceParams.name);
+        } catch (ErrnoException | SocketException e) {
+            Log.e(mTag, "Failed to create send socket: " + e);
+            closeSocketQuietly(fd);
+            return null;
+        }
+        return fd;
+    }
+
+    private void closeSendSocket() {
+        mHandler.removeCallbacks(mFlushRunnable);
+        mQueuedPackets = 0;
+        mSendQueue = null;
+        if (mSendFd != null) {
+            closeSocketQuietly(mSendFd);
+            mSendFd = null;
+        }
     }
 
     // TODO: move NetworkStackUtils.closeSocketQuietly to
@@ -139,6 +194,12 @@ public class NeighborPacketForwarder extends PacketReader {
         return mFd;
     }
 
+    @Override
+    protected void onStop() {
+        // The forwarder is only restarted by setUpstreamIface, which recreates the send socket.
+        closeSendSocket();
+    }
+
     private Inet6Address getIpv6DestinationAddress(byte[] recvbuf) {
         Inet6Address dstAddr;
         try {
@@ -152,7 +213,7 @@ public class NeighborPacketForwarder extends PacketReader {
 
     @Override
     protected void handlePacket(byte[] recvbuf, int length) {
-        if (mSendIfaceParams == null) {
+        if (mSendIfaceParams == null || mSendFd == null) {
             return;
         }
 
@@ -164,18 +225,49 @@ public class NeighborPacketForwarder extends PacketReader {
         if (!destv6.isMulticastAddress()) {
             return;
         }
-        InetSocketAddress dest = new InetSocketAddress(destv6, 0);
+        if (length > DEFAULT_RECV_BUF_SIZE) {
+            return;
+        }
+        if (length > SEND_SLOT_SIZE) {
+            // Keep the packets in order.
+            flushSendQueue();
+            sendPackets(recvbuf, length, new int[] { length }, 1);
+            return;
+        }
 
-        FileDescriptor fd = null;
-        try {
-            fd = Os.socket(AF_INET6, SOCK_RAW | SOCK_NONBLOCK, IPPROTO_RAW);
-            SocketUtils.bindSocketToInterface(fd, mSendIfaceParams.name);
+        if (mSendQueue == null) mSendQueue = new byte[MAX_QUEUED_PACKETS * SEND_SLOT_SIZE];
+        System.arraycopy(recvbuf, 0, mSendQueue, mQueuedPackets * SEND_SLOT_SIZE, length);
+        mSendLengths[mQueuedPackets++] = length;
+        if (mQueuedPackets == MAX_QUEUED_PACKETS) {
+            flushSendQueue();
+        } else if (mQueuedPackets == 1) {
+            // Runs once the receive loop has read all the pending packets.
+            mHandler.post(mFlushRunnable);
+        }
+    }
 
-            int ret = Os.sendto(fd, recvbuf, 0, length, 0, dest);
-        } catch (ErrnoException | SocketException e) {
+    private void flushSendQueue() {
+        mHandler.removeCallbacks(mFlushRunnable);
+        if (mQueuedPackets > 0 && mSendFd != null) {
+            sendPackets(mSendQueue, SEND_SLOT_SIZE, mSendLengths, mQueuedPackets);
+        }
+        mQueuedPackets = 0;
+    }
+
+    private void sendPackets(byte[] packets, int slotSize, int[] lengths, int count) {
+        int sent = 0;
+        try {
+            while (sent < count) {
+                final int ret = TetheringUtils.sendPacketBatch(mSendFd, packets, slotSize,
+                        lengths, sent, count - sent);
+                if (ret <= 0) break;
+                sent += ret;
+            }
+        } catch (SocketException | IllegalArgumentException e) {
             Log.e(mTag, "handlePacket error: " + e);
-        } finally {
-            closeSocketQuietly(fd);
+        }
+        if (sent < count) {
+            Log.e(mTag, "Dropped " + (count - sent) + " packets");
         }
     }
 }
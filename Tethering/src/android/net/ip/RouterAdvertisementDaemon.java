@@ -20,6 +20,7 @@ import static android.net.util.NetworkConstants.RFC7421_PREFIX_LENGTH;
 import static android.net.util.TetheringUtils.getAllNodesForScopeId;
 import static android.system.OsConstants.AF_INET6;
 import static android.system.OsConstants.IPPROTO_ICMPV6;
+import static android.system.OsConstants.SOCK_NONBLOCK;
 import static android.system.OsConstants.SOCK_RAW;
 import static android.system.OsConstants.SOL_SOCKET;
 import static android.system.OsConstants.SO_SNDTIMEO;
@@ -40,12 +41,18 @@ import android.net.TrafficStats;
 import android.net.util.InterfaceParams;
 import android.net.util.SocketUtils;
 import android.net.util.TetheringUtils;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
 import android.system.ErrnoException;
 import android.system.Os;
 import android.system.StructTimeval;
 import android.util.Log;
 
+import androidx.annotation.NonNull;
+
 import com.android.internal.annotations.GuardedBy;
+import com.android.net.module.util.PacketReader;
 import com.android.net.module.util.structs.Icmpv6Header;
 import com.android.net.module.util.structs.LlaOption;
 import com.android.net.module.util.structs.MtuOption;
@@ -62,22 +69,28 @@ import java.net.SocketException;
 import java.nio.BufferOverflowException;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
 import java.util.Map;
 import java.util.Random;
 import java.util.Set;
+import java.util.TreeSet;
 import java.util.concurrent.atomic.AtomicInteger;
 
 
 /**
  * Basic IPv6 Router Advertisement Daemon.
  *
+ * When constructed with a Handler, the daemon does not start any thread: Router Solicitations
+ * are read from the Handler's MessageQueue file descriptor listener, and multicast RAs are sent
+ * from a timer shared by all the daemons running on the same Looper. In that mode all methods
+ * must be called on the Handler thread. Otherwise, each daemon runs two threads of its own.
+ *
  * TODO:
  *
- *     - Rewrite using Handler (and friends) so that AlarmManager can deliver
- *       "kick" messages when it's time to send a multicast RA.
+ *     - Use AlarmManager to deliver "kick" messages when it's time to send a multicast RA.
  *
  * @hide
  */
@@ -97,6 +110,10 @@ public class RouterAdvertisementDaemon {
     private static final int DEFAULT_LIFETIME = 6 * MAX_RTR_ADV_INTERVAL_SEC;
     // From https://tools.ietf.org/html/rfc4861#section-10 .
     private static final int MIN_DELAY_BETWEEN_RAS_SEC = 3;
+    private static final long MIN_DELAY_BETWEEN_RAS_MS = MIN_DELAY_BETWEEN_RAS_SEC * 1000L;
+    // Maximum random delay of an RA sent in response to a solicitation.
+    // From https://tools.ietf.org/html/rfc4861#section-10 .
+    private static final int MAX_RA_DELAY_TIME_MS = 500;
     // Both initial and final RAs, but also for changes in RA contents.
     // From https://tools.ietf.org/html/rfc4861#section-10 .
     private static final int  MAX_URGENT_RTR_ADVERTISEMENTS = 5;
@@ -106,15 +123,16 @@ public class RouterAdvertisementDaemon {
     private final InterfaceParams mInterface;
     private final InetSocketAddress mAllNodes;
 
-    // This lock is to protect the RA from being updated while being
-    // transmitted on another thread  (multicast or unicast).
-    //
-    // TODO: This should be handled with a more RCU-like approach.
+    // This lock serializes the updates of the RA parameters and the deprecated info. Sending does
+    // not take it: the assembled RA is published as an immutable snapshot in mRaPacket.
     private final Object mLock = new Object();
+    // Scratch buffer the RA is assembled in.
     @GuardedBy("mLock")
     private final byte[] mRA = new byte[IPV6_MIN_MTU];
     @GuardedBy("mLock")
     private int mRaLength;
+    // The RA to send. Never modified once published; empty if there is nothing to announce.
+    private volatile byte[] mRaPacket = new byte[0];
     @GuardedBy("mLock")
     private final DeprecatedInfoTracker mDeprecatedInfoTracker;
     @GuardedBy("mLock")
@@ -124,6 +142,20 @@ public class RouterAdvertisementDaemon {
     private volatile MulticastTransmitter mMulticastTransmitter;
     private volatile UnicastResponder mUnicastResponder;
 
+    private final Random mRandom = new Random();
+    private final AtomicInteger mUrgentAnnouncements = new AtomicInteger(0);
+
+    // Only used when running on a Handler.
+    private final Handler mHandler;
+    private MulticastScheduler mScheduler;
+    private SolicitationReader mSolicitationReader;
+    // Time of the next multicast RA in SystemClock#uptimeMillis, used to order mScheduler.
+    private long mNextMulticastUptimeMs;
+    // Time of the last multicast RA in SystemClock#uptimeMillis.
+    private long mLastMulticastUptimeMs = -MIN_DELAY_BETWEEN_RAS_MS;
+    private final int mId;
+    private static final AtomicInteger sNextId = new AtomicInteger(0);
+
     /** Encapsulate the RA parameters for RouterAdvertisementDaemon.*/
     public static class RaParams {
         // Tethered traffic will have the hop limit properly decremented.
@@ -248,9 +280,19 @@ public class RouterAdvertisementDaemon {
     }
 
     public RouterAdvertisementDaemon(InterfaceParams ifParams) {
+        this(ifParams, null);
+    }
+
+    /**
+     * Create a daemon that runs on the given Handler instead of its own threads, or on its own
+     * threads if handler is null.
+     */
+    public RouterAdvertisementDaemon(InterfaceParams ifParams, Handler handler) {
         mInterface = ifParams;
         mAllNodes = new InetSocketAddress(getAllNodesForScopeId(mInterface.index), 0);
         mDeprecatedInfoTracker = new DeprecatedInfoTracker();
+        mHandler = handler;
+        mId = sNextId.getAndIncrement();
     }
 
     /** Build new RA.*/
@@ -276,6 +318,20 @@ public class RouterAdvertisementDaemon {
 
     /** Start router advertisement daemon. */
     public boolean start() {
+        if (mHandler != null) {
+            mSolicitationReader = new SolicitationReader(mHandler);
+            // Creates mSocket synchronously, since this is called on the Handler thread.
+            mSolicitationReader.start();
+            if (!isSocketValid()) {
+                mSolicitationReader.stop();
+                mSolicitationReader = null;
+                return false;
+            }
+            mScheduler = MulticastScheduler.forLooper(mHandler.getLooper());
+            scheduleMulticast(getNextMulticastTransmitDelayMs());
+            return true;
+        }
+
         if (!createSocket()) {
             return false;
         }
@@ -291,6 +347,20 @@ public class RouterAdvertisementDaemon {
 
     /** Stop router advertisement daemon. */
     public void stop() {
+        if (mHandler != null) {
+            if (mScheduler != null) {
+                mScheduler.cancel(this);
+                mScheduler = null;
+            }
+            if (mSolicitationReader != null) {
+                // Closes mSocket.
+                mSolicitationReader.stop();
+                mSolicitationReader = null;
+            }
+            mSocket = null;
+            return;
+        }
+
         closeSocket();
         // Wake up mMulticastTransmitter thread to interrupt a potential 1 day sleep before
         // the thread's termination.
@@ -360,15 +430,83 @@ public class RouterAdvertisementDaemon {
         if (!shouldSendRA) {
             mRaLength = 0;
         }
+        mRaPacket = Arrays.copyOf(mRA, mRaLength);
     }
 
     private void maybeNotifyMulticastTransmitter() {
+        if (mHandler != null) {
+            if (mScheduler == null) return;
+            // Send an RA right away, then MAX_URGENT_RTR_ADVERTISEMENTS - 1 more (see #hup).
+            mUrgentAnnouncements.set(MAX_URGENT_RTR_ADVERTISEMENTS - 1);
+            scheduleMulticast(0);
+            return;
+        }
+
         final MulticastTransmitter m = mMulticastTransmitter;
         if (m != null) {
             m.hup();
         }
     }
 
+    private void scheduleMulticast(long delayMs) {
+        mScheduler.schedule(this, SystemClock.uptimeMillis() + delayMs);
+    }
+
+    // Called by mScheduler when it is time to send a multicast RA.
+    private void onMulticastTimer() {
+        mLastMulticastUptimeMs = SystemClock.uptimeMillis();
+        sendMulticastRa();
+        scheduleMulticast(getNextMulticastTransmitDelayMs());
+    }
+
+    // Answer a solicitation with a multicast RA, as allowed by RFC 4861 section 6.2.6: the RA is
+    // delayed by up to MAX_RA_DELAY_TIME_MS, and by at least MIN_DELAY_BETWEEN_RAS_SEC after the
+    // previous multicast RA. Solicitations received until then are answered by the same RA.
+    private void onSolicitation() {
+        if (mScheduler == null || mRaPacket.length < ICMPV6_RA_HEADER_LEN) return;
+
+        final long now = SystemClock.uptimeMillis();
+        final long sendTime = Math.max(now + mRandom.nextInt(MAX_RA_DELAY_TIME_MS + 1),
+                mLastMulticastUptimeMs + MIN_DELAY_BETWEEN_RAS_MS);
+        if (sendTime < mNextMulticastUptimeMs) {
+            mScheduler.schedule(this, sendTime);
+        }
+    }
+
+    private void sendMulticastRa() {
+        maybeSendRA(mAllNodes);
+        synchronized (mLock) {
+            if (mDeprecatedInfoTracker.decrementCounters()) {
+                // At least one deprecated PIO has been removed;
+                // reassemble the RA.
+                assembleRaLocked();
+            }
+        }
+    }
+
+    private int getNextMulticastTransmitDelaySec() {
+        boolean deprecationInProgress = false;
+        if (mRaPacket.length < ICMPV6_RA_HEADER_LEN) {
+            // No actual RA to send; just sleep for 1 day.
+            return DAY_IN_SECONDS;
+        }
+        synchronized (mLock) {
+            deprecationInProgress = !mDeprecatedInfoTracker.isEmpty();
+        }
+
+        final int urgentPending = mUrgentAnnouncements.getAndDecrement();
+        if ((urgentPending > 0) || deprecationInProgress) {
+            return MIN_DELAY_BETWEEN_RAS_SEC;
+        }
+
+        return MIN_RTR_ADV_INTERVAL_SEC + mRandom.nextInt(
+                MAX_RTR_ADV_INTERVAL_SEC - MIN_RTR_ADV_INTERVAL_SEC);
+    }
+
+    private long getNextMulticastTransmitDelayMs() {
+        return 1000 * (long) getNextMulticastTransmitDelaySec();
+    }
+
     private static byte asByte(int value) {
         return (byte) value;
     }
@@ -503,10 +641,12 @@ public class RouterAdvertisementDaemon {
 
     private boolean createSocket() {
         final int send_timout_ms = 300;
+        // The Handler must never block on the socket.
+        final int type = (mHandler != null) ? SOCK_RAW | SOCK_NONBLOCK : SOCK_RAW;
 
         final int oldTag = TrafficStats.getAndSetThreadStatsTag(TAG_SYSTEM_NEIGHBOR);
         try {
-            mSocket = Os.socket(AF_INET6, SOCK_RAW, IPPROTO_ICMPV6);
+            mSocket = Os.socket(AF_INET6, type, IPPROTO_ICMPV6);
             // Setting SNDTIMEO is purely for defensive purposes.
             Os.setsockoptTimeval(
                     mSocket, SOL_SOCKET, SO_SNDTIMEO, StructTimeval.fromMillis(send_timout_ms));
@@ -514,6 +654,7 @@ public class RouterAdvertisementDaemon {
             TetheringUtils.setupRaSocket(mSocket, mInterface.index);
         } catch (ErrnoException | IOException e) {
             Log.e(TAG, "Failed to create RA daemon socket: " + e);
+            closeSocket();
             return false;
         } finally {
             TrafficStats.setThreadStatsTag(oldTag);
@@ -552,14 +693,14 @@ public class RouterAdvertisementDaemon {
             dest = mAllNodes;
         }
 
+        final byte[] ra = mRaPacket;
+        if (ra.length < ICMPV6_RA_HEADER_LEN) {
+            // No actual RA to send.
+            return;
+        }
+
         try {
-            synchronized (mLock) {
-                if (mRaLength < ICMPV6_RA_HEADER_LEN) {
-                    // No actual RA to send.
-                    return;
-                }
-                Os.sendto(mSocket, mRA, 0, mRaLength, 0, dest);
-            }
+            Os.sendto(mSocket, ra, 0, ra.length, 0, dest);
             Log.d(TAG, "RA sendto " + dest.getAddress().getHostAddress());
         } catch (ErrnoException | SocketException e) {
             if (isSocketValid()) {
@@ -598,12 +739,7 @@ public class RouterAdvertisementDaemon {
         }
     }
 
-    // TODO: Consider moving this to run on a provided Looper as a Handler,
-    // with WakeupMessage-style messages providing the timer driven input.
     private final class MulticastTransmitter extends Thread {
-        private final Random mRandom = new Random();
-        private final AtomicInteger mUrgentAnnouncements = new AtomicInteger(0);
-
         @Override
         public void run() {
             while (isSocketValid()) {
@@ -613,14 +749,7 @@ public class RouterAdvertisementDaemon {
                     // Stop sleeping, immediately send an RA, and continue.
                 }
 
-                maybeSendRA(mAllNodes);
-                synchronized (mLock) {
-                    if (mDeprecatedInfoTracker.decrementCounters()) {
-                        // At least one deprecated PIO has been removed;
-                        // reassemble the RA.
-                        assembleRaLocked();
-                    }
-                }
+                sendMulticastRa();
             }
         }
 
@@ -632,28 +761,106 @@ public class RouterAdvertisementDaemon {
             mUrgentAnnouncements.set(MAX_URGENT_RTR_ADVERTISEMENTS - 1);
             interrupt();
         }
+    }
 
-        private int getNextMulticastTransmitDelaySec() {
-            boolean deprecationInProgress = false;
-            synchronized (mLock) {
-                if (mRaLength < ICMPV6_RA_HEADER_LEN) {
-                    // No actual RA to send; just sleep for 1 day.
-                    return DAY_IN_SECONDS;
+    /** Receives Router Solicitations on the Handler and answers them with multicast RAs. */
+    private final class SolicitationReader extends PacketReader {
+        SolicitationReader(Handler h) {
+            // If the RS is larger than IPV6_MIN_MTU the packets are truncated.
+            // This is fine since currently only byte 0 is examined anyway.
+            super(h, IPV6_MIN_MTU);
+        }
+
+        @Override
+        protected FileDescriptor createFd() {
+            return createSocket() ? mSocket : null;
+        }
+
+        @Override
+        protected void handlePacket(@NonNull byte[] recvbuf, int length) {
+            // Do the least possible amount of validation.
+            if (length < 1 || recvbuf[0] != asByte(ICMPV6_ROUTER_SOLICITATION)) return;
+            onSolicitation();
+        }
+    }
+
+    /**
+     * Sends the multicast RAs of all the daemons running on a Looper, using a single Handler
+     * callback armed for the earliest deadline. A scheduler exists for as long as at least one
+     * daemon is started on its Looper.
+     */
+    private static final class MulticastScheduler {
+        @GuardedBy("sSchedulers")
+        private static final HashMap<Looper, MulticastScheduler> sSchedulers = new HashMap<>();
+
+        private final Looper mLooper;
+
+        private final Handler mHandler;
+        // Daemons ordered by the time of their next multicast RA. Only accessed on mHandler.
+        private final TreeSet<RouterAdvertisementDaemon> mQueue = new TreeSet<>((a, b) -> {
+            final int cmp = Long.compare(a.mNextMulticastUptimeMs, b.mNextMulticastUptimeMs);
+            return (cmp != 0) ? cmp : Integer.compare(a.mId, b.mId);
+        });
+        private final Runnable mTimer = this::onTimer;
+        private long mArmedUptimeMs = Long.MAX_VALUE;
+        private boolean mFiring = false;
+
+        private MulticastScheduler(Looper looper) {
+            mLooper = looper;
+            mHandler = new Handler(looper);
+        }
+
+        static MulticastScheduler forLooper(Looper looper) {
+            synchronized (sSchedulers) {
+                MulticastScheduler scheduler = sSchedulers.get(looper);
+                if (scheduler == null) {
+                    scheduler = new MulticastScheduler(looper);
+                    sSchedulers.put(looper, scheduler);
                 }
-                deprecationInProgress = !mDeprecatedInfoTracker.isEmpty();
+                return scheduler;
             }
+        }
+
+        void schedule(RouterAdvertisementDaemon daemon, long uptimeMs) {
+            // The ordering key must not change while the daemon is in the queue.
+            mQueue.remove(daemon);
+            daemon.mNextMulticastUptimeMs = uptimeMs;
+            mQueue.add(daemon);
+            rearm();
+        }
 
-            final int urgentPending = mUrgentAnnouncements.getAndDecrement();
-            if ((urgentPending > 0) || deprecationInProgress) {
-                return MIN_DELAY_BETWEEN_RAS_SEC;
+        // Started daemons are always in the queue, so an empty queue means that the daemon was the
+        // last one on this Looper.
+        void cancel(RouterAdvertisementDaemon daemon) {
+            if (mQueue.remove(daemon)) rearm();
+            if (mQueue.isEmpty()) {
+                synchronized (sSchedulers) {
+                    sSchedulers.remove(mLooper, this);
+                }
             }
+        }
 
-            return MIN_RTR_ADV_INTERVAL_SEC + mRandom.nextInt(
-                    MAX_RTR_ADV_INTERVAL_SEC - MIN_RTR_ADV_INTERVAL_SEC);
+        private void onTimer() {
+            mArmedUptimeMs = Long.MAX_VALUE;
+            mFiring = true;
+            final long now = SystemClock.uptimeMillis();
+            while (!mQueue.isEmpty() && mQueue.first().mNextMulticastUptimeMs <= now) {
+                mQueue.pollFirst().onMulticastTimer();
+            }
+            mFiring = false;
+            rearm();
         }
 
-        private long getNextMulticastTransmitDelayMs() {
-            return 1000 * (long) getNextMulticastTransmitDelaySec();
+        private void rearm() {
+            if (mFiring) return;
+
+            final long next = mQueue.isEmpty() ? Long.MAX_VALUE
+                    : mQueue.first().mNextMulticastUptimeMs;
+            if (next == mArmedUptimeMs) return;
+
+            mHandler.removeCallbacks(mTimer);
+            mArmedUptimeMs = next;
+            if (next != Long.MAX_VALUE) mHandler.postAtTime(mTimer, next);
         }
     }
 }
@@ -145,6 +145,23 @@ public class TetheringUtils {
     public static native void setupRaSocket(FileDescriptor fd, int ifIndex)
             throws SocketException;
 
+    /** Maximum number of packets that can be sent with one call to #sendPacketBatch. */
+    public static final int MAX_PACKET_BATCH_SIZE = 64;
+
+    /**
+     * Sends a batch of IPv6 packets with one sendmmsg call. Each packet is sent to the destination
+     * address in its own IPv6 header, so the socket is expected to be an IPPROTO_RAW socket.
+     * @param fd the socket's {@link FileDescriptor}.
+     * @param packets the packets, each stored at the start of a slot of {@code slotSize} bytes.
+     * @param slotSize the size of each slot in {@code packets}.
+     * @param lengths the length of the packet in each slot.
+     * @param start the index of the first slot to send.
+     * @param count the number of packets to send, at most {@link #MAX_PACKET_BATCH_SIZE}.
+     * @return the number of packets sent, which may be less than {@code count}.
+     */
+    public static native int sendPacketBatch(FileDescriptor fd, byte[] packets, int slotSize,
+            int[] lengths, int start, int count) throws SocketException;
+
     /**
      * Read s as an unsigned 16-bit integer.
      */
@@ -0,0 +1,141 @@
+/*
+ * Copyright (C) 2021 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.networkstack.tethering;
+
+import static android.net.netstats.provider.NetworkStatsProvider.QUOTA_UNLIMITED;
+
+import com.android.internal.annotations.VisibleForTesting;
+
+/**
+ * Computes the delay before the next poll of the tethering offload stats.
+ *
+ * The stats are polled on the configured interval as long as traffic is offloaded. Polling is
+ * the only way the alert quota is enforced, so it speeds up when the traffic is heavy or when the
+ * remaining alert quota would be used up before the next poll. Once no traffic has been offloaded
+ * for a few polls, the interval doubles at every poll up to MAX_POLL_INTERVAL_MS. Traffic may
+ * start again at any time on the offloaded flows, so the backed off interval is also capped to
+ * the time heavy traffic would take to use up the remaining alert quota. The first poll which
+ * sees traffic ends the backoff. Callers must also #reset the backoff when traffic is likely to
+ * start again, such as when rules are added or quotas are changed.
+ *
+ * Not thread-safe. Used on the handler thread of BpfCoordinator and OffloadController.
+ */
+public class AdaptivePollingInterval {
+    @VisibleForTesting
+    static final int MIN_POLL_INTERVAL_MS = 1000;
+    @VisibleForTesting
+    static final int MAX_POLL_INTERVAL_MS = 60_000;
+    // Number of polls without traffic before backing off.
+    @VisibleForTesting
+    static final int IDLE_POLLS_BEFORE_BACKOFF = 3;
+    // Rate from which the traffic is heavy enough to poll more often (80Mbps). Also the rate the
+    // traffic is assumed to restart at while the interval is backed off.
+    @VisibleForTesting
+    static final long HEAVY_TRAFFIC_BYTES_PER_SEC = 10_000_000;
+
+    private int mIdlePolls = 0;
+    private long mBytesPerSec = 0;
+    private long mLastDelayMs = 0;
+    // The elapsedRealtime of the previous poll, or 0 if none since polling started.
+    private long mLastPollTimeMs = 0;
+
+    /**
+     * Record the number of bytes offloaded since the previous poll.
+     *
+     * @param bytes the number of bytes offloaded since the previous poll.
+     * @param nowMs the elapsedRealtime of this poll. The traffic rate is computed over the time
+     *              actually elapsed since the previous poll, which may differ from the delay
+     *              returned by #getNextDelayMs if the poll was rescheduled or ran late.
+     */
+    public void onPolled(long bytes, long nowMs) {
+        final long elapsedMs = (mLastPollTimeMs > 0) ? nowMs - mLastPollTimeMs : 0;
+        mLastPollTimeMs = nowMs;
+
+        if (bytes <= 0) {
+            if (mIdlePolls < Integer.MAX_VALUE) mIdlePolls++;
+            mBytesPerSec = 0;
+            return;
+        }
+
+        mIdlePolls = 0;
+        mBytesPerSec = (elapsedMs > 0) ? bytes * 1000 / elapsedMs : 0;
+    }
+
+    /**
+     * Forget the time of the previous poll, so that the traffic rate is not computed over the time
+     * polling was stopped. Must be called when polling stops.
+     */
+    public void onPollingStopped() {
+        mLastPollTimeMs = 0;
+        mBytesPerSec = 0;
+    }
+
+    /** Whether the interval is backed off because no traffic has been offloaded lately. */
+    public boolean isBackedOff() {
+        return mIdlePolls > IDLE_POLLS_BEFORE_BACKOFF;
+    }
+
+    /**
+     * Forget the idle polls, so that the next poll is scheduled on the configured interval.
+     *
+     * @return true if the interval was backed off, in which case the pending poll needs to be
+     *         rescheduled.
+     */
+    public boolean reset() {
+        final boolean wasBackedOff = isBackedOff();
+        mIdlePolls = 0;
+        return wasBackedOff;
+    }
+
+    /**
+     * Get the delay before the next poll.
+     *
+     * @param baseIntervalMs the configured polling interval.
+     * @param remainingQuota the remaining alert quota in bytes, or QUOTA_UNLIMITED.
+     */
+    public long getNextDelayMs(long baseIntervalMs, long remainingQuota) {
+        final boolean hasQuota = remainingQuota != QUOTA_UNLIMITED && remainingQuota > 0;
+        long delay = baseIntervalMs;
+
+        if (isBackedOff()) {
+            final int doublings = Math.min(mIdlePolls - IDLE_POLLS_BEFORE_BACKOFF, 30);
+            delay = Math.min(baseIntervalMs << doublings,
+                    Math.max(baseIntervalMs, MAX_POLL_INTERVAL_MS));
+            if (hasQuota) {
+                final long msToQuota = remainingQuota / (HEAVY_TRAFFIC_BYTES_PER_SEC / 1000);
+                delay = Math.min(delay, Math.max(baseIntervalMs, msToQuota));
+            }
+        } else if (mBytesPerSec > 0) {
+            if (mBytesPerSec >= HEAVY_TRAFFIC_BYTES_PER_SEC) {
+                delay = Math.min(baseIntervalMs, Math.max(MIN_POLL_INTERVAL_MS,
+                        baseIntervalMs / 4));
+            }
+            if (hasQuota) {
+                // Poll at least twice before the quota would be used up at the current rate.
+                final long msToQuota = remainingQuota * 1000 / mBytesPerSec;
+                delay = Math.min(delay, Math.max(MIN_POLL_INTERVAL_MS, msToQuota / 2));
+            }
+        }
+
+        mLastDelayMs = delay;
+        return delay;
+    }
+
+    /** Get the delay which was last returned by #getNextDelayMs, or 0 if none. */
+    public long getLastDelayMs() {
+        return mLastDelayMs;
+    }
+}
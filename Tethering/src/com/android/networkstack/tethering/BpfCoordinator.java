@@ -25,8 +25,11 @@ import static android.net.NetworkStats.UID_ALL;
 import static android.net.NetworkStats.UID_TETHERING;
 import static android.net.ip.ConntrackMonitor.ConntrackEvent;
 import static android.net.netstats.provider.NetworkStatsProvider.QUOTA_UNLIMITED;
+import static android.system.OsConstants.ENOENT;
 import static android.system.OsConstants.ETH_P_IP;
 import static android.system.OsConstants.ETH_P_IPV6;
+import static android.system.OsConstants.IPPROTO_UDP;
+import static android.system.OsConstants.NETLINK_NETFILTER;
 
 import static com.android.networkstack.tethering.BpfUtils.DOWNSTREAM;
 import static com.android.networkstack.tethering.BpfUtils.UPSTREAM;
@@ -34,6 +37,8 @@ import static com.android.networkstack.tethering.TetheringConfiguration.DEFAULT_
 
 import android.app.usage.NetworkStatsManager;
 import android.net.INetd;
+import android.net.IpPrefix;
+import android.net.LinkAddress;
 import android.net.LinkProperties;
 import android.net.MacAddress;
 import android.net.NetworkStats;
@@ -42,21 +47,28 @@ import android.net.TetherOffloadRuleParcel;
 import android.net.ip.ConntrackMonitor;
 import android.net.ip.ConntrackMonitor.ConntrackEventConsumer;
 import android.net.ip.IpServer;
+import android.net.netlink.ConntrackMessage;
 import android.net.netlink.NetlinkConstants;
+import android.net.netlink.NetlinkSocket;
 import android.net.netstats.provider.NetworkStatsProvider;
 import android.net.util.InterfaceParams;
 import android.net.util.SharedLog;
 import android.net.util.TetheringUtils.ForwardedStats;
 import android.os.ConditionVariable;
 import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.SystemClock;
 import android.system.ErrnoException;
 import android.text.TextUtils;
 import android.util.Log;
 import android.util.SparseArray;
+import android.util.SparseBooleanArray;
+import android.util.SparseIntArray;
 
 import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
 
+import com.android.internal.annotations.GuardedBy;
 import com.android.internal.annotations.VisibleForTesting;
 import com.android.internal.util.IndentingPrintWriter;
 import com.android.modules.utils.build.SdkLevel;
@@ -64,18 +76,31 @@ import com.android.net.module.util.NetworkStackConstants;
 import com.android.net.module.util.Struct;
 import com.android.networkstack.tethering.apishim.common.BpfCoordinatorShim;
 
+import java.io.IOException;
 import java.net.Inet4Address;
 import java.net.Inet6Address;
 import java.net.InetAddress;
 import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Iterator;
 import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Objects;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.BiConsumer;
+import java.util.function.ObjIntConsumer;
 
 /**
  *  This coordinator is responsible for providing BPF offload relevant functionality.
@@ -98,13 +123,65 @@ public class BpfCoordinator {
     private static final int DUMP_TIMEOUT_MS = 10_000;
     private static final MacAddress NULL_MAC_ADDRESS = MacAddress.fromString(
             "00:00:00:00:00:00");
+    private static final byte[] NULL_MAC_ADDRESS_BYTES = NULL_MAC_ADDRESS.toByteArray();
     private static final String TETHER_DOWNSTREAM4_MAP_PATH = makeMapPath(DOWNSTREAM, 4);
     private static final String TETHER_UPSTREAM4_MAP_PATH = makeMapPath(UPSTREAM, 4);
     private static final String TETHER_DOWNSTREAM6_FS_PATH = makeMapPath(DOWNSTREAM, 6);
     private static final String TETHER_UPSTREAM6_FS_PATH = makeMapPath(UPSTREAM, 6);
+    private static final String TETHER_DOWNSTREAM64_MAP_PATH = makeMapPath(DOWNSTREAM, 64);
     private static final String TETHER_STATS_MAP_PATH = makeMapPath("stats");
+    private static final String TETHER_CLIENT_STATS_MAP_PATH = makeMapPath("client_stats");
+    private static final String TETHER_CLIENT_RATE_LIMIT_MAP_PATH =
+            makeMapPath("client_rate_limit");
     private static final String TETHER_LIMIT_MAP_PATH = makeMapPath("limit");
+    private static final String TETHER_QUOTA_MAP_PATH = makeMapPath("quota");
+    private static final String TETHER_QUOTA_CACHE_MAP_PATH = makeMapPath("quota_cache");
     private static final String TETHER_ERROR_MAP_PATH = makeMapPath("error");
+    private static final String TETHER_XDP_DEVMAP_PATH =
+            "/sys/fs/bpf/tethering/map_offload_tether_xdp_devmap";
+    // The anycast addresses joined on each interface. clatd joins its IPv6 address on the
+    // upstream interface as an anycast address, so that the kernel accepts the translated packets.
+    private static final String PROC_NET_ANYCAST6_PATH = "/proc/net/anycast6";
+    // The clat interface stacked on an upstream interface. See ClatCoordinator.
+    private static final String CLAT_IFACE_PREFIX = "v4-";
+    // Only NAT64 prefixes with an IPv4 address in the last 32 bits are supported. See RFC 6052.
+    private static final int NAT64_PREFIX_LENGTH = 96;
+
+    // How long conntrack events are queued so that the events of the same flow can be coalesced
+    // and the rules written in one batch. See BpfConntrackEventConsumer.
+    @VisibleForTesting
+    static final int CONNTRACK_BATCH_WINDOW_MS = 20;
+    // The maximum number of flows queued before the batch is flushed regardless of the window.
+    @VisibleForTesting
+    static final int MAX_CONNTRACK_BATCH_SIZE = 64;
+    // Number of encoded conntrack batches kept for reuse once written.
+    private static final int MAX_FREE_CONNTRACK_BATCHES = 4;
+    // Number of queued flow objects kept for reuse once written. Enough for the reused batches
+    // and the queue.
+    private static final int MAX_FREE_PENDING_CONNTRACK_EVENTS =
+            MAX_CONNTRACK_BATCH_SIZE * (MAX_FREE_CONNTRACK_BATCHES + 1);
+
+    // How often the IPv4 rules are swept: the conntrack timeouts of the flows which were
+    // forwarded since the last sweep are refreshed, and the idle UDP flows are expired. The
+    // conntrack entries of the offloaded flows only see the packets which are not forwarded by
+    // BPF, so they would otherwise time out while the flows are active. See #sweepIpv4Rules.
+    @VisibleForTesting
+    static final int CONNTRACK_TIMEOUT_UPDATE_INTERVAL_MS = 60_000;
+    // How long the IPv4 rules of a UDP flow can be unused before the flow is expired.
+    @VisibleForTesting
+    static final int IPV4_RULE_IDLE_TIMEOUT_MS = 600_000;
+    // The size of the IPv4 maps. See tether_{downstream,upstream}4_map in offload.c. Once the maps
+    // are IPV4_RULE_PRESSURE_PERCENT full, the UDP flows are expired as soon as they are idle for
+    // a whole sweep interval, so that there is room for the rules of new flows.
+    @VisibleForTesting
+    static final int TETHER4_MAP_SIZE = 1024;
+    private static final int IPV4_RULE_PRESSURE_PERCENT = 75;
+
+    // The maximum rate, in bytes per second, and burst size, in bytes, of the client rate limits,
+    // so that the token bucket computations of the BPF programs cannot overflow. See
+    // take_client_tokens in offload.c.
+    @VisibleForTesting
+    static final long MAX_CLIENT_RATE_LIMIT = 1L << 32;
 
     /** The names of all the BPF counters defined in bpf_tethering.h. */
     public static final String[] sBpfCounterNames = getBpfCounterNames();
@@ -131,14 +208,21 @@ public class BpfCoordinator {
     private final SharedLog mLog;
     @NonNull
     private final Dependencies mDeps;
-    @NonNull
-    private final ConntrackMonitor mConntrackMonitor;
+    // The conntrack monitor of the current monitoring session, created with its reader thread, if
+    // enabled, each time monitoring starts. Null while nothing is monitored.
+    @Nullable
+    private ConntrackMonitor mConntrackMonitor;
     @Nullable
     private final BpfTetherStatsProvider mStatsProvider;
     @NonNull
     private final BpfCoordinatorShim mBpfCoordinatorShim;
     @NonNull
     private final BpfConntrackEventConsumer mBpfConntrackEventConsumer;
+    // Handler the conntrack events are received and processed on. See BpfConntrackEventConsumer.
+    // Replaced on the handler thread when monitoring starts, and set back to the handler of this
+    // class once the reader thread of the previous session, if any, is released.
+    @NonNull
+    private volatile Handler mConntrackHandler;
 
     // True if BPF offload is supported, false otherwise. The BPF offload could be disabled by
     // a runtime resource overlay package or device configuration. This flag is only initialized
@@ -147,6 +231,14 @@ public class BpfCoordinator {
     // to make it simpler. See also TetheringConfiguration.
     private final boolean mIsBpfEnabled;
 
+    // True if the offloaded traffic of each client is counted. Only initialized in the
+    // constructor, as mIsBpfEnabled. See TetheringConfiguration#isClientStatsEnabled.
+    private final boolean mIsClientStatsEnabled;
+
+    // True if the offloaded traffic of the clients can be rate limited. Only initialized in the
+    // constructor, as mIsBpfEnabled. See TetheringConfiguration#isClientRateLimitEnabled.
+    private final boolean mIsClientRateLimitEnabled;
+
     // Tracks whether BPF tethering is started or not. This is set by tethering before it
     // starts the first IpServer and is cleared by tethering shortly before the last IpServer
     // is stopped. Note that rule updates (especially deletions, but sometimes additions as
@@ -164,6 +256,30 @@ public class BpfCoordinator {
     // from the BPF maps for each interface.
     private final SparseArray<ForwardedStats> mStats = new SparseArray<>();
 
+    // Clients with entries in the client stats and client rate limit BPF maps, keyed by downstream
+    // interface index then by client mac address. Each client is held by its IPv4 addresses and
+    // IPv6 forwarding rules on the downstream, and its entries are removed from the maps once it
+    // is not held anymore. See #holdClient, #releaseClient.
+    private final SparseArray<HashMap<MacAddress, ClientEntry>> mClientEntries =
+            new SparseArray<>();
+
+    // Maps client mac addresses to their offloaded traffic statistics, accumulated from the
+    // deltas read from the client stats BPF map. Unlike the map entries, the traffic of a client
+    // is kept until polling is stopped, e.g. while it moves to another downstream.
+    private final HashMap<MacAddress, ForwardedStats> mClientStats = new HashMap<>();
+
+    // Whether mClientStats changed since #mClientStatsCallback was last run.
+    private boolean mClientStatsChanged = false;
+
+    // Run after the polls which changed mClientStats. See #setClientStatsCallback.
+    @Nullable
+    private Runnable mClientStatsCallback;
+
+    // Maps client mac addresses to their rate limits. Always contains the latest limits set by
+    // the framework, whether or not the clients are connected. The limits are applied to the
+    // clients on each downstream they are held on, see #mClientEntries.
+    private final HashMap<MacAddress, ClientRateLimit> mClientRateLimits = new HashMap<>();
+
     // Maps upstream interface names to interface quotas.
     // Always contains the latest value received from the framework for each interface, regardless
     // of whether offload is currently running (or is even supported) on that interface. Only
@@ -197,6 +313,14 @@ public class BpfCoordinator {
     private final HashMap<IpServer, LinkedHashMap<Inet6Address, Ipv6ForwardingRule>>
             mIpv6ForwardingRules = new LinkedHashMap<>();
 
+    // Indexes of the rules in mIpv6ForwardingRules, so that the rules on an upstream can be
+    // looked up without iterating over all the rules of all the downstreams.
+    // Number of rules on each upstream, keyed by upstream interface index.
+    private final SparseIntArray mIpv6UpstreamRuleCounts = new SparseIntArray();
+    // Number of rules between each downstream and upstream pair, keyed by downstream interface
+    // index then by upstream interface index.
+    private final SparseArray<SparseIntArray> mIpv6ForwardingPairRuleCounts = new SparseArray<>();
+
     // Map of downstream client maps. Each of these maps represents the IPv4 clients for a given
     // downstream. Needed to build IPv4 forwarding rules when conntrack events are received.
     // Each map:
@@ -213,21 +337,42 @@ public class BpfCoordinator {
     // Set for which downstream is monitoring the conntrack netlink message.
     private final Set<IpServer> mMonitoringIpServers = new HashSet<>();
 
-    // Map of upstream interface IPv4 address to interface index.
-    // TODO: consider making the key to be unique because the upstream address is not unique. It
-    // is okay for now because there have only one upstream generally.
-    private final HashMap<Inet4Address, Integer> mIpv4UpstreamIndices = new HashMap<>();
-
     // Map for upstream and downstream pair.
     private final HashMap<String, HashSet<String>> mForwardingPairs = new HashMap<>();
 
+    // Interfaces which have the XDP program attached, in addition to the tc programs, mapped to
+    // whether the program is attached in the native driver mode or the generic mode.
+    private final HashMap<String, Boolean> mXdpInterfaces = new HashMap<>();
+    // Interfaces which the XDP programs can redirect packets to, mapped to their interface
+    // index. The index is kept because the interface may be gone when it is removed.
+    private final HashMap<String, Integer> mXdpDevices = new HashMap<>();
+
+    // The clients and upstreams of the IPv4 flows. Written on the handler thread and read by the
+    // conntrack handler.
+    private final ConntrackFilter mConntrackFilter = new ConntrackFilter();
+
+    // Runnable that used by scheduling next sweep of the IPv4 rules.
+    private final Runnable mScheduledIpv4RuleSweep = () -> {
+        sweepIpv4Rules();
+        scheduleIpv4RuleSweep();
+    };
+
+    // Counters of the IPv4 rule sweeps. See #dump.
+    private long mConntrackTimeoutUpdates = 0;
+    private long mConntrackTimeoutUpdateErrors = 0;
+    private long mExpiredIpv4FlowCount = 0;
+    private long mEvictedIpv4RuleCount = 0;
+
+    // Adapts the polling interval to the offloaded traffic and the remaining alert quota.
+    private final AdaptivePollingInterval mPollingInterval = new AdaptivePollingInterval();
+
     // Runnable that used by scheduling next polling of stats.
     private final Runnable mScheduledPollingTask = () -> {
-        updateForwardedStats();
+        mPollingInterval.onPolled(updateForwardedStats(),
+                mDeps.elapsedRealtimeNanos() / 1_000_000);
         maybeSchedulePollingStats();
     };
 
-    // TODO: add BpfMap<TetherDownstream64Key, TetherDownstream64Value> retrieving function.
     @VisibleForTesting
     public abstract static class Dependencies {
         /** Get handler. */
@@ -245,9 +390,32 @@ public class BpfCoordinator {
         /** Get tethering configuration. */
         @Nullable public abstract TetheringConfiguration getTetherConfig();
 
-        /** Get conntrack monitor. */
-        @NonNull public ConntrackMonitor getConntrackMonitor(ConntrackEventConsumer consumer) {
-            return new ConntrackMonitor(getHandler(), getSharedLog(), consumer);
+        /** Get conntrack monitor running on the given handler. */
+        @NonNull public ConntrackMonitor getConntrackMonitor(@NonNull Handler handler,
+                ConntrackEventConsumer consumer) {
+            return new ConntrackMonitor(handler, getSharedLog(), consumer);
+        }
+
+        /**
+         * Get the handler the conntrack events are parsed and processed on. This is a new
+         * dedicated reader thread if enabled by the configuration, or #getHandler otherwise.
+         * The handler must be released with #releaseConntrackHandler once no longer used. Only
+         * called when monitoring starts, so that the reader thread only exists while monitoring.
+         */
+        @NonNull public Handler getConntrackHandler() {
+            final TetheringConfiguration config = getTetherConfig();
+            if (config == null || !config.isConntrackReaderThreadEnabled()) return getHandler();
+
+            final HandlerThread thread = new HandlerThread(TAG + "-conntrack");
+            thread.start();
+            return new Handler(thread.getLooper());
+        }
+
+        /** Release a handler returned by #getConntrackHandler, quitting its reader thread. */
+        public void releaseConntrackHandler(@NonNull Handler handler) {
+            if (handler.getLooper() != getHandler().getLooper()) {
+                handler.getLooper().quitSafely();
+            }
         }
 
         /** Get interface information for a given interface. */
@@ -255,6 +423,19 @@ public class BpfCoordinator {
             return InterfaceParams.getByName(ifName);
         }
 
+        /**
+         * Get the time since boot, including deep sleep. This is the clock of the lastUsed field
+         * which the BPF programs write with bpf_ktime_get_boot_ns().
+         */
+        public long elapsedRealtimeNanos() {
+            return SystemClock.elapsedRealtimeNanos();
+        }
+
+        /** Send a netfilter netlink message to the kernel, such as a conntrack update. */
+        public void sendNetfilterMessage(@NonNull byte[] msg) throws ErrnoException {
+            NetlinkSocket.sendOneShotKernelMessage(NETLINK_NETFILTER, msg);
+        }
+
         /**
          * Check OS Build at least S.
          *
@@ -314,18 +495,71 @@ public class BpfCoordinator {
             }
         }
 
-        /** Get stats BPF map. */
+        /** Get downstream64 BPF map. */
+        @Nullable public BpfMap<TetherDownstream64Key, TetherDownstream64Value>
+                getBpfDownstream64Map() {
+            if (!isAtLeastS()) return null;
+            try {
+                return new BpfMap<>(TETHER_DOWNSTREAM64_MAP_PATH, BpfMap.BPF_F_RDWR,
+                        TetherDownstream64Key.class, TetherDownstream64Value.class);
+            } catch (ErrnoException e) {
+                Log.e(TAG, "Cannot create downstream64 map: " + e);
+                return null;
+            }
+        }
+
+        /**
+         * Get the IPv6 address clatd translates the IPv4 traffic from, for the clat interface
+         * stacked on the given upstream interface. Return null if there is none.
+         */
+        @Nullable public Inet6Address getClatIpv6Address(@NonNull String upstreamIface) {
+            try {
+                return findClatIpv6Address(
+                        Files.readAllLines(Paths.get(PROC_NET_ANYCAST6_PATH)), upstreamIface);
+            } catch (IOException e) {
+                Log.e(TAG, "Cannot read " + PROC_NET_ANYCAST6_PATH + ": " + e);
+                return null;
+            }
+        }
+
+        /** Get stats BPF map. The map is per-cpu, the values read are summed over all cpus. */
         @Nullable public BpfMap<TetherStatsKey, TetherStatsValue> getBpfStatsMap() {
             if (!isAtLeastS()) return null;
             try {
-                return new BpfMap<>(TETHER_STATS_MAP_PATH,
-                    BpfMap.BPF_F_RDWR, TetherStatsKey.class, TetherStatsValue.class);
+                return new BpfMap<>(TETHER_STATS_MAP_PATH, BpfMap.BPF_F_RDWR,
+                        TetherStatsKey.class, TetherStatsValue.class, TetherStatsValue::sum);
             } catch (ErrnoException e) {
                 Log.e(TAG, "Cannot create stats map: " + e);
                 return null;
             }
         }
 
+        /** Get client stats BPF map. */
+        @Nullable public BpfMap<TetherClientStatsKey, TetherClientStatsValue>
+                getBpfClientStatsMap() {
+            if (!isAtLeastS()) return null;
+            try {
+                return new BpfMap<>(TETHER_CLIENT_STATS_MAP_PATH, BpfMap.BPF_F_RDWR,
+                        TetherClientStatsKey.class, TetherClientStatsValue.class);
+            } catch (ErrnoException e) {
+                Log.e(TAG, "Cannot create client stats map: " + e);
+                return null;
+            }
+        }
+
+        /** Get client rate limit BPF map. */
+        @Nullable public BpfMap<TetherClientRateLimitKey, TetherClientRateLimitValue>
+                getBpfClientRateLimitMap() {
+            if (!isAtLeastS()) return null;
+            try {
+                return new BpfMap<>(TETHER_CLIENT_RATE_LIMIT_MAP_PATH, BpfMap.BPF_F_RDWR,
+                        TetherClientRateLimitKey.class, TetherClientRateLimitValue.class);
+            } catch (ErrnoException e) {
+                Log.e(TAG, "Cannot create client rate limit map: " + e);
+                return null;
+            }
+        }
+
         /** Get limit BPF map. */
         @Nullable public BpfMap<TetherLimitKey, TetherLimitValue> getBpfLimitMap() {
             if (!isAtLeastS()) return null;
@@ -337,6 +571,45 @@ public class BpfCoordinator {
                 return null;
             }
         }
+
+        /** Get quota BPF map, holding the bytes reserved from the limit by all cpus. */
+        @Nullable public BpfMap<TetherQuotaKey, TetherQuotaValue> getBpfQuotaMap() {
+            if (!isAtLeastS()) return null;
+            try {
+                return new BpfMap<>(TETHER_QUOTA_MAP_PATH,
+                    BpfMap.BPF_F_RDWR, TetherQuotaKey.class, TetherQuotaValue.class);
+            } catch (ErrnoException e) {
+                Log.e(TAG, "Cannot create quota map: " + e);
+                return null;
+            }
+        }
+
+        /**
+         * Get quota cache BPF map, holding the reserved bytes not used yet by each cpu. The map
+         * is per-cpu, the values read are summed over all cpus.
+         */
+        @Nullable public BpfMap<TetherQuotaKey, TetherQuotaValue> getBpfQuotaCacheMap() {
+            if (!isAtLeastS()) return null;
+            try {
+                return new BpfMap<>(TETHER_QUOTA_CACHE_MAP_PATH, BpfMap.BPF_F_RDWR,
+                        TetherQuotaKey.class, TetherQuotaValue.class, TetherQuotaValue::sum);
+            } catch (ErrnoException e) {
+                Log.e(TAG, "Cannot create quota cache map: " + e);
+                return null;
+            }
+        }
+
+        /** Get XDP redirect device BPF map. */
+        @Nullable public BpfMap<TetherDevKey, TetherDevValue> getBpfXdpDevMap() {
+            if (!isAtLeastS()) return null;
+            try {
+                return new BpfMap<>(TETHER_XDP_DEVMAP_PATH,
+                    BpfMap.BPF_F_RDWR, TetherDevKey.class, TetherDevValue.class);
+            } catch (ErrnoException e) {
+                Log.e(TAG, "Cannot create XDP devmap: " + e);
+                return null;
+            }
+        }
     }
 
     @VisibleForTesting
@@ -346,13 +619,15 @@ public class BpfCoordinator {
         mNetd = mDeps.getNetd();
         mLog = mDeps.getSharedLog().forSubComponent(TAG);
         mIsBpfEnabled = isBpfEnabled();
+        mIsClientStatsEnabled = isClientStatsEnabled();
+        mIsClientRateLimitEnabled = isClientRateLimitEnabled();
 
         // The conntrack consummer needs to be initialized in BpfCoordinator constructor because it
         // have to access the data members of BpfCoordinator which is not a static class. The
-        // consumer object is also needed for initializing the conntrack monitor which may be
-        // mocked for testing.
+        // conntrack monitor, which may be mocked for testing, and its reader thread are only
+        // created when monitoring starts. See #startMonitoring.
+        mConntrackHandler = mHandler;
         mBpfConntrackEventConsumer = new BpfConntrackEventConsumer();
-        mConntrackMonitor = mDeps.getConntrackMonitor(mBpfConntrackEventConsumer);
 
         BpfTetherStatsProvider provider = new BpfTetherStatsProvider();
         try {
@@ -387,6 +662,7 @@ public class BpfCoordinator {
         }
 
         mPollingStarted = true;
+        mPollingInterval.reset();
         maybeSchedulePollingStats();
 
         mLog.i("Polling started");
@@ -408,8 +684,12 @@ public class BpfCoordinator {
             mHandler.removeCallbacks(mScheduledPollingTask);
         }
         updateForwardedStats();
+        mPollingInterval.onPollingStopped();
         mPollingStarted = false;
 
+        // Forget the traffic of the clients which are not counted anymore.
+        mClientStats.keySet().removeIf(mac -> !isClientHeld(mac));
+
         mLog.i("Polling stopped");
     }
 
@@ -450,7 +730,14 @@ public class BpfCoordinator {
         }
 
         if (mMonitoringIpServers.isEmpty()) {
-            mConntrackMonitor.start();
+            final Handler conntrackHandler = mDeps.getConntrackHandler();
+            mConntrackHandler = conntrackHandler;
+            // The events are tagged with the handler of this session, which may still deliver a
+            // few events after the next session started.
+            mConntrackMonitor = mDeps.getConntrackMonitor(conntrackHandler,
+                    e -> mBpfConntrackEventConsumer.accept(e, conntrackHandler));
+            runOnConntrackHandler(conntrackHandler, mConntrackMonitor::start);
+            scheduleIpv4RuleSweep();
             mLog.i("Monitoring started");
         }
 
@@ -469,10 +756,42 @@ public class BpfCoordinator {
 
         if (!mMonitoringIpServers.isEmpty()) return;
 
-        mConntrackMonitor.stop();
+        final ConntrackMonitor monitor = mConntrackMonitor;
+        final Handler conntrackHandler = mConntrackHandler;
+        mConntrackMonitor = null;
+        mHandler.removeCallbacks(mScheduledIpv4RuleSweep);
+        if (conntrackHandler.getLooper() == mHandler.getLooper()) {
+            // Once stopped, the monitor no longer delivers events to the consumer. Do not leave
+            // queued rule changes, especially removals, behind.
+            monitor.stop();
+            mBpfConntrackEventConsumer.flush();
+        } else {
+            // Stop the monitor on its reader thread, queue the events received before for
+            // writing, and quit the thread, without waiting for it on the handler thread.
+            conntrackHandler.post(() -> {
+                monitor.stop();
+                mBpfConntrackEventConsumer.buildBatch(conntrackHandler);
+                mDeps.releaseConntrackHandler(conntrackHandler);
+                mHandler.post(() -> {
+                    // Unless the next monitoring session already started.
+                    if (mConntrackHandler == conntrackHandler) mConntrackHandler = mHandler;
+                });
+            });
+        }
         mLog.i("Monitoring stopped");
     }
 
+    // Run the given task on the conntrack handler, since the conntrack monitor must only be
+    // started and stopped on the thread it reads the events on. The task runs right away if the
+    // conntrack handler is the handler of this class, and is posted otherwise.
+    private void runOnConntrackHandler(@NonNull Handler conntrackHandler, @NonNull Runnable task) {
+        if (conntrackHandler.getLooper() == mHandler.getLooper()) {
+            task.run();
+        } else {
+            conntrackHandler.post(task);
+        }
+    }
+
     /**
      * Add forwarding rule. After adding the first rule on a given upstream, must add the data
      * limit on the given upstream.
@@ -493,22 +812,15 @@ public class BpfCoordinator {
 
         // When the first rule is added to an upstream, setup upstream forwarding and data limit.
         maybeSetLimit(rule.upstreamIfindex);
+        maybeResetPollingBackoff();
 
-        if (!isAnyRuleFromDownstreamToUpstream(rule.downstreamIfindex, rule.upstreamIfindex)) {
-            final int downstream = rule.downstreamIfindex;
-            final int upstream = rule.upstreamIfindex;
-            // TODO: support upstream forwarding on non-point-to-point interfaces.
-            // TODO: get the MTU from LinkProperties and update the rules when it changes.
-            if (!mBpfCoordinatorShim.startUpstreamIpv6Forwarding(downstream, upstream, rule.srcMac,
-                    NULL_MAC_ADDRESS, NULL_MAC_ADDRESS, NetworkStackConstants.ETHER_MTU)) {
-                mLog.e("Failed to enable upstream IPv6 forwarding from "
-                        + mInterfaceNames.get(downstream) + " to " + mInterfaceNames.get(upstream));
-            }
-        }
+        maybeStartUpstreamIpv6Forwarding(rule);
 
         // Must update the adding rule after calling #isAnyRuleOnUpstream because it needs to
         // check if it is about adding a first rule for a given upstream.
-        rules.put(rule.address, rule);
+        final Ipv6ForwardingRule oldRule = rules.put(rule.address, rule);
+        if (oldRule != null) removeFromRuleIndexes(oldRule);
+        addToRuleIndexes(rule);
     }
 
     /**
@@ -529,26 +841,19 @@ public class BpfCoordinator {
         // the last rule is removed for a given upstream. If no rule is removed, return early.
         // Avoid unnecessary work on a non-existent rule which may have never been added or
         // removed already.
-        if (rules.remove(rule.address) == null) return;
+        final Ipv6ForwardingRule removed = rules.remove(rule.address);
+        if (removed == null) return;
+        removeFromRuleIndexes(removed);
 
         // Remove the downstream entry if it has no more rule.
         if (rules.isEmpty()) {
             mIpv6ForwardingRules.remove(ipServer);
         }
 
-        // If no more rules between this upstream and downstream, stop upstream forwarding.
-        if (!isAnyRuleFromDownstreamToUpstream(rule.downstreamIfindex, rule.upstreamIfindex)) {
-            final int downstream = rule.downstreamIfindex;
-            final int upstream = rule.upstreamIfindex;
-            if (!mBpfCoordinatorShim.stopUpstreamIpv6Forwarding(downstream, upstream,
-                    rule.srcMac)) {
-                mLog.e("Failed to disable upstream IPv6 forwarding from "
-                        + mInterfaceNames.get(downstream) + " to " + mInterfaceNames.get(upstream));
-            }
-        }
+        maybeStopUpstreamIpv6Forwarding(removed);
 
         // Do cleanup functionality if there is no more rule on the given upstream.
-        maybeClearLimit(rule.upstreamIfindex);
+        maybeClearLimit(removed.upstreamIfindex);
     }
 
     /**
@@ -562,9 +867,13 @@ public class BpfCoordinator {
                 ipServer);
         if (rules == null) return;
 
-        // Need to build a rule list because the rule map may be changed in the iteration.
-        for (final Ipv6ForwardingRule rule : new ArrayList<Ipv6ForwardingRule>(rules.values())) {
-            tetherOffloadRuleRemove(ipServer, rule);
+        final SparseBooleanArray oldUpstreams = new SparseBooleanArray();
+        removeRulesInPlace(rules, oldUpstreams);
+        if (rules.isEmpty()) mIpv6ForwardingRules.remove(ipServer);
+
+        // Do cleanup functionality on the upstreams which have no more rules.
+        for (int i = 0; i < oldUpstreams.size(); i++) {
+            maybeClearLimit(oldUpstreams.keyAt(i));
         }
     }
 
@@ -579,24 +888,69 @@ public class BpfCoordinator {
                 ipServer);
         if (rules == null) return;
 
-        // Need to build a rule list because the rule map may be changed in the iteration.
         // First remove all the old rules, then add all the new rules. This is because the upstream
-        // forwarding code in tetherOffloadRuleAdd cannot support rules on two upstreams at the
-        // same time. Deleting the rules first ensures that upstream forwarding is disabled on the
-        // old upstream when the last rule is removed from it, and re-enabled on the new upstream
-        // when the first rule is added to it.
+        // forwarding code cannot support rules on two upstreams at the same time. Deleting the
+        // rules first ensures that upstream forwarding is disabled on the old upstream when the
+        // last rule is removed from it, and re-enabled on the new upstream when the first rule is
+        // added to it.
+        // The rules are migrated in place: the old rules stay in the map, out of the indexes,
+        // until they are replaced by the new rules. This avoids copying the rules, and is safe
+        // because the map uses the same key for the old and the new rule.
         // TODO: Once the IPv6 client processing code has moved from IpServer to BpfCoordinator, do
         // something smarter.
-        final ArrayList<Ipv6ForwardingRule> rulesCopy = new ArrayList<>(rules.values());
-        for (final Ipv6ForwardingRule rule : rulesCopy) {
-            // Remove the old rule before adding the new one because the map uses the same key for
-            // both rules. Reversing the processing order causes that the new rule is removed as
-            // unexpected.
-            // TODO: Add new rule first to reduce the latency which has no rule.
-            tetherOffloadRuleRemove(ipServer, rule);
+        // TODO: Add new rule first to reduce the latency which has no rule.
+        final SparseBooleanArray oldUpstreams = new SparseBooleanArray();
+        for (final Ipv6ForwardingRule rule : rules.values()) {
+            if (!mBpfCoordinatorShim.tetherOffloadRuleRemove(rule)) {
+                mLog.e("Failed to remove rule " + rule.address + " before updating upstream");
+            }
+            removeFromRuleIndexes(rule);
+            maybeStopUpstreamIpv6Forwarding(rule);
+            oldUpstreams.put(rule.upstreamIfindex, true);
+        }
+        for (int i = 0; i < oldUpstreams.size(); i++) {
+            maybeClearLimit(oldUpstreams.keyAt(i));
+        }
+
+        final Iterator<Map.Entry<Inet6Address, Ipv6ForwardingRule>> it =
+                rules.entrySet().iterator();
+        while (it.hasNext()) {
+            final Map.Entry<Inet6Address, Ipv6ForwardingRule> entry = it.next();
+            final Ipv6ForwardingRule rule = entry.getValue().onNewUpstream(newUpstreamIfindex);
+            if (!mBpfCoordinatorShim.tetherOffloadRuleAdd(rule)) {
+                it.remove();
+                continue;
+            }
+
+            // When the first rule is added to an upstream, setup upstream forwarding and data
+            // limit. See #tetherOffloadRuleAdd.
+            maybeSetLimit(rule.upstreamIfindex);
+            maybeStartUpstreamIpv6Forwarding(rule);
+            entry.setValue(rule);
+            addToRuleIndexes(rule);
         }
-        for (final Ipv6ForwardingRule rule : rulesCopy) {
-            tetherOffloadRuleAdd(ipServer, rule.onNewUpstream(newUpstreamIfindex));
+
+        if (rules.isEmpty()) {
+            mIpv6ForwardingRules.remove(ipServer);
+        } else {
+            maybeResetPollingBackoff();
+        }
+    }
+
+    // Remove the given rules from the BPF maps and from the indexes, stopping upstream forwarding
+    // on the pairs which have no more rules. The interface indexes of the upstreams which lost
+    // rules are added to |oldUpstreams|. The rules which can't be removed are kept.
+    private void removeRulesInPlace(@NonNull LinkedHashMap<Inet6Address, Ipv6ForwardingRule> rules,
+            @NonNull SparseBooleanArray oldUpstreams) {
+        final Iterator<Ipv6ForwardingRule> it = rules.values().iterator();
+        while (it.hasNext()) {
+            final Ipv6ForwardingRule rule = it.next();
+            if (!mBpfCoordinatorShim.tetherOffloadRuleRemove(rule)) continue;
+
+            it.remove();
+            removeFromRuleIndexes(rule);
+            maybeStopUpstreamIpv6Forwarding(rule);
+            oldUpstreams.put(rule.upstreamIfindex, true);
         }
     }
 
@@ -635,7 +989,12 @@ public class BpfCoordinator {
         }
 
         HashMap<Inet4Address, ClientInfo> clients = mTetherClients.get(ipServer);
-        clients.put(client.clientAddress, client);
+        final ClientInfo old = clients.put(client.clientAddress, client);
+        final ClientInfo replaced = mConntrackFilter.clients.put(client.clientAddress, client);
+        if (replaced != null && !replaced.equals(client)) mConntrackFilter.invalidate();
+
+        holdClient(client.downstreamIfindex, client.clientMac);
+        if (old != null) releaseClient(old.downstreamIfindex, old.clientMac);
     }
 
     /**
@@ -650,7 +1009,16 @@ public class BpfCoordinator {
 
         // If no rule is removed, return early. Avoid unnecessary work on a non-existent rule
         // which may have never been added or removed already.
-        if (clients.remove(client.clientAddress) == null) return;
+        final ClientInfo removed = clients.remove(client.clientAddress);
+        if (removed == null) return;
+        releaseClient(removed.downstreamIfindex, removed.clientMac);
+
+        // Only remove the index entry if it still refers to the removed client. The address may
+        // have been reassigned to a client of another downstream in the meantime.
+        if (mConntrackFilter.clients.remove(client.clientAddress, removed)) {
+            maybeReindexClient(client.clientAddress);
+            mConntrackFilter.invalidate();
+        }
 
         // Remove the downstream entry if it has no more rule.
         if (clients.isEmpty()) {
@@ -658,22 +1026,36 @@ public class BpfCoordinator {
         }
     }
 
+    // Should rarely happen because the client address is unique. If another downstream still has
+    // a client with the same address, fall back to it as the linear lookup used to.
+    private void maybeReindexClient(@NonNull Inet4Address clientAddress) {
+        for (HashMap<Inet4Address, ClientInfo> clients : mTetherClients.values()) {
+            final ClientInfo client = clients.get(clientAddress);
+            if (client != null) {
+                mConntrackFilter.clients.put(clientAddress, client);
+                return;
+            }
+        }
+    }
+
     /**
      * Call when UpstreamNetworkState may be changed.
      * If upstream has ipv4 for tethering, update this new UpstreamNetworkState to map. The
      * upstream interface index and its address mapping is prepared for building IPv4
      * offload rule.
      *
+     * If the upstream is using 464xlat, the clat interface is mapped to the upstream interface
+     * instead, so that the IPv4 flows translated by clat are offloaded to the IPv6 upstream.
+     *
      * TODO: Delete the unused upstream interface mapping.
      * TODO: Support ether ip upstream interface.
      */
     public void addUpstreamIfindexToMap(LinkProperties lp) {
         if (!mPollingStarted) return;
+        if (lp == null || lp.getInterfaceName() == null) return;
 
-        // This will not work on a network that is using 464xlat because hasIpv4Address will not be
-        // true.
-        // TODO: need to consider 464xlat.
-        if (lp == null || !lp.hasIpv4Address()) return;
+        updateClatUpstream(lp);
+        if (!lp.hasIpv4Address()) return;
 
         // Support raw ip upstream interface only.
         final InterfaceParams params = mDeps.getInterfaceParams(lp.getInterfaceName());
@@ -685,10 +1067,100 @@ public class BpfCoordinator {
                 Inet4Address i4addr = (Inet4Address) addr;
                 if (!i4addr.isAnyLocalAddress() && !i4addr.isLinkLocalAddress()
                         && !i4addr.isLoopbackAddress() && !i4addr.isMulticastAddress()) {
-                    mIpv4UpstreamIndices.put(i4addr, params.index);
+                    final Integer old = mConntrackFilter.upstreamIndices.put(i4addr,
+                            params.index);
+                    if (old != null && old != params.index) mConntrackFilter.invalidate();
+                }
+            }
+        }
+    }
+
+    // Replace the 464xlat upstream with the one of the clat interface stacked on the given
+    // upstream, if any.
+    private void updateClatUpstream(@NonNull LinkProperties lp) {
+        final String clatIface = CLAT_IFACE_PREFIX + lp.getInterfaceName();
+        final ClatUpstreamInfo info = makeClatUpstreamInfo(lp, clatIface);
+        final ClatUpstreamInfo old = mConntrackFilter.clatUpstream;
+        if (Objects.equals(old, info)) return;
+
+        mConntrackFilter.clatUpstream = info;
+        if (old != null) mConntrackFilter.invalidate();
+    }
+
+    @Nullable
+    private ClatUpstreamInfo makeClatUpstreamInfo(@NonNull LinkProperties lp,
+            @NonNull String clatIface) {
+        final IpPrefix nat64Prefix = lp.getNat64Prefix();
+        if (nat64Prefix == null || nat64Prefix.getPrefixLength() != NAT64_PREFIX_LENGTH) {
+            return null;
+        }
+
+        Inet4Address clatIpv4 = null;
+        for (LinkProperties stacked : lp.getStackedLinks()) {
+            if (!clatIface.equals(stacked.getInterfaceName())) continue;
+            for (LinkAddress la : stacked.getLinkAddresses()) {
+                if (la.getAddress() instanceof Inet4Address) {
+                    clatIpv4 = (Inet4Address) la.getAddress();
+                }
+            }
+        }
+        if (clatIpv4 == null) return null;
+
+        // Support raw ip upstream interface only.
+        final InterfaceParams params = mDeps.getInterfaceParams(lp.getInterfaceName());
+        if (params == null || params.hasMacAddress) return null;
+
+        final Inet6Address clatIpv6 = mDeps.getClatIpv6Address(lp.getInterfaceName());
+        if (clatIpv6 == null) return null;
+
+        return new ClatUpstreamInfo(clatIface, params.index, clatIpv4, clatIpv6, nat64Prefix);
+    }
+
+    /**
+     * Find the IPv6 address of clatd in the content of /proc/net/anycast6, whose lines hold the
+     * interface index, the interface name, the address in hex and the number of users.
+     *
+     * clatd joins a global unicast address of the upstream prefix as an anycast address. The
+     * subnet-router anycast addresses, whose interface identifier is zero, are skipped.
+     */
+    @VisibleForTesting
+    @Nullable
+    static Inet6Address findClatIpv6Address(@NonNull List<String> lines,
+            @NonNull String upstreamIface) {
+        for (String line : lines) {
+            final String[] fields = line.trim().split("\\s+");
+            if (fields.length < 3 || !upstreamIface.equals(fields[1])
+                    || fields[2].length() != 32) {
+                continue;
+            }
+
+            final byte[] addr = new byte[16];
+            try {
+                for (int i = 0; i < 16; i++) {
+                    addr[i] = (byte) Integer.parseInt(fields[2].substring(2 * i, 2 * i + 2), 16);
                 }
+            } catch (NumberFormatException e) {
+                continue;
+            }
+            boolean zeroIid = true;
+            for (int i = 8; i < 16; i++) {
+                if (addr[i] != 0) zeroIid = false;
+            }
+            if (zeroIid) continue;
+
+            final Inet6Address ia6;
+            try {
+                ia6 = (Inet6Address) InetAddress.getByAddress(addr);
+            } catch (UnknownHostException | ClassCastException e) {
+                continue;
+            }
+            if (ia6.isLinkLocalAddress() || ia6.isMulticastAddress()
+                    || ia6.isLoopbackAddress() || ia6.isSiteLocalAddress()) {
+                continue;
             }
+            return ia6;
         }
+        return null;
     }
 
     /**
@@ -703,9 +1175,11 @@ public class BpfCoordinator {
         forwardingPairAdd(intIface, extIface);
 
         mBpfCoordinatorShim.attachProgram(intIface, UPSTREAM);
+        maybeAttachXdpProgram(intIface, UPSTREAM);
         // Attach if the upstream is the first time to be used in a forwarding pair.
         if (firstDownstreamForThisUpstream) {
             mBpfCoordinatorShim.attachProgram(extIface, DOWNSTREAM);
+            maybeAttachXdpProgram(extIface, DOWNSTREAM);
         }
     }
 
@@ -717,9 +1191,11 @@ public class BpfCoordinator {
 
         // Detaching program may fail because the interface has been removed already.
         mBpfCoordinatorShim.detachProgram(intIface);
+        maybeDetachXdpProgram(intIface);
         // Detach if no more forwarding pair is using the upstream.
         if (!isAnyForwardingPairOnUpstream(extIface)) {
             mBpfCoordinatorShim.detachProgram(extIface);
+            maybeDetachXdpProgram(extIface);
         }
     }
 
@@ -742,8 +1218,13 @@ public class BpfCoordinator {
             pw.println("Stats provider " + (mStatsProvider != null
                     ? "registered" : "not registered"));
             pw.println("Upstream quota: " + mInterfaceQuotas.toString());
-            pw.println("Polling interval: " + getPollingInterval() + " ms");
+            pw.println("Polling interval: " + getPollingInterval() + " ms, next poll after "
+                    + mPollingInterval.getLastDelayMs() + " ms"
+                    + (mPollingInterval.isBackedOff() ? " (idle)" : ""));
             pw.println("Bpf shim: " + mBpfCoordinatorShim.toString());
+            pw.println("XDP interfaces (native mode): " + mXdpInterfaces + ", redirect devices: "
+                    + mXdpDevices.keySet());
+            pw.println("Clat upstream: " + mConntrackFilter.clatUpstream);
 
             pw.println("Forwarding stats:");
             pw.increaseIndent();
@@ -754,17 +1235,36 @@ public class BpfCoordinator {
             }
             pw.decreaseIndent();
 
+            if (mIsClientStatsEnabled) {
+                pw.println("Client stats:");
+                pw.increaseIndent();
+                dumpClientStats(pw);
+                pw.decreaseIndent();
+            }
+
+            if (mIsClientRateLimitEnabled) {
+                pw.println("Client rate limits:");
+                pw.increaseIndent();
+                dumpClientRateLimits(pw);
+                pw.decreaseIndent();
+            }
+
             pw.println("Forwarding rules:");
             pw.increaseIndent();
             dumpIpv6UpstreamRules(pw);
             dumpIpv6ForwardingRules(pw);
             dumpIpv4ForwardingRules(pw);
+            dumpIpv464ForwardingRules(pw);
             pw.decreaseIndent();
 
             pw.println();
             pw.println("Forwarding counters:");
             pw.increaseIndent();
             dumpCounters(pw);
+            mBpfConntrackEventConsumer.dump(pw);
+            pw.println(String.format("IPv4 rule sweeps: %d conntrack timeouts updated (%d errors),"
+                    + " %d idle flows expired, %d stale rules evicted", mConntrackTimeoutUpdates,
+                    mConntrackTimeoutUpdateErrors, mExpiredIpv4FlowCount, mEvictedIpv4RuleCount));
             pw.decreaseIndent();
 
             dumpDone.open();
@@ -783,6 +1283,28 @@ public class BpfCoordinator {
         }
     }
 
+    private void dumpClientStats(@NonNull IndentingPrintWriter pw) {
+        if (mClientStats.isEmpty()) {
+            pw.println("<empty>");
+            return;
+        }
+        for (Map.Entry<MacAddress, ForwardedStats> entry : mClientStats.entrySet()) {
+            pw.println(entry.getKey() + (isClientHeld(entry.getKey()) ? "" : " (gone)")
+                    + " - " + entry.getValue());
+        }
+    }
+
+    private void dumpClientRateLimits(@NonNull IndentingPrintWriter pw) {
+        if (mClientRateLimits.isEmpty()) {
+            pw.println("<empty>");
+            return;
+        }
+        for (Map.Entry<MacAddress, ClientRateLimit> entry : mClientRateLimits.entrySet()) {
+            pw.println(entry.getKey() + (isClientHeld(entry.getKey()) ? "" : " (not connected)")
+                    + " - " + entry.getValue());
+        }
+    }
+
     private void dumpIpv6ForwardingRules(@NonNull IndentingPrintWriter pw) {
         if (mIpv6ForwardingRules.size() == 0) {
             pw.println("No IPv6 rules");
@@ -865,6 +1387,42 @@ public class BpfCoordinator {
         pw.decreaseIndent();
     }
 
+    private String ipv464RuleToString(TetherDownstream64Key key,
+            TetherDownstream64Value value) {
+        final String src6, dst6, src4, dst4;
+        try {
+            src6 = InetAddress.getByAddress(key.src6).getHostAddress();
+            dst6 = InetAddress.getByAddress(key.dst6).getHostAddress();
+            src4 = InetAddress.getByAddress(value.src4).getHostAddress();
+            dst4 = InetAddress.getByAddress(value.dst4).getHostAddress();
+        } catch (UnknownHostException impossible) {
+            throw new AssertionError("Invalid IP address length!");
+        }
+        return String.format("%d(%s) [%s]:%d -> [%s]:%d -> %d(%s) %s:%d -> %s:%d",
+                key.iif, getIfName(key.iif), src6, key.srcPort, dst6, key.dstPort,
+                value.oif, getIfName(value.oif), src4, value.srcPort, dst4, value.outPort);
+    }
+
+    private void dumpIpv464ForwardingRules(IndentingPrintWriter pw) {
+        try (BpfMap<TetherDownstream64Key, TetherDownstream64Value> map =
+                mDeps.getBpfDownstream64Map()) {
+            if (map == null) {
+                pw.println("No 464xlat support");
+                return;
+            }
+            if (map.isEmpty()) {
+                pw.println("No 464xlat rules");
+                return;
+            }
+            pw.println("464xlat: iif(iface) src6 -> dst6 -> oif(iface) src4 -> dst4");
+            pw.increaseIndent();
+            map.forEach((k, v) -> pw.println(ipv464RuleToString(k, v)));
+        } catch (ErrnoException e) {
+            pw.println("Error dumping 464xlat map: " + e);
+        }
+        pw.decreaseIndent();
+    }
+
     /**
      * Simple struct that only contains a u32. Must be public because Struct needs access to it.
      * TODO: make this a public inner class of Struct so anyone can use it as, e.g., Struct.U32?
@@ -874,13 +1432,21 @@ public class BpfCoordinator {
         public long val;
     }
 
+    private static U32Struct sumCounters(@NonNull U32Struct a, @NonNull U32Struct b) {
+        final U32Struct sum = new U32Struct();
+        sum.val = a.val + b.val;
+        return sum;
+    }
+
     private void dumpCounters(@NonNull IndentingPrintWriter pw) {
         if (!mDeps.isAtLeastS()) {
             pw.println("No counter support");
             return;
         }
+        // The counters are per-cpu, each is the sum of the counts of all cpus.
         try (BpfMap<U32Struct, U32Struct> map = new BpfMap<>(TETHER_ERROR_MAP_PATH,
-                BpfMap.BPF_F_RDONLY, U32Struct.class, U32Struct.class)) {
+                BpfMap.BPF_F_RDONLY, U32Struct.class, U32Struct.class,
+                BpfCoordinator::sumCounters)) {
 
             map.forEach((k, v) -> {
                 String counterName;
@@ -1038,6 +1604,31 @@ public class BpfCoordinator {
         }
     }
 
+    // A client with entries in the per-client BPF maps. See #mClientEntries.
+    private static class ClientEntry {
+        // The number of IPv4 addresses and IPv6 forwarding rules holding the client.
+        public int holders;
+        // The counters of the client stats entry when it was last read.
+        @NonNull
+        public ForwardedStats lastStats = new ForwardedStats();
+    }
+
+    // A token bucket rate limit, applied in each direction. See #setClientRateLimit.
+    private static class ClientRateLimit {
+        public final long bytesPerSecond;
+        public final long burstBytes;
+
+        ClientRateLimit(long bytesPerSecond, long burstBytes) {
+            this.bytesPerSecond = bytesPerSecond;
+            this.burstBytes = burstBytes;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%d bytes/s, burst %d bytes", bytesPerSecond, burstBytes);
+        }
+    }
+
     /** Tethering client information class. */
     public static class ClientInfo {
         public final int downstreamIfindex;
@@ -1049,6 +1640,13 @@ public class BpfCoordinator {
         @NonNull
         public final MacAddress clientMac;
 
+        // Raw MAC addresses used for encoding the IPv4 rules without allocating for each
+        // conntrack event. See BpfConntrackEventConsumer.
+        @NonNull
+        private final byte[] mDownstreamMacBytes;
+        @NonNull
+        private final byte[] mClientMacBytes;
+
         public ClientInfo(int downstreamIfindex,
                 @NonNull MacAddress downstreamMac, @NonNull Inet4Address clientAddress,
                 @NonNull MacAddress clientMac) {
@@ -1056,6 +1654,8 @@ public class BpfCoordinator {
             this.downstreamMac = downstreamMac;
             this.clientAddress = clientAddress;
             this.clientMac = clientMac;
+            mDownstreamMacBytes = downstreamMac.toByteArray();
+            mClientMacBytes = clientMac.toByteArray();
         }
 
         @Override
@@ -1101,7 +1701,10 @@ public class BpfCoordinator {
 
         @Override
         public void onSetAlert(long quotaBytes) {
-            mHandler.post(() -> updateAlertQuota(quotaBytes));
+            mHandler.post(() -> {
+                updateAlertQuota(quotaBytes);
+                maybeResetPollingBackoff();
+            });
         }
 
         @Override
@@ -1146,101 +1749,888 @@ public class BpfCoordinator {
         }
     }
 
-    @Nullable
-    private ClientInfo getClientInfo(@NonNull Inet4Address clientAddress) {
-        for (HashMap<Inet4Address, ClientInfo> clients : mTetherClients.values()) {
-            for (ClientInfo client : clients.values()) {
-                if (clientAddress.equals(client.clientAddress)) {
-                    return client;
-                }
-            }
+    // The 5-tuple of the original direction of a conntrack entry, which identifies the flow of
+    // the events coalesced by BpfConntrackEventConsumer. Mutable so that the events can be looked
+    // up and queued without allocating. A key must not be modified while it is in a map or set.
+    private static final class ConntrackFlowKey {
+        public short protoNum;
+        public Inet4Address srcIp;
+        public int srcPort;
+        public Inet4Address dstIp;
+        public int dstPort;
+
+        ConntrackFlowKey() {}
+
+        ConntrackFlowKey(short protoNum, @NonNull Inet4Address srcIp, int srcPort,
+                @NonNull Inet4Address dstIp, int dstPort) {
+            this.protoNum = protoNum;
+            this.srcIp = srcIp;
+            this.srcPort = srcPort;
+            this.dstIp = dstIp;
+            this.dstPort = dstPort;
         }
-        return null;
-    }
 
-    // Support raw ip only.
-    // TODO: add ether ip support.
-    // TODO: parse CTA_PROTOINFO of conntrack event in ConntrackMonitor. For TCP, only add rules
-    // while TCP status is established.
-    @VisibleForTesting
-    class BpfConntrackEventConsumer implements ConntrackEventConsumer {
         @NonNull
-        private Tether4Key makeTetherUpstream4Key(
-                @NonNull ConntrackEvent e, @NonNull ClientInfo c) {
-            return new Tether4Key(c.downstreamIfindex, c.downstreamMac,
-                    e.tupleOrig.protoNum, e.tupleOrig.srcIp.getAddress(),
-                    e.tupleOrig.dstIp.getAddress(), e.tupleOrig.srcPort, e.tupleOrig.dstPort);
+        ConntrackFlowKey set(@NonNull ConntrackEvent e) {
+            protoNum = e.tupleOrig.protoNum;
+            srcIp = e.tupleOrig.srcIp;
+            srcPort = e.tupleOrig.srcPort;
+            dstIp = e.tupleOrig.dstIp;
+            dstPort = e.tupleOrig.dstPort;
+            return this;
         }
 
-        @NonNull
-        private Tether4Key makeTetherDownstream4Key(
-                @NonNull ConntrackEvent e, @NonNull ClientInfo c, int upstreamIndex) {
-            return new Tether4Key(upstreamIndex, NULL_MAC_ADDRESS /* dstMac (rawip) */,
-                    e.tupleReply.protoNum, e.tupleReply.srcIp.getAddress(),
-                    e.tupleReply.dstIp.getAddress(), e.tupleReply.srcPort, e.tupleReply.dstPort);
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof ConntrackFlowKey)) return false;
+            final ConntrackFlowKey that = (ConntrackFlowKey) o;
+            return protoNum == that.protoNum && srcPort == that.srcPort
+                    && dstPort == that.dstPort && Objects.equals(srcIp, that.srcIp)
+                    && Objects.equals(dstIp, that.dstIp);
         }
 
-        @NonNull
-        private Tether4Value makeTetherUpstream4Value(@NonNull ConntrackEvent e,
-                int upstreamIndex) {
-            return new Tether4Value(upstreamIndex,
-                    NULL_MAC_ADDRESS /* ethDstMac (rawip) */,
-                    NULL_MAC_ADDRESS /* ethSrcMac (rawip) */, ETH_P_IP,
-                    NetworkStackConstants.ETHER_MTU, toIpv4MappedAddressBytes(e.tupleReply.dstIp),
-                    toIpv4MappedAddressBytes(e.tupleReply.srcIp), e.tupleReply.dstPort,
-                    e.tupleReply.srcPort, 0 /* lastUsed, filled by bpf prog only */);
+        // Not Objects#hash, which boxes the fields into a new array.
+        @Override
+        public int hashCode() {
+            int h = protoNum;
+            h = 31 * h + Objects.hashCode(srcIp);
+            h = 31 * h + srcPort;
+            h = 31 * h + Objects.hashCode(dstIp);
+            return 31 * h + dstPort;
         }
+    }
+
+    // The events of a flow which are waiting to be flushed. At most one rule removal, which must
+    // be applied first, and one rule addition are left once the events are coalesced. Recycled
+    // by BpfConntrackEventConsumer once applied, together with their key.
+    private static final class PendingConntrackEvents {
+        public final ConntrackFlowKey flow = new ConntrackFlowKey();
+        @Nullable
+        public ConntrackEvent deleteEvent;
+        @Nullable
+        public ConntrackEvent newEvent;
+    }
+
+    private static boolean isConntrackDeleteEvent(@NonNull ConntrackEvent e) {
+        return e.msgType == (NetlinkConstants.NFNL_SUBSYS_CTNETLINK << 8
+                | NetlinkConstants.IPCTNL_MSG_CT_DELETE);
+    }
 
+    // A clat interface stacked on a rawip upstream interface. Immutable.
+    private static final class ClatUpstreamInfo {
         @NonNull
-        private Tether4Value makeTetherDownstream4Value(@NonNull ConntrackEvent e,
-                @NonNull ClientInfo c, int upstreamIndex) {
-            return new Tether4Value(c.downstreamIfindex,
-                    c.clientMac, c.downstreamMac, ETH_P_IP, NetworkStackConstants.ETHER_MTU,
-                    toIpv4MappedAddressBytes(e.tupleOrig.dstIp),
-                    toIpv4MappedAddressBytes(e.tupleOrig.srcIp),
-                    e.tupleOrig.dstPort, e.tupleOrig.srcPort,
-                    0 /* lastUsed, filled by bpf prog only */);
-        }
+        public final String clatIface;
+        // The index of the IPv6 upstream interface the clat interface is stacked on.
+        public final int upstreamIndex;
+        @NonNull
+        public final Inet4Address clatIpv4;
+        @NonNull
+        public final Inet6Address clatIpv6;
+        @NonNull
+        public final IpPrefix nat64Prefix;
 
+        // Raw addresses used for encoding the rules without allocating for each conntrack event.
         @NonNull
-        private byte[] toIpv4MappedAddressBytes(Inet4Address ia4) {
-            final byte[] addr4 = ia4.getAddress();
-            final byte[] addr6 = new byte[16];
-            addr6[10] = (byte) 0xff;
-            addr6[11] = (byte) 0xff;
-            addr6[12] = addr4[0];
-            addr6[13] = addr4[1];
-            addr6[14] = addr4[2];
-            addr6[15] = addr4[3];
+        private final byte[] mClatIpv6Bytes;
+        @NonNull
+        private final byte[] mNat64PrefixBytes;
+
+        ClatUpstreamInfo(@NonNull String clatIface, int upstreamIndex,
+                @NonNull Inet4Address clatIpv4, @NonNull Inet6Address clatIpv6,
+                @NonNull IpPrefix nat64Prefix) {
+            this.clatIface = clatIface;
+            this.upstreamIndex = upstreamIndex;
+            this.clatIpv4 = clatIpv4;
+            this.clatIpv6 = clatIpv6;
+            this.nat64Prefix = nat64Prefix;
+            mClatIpv6Bytes = clatIpv6.getAddress();
+            mNat64PrefixBytes = nat64Prefix.getRawAddress();
+        }
+
+        // Fill a 16-byte buffer with the IPv6 address which the given IPv4 address is translated
+        // to. See RFC 6052.
+        @NonNull
+        byte[] toNat64AddressBytes(@NonNull Inet4Address ia4, @NonNull byte[] addr6) {
+            System.arraycopy(mNat64PrefixBytes, 0, addr6, 0, 12);
+            System.arraycopy(ia4.getAddress(), 0, addr6, 12, 4);
             return addr6;
         }
 
-        public void accept(ConntrackEvent e) {
-            final ClientInfo tetherClient = getClientInfo(e.tupleOrig.srcIp);
-            if (tetherClient == null) return;
-
-            final Integer upstreamIndex = mIpv4UpstreamIndices.get(e.tupleReply.dstIp);
-            if (upstreamIndex == null) return;
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof ClatUpstreamInfo)) return false;
+            final ClatUpstreamInfo that = (ClatUpstreamInfo) o;
+            return upstreamIndex == that.upstreamIndex && clatIface.equals(that.clatIface)
+                    && clatIpv4.equals(that.clatIpv4) && clatIpv6.equals(that.clatIpv6)
+                    && nat64Prefix.equals(that.nat64Prefix);
+        }
 
-            final Tether4Key upstream4Key = makeTetherUpstream4Key(e, tetherClient);
-            final Tether4Key downstream4Key = makeTetherDownstream4Key(e, tetherClient,
-                    upstreamIndex);
+        @Override
+        public int hashCode() {
+            return Objects.hash(clatIface, upstreamIndex, clatIpv4, clatIpv6, nat64Prefix);
+        }
 
-            if (e.msgType == (NetlinkConstants.NFNL_SUBSYS_CTNETLINK << 8
-                    | NetlinkConstants.IPCTNL_MSG_CT_DELETE)) {
-                mBpfCoordinatorShim.tetherOffloadRuleRemove(UPSTREAM, upstream4Key);
-                mBpfCoordinatorShim.tetherOffloadRuleRemove(DOWNSTREAM, downstream4Key);
-                maybeClearLimit(upstreamIndex);
-                return;
+        @Override
+        public String toString() {
+            return String.format("%s: upstream %d, %s <-> %s, nat64 prefix %s", clatIface,
+                    upstreamIndex, clatIpv4.getHostAddress(), clatIpv6.getHostAddress(),
+                    nat64Prefix);
+        }
+    }
+
+    /**
+     * The clients and upstreams which conntrack events are filtered and encoded with, indexed by
+     * IPv4 address. The entries are only written on the handler thread, one by one, and are read
+     * without locking on the conntrack handler.
+     */
+    private static final class ConntrackFilter {
+        // Index of all the IPv4 clients in mTetherClients by client address, used for looking up
+        // the client of each conntrack event without iterating all the downstreams. Must be
+        // updated together with mTetherClients. See #tetherOffloadClientAdd,
+        // #tetherOffloadClientRemove.
+        public final ConcurrentHashMap<Inet4Address, ClientInfo> clients =
+                new ConcurrentHashMap<>();
+
+        // Map of upstream interface IPv4 address to interface index.
+        // TODO: consider making the key to be unique because the upstream address is not unique.
+        // It is okay for now because there have only one upstream generally.
+        public final ConcurrentHashMap<Inet4Address, Integer> upstreamIndices =
+                new ConcurrentHashMap<>();
+
+        // The 464xlat upstream the clat interface of the current upstream is stacked on, if any.
+        // The IPv4 flows translated by clat are offloaded with the downstream64 map and the IPv6
+        // upstream rules of the upstream4 map. Only the current upstream is kept because all clat
+        // interfaces use the same IPv4 address, so the flows of a previous upstream can't be told
+        // apart from the ones of the current upstream. See #addUpstreamIfindexToMap.
+        @Nullable
+        public volatile ClatUpstreamInfo clatUpstream;
+
+        // Incremented when an entry is removed or replaced, so that the batches encoded before
+        // are encoded again. Adding an entry does not invalidate them: their events of the new
+        // entry were not tethered when received, unless it was removed meanwhile.
+        public volatile long generation = 0;
+
+        // Must be called on the handler thread after an entry is removed or replaced.
+        void invalidate() {
+            generation = generation + 1;
+        }
+
+        @Nullable
+        ClatUpstreamInfo getClatUpstream(@NonNull Inet4Address clatIpv4) {
+            final ClatUpstreamInfo clat = clatUpstream;
+            return (clat != null && clat.clatIpv4.equals(clatIpv4)) ? clat : null;
+        }
+
+        boolean isTethered(@NonNull ConntrackEvent e) {
+            return clients.containsKey(e.tupleOrig.srcIp)
+                    && (upstreamIndices.containsKey(e.tupleReply.dstIp)
+                    || getClatUpstream(e.tupleReply.dstIp) != null);
+        }
+    }
+
+    /**
+     * A batch of IPv4 rule changes, encoded and ready to be written to the BPF maps.
+     *
+     * The batch keeps its coalesced events, so that it can be encoded again if the clients or the
+     * upstreams changed between encoding on the conntrack thread and applying on the handler
+     * thread.
+     */
+    private static final class ConntrackRuleBatch {
+        // Direct buffers holding the encoded keys and values of the rules. They are reused for
+        // every batch so that installing or removing rules does not create any Struct objects or
+        // byte arrays.
+        public final ByteBuffer upstream4Keys = allocateStructBuffer(Tether4Key.class,
+                MAX_CONNTRACK_BATCH_SIZE);
+        public final ByteBuffer downstream4Keys = allocateStructBuffer(Tether4Key.class,
+                MAX_CONNTRACK_BATCH_SIZE);
+        public final ByteBuffer upstream4Values = allocateStructBuffer(Tether4Value.class,
+                MAX_CONNTRACK_BATCH_SIZE);
+        public final ByteBuffer downstream4Values = allocateStructBuffer(Tether4Value.class,
+                MAX_CONNTRACK_BATCH_SIZE);
+        public final ByteBuffer removedUpstream4Keys = allocateStructBuffer(Tether4Key.class,
+                MAX_CONNTRACK_BATCH_SIZE);
+        public final ByteBuffer removedDownstream4Keys = allocateStructBuffer(Tether4Key.class,
+                MAX_CONNTRACK_BATCH_SIZE);
+        // The downstream rules of the flows translated by clat. Their upstream rules are in the
+        // upstream4 buffers.
+        public final ByteBuffer downstream64Keys = allocateStructBuffer(
+                TetherDownstream64Key.class, MAX_CONNTRACK_BATCH_SIZE);
+        public final ByteBuffer downstream64Values = allocateStructBuffer(
+                TetherDownstream64Value.class, MAX_CONNTRACK_BATCH_SIZE);
+        public final ByteBuffer removedDownstream64Keys = allocateStructBuffer(
+                TetherDownstream64Key.class, MAX_CONNTRACK_BATCH_SIZE);
+        // Scratch IPv4-mapped IPv6 addresses. Only the last 4 bytes change between events.
+        public final byte[] src46 = makeIpv4MappedAddressBytes();
+        public final byte[] dst46 = makeIpv4MappedAddressBytes();
+        // Scratch NAT64 translated IPv6 address.
+        public final byte[] nat64 = new byte[16];
+
+        // The upstreams which rules are added to or removed from by this batch.
+        public final SparseBooleanArray addedUpstreams = new SparseBooleanArray();
+        public final SparseBooleanArray removedUpstreams = new SparseBooleanArray();
+
+        public final ArrayList<PendingConntrackEvents> events =
+                new ArrayList<>(MAX_CONNTRACK_BATCH_SIZE);
+        // The number of upstream rules, which is the number of flows, and the number of
+        // downstream rules in each downstream map.
+        public int addCount;
+        public int removeCount;
+        public int add64Count;
+        public int remove64Count;
+        // Generation of the ConntrackFilter the rules were encoded with.
+        public long generation;
+
+        void encode(@NonNull ConntrackFilter filter) {
+            upstream4Keys.clear();
+            downstream4Keys.clear();
+            upstream4Values.clear();
+            downstream4Values.clear();
+            removedUpstream4Keys.clear();
+            removedDownstream4Keys.clear();
+            downstream64Keys.clear();
+            downstream64Values.clear();
+            removedDownstream64Keys.clear();
+            addedUpstreams.clear();
+            removedUpstreams.clear();
+            addCount = 0;
+            removeCount = 0;
+            add64Count = 0;
+            remove64Count = 0;
+            generation = filter.generation;
+
+            for (PendingConntrackEvents pending : events) {
+                final ConntrackEvent del = pending.deleteEvent;
+                if (del != null) encodeRemoval(filter, del);
+
+                final ConntrackEvent add = pending.newEvent;
+                if (add != null) encodeAddition(filter, add);
+            }
+
+            upstream4Keys.flip();
+            downstream4Keys.flip();
+            upstream4Values.flip();
+            downstream4Values.flip();
+            removedUpstream4Keys.flip();
+            removedDownstream4Keys.flip();
+            downstream64Keys.flip();
+            downstream64Values.flip();
+            removedDownstream64Keys.flip();
+        }
+
+        private void encodeRemoval(@NonNull ConntrackFilter filter, @NonNull ConntrackEvent e) {
+            final ClientInfo c = filter.clients.get(e.tupleOrig.srcIp);
+            if (c == null) return;
+
+            final Integer upstreamIndex = filter.upstreamIndices.get(e.tupleReply.dstIp);
+            if (upstreamIndex != null) {
+                encodeTetherUpstream4Key(removedUpstream4Keys, e, c);
+                encodeTetherDownstream4Key(removedDownstream4Keys, e, upstreamIndex);
+                removedUpstreams.put(upstreamIndex, true);
+                removeCount++;
+                return;
+            }
+
+            final ClatUpstreamInfo clat = filter.getClatUpstream(e.tupleReply.dstIp);
+            if (clat != null) {
+                encodeTetherUpstream4Key(removedUpstream4Keys, e, c);
+                encodeTetherDownstream64Key(removedDownstream64Keys, e, clat);
+                removedUpstreams.put(clat.upstreamIndex, true);
+                removeCount++;
+                remove64Count++;
+            }
+        }
+
+        private void encodeAddition(@NonNull ConntrackFilter filter, @NonNull ConntrackEvent e) {
+            final ClientInfo c = filter.clients.get(e.tupleOrig.srcIp);
+            if (c == null) return;
+
+            final Integer upstreamIndex = filter.upstreamIndices.get(e.tupleReply.dstIp);
+            if (upstreamIndex != null) {
+                encodeTetherUpstream4Key(upstream4Keys, e, c);
+                encodeTetherDownstream4Key(downstream4Keys, e, upstreamIndex);
+                encodeTetherUpstream4Value(upstream4Values, e, upstreamIndex);
+                encodeTetherDownstream4Value(downstream4Values, e, c);
+                addedUpstreams.put(upstreamIndex, true);
+                addCount++;
+                return;
+            }
+
+            final ClatUpstreamInfo clat = filter.getClatUpstream(e.tupleReply.dstIp);
+            if (clat != null) {
+                encodeTetherUpstream4Key(upstream4Keys, e, c);
+                encodeTetherUpstream46Value(upstream4Values, e, clat);
+                encodeTetherDownstream64Key(downstream64Keys, e, clat);
+                encodeTetherDownstream64Value(downstream64Values, e, c);
+                addedUpstreams.put(clat.upstreamIndex, true);
+                addCount++;
+                add64Count++;
+            }
+        }
+
+        private static void encodeTetherUpstream4Key(@NonNull ByteBuffer buf,
+                @NonNull ConntrackEvent e, @NonNull ClientInfo c) {
+            Tether4Key.encode(buf, c.downstreamIfindex, c.mDownstreamMacBytes,
+                    e.tupleOrig.protoNum, e.tupleOrig.srcIp.getAddress(),
+                    e.tupleOrig.dstIp.getAddress(), e.tupleOrig.srcPort, e.tupleOrig.dstPort);
+        }
+
+        private static void encodeTetherDownstream4Key(@NonNull ByteBuffer buf,
+                @NonNull ConntrackEvent e, int upstreamIndex) {
+            Tether4Key.encode(buf, upstreamIndex,
+                    NULL_MAC_ADDRESS_BYTES /* dstMac (rawip) */, e.tupleReply.protoNum,
+                    e.tupleReply.srcIp.getAddress(), e.tupleReply.dstIp.getAddress(),
+                    e.tupleReply.srcPort, e.tupleReply.dstPort);
+        }
+
+        private void encodeTetherUpstream4Value(@NonNull ByteBuffer buf,
+                @NonNull ConntrackEvent e, int upstreamIndex) {
+            Tether4Value.encode(buf, upstreamIndex,
+                    NULL_MAC_ADDRESS_BYTES /* ethDstMac (rawip) */,
+                    NULL_MAC_ADDRESS_BYTES /* ethSrcMac (rawip) */, ETH_P_IP,
+                    NetworkStackConstants.ETHER_MTU,
+                    toIpv4MappedAddressBytes(e.tupleReply.dstIp, src46),
+                    toIpv4MappedAddressBytes(e.tupleReply.srcIp, dst46), e.tupleReply.dstPort,
+                    e.tupleReply.srcPort, 0 /* lastUsed, filled by bpf prog only */);
+        }
+
+        private void encodeTetherDownstream4Value(@NonNull ByteBuffer buf,
+                @NonNull ConntrackEvent e, @NonNull ClientInfo c) {
+            Tether4Value.encode(buf, c.downstreamIfindex, c.mClientMacBytes,
+                    c.mDownstreamMacBytes, ETH_P_IP, NetworkStackConstants.ETHER_MTU,
+                    toIpv4MappedAddressBytes(e.tupleOrig.dstIp, src46),
+                    toIpv4MappedAddressBytes(e.tupleOrig.srcIp, dst46),
+                    e.tupleOrig.dstPort, e.tupleOrig.srcPort,
+                    0 /* lastUsed, filled by bpf prog only */);
+        }
+
+        // The upstream rule of a flow translated by clat sends IPv6 packets from the clat IPv6
+        // address to the NAT64 address of the remote.
+        private void encodeTetherUpstream46Value(@NonNull ByteBuffer buf,
+                @NonNull ConntrackEvent e, @NonNull ClatUpstreamInfo clat) {
+            Tether4Value.encode(buf, clat.upstreamIndex,
+                    NULL_MAC_ADDRESS_BYTES /* ethDstMac (rawip) */,
+                    NULL_MAC_ADDRESS_BYTES /* ethSrcMac (rawip) */, ETH_P_IPV6,
+                    NetworkStackConstants.ETHER_MTU, clat.mClatIpv6Bytes,
+                    clat.toNat64AddressBytes(e.tupleReply.srcIp, nat64), e.tupleReply.dstPort,
+                    e.tupleReply.srcPort, 0 /* lastUsed, filled by bpf prog only */);
+        }
+
+        private void encodeTetherDownstream64Key(@NonNull ByteBuffer buf,
+                @NonNull ConntrackEvent e, @NonNull ClatUpstreamInfo clat) {
+            TetherDownstream64Key.encode(buf, clat.upstreamIndex,
+                    NULL_MAC_ADDRESS_BYTES /* dstMac (rawip) */, e.tupleReply.protoNum,
+                    clat.toNat64AddressBytes(e.tupleReply.srcIp, nat64), clat.mClatIpv6Bytes,
+                    e.tupleReply.srcPort, e.tupleReply.dstPort);
+        }
+
+        private static void encodeTetherDownstream64Value(@NonNull ByteBuffer buf,
+                @NonNull ConntrackEvent e, @NonNull ClientInfo c) {
+            TetherDownstream64Value.encode(buf, c.downstreamIfindex, c.mClientMacBytes,
+                    c.mDownstreamMacBytes, ETH_P_IP, NetworkStackConstants.ETHER_MTU,
+                    e.tupleOrig.dstIp.getAddress(), e.tupleOrig.srcIp.getAddress(),
+                    e.tupleOrig.dstPort, e.tupleOrig.srcPort,
+                    0 /* lastUsed, filled by bpf prog only */);
+        }
+
+        @NonNull
+        private static byte[] makeIpv4MappedAddressBytes() {
+            final byte[] addr6 = new byte[16];
+            addr6[10] = (byte) 0xff;
+            addr6[11] = (byte) 0xff;
+            return addr6;
+        }
+
+        // Fill the IPv4 part of a buffer built by #makeIpv4MappedAddressBytes.
+        @NonNull
+        private static byte[] toIpv4MappedAddressBytes(Inet4Address ia4, @NonNull byte[] addr6) {
+            final byte[] addr4 = ia4.getAddress();
+            addr6[12] = addr4[0];
+            addr6[13] = addr4[1];
+            addr6[14] = addr4[2];
+            addr6[15] = addr4[3];
+            return addr6;
+        }
+    }
+
+    // Support raw ip only.
+    // TODO: add ether ip support.
+    // TODO: parse CTA_PROTOINFO of conntrack event in ConntrackMonitor. For TCP, only add rules
+    // while TCP status is established.
+    /**
+     * Installs and removes the IPv4 rules of the tethered conntrack entries.
+     *
+     * The events are not applied one by one. They are queued per 5-tuple for
+     * CONNTRACK_BATCH_WINDOW_MS and coalesced: a DELETE cancels the NEW events of the same flow
+     * before it, and repeated NEW or DELETE events collapse into one. The remaining rules
+     * are then written to the BPF maps in one batch per map. The queue is flushed early once it
+     * holds MAX_CONNTRACK_BATCH_SIZE flows.
+     *
+     * The events are received, filtered, coalesced and encoded on the conntrack handler, which is
+     * either the handler of this class or a dedicated reader thread. See
+     * TetheringConfiguration#isConntrackReaderThreadEnabled. The encoded batches are always
+     * written to the BPF maps on the handler of this class, in the order they were built.
+     */
+    @VisibleForTesting
+    class BpfConntrackEventConsumer implements ConntrackEventConsumer {
+        // Guards the queued events, the batches and the counters, which are shared by the
+        // conntrack handler and the handler of this class.
+        private final Object mLock = new Object();
+
+        // The queued events, in arrival order of their flows.
+        @GuardedBy("mLock")
+        private final LinkedHashMap<ConntrackFlowKey, PendingConntrackEvents> mPendingEvents =
+                new LinkedHashMap<>();
+        // The encoded batches waiting to be written, oldest first.
+        @GuardedBy("mLock")
+        private final ArrayDeque<ConntrackRuleBatch> mReadyBatches = new ArrayDeque<>();
+        // Written batches kept for reuse.
+        @GuardedBy("mLock")
+        private final ArrayDeque<ConntrackRuleBatch> mFreeBatches = new ArrayDeque<>();
+        // Written flows kept for reuse, and the key used to look up the flow of an event.
+        @GuardedBy("mLock")
+        private final ArrayDeque<PendingConntrackEvents> mFreePendingEvents = new ArrayDeque<>();
+        @GuardedBy("mLock")
+        private final ConntrackFlowKey mLookupKey = new ConntrackFlowKey();
+        private final Runnable mFlushRunnable = this::onBatchWindowEnd;
+        private final Runnable mApplyRunnable = this::applyReadyBatches;
+        // The conntrack handler the end of the batch window is scheduled on, if any. It may not
+        // be the current mConntrackHandler once monitoring stopped or restarted.
+        @GuardedBy("mLock")
+        @Nullable
+        private Handler mFlushHandler = null;
+
+        // Counters. See #dump.
+        @GuardedBy("mLock")
+        private long mReceivedEventCount = 0;
+        @GuardedBy("mLock")
+        private long mCoalescedEventCount = 0;
+        @GuardedBy("mLock")
+        private long mReencodedBatchCount = 0;
+        // Only accessed on the handler thread.
+        private long mFlushedBatchCount = 0;
+        private long mFlushedRuleCount = 0;
+
+        public void accept(ConntrackEvent e) {
+            accept(e, mConntrackHandler);
+        }
+
+        /** Process an event received on the given conntrack handler. */
+        void accept(@NonNull ConntrackEvent e, @NonNull Handler conntrackHandler) {
+            // Drop the events which are not about tethered traffic early. The client and the
+            // upstream are looked up again when applying, since they may go away meanwhile.
+            final boolean tethered = mConntrackFilter.isTethered(e);
+
+            synchronized (mLock) {
+                mReceivedEventCount++;
+                if (!tethered) return;
+                queueEventLocked(e);
+
+                if (mPendingEvents.size() >= MAX_CONNTRACK_BATCH_SIZE) {
+                    buildBatchLocked(mConntrackFilter);
+                } else if (mFlushHandler == null && !mPendingEvents.isEmpty()) {
+                    conntrackHandler.postDelayed(mFlushRunnable, CONNTRACK_BATCH_WINDOW_MS);
+                    mFlushHandler = conntrackHandler;
+                    return;
+                } else {
+                    return;
+                }
+            }
+            // A full batch was built.
+            maybeApplyOnHandler(conntrackHandler);
+        }
+
+        @GuardedBy("mLock")
+        private void queueEventLocked(@NonNull ConntrackEvent e) {
+            final ConntrackFlowKey flow = mLookupKey.set(e);
+            PendingConntrackEvents pending = mPendingEvents.get(flow);
+            if (pending == null) {
+                pending = mFreePendingEvents.pollFirst();
+                if (pending == null) pending = new PendingConntrackEvents();
+                pending.flow.set(e);
+                mPendingEvents.put(pending.flow, pending);
+            }
+
+            if (isConntrackDeleteEvent(e)) {
+                // The rules of the NEW event are not written. The DELETE event is still applied,
+                // since the NEW event may have been an update of a flow which already has rules.
+                if (pending.newEvent != null) {
+                    pending.newEvent = null;
+                    mCoalescedEventCount++;
+                }
+                if (pending.deleteEvent != null) {
+                    mCoalescedEventCount++;
+                } else {
+                    pending.deleteEvent = e;
+                }
+            } else {
+                if (pending.newEvent != null) mCoalescedEventCount++;
+                pending.newEvent = e;
+            }
+        }
+
+        @GuardedBy("mLock")
+        private void recyclePendingEventsLocked(@NonNull PendingConntrackEvents pending) {
+            pending.deleteEvent = null;
+            pending.newEvent = null;
+            if (mFreePendingEvents.size() < MAX_FREE_PENDING_CONNTRACK_EVENTS) {
+                mFreePendingEvents.addLast(pending);
+            }
+        }
+
+        // Move the queued events to a new batch, encode it and queue it for writing.
+        @GuardedBy("mLock")
+        private void buildBatchLocked(@NonNull ConntrackFilter filter) {
+            if (mFlushHandler != null) {
+                mFlushHandler.removeCallbacks(mFlushRunnable);
+                mFlushHandler = null;
+            }
+            if (mPendingEvents.isEmpty()) return;
+
+            ConntrackRuleBatch batch = mFreeBatches.pollFirst();
+            if (batch == null) batch = new ConntrackRuleBatch();
+            batch.events.addAll(mPendingEvents.values());
+            mPendingEvents.clear();
+            batch.encode(filter);
+            mReadyBatches.addLast(batch);
+        }
+
+        // Runs on mFlushHandler.
+        private void onBatchWindowEnd() {
+            final Handler conntrackHandler;
+            synchronized (mLock) {
+                conntrackHandler = mFlushHandler;
+                // The batch was built meanwhile by another thread, which also applies it.
+                if (conntrackHandler == null) return;
+                buildBatchLocked(mConntrackFilter);
+            }
+            maybeApplyOnHandler(conntrackHandler);
+        }
+
+        /**
+         * Move the queued events to a batch and write it on the handler thread, without waiting
+         * for it. Must be called on the given conntrack handler.
+         */
+        void buildBatch(@NonNull Handler conntrackHandler) {
+            synchronized (mLock) {
+                buildBatchLocked(mConntrackFilter);
+            }
+            maybeApplyOnHandler(conntrackHandler);
+        }
+
+        // Apply the ready batches now if running on the handler thread, or post them to it.
+        private void maybeApplyOnHandler(@NonNull Handler conntrackHandler) {
+            if (conntrackHandler.getLooper() == mHandler.getLooper()) {
+                applyReadyBatches();
+            } else if (!mHandler.hasCallbacks(mApplyRunnable)) {
+                mHandler.post(mApplyRunnable);
+            }
+        }
+
+        /**
+         * Apply the queued events to the BPF maps.
+         * Note that this can be only called on handler thread.
+         */
+        public void flush() {
+            synchronized (mLock) {
+                buildBatchLocked(mConntrackFilter);
+            }
+            applyReadyBatches();
+        }
+
+        // Runs on the handler thread.
+        private void applyReadyBatches() {
+            while (true) {
+                final ConntrackRuleBatch batch;
+                synchronized (mLock) {
+                    batch = mReadyBatches.pollFirst();
+                    if (batch == null) return;
+                    // The clients or the upstreams changed since the batch was encoded.
+                    if (batch.generation != mConntrackFilter.generation) {
+                        batch.encode(mConntrackFilter);
+                        mReencodedBatchCount++;
+                    }
+                }
+
+                applyBatch(batch);
+
+                synchronized (mLock) {
+                    for (int i = 0; i < batch.events.size(); i++) {
+                        recyclePendingEventsLocked(batch.events.get(i));
+                    }
+                    batch.events.clear();
+                    if (mFreeBatches.size() < MAX_FREE_CONNTRACK_BATCHES) {
+                        mFreeBatches.addLast(batch);
+                    }
+                }
+            }
+        }
+
+        private void applyBatch(@NonNull ConntrackRuleBatch batch) {
+            // Removals go first so that a flow which was deleted and created again within the
+            // window gets its new rule.
+            if (batch.removeCount > 0) {
+                mBpfCoordinatorShim.tetherOffloadRuleRemove(UPSTREAM, batch.removedUpstream4Keys,
+                        batch.removeCount);
+            }
+            if (batch.removeCount > batch.remove64Count) {
+                mBpfCoordinatorShim.tetherOffloadRuleRemove(DOWNSTREAM,
+                        batch.removedDownstream4Keys, batch.removeCount - batch.remove64Count);
+            }
+            if (batch.remove64Count > 0) {
+                mBpfCoordinatorShim.tetherOffloadRule64Remove(batch.removedDownstream64Keys,
+                        batch.remove64Count);
+            }
+
+            if (batch.addCount > 0) {
+                for (int i = 0; i < batch.addedUpstreams.size(); i++) {
+                    maybeSetLimit(batch.addedUpstreams.keyAt(i));
+                }
+                mBpfCoordinatorShim.tetherOffloadRuleAdd(UPSTREAM, batch.upstream4Keys,
+                        batch.upstream4Values, batch.addCount);
+                if (batch.addCount > batch.add64Count) {
+                    mBpfCoordinatorShim.tetherOffloadRuleAdd(DOWNSTREAM, batch.downstream4Keys,
+                            batch.downstream4Values, batch.addCount - batch.add64Count);
+                }
+                if (batch.add64Count > 0) {
+                    mBpfCoordinatorShim.tetherOffloadRule64Add(batch.downstream64Keys,
+                            batch.downstream64Values, batch.add64Count);
+                }
+                // New flows are likely to be forwarded soon.
+                maybeResetPollingBackoff();
+            }
+
+            for (int i = 0; i < batch.removedUpstreams.size(); i++) {
+                maybeClearLimit(batch.removedUpstreams.keyAt(i));
+            }
+
+            mFlushedBatchCount++;
+            mFlushedRuleCount += batch.addCount + batch.removeCount;
+        }
+
+        /** Number of events which did not result in a rule change of their own. */
+        @VisibleForTesting
+        long getCoalescedEventCount() {
+            synchronized (mLock) {
+                return mCoalescedEventCount;
+            }
+        }
+
+        /** Number of batches which were encoded again because the filter changed meanwhile. */
+        @VisibleForTesting
+        long getReencodedBatchCount() {
+            synchronized (mLock) {
+                return mReencodedBatchCount;
+            }
+        }
+
+        void dump(@NonNull IndentingPrintWriter pw) {
+            synchronized (mLock) {
+                pw.println(String.format("Conntrack events: %d received, %d coalesced, %d pending",
+                        mReceivedEventCount, mCoalescedEventCount, mPendingEvents.size()));
+                pw.println(String.format("Conntrack batches: %d flushed, %d rule changes, "
+                        + "%d re-encoded, %d ready", mFlushedBatchCount, mFlushedRuleCount,
+                        mReencodedBatchCount, mReadyBatches.size()));
+            }
+            pw.println("Conntrack events processed on "
+                    + (mConntrackHandler.getLooper() == mHandler.getLooper()
+                    ? "handler thread" : "reader thread"));
+        }
+    }
+
+    @NonNull
+    private static ByteBuffer allocateStructBuffer(@NonNull Class<? extends Struct> clazz,
+            int count) {
+        return ByteBuffer.allocateDirect(Struct.getSize(clazz) * count)
+                .order(ByteOrder.nativeOrder());
+    }
+
+    private void scheduleIpv4RuleSweep() {
+        mHandler.removeCallbacks(mScheduledIpv4RuleSweep);
+        mHandler.postDelayed(mScheduledIpv4RuleSweep, CONNTRACK_TIMEOUT_UPDATE_INTERVAL_MS);
+    }
+
+    @Nullable
+    private static Inet4Address toInet4Address(@NonNull byte[] addr, int offset) {
+        try {
+            return (Inet4Address) InetAddress.getByAddress(
+                    Arrays.copyOfRange(addr, offset, offset + 4));
+        } catch (UnknownHostException e) {
+            return null;
+        }
+    }
+
+    // The original direction tuple of the flow of an upstream rule is its key.
+    @Nullable
+    private static ConntrackFlowKey flowOfUpstream4Rule(@NonNull Tether4Key k) {
+        final Inet4Address src = toInet4Address(k.src4, 0);
+        final Inet4Address dst = toInet4Address(k.dst4, 0);
+        if (src == null || dst == null) return null;
+        return new ConntrackFlowKey(k.l4proto, src, k.srcPort, dst, k.dstPort);
+    }
+
+    // The original direction tuple of the flow of a downstream rule is the reverse of the
+    // translated addresses and ports in its value. See BpfConntrackEventConsumer.
+    @Nullable
+    private static ConntrackFlowKey flowOfDownstream4Rule(@NonNull Tether4Key k,
+            @NonNull Tether4Value v) {
+        final Inet4Address src = toInet4Address(v.dst46, 12);
+        final Inet4Address dst = toInet4Address(v.src46, 12);
+        if (src == null || dst == null) return null;
+        return new ConntrackFlowKey(k.l4proto, src, v.dstPort, dst, v.srcPort);
+    }
+
+    // Same as #flowOfDownstream4Rule, for the downstream rule of a flow translated by clat.
+    @Nullable
+    private static ConntrackFlowKey flowOfDownstream64Rule(@NonNull TetherDownstream64Key k,
+            @NonNull TetherDownstream64Value v) {
+        final Inet4Address src = toInet4Address(v.dst4, 0);
+        final Inet4Address dst = toInet4Address(v.src4, 0);
+        if (src == null || dst == null) return null;
+        return new ConntrackFlowKey(k.l4proto, src, v.outPort, dst, v.srcPort);
+    }
+
+    // The downstream rule of a flow, built from its upstream rule. The reply direction tuple is
+    // the reverse of the translated addresses and ports in the upstream value.
+    @NonNull
+    private static Tether4Key makeDownstream4KeyFromUpstreamRule(@NonNull Tether4Key k,
+            @NonNull Tether4Value v) {
+        return new Tether4Key(v.oif, NULL_MAC_ADDRESS /* dstMac (rawip) */, k.l4proto,
+                Arrays.copyOfRange(v.dst46, 12, 16), Arrays.copyOfRange(v.src46, 12, 16),
+                v.dstPort, v.srcPort);
+    }
+
+    // Same as #makeDownstream4KeyFromUpstreamRule, for a flow translated by clat, whose upstream
+    // value holds IPv6 addresses.
+    @NonNull
+    private static TetherDownstream64Key makeDownstream64KeyFromUpstreamRule(
+            @NonNull Tether4Key k, @NonNull Tether4Value v) {
+        return new TetherDownstream64Key(v.oif, NULL_MAC_ADDRESS /* dstMac (rawip) */,
+                k.l4proto, v.dst46, v.src46, v.dstPort, v.srcPort);
+    }
+
+    // Set the conntrack timeout of the given flow. Return 0 on success, or the errno of the
+    // failure, which is ENOENT if its conntrack entry is gone.
+    private int updateConntrackTimeout(@NonNull ConntrackFlowKey flow, int timeoutSec) {
+        final byte[] msg = ConntrackMessage.newIPv4TimeoutUpdateRequest(flow.protoNum,
+                flow.srcIp, flow.srcPort, flow.dstIp, flow.dstPort, timeoutSec);
+        try {
+            mDeps.sendNetfilterMessage(msg);
+            mConntrackTimeoutUpdates++;
+            return 0;
+        } catch (ErrnoException e) {
+            mConntrackTimeoutUpdateErrors++;
+            return e.errno;
+        }
+    }
+
+    /**
+     * Refresh the conntrack timeouts of the active IPv4 flows and expire the idle UDP ones.
+     *
+     * A flow is active if either of its rules was used since the last sweep, according to the
+     * lastUsed field written by the BPF programs. The rules which have never been used are left
+     * alone, because the BPF programs of some kernels cannot update lastUsed. See offload.c.
+     *
+     * The rules of an idle flow are not removed directly: a flow may resume at any time, and its
+     * packets would then only refresh its conntrack entry without any event to offload it again.
+     * Instead, the conntrack entry of an idle UDP flow is expired, and its delete event removes
+     * the rules. If the flow resumes, its packets create a new conntrack entry, whose new event
+     * offloads it again. The idle TCP flows are not expired, since this would break their
+     * connections. Their rules are removed when the connections are closed.
+     */
+    private void sweepIpv4Rules() {
+        // Apply the queued events first, so that they do not refer to removed rules.
+        mBpfConntrackEventConsumer.flush();
+
+        final long now = mDeps.elapsedRealtimeNanos();
+        final HashMap<ConntrackFlowKey, Long> downstreamLastUsed = new HashMap<>();
+        mBpfCoordinatorShim.tetherOffloadRuleForEach(DOWNSTREAM, (k, v) -> {
+            final ConntrackFlowKey flow = flowOfDownstream4Rule(k, v);
+            if (flow != null) downstreamLastUsed.put(flow, v.lastUsed);
+        });
+        mBpfCoordinatorShim.tetherOffloadRule64ForEach((k, v) -> {
+            final ConntrackFlowKey flow = flowOfDownstream64Rule(k, v);
+            if (flow != null) downstreamLastUsed.put(flow, v.lastUsed);
+        });
+
+        final long idleTimeoutMs =
+                (downstreamLastUsed.size() * 100 >= TETHER4_MAP_SIZE * IPV4_RULE_PRESSURE_PERCENT)
+                ? CONNTRACK_TIMEOUT_UPDATE_INTERVAL_MS : IPV4_RULE_IDLE_TIMEOUT_MS;
+        final ArrayList<Tether4Key> staleUpstreamKeys = new ArrayList<>();
+        final ArrayList<Tether4Key> staleDownstreamKeys = new ArrayList<>();
+        final ArrayList<TetherDownstream64Key> staleDownstream64Keys = new ArrayList<>();
+        mBpfCoordinatorShim.tetherOffloadRuleForEach(UPSTREAM, (k, v) -> {
+            final ConntrackFlowKey flow = flowOfUpstream4Rule(k);
+            if (flow == null) return;
+            final Long downstream = downstreamLastUsed.get(flow);
+            final long lastUsed = Math.max(v.lastUsed, (downstream != null) ? downstream : 0);
+            if (lastUsed == 0) return;
+
+            final long idleMs = (now - lastUsed) / 1_000_000;
+            if (idleMs < CONNTRACK_TIMEOUT_UPDATE_INTERVAL_MS) {
+                // The conntrack entry may be gone meanwhile. Its delete event removes the rules.
+                updateConntrackTimeout(flow,
+                        OffloadController.connectionTimeoutUpdateSecondsFor(flow.protoNum));
+                return;
             }
+            if (idleMs < idleTimeoutMs || flow.protoNum != IPPROTO_UDP) return;
 
-            final Tether4Value upstream4Value = makeTetherUpstream4Value(e, upstreamIndex);
-            final Tether4Value downstream4Value = makeTetherDownstream4Value(e, tetherClient,
-                    upstreamIndex);
+            final int error = updateConntrackTimeout(flow, 0 /* timeoutSec */);
+            if (error == 0) {
+                mExpiredIpv4FlowCount++;
+                return;
+            }
+            // Other errors, such as ENOBUFS or EBUSY, do not tell whether the conntrack entry
+            // still exists. Keep the rules and try again on the next sweep.
+            if (error != ENOENT) return;
+
+            // The conntrack entry is already gone, but its delete event was lost. No event
+            // will remove the rules, so remove them now.
+            staleUpstreamKeys.add(k);
+            if (v.ethProto == ETH_P_IPV6) {
+                staleDownstream64Keys.add(makeDownstream64KeyFromUpstreamRule(k, v));
+            } else {
+                staleDownstreamKeys.add(makeDownstream4KeyFromUpstreamRule(k, v));
+            }
+        });
 
-            maybeSetLimit(upstreamIndex);
-            mBpfCoordinatorShim.tetherOffloadRuleAdd(UPSTREAM, upstream4Key, upstream4Value);
-            mBpfCoordinatorShim.tetherOffloadRuleAdd(DOWNSTREAM, downstream4Key, downstream4Value);
+        if (staleUpstreamKeys.isEmpty()) return;
+        evictIpv4Rules(staleUpstreamKeys, staleDownstreamKeys, staleDownstream64Keys);
+    }
+
+    // Remove the given rules, then clear the limits of the upstreams which have no rule left.
+    private void evictIpv4Rules(@NonNull ArrayList<Tether4Key> upstreamKeys,
+            @NonNull ArrayList<Tether4Key> downstreamKeys,
+            @NonNull ArrayList<TetherDownstream64Key> downstream64Keys) {
+        removeRulesInBatches(upstreamKeys, Tether4Key.class, Tether4Key::encode,
+                (buf, count) -> mBpfCoordinatorShim.tetherOffloadRuleRemove(UPSTREAM, buf, count));
+        removeRulesInBatches(downstreamKeys, Tether4Key.class, Tether4Key::encode,
+                (buf, count) -> mBpfCoordinatorShim.tetherOffloadRuleRemove(DOWNSTREAM, buf,
+                        count));
+        removeRulesInBatches(downstream64Keys, TetherDownstream64Key.class,
+                TetherDownstream64Key::encode, mBpfCoordinatorShim::tetherOffloadRule64Remove);
+        mEvictedIpv4RuleCount += upstreamKeys.size();
+
+        final SparseBooleanArray upstreams = new SparseBooleanArray();
+        for (Tether4Key k : downstreamKeys) upstreams.put((int) k.iif, true);
+        for (TetherDownstream64Key k : downstream64Keys) upstreams.put((int) k.iif, true);
+        for (int i = 0; i < upstreams.size(); i++) {
+            maybeClearLimit(upstreams.keyAt(i));
+        }
+    }
+
+    // Remove the given keys from a map in batches of at most MAX_CONNTRACK_BATCH_SIZE keys.
+    private static <K extends Struct> void removeRulesInBatches(@NonNull List<K> keys,
+            @NonNull Class<K> clazz, @NonNull BiConsumer<K, ByteBuffer> encoder,
+            @NonNull ObjIntConsumer<ByteBuffer> remover) {
+        final ByteBuffer buf = allocateStructBuffer(clazz, MAX_CONNTRACK_BATCH_SIZE);
+        for (int start = 0; start < keys.size(); start += MAX_CONNTRACK_BATCH_SIZE) {
+            final int count = Math.min(MAX_CONNTRACK_BATCH_SIZE, keys.size() - start);
+            buf.clear();
+            for (int i = start; i < start + count; i++) {
+                encoder.accept(keys.get(i), buf);
+            }
+            buf.flip();
+            remover.accept(buf, count);
         }
     }
 
@@ -1249,14 +2639,64 @@ public class BpfCoordinator {
         return (config != null) ? config.isBpfOffloadEnabled() : true /* default value */;
     }
 
+    private boolean isClientStatsEnabled() {
+        final TetheringConfiguration config = mDeps.getTetherConfig();
+        return (config != null) ? config.isClientStatsEnabled() : false /* default value */;
+    }
+
+    private boolean isClientRateLimitEnabled() {
+        final TetheringConfiguration config = mDeps.getTetherConfig();
+        return (config != null) ? config.isClientRateLimitEnabled() : false /* default value */;
+    }
+
+    private boolean isXdpOffloadEnabled() {
+        final TetheringConfiguration config = mDeps.getTetherConfig();
+        return (config != null) ? config.isXdpOffloadEnabled() : false /* default value */;
+    }
+
+    // Try to attach the XDP program in addition to the tc programs. The XDP program forwards the
+    // packets it can and passes the others to the tc programs, so if XDP can't be attached on the
+    // interface, the tc programs alone keep forwarding its packets.
+    private void maybeAttachXdpProgram(@NonNull String iface, boolean downstream) {
+        if (!isXdpOffloadEnabled()) return;
+
+        final InterfaceParams params = mDeps.getInterfaceParams(iface);
+        if (params == null) return;
+
+        if (mBpfCoordinatorShim.attachXdpProgram(iface, downstream, true /* nativeMode */)) {
+            mXdpInterfaces.put(iface, true);
+        } else if (mBpfCoordinatorShim.attachXdpProgram(iface, downstream,
+                false /* nativeMode */)) {
+            mXdpInterfaces.put(iface, false);
+            mLog.i("Native XDP not available on " + iface + ", using generic XDP");
+        } else {
+            mLog.i("XDP not available on " + iface + ", using tc offload only");
+        }
+
+        // Only redirect to ethernet interfaces whose driver runs XDP natively, since the others
+        // can't transmit redirected frames. Raw IP interfaces need the ethernet header stripped,
+        // which is left to the tc programs.
+        if (params.hasMacAddress && Boolean.TRUE.equals(mXdpInterfaces.get(iface))
+                && mBpfCoordinatorShim.addXdpDevice(params.index)) {
+            mXdpDevices.put(iface, params.index);
+        }
+    }
+
+    private void maybeDetachXdpProgram(@NonNull String iface) {
+        final Integer ifIndex = mXdpDevices.remove(iface);
+        if (ifIndex != null) mBpfCoordinatorShim.removeXdpDevice(ifIndex);
+
+        // Detaching program may fail because the interface has been removed already.
+        final Boolean nativeMode = mXdpInterfaces.remove(iface);
+        if (nativeMode != null) mBpfCoordinatorShim.detachXdpProgram(iface, nativeMode);
+    }
+
     private int getInterfaceIndexFromRules(@NonNull String ifName) {
-        for (LinkedHashMap<Inet6Address, Ipv6ForwardingRule> rules : mIpv6ForwardingRules
-                .values()) {
-            for (Ipv6ForwardingRule rule : rules.values()) {
-                final int upstreamIfindex = rule.upstreamIfindex;
-                if (TextUtils.equals(ifName, mInterfaceNames.get(upstreamIfindex))) {
-                    return upstreamIfindex;
-                }
+        // Only the upstreams which have rules are in the index.
+        for (int i = 0; i < mIpv6UpstreamRuleCounts.size(); i++) {
+            final int upstreamIfindex = mIpv6UpstreamRuleCounts.keyAt(i);
+            if (TextUtils.equals(ifName, mInterfaceNames.get(upstreamIfindex))) {
+                return upstreamIfindex;
             }
         }
         return 0;
@@ -1344,26 +2784,79 @@ public class BpfCoordinator {
     // TODO: Rename to isAnyIpv6RuleOnUpstream and define an isAnyRuleOnUpstream method that called
     // both isAnyIpv6RuleOnUpstream and mBpfCoordinatorShim.isAnyIpv4RuleOnUpstream.
     private boolean isAnyRuleOnUpstream(int upstreamIfindex) {
-        for (LinkedHashMap<Inet6Address, Ipv6ForwardingRule> rules : mIpv6ForwardingRules
-                .values()) {
-            for (Ipv6ForwardingRule rule : rules.values()) {
-                if (upstreamIfindex == rule.upstreamIfindex) return true;
-            }
-        }
-        return false;
+        return mIpv6UpstreamRuleCounts.get(upstreamIfindex) > 0;
     }
 
     private boolean isAnyRuleFromDownstreamToUpstream(int downstreamIfindex, int upstreamIfindex) {
-        for (LinkedHashMap<Inet6Address, Ipv6ForwardingRule> rules : mIpv6ForwardingRules
-                .values()) {
-            for (Ipv6ForwardingRule rule : rules.values()) {
-                if (downstreamIfindex == rule.downstreamIfindex
-                        && upstreamIfindex == rule.upstreamIfindex) {
-                    return true;
-                }
-            }
+        final SparseIntArray counts = mIpv6ForwardingPairRuleCounts.get(downstreamIfindex);
+        return counts != null && counts.get(upstreamIfindex) > 0;
+    }
+
+    // Must be called for each rule added to mIpv6ForwardingRules.
+    private void addToRuleIndexes(@NonNull Ipv6ForwardingRule rule) {
+        holdClient(rule.downstreamIfindex, rule.dstMac);
+
+        final int upstream = rule.upstreamIfindex;
+        mIpv6UpstreamRuleCounts.put(upstream, mIpv6UpstreamRuleCounts.get(upstream) + 1);
+
+        SparseIntArray counts = mIpv6ForwardingPairRuleCounts.get(rule.downstreamIfindex);
+        if (counts == null) {
+            counts = new SparseIntArray();
+            mIpv6ForwardingPairRuleCounts.put(rule.downstreamIfindex, counts);
+        }
+        counts.put(upstream, counts.get(upstream) + 1);
+    }
+
+    // Must be called for each rule removed from mIpv6ForwardingRules.
+    private void removeFromRuleIndexes(@NonNull Ipv6ForwardingRule rule) {
+        releaseClient(rule.downstreamIfindex, rule.dstMac);
+
+        final int upstream = rule.upstreamIfindex;
+        final int upstreamCount = mIpv6UpstreamRuleCounts.get(upstream) - 1;
+        if (upstreamCount > 0) {
+            mIpv6UpstreamRuleCounts.put(upstream, upstreamCount);
+        } else {
+            mIpv6UpstreamRuleCounts.delete(upstream);
+        }
+
+        final SparseIntArray counts = mIpv6ForwardingPairRuleCounts.get(rule.downstreamIfindex);
+        if (counts == null) return;
+        final int pairCount = counts.get(upstream) - 1;
+        if (pairCount > 0) {
+            counts.put(upstream, pairCount);
+            return;
+        }
+        counts.delete(upstream);
+        if (counts.size() == 0) mIpv6ForwardingPairRuleCounts.remove(rule.downstreamIfindex);
+    }
+
+    // Start upstream forwarding if the given rule is the first one between its downstream and
+    // upstream. Must be called before the rule is added to the indexes.
+    private void maybeStartUpstreamIpv6Forwarding(@NonNull Ipv6ForwardingRule rule) {
+        final int downstream = rule.downstreamIfindex;
+        final int upstream = rule.upstreamIfindex;
+        if (isAnyRuleFromDownstreamToUpstream(downstream, upstream)) return;
+
+        // TODO: support upstream forwarding on non-point-to-point interfaces.
+        // TODO: get the MTU from LinkProperties and update the rules when it changes.
+        if (!mBpfCoordinatorShim.startUpstreamIpv6Forwarding(downstream, upstream, rule.srcMac,
+                NULL_MAC_ADDRESS, NULL_MAC_ADDRESS, NetworkStackConstants.ETHER_MTU)) {
+            mLog.e("Failed to enable upstream IPv6 forwarding from "
+                    + mInterfaceNames.get(downstream) + " to " + mInterfaceNames.get(upstream));
+        }
+    }
+
+    // Stop upstream forwarding if there are no more rules between the downstream and upstream of
+    // the given rule. Must be called after the rule is removed from the indexes.
+    private void maybeStopUpstreamIpv6Forwarding(@NonNull Ipv6ForwardingRule rule) {
+        final int downstream = rule.downstreamIfindex;
+        final int upstream = rule.upstreamIfindex;
+        if (isAnyRuleFromDownstreamToUpstream(downstream, upstream)) return;
+
+        if (!mBpfCoordinatorShim.stopUpstreamIpv6Forwarding(downstream, upstream, rule.srcMac)) {
+            mLog.e("Failed to disable upstream IPv6 forwarding from "
+                    + mInterfaceNames.get(downstream) + " to " + mInterfaceNames.get(upstream));
         }
-        return false;
     }
 
     private void forwardingPairAdd(@NonNull String intIface, @NonNull String extIface) {
@@ -1425,7 +2918,8 @@ public class BpfCoordinator {
         }
     }
 
-    private void updateQuotaAndStatsFromSnapshot(
+    // Returns the number of bytes forwarded since the previous snapshot.
+    private long updateQuotaAndStatsFromSnapshot(
             @NonNull final SparseArray<TetherStatsValue> tetherStatsList) {
         long usedAlertQuota = 0;
         for (int i = 0; i < tetherStatsList.size(); i++) {
@@ -1460,18 +2954,213 @@ public class BpfCoordinator {
         }
 
         // TODO: Count the used limit quota for notifying data limit reached.
+        return usedAlertQuota;
     }
 
-    private void updateForwardedStats() {
+    // Returns the number of bytes forwarded since the previous update, or 0 if failed.
+    private long updateForwardedStats() {
         final SparseArray<TetherStatsValue> tetherStatsList =
                 mBpfCoordinatorShim.tetherOffloadGetStats();
 
         if (tetherStatsList == null) {
             mLog.e("Problem fetching tethering stats");
-            return;
+            return 0;
         }
 
-        updateQuotaAndStatsFromSnapshot(tetherStatsList);
+        final long usedBytes = updateQuotaAndStatsFromSnapshot(tetherStatsList);
+        updateClientStats();
+        return usedBytes;
+    }
+
+    // Accumulate the deltas of the client stats BPF map since the previous poll.
+    private void updateClientStats() {
+        if (mIsClientStatsEnabled && mClientEntries.size() > 0) {
+            final boolean success = mBpfCoordinatorShim.tetherOffloadClientStatsForEach((k, v) -> {
+                final ClientEntry entry = getClientEntry(k.downstreamIfindex,
+                        k.clientMac);
+                if (entry != null) accumulateClientStats(k.clientMac, entry, v);
+            });
+            if (!success) mLog.e("Problem fetching client stats");
+        }
+
+        if (!mClientStatsChanged) return;
+        mClientStatsChanged = false;
+        if (mClientStatsCallback != null) mClientStatsCallback.run();
+    }
+
+    private void accumulateClientStats(@NonNull MacAddress clientMac,
+            @NonNull ClientEntry entry, @NonNull TetherClientStatsValue value) {
+        final ForwardedStats curr = new ForwardedStats(value.rxBytes, value.rxPackets,
+                value.txBytes, value.txPackets);
+        final ForwardedStats diff = curr.subtract(entry.lastStats);
+        entry.lastStats = curr;
+        if (diff.rxPackets == 0 && diff.txPackets == 0) return;
+
+        mClientStats.merge(clientMac, diff, ForwardedStats::add);
+        mClientStatsChanged = true;
+    }
+
+    @Nullable
+    private ClientEntry getClientEntry(int downstreamIfindex,
+            @NonNull MacAddress clientMac) {
+        final HashMap<MacAddress, ClientEntry> entries =
+                mClientEntries.get(downstreamIfindex);
+        return (entries != null) ? entries.get(clientMac) : null;
+    }
+
+    private boolean isClientHeld(@NonNull MacAddress clientMac) {
+        for (int i = 0; i < mClientEntries.size(); i++) {
+            if (mClientEntries.valueAt(i).containsKey(clientMac)) return true;
+        }
+        return false;
+    }
+
+    // Start counting and limiting the traffic of the client on the downstream, if it is not held
+    // yet.
+    private void holdClient(int downstreamIfindex, @NonNull MacAddress clientMac) {
+        if (!mIsClientStatsEnabled && !mIsClientRateLimitEnabled) return;
+
+        HashMap<MacAddress, ClientEntry> entries = mClientEntries.get(downstreamIfindex);
+        if (entries == null) {
+            entries = new HashMap<>();
+            mClientEntries.put(downstreamIfindex, entries);
+        }
+        ClientEntry entry = entries.get(clientMac);
+        if (entry == null) {
+            // The client is tracked even if the map entries can't be added, so that the holders
+            // are still counted. The traffic of the client is then only counted per upstream, and
+            // not limited.
+            if (mIsClientStatsEnabled
+                    && !mBpfCoordinatorShim.tetherOffloadClientStatsAdd(downstreamIfindex,
+                            clientMac)) {
+                mLog.e("Failed to count the traffic of " + clientMac + " on " + downstreamIfindex);
+            }
+            final ClientRateLimit limit = mClientRateLimits.get(clientMac);
+            if (limit != null) applyClientRateLimit(downstreamIfindex, clientMac, limit);
+            entry = new ClientEntry();
+            entries.put(clientMac, entry);
+        }
+        entry.holders++;
+    }
+
+    // Stop counting and limiting the traffic of the client on the downstream once it has no more
+    // holder. The traffic counted since the previous poll is accumulated.
+    private void releaseClient(int downstreamIfindex, @NonNull MacAddress clientMac) {
+        final HashMap<MacAddress, ClientEntry> entries =
+                mClientEntries.get(downstreamIfindex);
+        final ClientEntry entry = (entries != null) ? entries.get(clientMac) : null;
+        if (entry == null || --entry.holders > 0) return;
+
+        entries.remove(clientMac);
+        if (entries.isEmpty()) mClientEntries.remove(downstreamIfindex);
+
+        if (mClientRateLimits.containsKey(clientMac)
+                && !mBpfCoordinatorShim.tetherOffloadClientRateLimitRemove(downstreamIfindex,
+                        clientMac)) {
+            mLog.e("Failed to remove the rate limit of " + clientMac + " on " + downstreamIfindex);
+        }
+
+        if (!mIsClientStatsEnabled) return;
+        final TetherClientStatsValue last = mBpfCoordinatorShim
+                .tetherOffloadClientStatsGetAndRemove(downstreamIfindex, clientMac);
+        if (last != null) accumulateClientStats(clientMac, entry, last);
+    }
+
+    private boolean applyClientRateLimit(int downstreamIfindex, @NonNull MacAddress clientMac,
+            @NonNull ClientRateLimit limit) {
+        if (!mBpfCoordinatorShim.tetherOffloadClientRateLimitSet(downstreamIfindex, clientMac,
+                limit.bytesPerSecond, limit.burstBytes)) {
+            mLog.e("Failed to limit the rate of " + clientMac + " on " + downstreamIfindex);
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Whether the offloaded traffic of the clients can be rate limited, see #setClientRateLimit.
+     * Note that this can be only called on handler thread.
+     */
+    public boolean isClientRateLimitSupported() {
+        return isUsingBpf() && mIsClientRateLimitEnabled && mDeps.isAtLeastS();
+    }
+
+    /**
+     * Limit the rate of the offloaded traffic of a client with a token bucket in each direction,
+     * replacing any existing limit. Once the burst is used up, the BPF programs drop the packets
+     * of the client above the rate, rather than let the core stack forward them. The limit is
+     * kept until removed, and applied to the client on every downstream it connects to. Only the
+     * offloaded traffic is limited.
+     * Note that this can be only called on handler thread.
+     *
+     * @param clientMac the mac address of the client.
+     * @param bytesPerSecond the rate, in bytes per second, at most MAX_CLIENT_RATE_LIMIT.
+     * @param burstBytes the bucket size, in bytes, at most MAX_CLIENT_RATE_LIMIT. Packets larger
+     *         than the bucket are always dropped, including the LRO/GRO aggregated packets.
+     * @return false if per-client rate limits are not supported, if the limit is invalid, or if
+     *         it could not be applied to the client.
+     */
+    public boolean setClientRateLimit(@NonNull MacAddress clientMac, long bytesPerSecond,
+            long burstBytes) {
+        if (!isClientRateLimitSupported()) return false;
+        if (bytesPerSecond <= 0 || bytesPerSecond > MAX_CLIENT_RATE_LIMIT
+                || burstBytes <= 0 || burstBytes > MAX_CLIENT_RATE_LIMIT) {
+            mLog.e("Invalid rate limit for " + clientMac + ": "
+                    + new ClientRateLimit(bytesPerSecond, burstBytes));
+            return false;
+        }
+
+        final ClientRateLimit limit = new ClientRateLimit(bytesPerSecond, burstBytes);
+        mClientRateLimits.put(clientMac, limit);
+        boolean success = true;
+        for (int i = 0; i < mClientEntries.size(); i++) {
+            if (!mClientEntries.valueAt(i).containsKey(clientMac)) continue;
+            success &= applyClientRateLimit(mClientEntries.keyAt(i), clientMac, limit);
+        }
+        return success;
+    }
+
+    /**
+     * Stop limiting the rate of the offloaded traffic of a client. Removing a non-existent limit
+     * succeeds.
+     * Note that this can be only called on handler thread.
+     *
+     * @return false if per-client rate limits are not supported, or if the limit could not be
+     *         removed from the client.
+     */
+    public boolean removeClientRateLimit(@NonNull MacAddress clientMac) {
+        if (!isClientRateLimitSupported()) return false;
+        if (mClientRateLimits.remove(clientMac) == null) return true;
+
+        boolean success = true;
+        for (int i = 0; i < mClientEntries.size(); i++) {
+            if (!mClientEntries.valueAt(i).containsKey(clientMac)) continue;
+            if (!mBpfCoordinatorShim.tetherOffloadClientRateLimitRemove(mClientEntries.keyAt(i),
+                    clientMac)) {
+                mLog.e("Failed to remove the rate limit of " + clientMac + " on "
+                        + mClientEntries.keyAt(i));
+                success = false;
+            }
+        }
+        return success;
+    }
+
+    /**
+     * Set the callback which is run after the polls which changed the offloaded traffic of any
+     * client, see #getClientStats. Only used if per-client stats are enabled.
+     * Note that this can be only called on handler thread.
+     */
+    public void setClientStatsCallback(@Nullable Runnable callback) {
+        mClientStatsCallback = callback;
+    }
+
+    /**
+     * Get the offloaded traffic of each client, keyed by client mac address, since polling was
+     * started or since the client was first counted. Empty if per-client stats are disabled.
+     * Note that this can be only called on handler thread.
+     */
+    @NonNull
+    public Map<MacAddress, ForwardedStats> getClientStats() {
+        return Collections.unmodifiableMap(new HashMap<>(mClientStats));
     }
 
     @VisibleForTesting
@@ -1492,7 +3181,13 @@ public class BpfCoordinator {
             mHandler.removeCallbacks(mScheduledPollingTask);
         }
 
-        mHandler.postDelayed(mScheduledPollingTask, getPollingInterval());
+        mHandler.postDelayed(mScheduledPollingTask,
+                mPollingInterval.getNextDelayMs(getPollingInterval(), mRemainingAlertQuota));
+    }
+
+    // Poll on the configured interval again if it was backed off while idle.
+    private void maybeResetPollingBackoff() {
+        if (mPollingInterval.reset()) maybeSchedulePollingStats();
     }
 
     // Return forwarding rule map. This is used for testing only.
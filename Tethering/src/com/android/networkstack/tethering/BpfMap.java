@@ -16,7 +16,10 @@
 package com.android.networkstack.tethering;
 
 import static android.system.OsConstants.EEXIST;
+import static android.system.OsConstants.EINVAL;
 import static android.system.OsConstants.ENOENT;
+import static android.system.OsConstants.ENOSPC;
+import static android.system.OsConstants.EOPNOTSUPP;
 
 import android.system.ErrnoException;
 
@@ -26,17 +29,28 @@ import androidx.annotation.Nullable;
 import com.android.internal.annotations.VisibleForTesting;
 import com.android.net.module.util.Struct;
 
+import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
+import java.nio.file.Files;
+import java.nio.file.Paths;
 import java.util.NoSuchElementException;
 import java.util.Objects;
 import java.util.function.BiConsumer;
+import java.util.function.BinaryOperator;
+import java.util.function.Function;
 
 /**
  * BpfMap is a key -> value mapping structure that is designed to maintained the bpf map entries.
  * This is a wrapper class of in-kernel data structure. The in-kernel data can be read/written by
  * passing syscalls with map file descriptor.
  *
+ * Per-cpu maps (BPF_MAP_TYPE_PERCPU_HASH and BPF_MAP_TYPE_PERCPU_ARRAY) hold one value for each
+ * possible cpu. They are wrapped with a merge function, and the values read from them are the
+ * merge of the values of all cpus. The values written to them are stored for the first cpu,
+ * and zeroed for the other cpus, so that merging them by summing them returns the written value.
+ * The buffers of the Direct methods hold the raw values of all cpus, see #getValueSize.
+ *
  * @param <K> the key of the map.
  * @param <V> the value of the map.
  */
@@ -58,11 +72,49 @@ public class BpfMap<K extends Struct, V extends Struct> implements AutoCloseable
     private static final int BPF_NOEXIST = 1;
     private static final int BPF_EXIST = 2;
 
+    // Kernel internal errno returned by BPF_MAP_LOOKUP_BATCH for map types which do not support
+    // batch operations. See include/linux/errno.h. It is not exposed in OsConstants.
+    private static final int ENOTSUPP = 524;
+
+    private static final String POSSIBLE_CPUS_PATH = "/sys/devices/system/cpu/possible";
+
+    // The maximum number of entries which are read by a single BPF_MAP_LOOKUP_BATCH syscall.
+    // The buffer is grown if a hash bucket has more entries than this, see #forEachBatched.
+    @VisibleForTesting
+    static final int DEFAULT_BATCH_SIZE = 64;
+
     private final int mMapFd;
     private final Class<K> mKeyClass;
     private final Class<V> mValueClass;
     private final int mKeySize;
+    // Size of the values in the kernel interface, which is the size of all the cpu values for
+    // per-cpu maps.
     private final int mValueSize;
+    private final Function<ByteBuffer, K> mKeyDecoder;
+    private final Function<ByteBuffer, V> mValueDecoder;
+
+    // Number of values and offset between them in the kernel values of per-cpu maps, which are
+    // aligned to 8 bytes. 1 and the value size for other maps.
+    private final int mNumCpuValues;
+    private final int mCpuValueStride;
+    // Merges the cpu values of per-cpu maps, null for other maps.
+    @Nullable
+    private final BinaryOperator<V> mValueMerger;
+
+    // Whether BPF_MAP_LOOKUP_BATCH can be used on this map. Cleared the first time the kernel
+    // reports that batch operations are not supported, after which the map is iterated key by key.
+    private boolean mBatchLookupSupported = true;
+
+    // Whether BPF_MAP_UPDATE_BATCH and BPF_MAP_DELETE_BATCH can be used on this map. Each is
+    // cleared the same way, after which batches of entries are written one entry at a time.
+    private boolean mBatchUpdateSupported = true;
+    private boolean mBatchDeleteSupported = true;
+
+    // Scratch count for the batch update and delete syscalls. Only used on the calling thread.
+    private final int[] mBatchCount = new int[1];
+    // Scratch value for the lookups of #insertEntriesDirect, allocated on first use. Only used on
+    // the calling thread.
+    private ByteBuffer mLookupValue;
 
     /**
      * Create a BpfMap map wrapper with "path" of filesystem.
@@ -79,6 +131,38 @@ public class BpfMap<K extends Struct, V extends Struct> implements AutoCloseable
         mValueClass = value;
         mKeySize = Struct.getSize(key);
         mValueSize = Struct.getSize(value);
+        mKeyDecoder = makeDecoder(key);
+        mValueDecoder = makeDecoder(value);
+        mNumCpuValues = 1;
+        mCpuValueStride = mValueSize;
+        mValueMerger = null;
+    }
+
+    /**
+     * Create a BpfMap wrapper of the per-cpu map with "path" of filesystem.
+     *
+     * @param flag the access mode, one of BPF_F_RDWR, BPF_F_RDONLY, or BPF_F_WRONLY.
+     * @param merger the function merging the values of two cpus, typically summing them.
+     * @throws ErrnoException if the BPF map associated with {@code path} cannot be retrieved, or
+     *                        if the number of possible cpus cannot be read.
+     * @throws NullPointerException if {@code path} or {@code merger} is null.
+     */
+    public BpfMap(@NonNull final String path, final int flag, final Class<K> key,
+            final Class<V> value, @NonNull final BinaryOperator<V> merger)
+            throws ErrnoException, NullPointerException {
+        Objects.requireNonNull(merger);
+        mMapFd = bpfFdGet(path, flag);
+
+        mKeyClass = key;
+        mValueClass = value;
+        mKeySize = Struct.getSize(key);
+        mKeyDecoder = makeDecoder(key);
+        mValueDecoder = makeDecoder(value);
+        mNumCpuValues = getNumPossibleCpus();
+        // See bpf_map_value_size() in kernel/bpf/syscall.c.
+        mCpuValueStride = (Struct.getSize(value) + 7) & ~7;
+        mValueSize = mCpuValueStride * mNumCpuValues;
+        mValueMerger = merger;
     }
 
      /**
@@ -94,6 +178,76 @@ public class BpfMap<K extends Struct, V extends Struct> implements AutoCloseable
         mValueClass = value;
         mKeySize = Struct.getSize(key);
         mValueSize = Struct.getSize(value);
+        mKeyDecoder = makeDecoder(key);
+        mValueDecoder = makeDecoder(value);
+        mNumCpuValues = 1;
+        mCpuValueStride = mValueSize;
+        mValueMerger = null;
+    }
+
+    // Use the non-reflective decoder of the struct if there is one. See BpfStructCodecs.
+    private static <T extends Struct> Function<ByteBuffer, T> makeDecoder(final Class<T> clazz) {
+        final Function<ByteBuffer, T> decoder = BpfStructCodecs.getDecoder(clazz);
+        return (decoder != null) ? decoder : buf -> Struct.parse(clazz, buf);
+    }
+
+    /**
+     * Parse the number of possible cpus from a cpu list such as "0-3,6", in the format of
+     * /sys/devices/system/cpu/possible. This is the number of values of per-cpu maps, see
+     * num_possible_cpus() in the kernel.
+     */
+    @VisibleForTesting
+    static int parseNumPossibleCpus(@NonNull String cpuList) {
+        int count = 0;
+        for (String range : cpuList.trim().split(",")) {
+            final int dash = range.indexOf('-');
+            final int first = Integer.parseInt(dash < 0 ? range : range.substring(0, dash));
+            final int last = (dash < 0) ? first : Integer.parseInt(range.substring(dash + 1));
+            count += last - first + 1;
+        }
+        if (count <= 0) throw new NumberFormatException("Invalid cpu list " + cpuList);
+        return count;
+    }
+
+    private static int getNumPossibleCpus() throws ErrnoException {
+        try {
+            return parseNumPossibleCpus(new String(Files.readAllBytes(Paths.get(
+                    POSSIBLE_CPUS_PATH))));
+        } catch (IOException | NumberFormatException e) {
+            throw new ErrnoException("getNumPossibleCpus", EINVAL, e);
+        }
+    }
+
+    /**
+     * Get the size of the values in the buffers of the Direct methods. This is the size of the
+     * value struct, or the size of the values of all cpus for per-cpu maps.
+     */
+    public int getValueSize() {
+        return mValueSize;
+    }
+
+    private byte[] encodeValue(@NonNull V value) {
+        final byte[] bytes = value.writeToBytes();
+        if (mValueMerger == null) return bytes;
+
+        final byte[] cpuValues = new byte[mValueSize];
+        System.arraycopy(bytes, 0, cpuValues, 0, bytes.length);
+        return cpuValues;
+    }
+
+    // Decode the value at the current position of the buffer, and advance past it.
+    private V decodeValue(@NonNull ByteBuffer buffer) {
+        if (mValueMerger == null) return mValueDecoder.apply(buffer);
+
+        final int start = buffer.position();
+        V value = null;
+        for (int cpu = 0; cpu < mNumCpuValues; cpu++) {
+            buffer.position(start + cpu * mCpuValueStride);
+            final V cpuValue = mValueDecoder.apply(buffer);
+            value = (value == null) ? cpuValue : mValueMerger.apply(value, cpuValue);
+        }
+        buffer.position(start + mValueSize);
+        return value;
     }
 
     /**
@@ -101,7 +255,7 @@ public class BpfMap<K extends Struct, V extends Struct> implements AutoCloseable
      * (use insertOrReplaceEntry() if you need to know whether insert or replace happened)
      */
     public void updateEntry(K key, V value) throws ErrnoException {
-        writeToMapEntry(mMapFd, key.writeToBytes(), value.writeToBytes(), BPF_ANY);
+        writeToMapEntry(mMapFd, key.writeToBytes(), encodeValue(value), BPF_ANY);
     }
 
     /**
@@ -111,7 +265,7 @@ public class BpfMap<K extends Struct, V extends Struct> implements AutoCloseable
     public void insertEntry(K key, V value)
             throws ErrnoException, IllegalStateException {
         try {
-            writeToMapEntry(mMapFd, key.writeToBytes(), value.writeToBytes(), BPF_NOEXIST);
+            writeToMapEntry(mMapFd, key.writeToBytes(), encodeValue(value), BPF_NOEXIST);
         } catch (ErrnoException e) {
             if (e.errno == EEXIST) throw new IllegalStateException(key + " already exists");
 
@@ -126,7 +280,7 @@ public class BpfMap<K extends Struct, V extends Struct> implements AutoCloseable
     public void replaceEntry(K key, V value)
             throws ErrnoException, NoSuchElementException {
         try {
-            writeToMapEntry(mMapFd, key.writeToBytes(), value.writeToBytes(), BPF_EXIST);
+            writeToMapEntry(mMapFd, key.writeToBytes(), encodeValue(value), BPF_EXIST);
         } catch (ErrnoException e) {
             if (e.errno == ENOENT) throw new NoSuchElementException(key + " not found");
 
@@ -143,13 +297,13 @@ public class BpfMap<K extends Struct, V extends Struct> implements AutoCloseable
     public boolean insertOrReplaceEntry(K key, V value)
             throws ErrnoException {
         try {
-            writeToMapEntry(mMapFd, key.writeToBytes(), value.writeToBytes(), BPF_NOEXIST);
+            writeToMapEntry(mMapFd, key.writeToBytes(), encodeValue(value), BPF_NOEXIST);
             return true;   /* insert succeeded */
         } catch (ErrnoException e) {
             if (e.errno != EEXIST) throw e;
         }
         try {
-            writeToMapEntry(mMapFd, key.writeToBytes(), value.writeToBytes(), BPF_EXIST);
+            writeToMapEntry(mMapFd, key.writeToBytes(), encodeValue(value), BPF_EXIST);
             return false;   /* replace succeeded */
         } catch (ErrnoException e) {
             if (e.errno != ENOENT) throw e;
@@ -180,7 +334,7 @@ public class BpfMap<K extends Struct, V extends Struct> implements AutoCloseable
 
         final ByteBuffer buffer = ByteBuffer.wrap(rawKey);
         buffer.order(ByteOrder.nativeOrder());
-        return Struct.parse(mKeyClass, buffer);
+        return mKeyDecoder.apply(buffer);
     }
 
     /**
@@ -223,7 +377,7 @@ public class BpfMap<K extends Struct, V extends Struct> implements AutoCloseable
 
         final ByteBuffer buffer = ByteBuffer.wrap(rawValue);
         buffer.order(ByteOrder.nativeOrder());
-        return Struct.parse(mValueClass, buffer);
+        return decodeValue(buffer);
     }
 
     private byte[] getRawValue(final byte[] key) throws ErrnoException {
@@ -233,13 +387,213 @@ public class BpfMap<K extends Struct, V extends Struct> implements AutoCloseable
         return null;
     }
 
+    private void checkDirectBuffer(@NonNull ByteBuffer buf, int size) {
+        Objects.requireNonNull(buf);
+        if (!buf.isDirect() || buf.remaining() < size) {
+            throw new IllegalArgumentException("Need a direct buffer with at least " + size
+                    + " bytes remaining: " + buf);
+        }
+    }
+
+    /**
+     * Update an existing or create a new key -> value entry from caller-owned direct buffers.
+     *
+     * The Direct methods read and write the key and value at the current position of the given
+     * buffers without copying them or moving their position, and do not allocate. The buffers
+     * must be direct, in native byte order and have at least the key or value size remaining.
+     * They are typically filled with the encode methods of the map structs. See BpfStructCodecs.
+     */
+    public void updateEntryDirect(@NonNull ByteBuffer key, @NonNull ByteBuffer value)
+            throws ErrnoException {
+        checkDirectBuffer(key, mKeySize);
+        checkDirectBuffer(value, mValueSize);
+        writeToMapEntryDirect(mMapFd, key, key.position(), value, value.position(), BPF_ANY);
+    }
+
+    /**
+     * If the key does not exist in the map, insert key -> value entry from caller-owned direct
+     * buffers. Otherwise IllegalStateException will be thrown. See #updateEntryDirect.
+     */
+    public void insertEntryDirect(@NonNull ByteBuffer key, @NonNull ByteBuffer value)
+            throws ErrnoException, IllegalStateException {
+        checkDirectBuffer(key, mKeySize);
+        checkDirectBuffer(value, mValueSize);
+        try {
+            writeToMapEntryDirect(mMapFd, key, key.position(), value, value.position(),
+                    BPF_NOEXIST);
+        } catch (ErrnoException e) {
+            if (e.errno == EEXIST) throw new IllegalStateException("Key already exists");
+
+            throw e;
+        }
+    }
+
+    /**
+     * Remove the key in the caller-owned direct buffer from eBpf map. Return false if map was not
+     * modified. See #updateEntryDirect.
+     */
+    public boolean deleteEntryDirect(@NonNull ByteBuffer key) throws ErrnoException {
+        checkDirectBuffer(key, mKeySize);
+        return deleteMapEntryDirect(mMapFd, key, key.position());
+    }
+
+    /**
+     * Retrieve the value of the key in the caller-owned direct buffer into the value buffer.
+     * Return false if there is no such key. See #updateEntryDirect.
+     */
+    public boolean getValueDirect(@NonNull ByteBuffer key, @NonNull ByteBuffer value)
+            throws ErrnoException {
+        checkDirectBuffer(key, mKeySize);
+        checkDirectBuffer(value, mValueSize);
+        return findMapEntryDirect(mMapFd, key, key.position(), value, value.position());
+    }
+
+    private void checkBatch(@NonNull ByteBuffer buf, int size, int count, @NonNull int[] errnos) {
+        checkDirectBuffer(buf, size * count);
+        if (count < 0 || errnos.length < count) {
+            throw new IllegalArgumentException("Invalid batch count " + count + " for "
+                    + errnos.length + " errnos");
+        }
+    }
+
+    private static boolean isBatchUnsupported(int errno) {
+        return errno == EINVAL || errno == ENOTSUPP || errno == EOPNOTSUPP;
+    }
+
+    /**
+     * Insert count consecutive key -> value entries from caller-owned direct buffers, for keys
+     * which do not exist in the map yet.
+     *
+     * The entries are written with as few BPF_MAP_UPDATE_BATCH syscalls as possible if the kernel
+     * supports it, or one entry at a time otherwise. A failing entry does not stop the batch: on
+     * return, errnos[i] is 0 if the i-th entry was written, EEXIST if its key already exists or
+     * the errno of the failure. The batch syscall only accepts BPF_F_LOCK as element flag and
+     * would replace the existing entries, so the keys are looked up first and only the runs of
+     * missing keys are written. The lookup and the write are not atomic: callers must not insert
+     * the same keys concurrently. The buffers are handled as in #updateEntryDirect.
+     */
+    public void insertEntriesDirect(@NonNull ByteBuffer keys, @NonNull ByteBuffer values,
+            int count, @NonNull int[] errnos) {
+        checkBatch(keys, mKeySize, count, errnos);
+        checkBatch(values, mValueSize, count, errnos);
+
+        int start = 0;
+        while (start < count) {
+            if (containsKeyDirect(keys, start, errnos)) {
+                start++;
+                continue;
+            }
+            int end = start + 1;
+            while (end < count && !containsKeyDirect(keys, end, errnos)) end++;
+            insertMissingEntriesDirect(keys, values, start, end, errnos);
+            // The key at end, if any, exists and its errno is set.
+            start = end + 1;
+        }
+    }
+
+    // Looks up the i-th key of the batch. Returns false if it does not exist, or if the lookup
+    // failed, in which case the write reports the failure.
+    private boolean containsKeyDirect(@NonNull ByteBuffer keys, int i, @NonNull int[] errnos) {
+        if (mLookupValue == null) {
+            mLookupValue = ByteBuffer.allocateDirect(mValueSize).order(ByteOrder.nativeOrder());
+        }
+        try {
+            if (!findMapEntryDirect(mMapFd, keys, keys.position() + i * mKeySize, mLookupValue,
+                    0)) {
+                return false;
+            }
+            errnos[i] = EEXIST;
+            return true;
+        } catch (ErrnoException e) {
+            return false;
+        }
+    }
+
+    // Writes the entries from start to end, whose keys were not found in the map.
+    private void insertMissingEntriesDirect(@NonNull ByteBuffer keys, @NonNull ByteBuffer values,
+            int start, int end, @NonNull int[] errnos) {
+        int done = start;
+        while (mBatchUpdateSupported && done < end) {
+            mBatchCount[0] = end - done;
+            final int errno = updateMapBatchDirect(mMapFd, keys, keys.position() + done * mKeySize,
+                    values, values.position() + done * mValueSize, mBatchCount, BPF_ANY);
+            final int processed = mBatchCount[0];
+            if (errno != 0 && processed == 0 && done == start && isBatchUnsupported(errno)) {
+                mBatchUpdateSupported = false;
+                break;
+            }
+            for (int i = done; i < done + processed; i++) errnos[i] = 0;
+            done += processed;
+            if (errno == 0) return;
+
+            // The kernel stopped at the entry which failed. Record it and skip it.
+            if (done < end) errnos[done++] = errno;
+        }
+
+        for (int i = done; i < end; i++) {
+            try {
+                writeToMapEntryDirect(mMapFd, keys, keys.position() + i * mKeySize, values,
+                        values.position() + i * mValueSize, BPF_NOEXIST);
+                errnos[i] = 0;
+            } catch (ErrnoException e) {
+                errnos[i] = e.errno;
+            }
+        }
+    }
+
+    /**
+     * Remove count consecutive keys in a caller-owned direct buffer from eBpf map, with as few
+     * BPF_MAP_DELETE_BATCH syscalls as possible if the kernel supports it. On return, errnos[i] is
+     * 0 if the i-th key was removed, ENOENT if it did not exist or the errno of the failure. See
+     * #insertEntriesDirect.
+     */
+    public void deleteEntriesDirect(@NonNull ByteBuffer keys, int count, @NonNull int[] errnos) {
+        checkBatch(keys, mKeySize, count, errnos);
+
+        int done = 0;
+        while (mBatchDeleteSupported && done < count) {
+            mBatchCount[0] = count - done;
+            final int errno = deleteMapBatchDirect(mMapFd, keys,
+                    keys.position() + done * mKeySize, mBatchCount);
+            final int processed = mBatchCount[0];
+            if (errno != 0 && processed == 0 && done == 0 && isBatchUnsupported(errno)) {
+                mBatchDeleteSupported = false;
+                break;
+            }
+            for (int i = done; i < done + processed; i++) errnos[i] = 0;
+            done += processed;
+            if (errno == 0) return;
+
+            if (done < count) errnos[done++] = errno;
+        }
+
+        for (int i = done; i < count; i++) {
+            try {
+                errnos[i] = deleteMapEntryDirect(mMapFd, keys, keys.position() + i * mKeySize)
+                        ? 0 : ENOENT;
+            } catch (ErrnoException e) {
+                errnos[i] = e.errno;
+            }
+        }
+    }
+
     /**
      * Iterate through the map and handle each key -> value retrieved base on the given BiConsumer.
      * The given BiConsumer may to delete the passed-in entry, but is not allowed to perform any
      * other structural modifications to the map, such as adding entries or deleting other entries.
      * Otherwise, iteration will result in undefined behaviour.
+     *
+     * The entries are read in batches with BPF_MAP_LOOKUP_BATCH if the kernel supports it, which
+     * needs a few syscalls for the whole map. Otherwise, fall back to reading the map one key at a
+     * time.
      */
     public void forEach(BiConsumer<K, V> action) throws ErrnoException {
+        if (mBatchLookupSupported && forEachBatched(action)) return;
+
+        forEachByKey(action);
+    }
+
+    private void forEachByKey(BiConsumer<K, V> action) throws ErrnoException {
         @Nullable K nextKey = getFirstKey();
 
         while (nextKey != null) {
@@ -251,6 +605,66 @@ public class BpfMap<K extends Struct, V extends Struct> implements AutoCloseable
         }
     }
 
+    /**
+     * Iterate through the map with BPF_MAP_LOOKUP_BATCH. Each batch is read into a buffer which
+     * is reused for the whole iteration, and the action is called once the batch has been read.
+     * Deleting the passed-in entry from the action is safe because the kernel continues from an
+     * opaque position (the hash bucket or the array index) rather than from the last key.
+     *
+     * @return false if batch lookup is not supported and no entry was passed to the action, in
+     *         which case the caller needs to fall back to key by key iteration.
+     */
+    private boolean forEachBatched(BiConsumer<K, V> action) throws ErrnoException {
+        int batchSize = DEFAULT_BATCH_SIZE;
+        byte[] keys = new byte[mKeySize * batchSize];
+        byte[] values = new byte[mValueSize * batchSize];
+        // The batch token is a u32 for hash maps and a key for array maps.
+        byte[] inBatch = null;
+        byte[] outBatch = new byte[Math.max(mKeySize, Integer.BYTES)];
+        final int[] count = new int[1];
+        boolean started = false;
+
+        while (true) {
+            count[0] = batchSize;
+            final boolean hasMore;
+            try {
+                hasMore = lookupMapBatch(mMapFd, inBatch, outBatch, keys, values, count);
+            } catch (ErrnoException e) {
+                if (!started && (e.errno == EINVAL || e.errno == ENOTSUPP
+                        || e.errno == EOPNOTSUPP)) {
+                    mBatchLookupSupported = false;
+                    return false;
+                }
+                // ENOSPC means that a hash bucket has more entries than the batch can hold.
+                // Grow the buffer and retry from the same position.
+                if (e.errno == ENOSPC) {
+                    batchSize *= 2;
+                    keys = new byte[mKeySize * batchSize];
+                    values = new byte[mValueSize * batchSize];
+                    continue;
+                }
+                throw e;
+            }
+            started = true;
+
+            final ByteBuffer keyBuffer = ByteBuffer.wrap(keys).order(ByteOrder.nativeOrder());
+            final ByteBuffer valueBuffer = ByteBuffer.wrap(values).order(ByteOrder.nativeOrder());
+            for (int i = 0; i < count[0]; i++) {
+                keyBuffer.position(i * mKeySize);
+                valueBuffer.position(i * mValueSize);
+                action.accept(mKeyDecoder.apply(keyBuffer), decodeValue(valueBuffer));
+            }
+
+            if (!hasMore) return true;
+
+            // The output token of this batch is the input token of the next one.
+            if (inBatch == null) inBatch = new byte[outBatch.length];
+            final byte[] tmp = inBatch;
+            inBatch = outBatch;
+            outBatch = tmp;
+        }
+    }
+
     @Override
     public void close() throws ErrnoException {
         closeMap(mMapFd);
@@ -285,4 +699,28 @@ public class BpfMap<K extends Struct, V extends Struct> implements AutoCloseable
     private native boolean getNextMapKey(int fd, byte[] key, byte[] nextKey) throws ErrnoException;
 
     private native boolean findMapEntry(int fd, byte[] key, byte[] value) throws ErrnoException;
+
+    private native void writeToMapEntryDirect(int fd, ByteBuffer key, int keyOffset,
+            ByteBuffer value, int valueOffset, int flags) throws ErrnoException;
+
+    private native boolean deleteMapEntryDirect(int fd, ByteBuffer key, int keyOffset)
+            throws ErrnoException;
+
+    private native boolean findMapEntryDirect(int fd, ByteBuffer key, int keyOffset,
+            ByteBuffer value, int valueOffset) throws ErrnoException;
+
+    // Write or delete up to count[0] consecutive entries starting at the given buffer offsets.
+    // Returns 0 on success or the errno of the first entry which failed, and sets count[0] to the
+    // number of entries processed before it. Unlike the other methods, these do not throw so that
+    // the caller can carry on with the rest of the batch.
+    private native int updateMapBatchDirect(int fd, ByteBuffer keys, int keysOffset,
+            ByteBuffer values, int valuesOffset, int[] count, int flags);
+
+    private native int deleteMapBatchDirect(int fd, ByteBuffer keys, int keysOffset, int[] count);
+
+    // Read up to count[0] entries into keys and values, continuing from inBatch (or from the start
+    // of the map if null). On return, count[0] holds the number of entries read and outBatch the
+    // position to continue from. Returns false if the end of the map was reached.
+    private native boolean lookupMapBatch(int fd, byte[] inBatch, byte[] outBatch, byte[] keys,
+            byte[] values, int[] count) throws ErrnoException;
 }
@@ -0,0 +1,129 @@
+/*
+ * Copyright (C) 2021 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.networkstack.tethering;
+
+import android.net.MacAddress;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import com.android.net.module.util.Struct;
+
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.function.Function;
+
+/**
+ * Non-reflective decoders for the BPF map structs defined in bpf_tethering.h.
+ *
+ * Struct#parse builds each object through reflection. The map structs instead provide hand
+ * written encode and decode methods which follow the layout of their Struct annotations, and
+ * this class maps a struct class to its decoder so that BpfMap can use it. The buffers passed to
+ * the codecs must be in native byte order, as for Struct#parse.
+ *
+ * @hide
+ */
+public final class BpfStructCodecs {
+    private static final HashMap<Class<?>, Function<ByteBuffer, ? extends Struct>> sDecoders =
+            new HashMap<>();
+
+    static {
+        sDecoders.put(Tether4Key.class, Tether4Key::decode);
+        sDecoders.put(Tether4Value.class, Tether4Value::decode);
+        sDecoders.put(Tether6Value.class, Tether6Value::decode);
+        sDecoders.put(TetherDownstream6Key.class, TetherDownstream6Key::decode);
+        sDecoders.put(TetherDownstream64Key.class, TetherDownstream64Key::decode);
+        sDecoders.put(TetherDownstream64Value.class, TetherDownstream64Value::decode);
+        sDecoders.put(TetherUpstream6Key.class, TetherUpstream6Key::decode);
+        sDecoders.put(TetherStatsKey.class, TetherStatsKey::decode);
+        sDecoders.put(TetherStatsValue.class, TetherStatsValue::decode);
+        sDecoders.put(TetherClientStatsKey.class, TetherClientStatsKey::decode);
+        sDecoders.put(TetherClientStatsValue.class, TetherClientStatsValue::decode);
+        sDecoders.put(TetherClientRateLimitKey.class, TetherClientRateLimitKey::decode);
+        sDecoders.put(TetherClientRateLimitValue.class, TetherClientRateLimitValue::decode);
+        sDecoders.put(TetherLimitKey.class, TetherLimitKey::decode);
+        sDecoders.put(TetherLimitValue.class, TetherLimitValue::decode);
+        sDecoders.put(TetherQuotaKey.class, TetherQuotaKey::decode);
+        sDecoders.put(TetherQuotaValue.class, TetherQuotaValue::decode);
+    }
+
+    private BpfStructCodecs() {}
+
+    /**
+     * Return the non-reflective decoder of the given struct class, or null if the class does not
+     * have one and Struct#parse needs to be used.
+     */
+    @Nullable
+    @SuppressWarnings("unchecked")
+    public static <T extends Struct> Function<ByteBuffer, T> getDecoder(
+            @NonNull Class<T> clazz) {
+        return (Function<ByteBuffer, T>) sDecoders.get(clazz);
+    }
+
+    /** Decode a struct at the current position of the buffer, with or without reflection. */
+    @NonNull
+    public static <T extends Struct> T decode(@NonNull Class<T> clazz, @NonNull ByteBuffer buf) {
+        final Function<ByteBuffer, T> decoder = getDecoder(clazz);
+        return (decoder != null) ? decoder.apply(buf) : Struct.parse(clazz, buf);
+    }
+
+    /** Write a Struct.Type.UBE16 field, which is big endian regardless of the buffer order. */
+    static void putBe16(@NonNull ByteBuffer buf, int value) {
+        buf.put((byte) (value >> 8));
+        buf.put((byte) value);
+    }
+
+    /** Read a Struct.Type.UBE16 field. */
+    static int getBe16(@NonNull ByteBuffer buf) {
+        return ((buf.get() & 0xff) << 8) | (buf.get() & 0xff);
+    }
+
+    /** Read a Struct.Type.U32 field. */
+    static long getU32(@NonNull ByteBuffer buf) {
+        return Integer.toUnsignedLong(buf.getInt());
+    }
+
+    /** Read a Struct.Type.U16 field. */
+    static int getU16(@NonNull ByteBuffer buf) {
+        return Short.toUnsignedInt(buf.getShort());
+    }
+
+    /** Read a Struct.Type.EUI48 field. */
+    @NonNull
+    static MacAddress getMac(@NonNull ByteBuffer buf) {
+        final byte[] mac = new byte[6];
+        buf.get(mac);
+        return MacAddress.fromBytes(mac);
+    }
+
+    /** Read a Struct.Type.ByteArray field of the given size. */
+    @NonNull
+    static byte[] getBytes(@NonNull ByteBuffer buf, int size) {
+        final byte[] bytes = new byte[size];
+        buf.get(bytes);
+        return bytes;
+    }
+
+    /** Skip the padding bytes of a field. */
+    static void skip(@NonNull ByteBuffer buf, int size) {
+        buf.position(buf.position() + size);
+    }
+
+    /** Write zeroed padding bytes of a field. */
+    static void putZeros(@NonNull ByteBuffer buf, int size) {
+        for (int i = 0; i < size; i++) buf.put((byte) 0);
+    }
+}
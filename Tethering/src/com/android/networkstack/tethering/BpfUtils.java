@@ -66,6 +66,12 @@ public class BpfUtils {
         return path;
     }
 
+    private static String makeXdpProgPath(boolean downstream, boolean ether) {
+        return "/sys/fs/bpf/tethering/prog_offload_xdp_tether_"
+                + (downstream ? "downstream" : "upstream") + "_"
+                + (ether ? "ether" : "rawip");
+    }
+
     /**
      * Attach BPF program
      *
@@ -134,6 +140,55 @@ public class BpfUtils {
         }
     }
 
+    /**
+     * Attach XDP program. The program handles both IPv4 and IPv6, and passes the packets it can't
+     * forward to the tc programs, which are attached separately.
+     *
+     * The native driver mode fails if the driver does not support XDP, in which case the generic
+     * mode may be used instead.
+     */
+    public static void attachXdpProgram(@NonNull String iface, boolean downstream,
+            boolean nativeMode) throws IOException {
+        final InterfaceParams params = InterfaceParams.getByName(iface);
+        if (params == null) {
+            throw new IOException("Fail to get interface params for interface " + iface);
+        }
+
+        boolean ether;
+        try {
+            ether = isEthernet(iface);
+        } catch (IOException e) {
+            throw new IOException("isEthernet(" + params.index + "[" + iface + "]) failure: " + e);
+        }
+
+        try {
+            // ip link set dev .. xdpdrv|xdpgeneric pinned /sys/fs/bpf/...
+            xdpSetProgram(params.index, makeXdpProgPath(downstream, ether), nativeMode);
+        } catch (IOException e) {
+            throw new IOException("ip link set dev (" + params.index + "[" + iface
+                    + "]) " + (nativeMode ? "xdpdrv" : "xdpgeneric") + " failure: " + e);
+        }
+    }
+
+    /**
+     * Detach XDP program attached in the given mode.
+     */
+    public static void detachXdpProgram(@NonNull String iface, boolean nativeMode)
+            throws IOException {
+        final InterfaceParams params = InterfaceParams.getByName(iface);
+        if (params == null) {
+            throw new IOException("Fail to get interface params for interface " + iface);
+        }
+
+        try {
+            // ip link set dev .. xdpdrv|xdpgeneric off
+            xdpSetProgram(params.index, null, nativeMode);
+        } catch (IOException e) {
+            throw new IOException("ip link set dev (" + params.index + "[" + iface
+                    + "]) " + (nativeMode ? "xdpdrv" : "xdpgeneric") + " off failure: " + e);
+        }
+    }
+
     private static native boolean isEthernet(String iface) throws IOException;
 
     private static native void tcFilterAddDevBpf(int ifIndex, boolean ingress, short prio,
@@ -141,4 +196,9 @@ public class BpfUtils {
 
     private static native void tcFilterDelDev(int ifIndex, boolean ingress, short prio,
             short proto) throws IOException;
+
+    // Attach the pinned XDP program to the interface, or detach any XDP program if bpfProgPath is
+    // null.
+    private static native void xdpSetProgram(int ifIndex, String bpfProgPath, boolean nativeMode)
+            throws IOException;
 }
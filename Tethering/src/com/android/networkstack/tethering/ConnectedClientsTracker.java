@@ -22,6 +22,7 @@ import android.net.MacAddress;
 import android.net.TetheredClient;
 import android.net.TetheredClient.AddressInfo;
 import android.net.ip.IpServer;
+import android.net.util.TetheringUtils.ForwardedStats;
 import android.net.wifi.WifiClient;
 import android.os.SystemClock;
 
@@ -31,10 +32,12 @@ import androidx.annotation.VisibleForTesting;
 
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.PriorityQueue;
 import java.util.Set;
 
 /**
@@ -44,12 +47,41 @@ import java.util.Set;
  * thread.
  */
 public class ConnectedClientsTracker {
+    private static final int MIN_EXPIRATIONS_TO_COMPACT = 16;
+    private static final ForwardedStats NO_TRAFFIC = new ForwardedStats();
+
     private final Clock mClock;
 
     @NonNull
     private List<WifiClient> mLastWifiClients = Collections.emptyList();
-    @NonNull
+    // Built lazily from mLastClientsMap; null if it needs to be rebuilt.
+    @Nullable
     private List<TetheredClient> mLastTetheredClients = Collections.emptyList();
+    // Last clients keyed by mac address, used to compute the changes at each update.
+    @NonNull
+    private Map<MacAddress, TetheredClient> mLastClientsMap = Collections.emptyMap();
+    @NonNull
+    private List<TetheredClient> mLastUpdatedClients = Collections.emptyList();
+    @NonNull
+    private List<TetheredClient> mLastRemovedClients = Collections.emptyList();
+    // Offloaded traffic of each client, keyed by mac address. See #updateTrafficStats.
+    @NonNull
+    private Map<MacAddress, ForwardedStats> mTrafficStats = Collections.emptyMap();
+    // Earliest address expiration of each client in mLastClientsMap. Entries are not removed when
+    // a client changes; entries that do not match the earliest expiration of the client anymore
+    // are skipped when they are polled.
+    private final PriorityQueue<ClientExpiration> mExpirations = new PriorityQueue<>(
+            Comparator.comparingLong(e -> e.time));
+
+    private static class ClientExpiration {
+        public final MacAddress macAddress;
+        public final long time;
+
+        ClientExpiration(MacAddress macAddress, long time) {
+            this.macAddress = macAddress;
+            this.time = time;
+        }
+    }
 
     @VisibleForTesting
     static class Clock {
@@ -70,7 +102,9 @@ public class ConnectedClientsTracker {
     /**
      * Update the tracker with new connected clients.
      *
-     * <p>The new list can be obtained through {@link #getLastTetheredClients()}.
+     * <p>The new list can be obtained through {@link #getLastTetheredClients()}, and the clients
+     * that changed since the last calculation through {@link #getLastUpdatedClients()} and
+     * {@link #getLastRemovedClients()}.
      * @param ipServers The IpServers used to assign addresses to clients.
      * @param wifiClients The list of L2-connected WiFi clients. Null for no change since last
      *                    update.
@@ -110,11 +144,141 @@ public class ConnectedClientsTracker {
                     client, Collections.emptyList() /* addresses */, TETHERING_WIFI));
         }
 
-        final HashSet<TetheredClient> clients = new HashSet<>(clientsMap.values());
-        final boolean clientsChanged = clients.size() != mLastTetheredClients.size()
-                || !clients.containsAll(mLastTetheredClients);
-        mLastTetheredClients = Collections.unmodifiableList(new ArrayList<>(clients));
-        return clientsChanged;
+        for (Map.Entry<MacAddress, TetheredClient> entry : clientsMap.entrySet()) {
+            entry.setValue(withTrafficStats(entry.getValue()));
+        }
+
+        // Clients are compared one by one against the last calculation, so that only the clients
+        // that were added, updated or removed need to be reported to listeners.
+        final ArrayList<TetheredClient> updated = new ArrayList<>();
+        for (TetheredClient client : clientsMap.values()) {
+            if (!client.equals(mLastClientsMap.get(client.getMacAddress()))) {
+                updated.add(client);
+            }
+        }
+        final ArrayList<TetheredClient> removed = new ArrayList<>();
+        for (Map.Entry<MacAddress, TetheredClient> last : mLastClientsMap.entrySet()) {
+            if (!clientsMap.containsKey(last.getKey())) {
+                removed.add(last.getValue());
+            }
+        }
+
+        mLastClientsMap = clientsMap;
+        return onClientsChanged(updated, removed);
+    }
+
+    /**
+     * Remove the addresses that expired from the last calculated clients.
+     *
+     * <p>Only the clients whose earliest address expired are looked at. Clients with no remaining
+     * address are removed, unless they are L2-connected WiFi clients. The changes can be obtained
+     * in the same way as for {@link #updateConnectedClients}.
+     * @return True if the list of clients changed.
+     */
+    public boolean pruneExpiredClients() {
+        final long now = mClock.elapsedRealtime();
+        final ArrayList<TetheredClient> updated = new ArrayList<>();
+        final ArrayList<TetheredClient> removed = new ArrayList<>();
+        Set<MacAddress> wifiClientMacs = null;
+
+        while (!mExpirations.isEmpty() && mExpirations.peek().time <= now) {
+            final ClientExpiration expiration = mExpirations.poll();
+            final MacAddress mac = expiration.macAddress;
+            final TetheredClient client = mLastClientsMap.get(mac);
+            if (client == null || getEarliestExpiration(client) != expiration.time) continue;
+
+            TetheredClient prunedClient = pruneExpired(client, now);
+            if (prunedClient == null) {
+                if (wifiClientMacs == null) wifiClientMacs = getClientMacs(mLastWifiClients);
+                if (wifiClientMacs.contains(mac)) {
+                    prunedClient = new TetheredClient(
+                            mac, Collections.emptyList() /* addresses */, TETHERING_WIFI);
+                }
+            }
+
+            if (prunedClient == null) {
+                mLastClientsMap.remove(mac);
+                removed.add(client);
+            } else {
+                prunedClient = withTrafficStats(prunedClient);
+                mLastClientsMap.put(mac, prunedClient);
+                updated.add(prunedClient);
+            }
+        }
+
+        return onClientsChanged(updated, removed);
+    }
+
+    /**
+     * Update the offloaded traffic statistics of the clients.
+     *
+     * <p>The statistics are also attached to the clients calculated afterwards. The clients
+     * whose statistics changed can be obtained in the same way as for
+     * {@link #updateConnectedClients}.
+     * @param trafficStats The offloaded traffic of each client, keyed by mac address.
+     * @return True if the statistics of any client changed.
+     */
+    public boolean updateTrafficStats(@NonNull Map<MacAddress, ForwardedStats> trafficStats) {
+        mTrafficStats = trafficStats;
+        final ArrayList<TetheredClient> updated = new ArrayList<>();
+        for (Map.Entry<MacAddress, TetheredClient> entry : mLastClientsMap.entrySet()) {
+            final TetheredClient client = withTrafficStats(entry.getValue());
+            if (client == entry.getValue()) continue;
+            entry.setValue(client);
+            updated.add(client);
+        }
+        return onClientsChanged(updated, Collections.emptyList());
+    }
+
+    @NonNull
+    private TetheredClient withTrafficStats(@NonNull TetheredClient client) {
+        final ForwardedStats stats = mTrafficStats.getOrDefault(client.getMacAddress(),
+                NO_TRAFFIC);
+        if (client.getRxBytes() == stats.rxBytes && client.getRxPackets() == stats.rxPackets
+                && client.getTxBytes() == stats.txBytes
+                && client.getTxPackets() == stats.txPackets) {
+            return client;
+        }
+        return client.withTrafficStats(stats.rxBytes, stats.rxPackets, stats.txBytes,
+                stats.txPackets);
+    }
+
+    /**
+     * Get the delay in milliseconds after which {@link #pruneExpiredClients} should next be
+     * called, or -1 if no client has an address that expires.
+     */
+    public long getNextExpirationDelayMs() {
+        if (mExpirations.isEmpty()) return -1;
+        return Math.max(0, mExpirations.peek().time - mClock.elapsedRealtime());
+    }
+
+    private boolean onClientsChanged(List<TetheredClient> updated, List<TetheredClient> removed) {
+        mLastUpdatedClients = Collections.unmodifiableList(updated);
+        mLastRemovedClients = Collections.unmodifiableList(removed);
+        if (updated.isEmpty() && removed.isEmpty()) return false;
+
+        // Drop the stale expirations once they outnumber the clients, so that the queue does not
+        // grow with the number of updates.
+        if (mExpirations.size() > 2 * mLastClientsMap.size() + MIN_EXPIRATIONS_TO_COMPACT) {
+            mExpirations.clear();
+            updated = new ArrayList<>(mLastClientsMap.values());
+        }
+        for (TetheredClient client : updated) {
+            final long expiration = getEarliestExpiration(client);
+            if (expiration == Long.MAX_VALUE) continue;
+            mExpirations.add(new ClientExpiration(client.getMacAddress(), expiration));
+        }
+
+        mLastTetheredClients = null;
+        return true;
+    }
+
+    private static long getEarliestExpiration(TetheredClient client) {
+        long earliest = Long.MAX_VALUE;
+        for (AddressInfo info : client.getAddresses()) {
+            earliest = Math.min(earliest, info.getExpirationTime());
+        }
+        return earliest;
     }
 
     private static void addLease(Map<MacAddress, TetheredClient> clientsMap, TetheredClient lease) {
@@ -141,9 +305,35 @@ public class ConnectedClientsTracker {
      */
     @NonNull
     public List<TetheredClient> getLastTetheredClients() {
+        if (mLastTetheredClients == null) {
+            mLastTetheredClients = Collections.unmodifiableList(
+                    new ArrayList<>(mLastClientsMap.values()));
+        }
         return mLastTetheredClients;
     }
 
+    /**
+     * Get the clients that were added or whose addresses changed in the last call to
+     * {@link #updateConnectedClients}.
+     *
+     * <p>The returned list is immutable.
+     */
+    @NonNull
+    public List<TetheredClient> getLastUpdatedClients() {
+        return mLastUpdatedClients;
+    }
+
+    /**
+     * Get the clients that were removed in the last call to {@link #updateConnectedClients}, as
+     * they were last reported.
+     *
+     * <p>The returned list is immutable.
+     */
+    @NonNull
+    public List<TetheredClient> getLastRemovedClients() {
+        return mLastRemovedClients;
+    }
+
     private static boolean hasExpiredAddress(List<AddressInfo> addresses, long now) {
         for (AddressInfo info : addresses) {
             if (info.getExpirationTime() <= now) {
@@ -0,0 +1,163 @@
+/*
+ * Copyright (C) 2021 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.networkstack.tethering;
+
+import static com.android.net.module.util.Inet4AddressUtils.inet4AddressToIntHTH;
+import static com.android.net.module.util.Inet4AddressUtils.prefixLengthToV4NetmaskIntHTH;
+
+import android.net.IpPrefix;
+import android.util.ArraySet;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.net.Inet4Address;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Index of IPv4 prefixes, each used by one or more owners, supporting overlap queries.
+ *
+ * Two IPv4 prefixes overlap iff. one contains the other. Prefixes are sorted by start address,
+ * so the prefixes contained in a given prefix are found with a range lookup, and the prefixes
+ * containing it with one lookup per prefix length in use. Queries cost O(log n) for n prefixes.
+ *
+ * This class is not thread-safe.
+ */
+class Ipv4PrefixIndex<T> {
+    private static final int MAX_PREFIX_LENGTH = 32;
+    // Keys hold the unsigned start address in the upper bits and the prefix length in the lower
+    // bits, so that prefixes with the same start address are all indexed.
+    private static final int LENGTH_BITS = 6;
+
+    private static class Entry<T> {
+        public final IpPrefix prefix;
+        public final ArraySet<T> owners = new ArraySet<>();
+
+        Entry(IpPrefix prefix) {
+            this.prefix = prefix;
+        }
+    }
+
+    private final TreeMap<Long, Entry<T>> mEntries = new TreeMap<>();
+    // Number of indexed prefixes for each prefix length.
+    private final int[] mLengthCounts = new int[MAX_PREFIX_LENGTH + 1];
+
+    private static long getStart(@NonNull IpPrefix prefix) {
+        return Integer.toUnsignedLong(inet4AddressToIntHTH((Inet4Address) prefix.getAddress()));
+    }
+
+    private static long getEnd(@NonNull IpPrefix prefix) {
+        return getStart(prefix) | Integer.toUnsignedLong(
+                ~prefixLengthToV4NetmaskIntHTH(prefix.getPrefixLength()));
+    }
+
+    private static long makeKey(long start, int prefixLength) {
+        return (start << LENGTH_BITS) | prefixLength;
+    }
+
+    /** Add an owner of the prefix. Non-IPv4 prefixes are ignored. */
+    public void add(@NonNull IpPrefix prefix, @NonNull T owner) {
+        if (!prefix.isIPv4()) return;
+        final long key = makeKey(getStart(prefix), prefix.getPrefixLength());
+        Entry<T> entry = mEntries.get(key);
+        if (entry == null) {
+            entry = new Entry<>(prefix);
+            mEntries.put(key, entry);
+            mLengthCounts[prefix.getPrefixLength()]++;
+        }
+        entry.owners.add(owner);
+    }
+
+    /** Remove an owner of the prefix. The prefix is removed once it has no owner. */
+    public void remove(@NonNull IpPrefix prefix, @NonNull T owner) {
+        if (!prefix.isIPv4()) return;
+        final long key = makeKey(getStart(prefix), prefix.getPrefixLength());
+        final Entry<T> entry = mEntries.get(key);
+        if (entry == null || !entry.owners.remove(owner) || !entry.owners.isEmpty()) return;
+        mEntries.remove(key);
+        mLengthCounts[prefix.getPrefixLength()]--;
+    }
+
+    /** Remove all the prefixes. */
+    public void clear() {
+        mEntries.clear();
+        for (int i = 0; i <= MAX_PREFIX_LENGTH; i++) mLengthCounts[i] = 0;
+    }
+
+    /** Get the number of indexed prefixes. */
+    public int size() {
+        return mEntries.size();
+    }
+
+    /**
+     * Get an indexed prefix overlapping with the given prefix, or null if there is none.
+     *
+     * If several indexed prefixes contain the given prefix, the shortest one is returned.
+     */
+    @Nullable
+    public IpPrefix findConflict(@NonNull IpPrefix prefix) {
+        if (!prefix.isIPv4()) return null;
+        final long start = getStart(prefix);
+        final int length = prefix.getPrefixLength();
+        for (int l = 0; l < length; l++) {
+            final Entry<T> entry = getContainingEntry(start, l);
+            if (entry != null) return entry.prefix;
+        }
+
+        final Map.Entry<Long, Entry<T>> next = mEntries.ceilingEntry(makeKey(start, length));
+        if (next == null || (next.getKey() >>> LENGTH_BITS) > getEnd(prefix)) return null;
+        return next.getValue().prefix;
+    }
+
+    /** Get the owners of all the indexed prefixes overlapping with the given prefix. */
+    @NonNull
+    public ArraySet<T> findConflictOwners(@NonNull IpPrefix prefix) {
+        final ArraySet<T> owners = new ArraySet<>();
+        if (!prefix.isIPv4()) return owners;
+        final long start = getStart(prefix);
+        final int length = prefix.getPrefixLength();
+        for (int l = 0; l < length; l++) {
+            final Entry<T> entry = getContainingEntry(start, l);
+            if (entry != null) owners.addAll(entry.owners);
+        }
+
+        // Prefixes starting within the given prefix and not shorter are contained in it.
+        for (Entry<T> entry : mEntries.subMap(makeKey(start, length), true,
+                makeKey(getEnd(prefix), MAX_PREFIX_LENGTH), true).values()) {
+            if (entry.prefix.getPrefixLength() < length) continue;
+            owners.addAll(entry.owners);
+        }
+        return owners;
+    }
+
+    @Nullable
+    private Entry<T> getContainingEntry(long start, int prefixLength) {
+        if (mLengthCounts[prefixLength] == 0) return null;
+        final long mask = Integer.toUnsignedLong(prefixLengthToV4NetmaskIntHTH(prefixLength));
+        return mEntries.get(makeKey(start & mask, prefixLength));
+    }
+
+    /** Get all the indexed prefixes, sorted by start address. */
+    @NonNull
+    public List<IpPrefix> getPrefixes() {
+        final ArrayList<IpPrefix> prefixes = new ArrayList<>(mEntries.size());
+        for (Entry<T> entry : mEntries.values()) prefixes.add(entry.prefix);
+        return prefixes;
+    }
+}
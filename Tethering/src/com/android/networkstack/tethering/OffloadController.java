@@ -45,6 +45,7 @@ import android.net.netlink.NetlinkSocket;
 import android.net.netstats.provider.NetworkStatsProvider;
 import android.net.util.SharedLog;
 import android.os.Handler;
+import android.os.SystemClock;
 import android.provider.Settings;
 import android.system.ErrnoException;
 import android.system.OsConstants;
@@ -62,6 +63,7 @@ import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Objects;
@@ -98,13 +100,20 @@ public class OffloadController {
     private boolean mConfigInitialized;
     private boolean mControlInitialized;
     private LinkProperties mUpstreamLinkProperties;
-    // The complete set of offload-exempt prefixes passed in via Tethering from
-    // all upstream and downstream sources.
-    private Set<IpPrefix> mExemptPrefixes;
-    // A strictly "smaller" set of prefixes, wherein offload-approved prefixes
-    // (e.g. downstream on-link prefixes) have been removed and replaced with
-    // prefixes representing only the locally-assigned IP addresses.
-    private Set<String> mLastLocalPrefixStrs;
+    // The offload-exempt prefixes passed in via Tethering from downstream and
+    // well-known sources.
+    private final Set<IpPrefix> mExemptPrefixes = new HashSet<>();
+    // The local prefixes of all upstream networks, maintained from the deltas
+    // sent by UpstreamNetworkMonitor.
+    private final Set<IpPrefix> mUpstreamNetworkPrefixes = new HashSet<>();
+    // The /128 prefixes of the global IPv6 addresses of the current upstream.
+    private final Set<IpPrefix> mUpstreamAddressPrefixes = new HashSet<>();
+    // Number of the sets above which contain each prefix. The keys are the
+    // local prefixes to push to the HAL.
+    private final HashMap<IpPrefix, Integer> mLocalPrefixRefCounts = new HashMap<>();
+    // Prefixes which were added to or removed from the local prefixes since
+    // they were last pushed to the HAL.
+    private final Set<IpPrefix> mUnpushedLocalPrefixChanges = new HashSet<>();
 
     // Maps upstream interface names to offloaded traffic statistics.
     // Always contains the latest value received from the hardware for each interface, regardless of
@@ -122,9 +131,11 @@ public class OffloadController {
     // quota is interface independent and global for tether offload. Note that this is only
     // accessed on the handler thread and in the constructor.
     private long mRemainingAlertQuota = QUOTA_UNLIMITED;
+    // Adapts the polling interval to the offloaded traffic and the remaining alert quota.
+    private final AdaptivePollingInterval mPollingInterval = new AdaptivePollingInterval();
     // Runnable that used to schedule the next stats poll.
     private final Runnable mScheduledPollingTask = () -> {
-        updateStatsForCurrentUpstream();
+        mPollingInterval.onPolled(updateStatsForCurrentUpstream(), SystemClock.elapsedRealtime());
         maybeSchedulePollingStats();
     };
 
@@ -148,8 +159,6 @@ public class OffloadController {
         mContentResolver = contentResolver;
         mLog = log.forSubComponent(TAG);
         mDownstreams = new HashMap<>();
-        mExemptPrefixes = new HashSet<>();
-        mLastLocalPrefixStrs = new HashSet<>();
         OffloadTetheringStatsProvider provider = new OffloadTetheringStatsProvider();
         try {
             nsm.registerNetworkStatsProvider(getClass().getSimpleName(), provider);
@@ -264,6 +273,7 @@ public class OffloadController {
             mLog.log("tethering offload started");
             mNatUpdateCallbacksReceived = 0;
             mNatUpdateNetlinkErrors = 0;
+            mPollingInterval.reset();
             maybeSchedulePollingStats();
         }
         return isStarted;
@@ -277,12 +287,14 @@ public class OffloadController {
         final boolean wasStarted = started();
         updateStatsForCurrentUpstream();
         mUpstreamLinkProperties = null;
+        updateUpstreamAddressPrefixes();
         mHwInterface.stopOffloadControl();
         mControlInitialized = false;
         mConfigInitialized = false;
         if (mHandler.hasCallbacks(mScheduledPollingTask)) {
             mHandler.removeCallbacks(mScheduledPollingTask);
         }
+        mPollingInterval.onPollingStopped();
         if (wasStarted) mLog.log("tethering offload stopped");
     }
 
@@ -376,6 +388,7 @@ public class OffloadController {
             // Post it to handler thread since it access remaining quota bytes.
             mHandler.post(() -> {
                 updateAlertQuota(quotaBytes);
+                mPollingInterval.reset();
                 maybeSchedulePollingStats();
             });
         }
@@ -386,9 +399,10 @@ public class OffloadController {
                 ? mUpstreamLinkProperties.getInterfaceName() : null;
     }
 
-    private void maybeUpdateStats(String iface) {
+    // Returns the number of bytes forwarded on the interface since the previous update.
+    private long maybeUpdateStats(String iface) {
         if (TextUtils.isEmpty(iface)) {
-            return;
+            return 0;
         }
 
         // Always called on the handler thread.
@@ -415,6 +429,7 @@ public class OffloadController {
         mForwardedStats.put(iface, diff);
         // diff is a new object, just created by getForwardedStats(). Therefore, anyone reading from
         // mForwardedStats (i.e., any caller of getTetherStats) will see the new stats immediately.
+        return usedAlertQuota;
     }
 
     /**
@@ -451,8 +466,8 @@ public class OffloadController {
         if (mHandler.hasCallbacks(mScheduledPollingTask)) {
             mHandler.removeCallbacks(mScheduledPollingTask);
         }
-        mHandler.postDelayed(mScheduledPollingTask,
-                mDeps.getTetherConfig().getOffloadPollInterval());
+        mHandler.postDelayed(mScheduledPollingTask, mPollingInterval.getNextDelayMs(
+                mDeps.getTetherConfig().getOffloadPollInterval(), mRemainingAlertQuota));
     }
 
     private boolean isPollingStatsNeeded() {
@@ -477,8 +492,8 @@ public class OffloadController {
         return mHwInterface.setDataLimit(iface, limit);
     }
 
-    private void updateStatsForCurrentUpstream() {
-        maybeUpdateStats(currentUpstreamInterface());
+    private long updateStatsForCurrentUpstream() {
+        return maybeUpdateStats(currentUpstreamInterface());
     }
 
     private void updateStatsForAllUpstreams() {
@@ -501,7 +516,9 @@ public class OffloadController {
         // Make sure we record this interface in the ForwardedStats map.
         final String iface = currentUpstreamInterface();
         if (!TextUtils.isEmpty(iface)) mForwardedStats.putIfAbsent(iface, EMPTY_STATS);
+        updateUpstreamAddressPrefixes();
 
+        mPollingInterval.reset();
         maybeSchedulePollingStats();
 
         // TODO: examine return code and decide what to do if programming
@@ -512,9 +529,33 @@ public class OffloadController {
         pushUpstreamParameters(prevUpstream);
     }
 
-    /** Set local prefixes. */
+    /**
+     * Set the local prefixes of downstream and well-known sources. The local prefixes of the
+     * upstream networks are passed separately, see #updateUpstreamLocalPrefixes.
+     */
     public void setLocalPrefixes(Set<IpPrefix> localPrefixes) {
-        mExemptPrefixes = localPrefixes;
+        replaceLocalPrefixes(mExemptPrefixes, localPrefixes);
+
+        if (!started()) return;
+        computeAndPushLocalPrefixes(UpdateType.IF_NEEDED);
+    }
+
+    /** Set the local prefixes of all upstream networks. */
+    public void setUpstreamLocalPrefixes(Set<IpPrefix> localPrefixes) {
+        replaceLocalPrefixes(mUpstreamNetworkPrefixes, localPrefixes);
+
+        if (!started()) return;
+        computeAndPushLocalPrefixes(UpdateType.IF_NEEDED);
+    }
+
+    /** Add and remove local prefixes of upstream networks. */
+    public void updateUpstreamLocalPrefixes(Set<IpPrefix> added, Set<IpPrefix> removed) {
+        for (IpPrefix prefix : removed) {
+            if (mUpstreamNetworkPrefixes.remove(prefix)) releaseLocalPrefix(prefix);
+        }
+        for (IpPrefix prefix : added) {
+            if (mUpstreamNetworkPrefixes.add(prefix)) acquireLocalPrefix(prefix);
+        }
 
         if (!started()) return;
         computeAndPushLocalPrefixes(UpdateType.IF_NEEDED);
@@ -641,19 +682,21 @@ public class OffloadController {
 
     private boolean computeAndPushLocalPrefixes(UpdateType how) {
         final boolean force = (how == UpdateType.FORCE);
-        final Set<String> localPrefixStrs = computeLocalPrefixStrings(
-                mExemptPrefixes, mUpstreamLinkProperties);
-        if (!force && mLastLocalPrefixStrs.equals(localPrefixStrs)) return true;
+        if (!force && mUnpushedLocalPrefixChanges.isEmpty()) return true;
 
-        mLastLocalPrefixStrs = localPrefixStrs;
-        return mHwInterface.setLocalPrefixes(new ArrayList<>(localPrefixStrs));
+        mUnpushedLocalPrefixChanges.clear();
+        return mHwInterface.setLocalPrefixes(getLocalPrefixStrings());
+    }
+
+    private ArrayList<String> getLocalPrefixStrings() {
+        final ArrayList<String> localPrefixStrs = new ArrayList<>(mLocalPrefixRefCounts.size());
+        for (IpPrefix pfx : mLocalPrefixRefCounts.keySet()) localPrefixStrs.add(pfx.toString());
+        return localPrefixStrs;
     }
 
     // TODO: Factor in downstream LinkProperties once that information is available.
-    private static Set<String> computeLocalPrefixStrings(
-            Set<IpPrefix> localPrefixes, LinkProperties upstreamLinkProperties) {
-        // Create an editable copy.
-        final Set<IpPrefix> prefixSet = new HashSet<>(localPrefixes);
+    private void updateUpstreamAddressPrefixes() {
+        final Set<IpPrefix> prefixSet = new HashSet<>();
 
         // TODO: If a downstream interface (not currently passed in) is reusing
         // the /64 of the upstream (64share) then:
@@ -664,8 +707,8 @@ public class OffloadController {
         //
         // Until downstream information is available here, simply add /128s from
         // the upstream network; they'll just be redundant with their /64.
-        if (upstreamLinkProperties != null) {
-            for (LinkAddress linkAddr : upstreamLinkProperties.getLinkAddresses()) {
+        if (mUpstreamLinkProperties != null) {
+            for (LinkAddress linkAddr : mUpstreamLinkProperties.getLinkAddresses()) {
                 if (!linkAddr.isGlobalPreferred()) continue;
                 final InetAddress ip = linkAddr.getAddress();
                 if (!(ip instanceof Inet6Address)) continue;
@@ -673,9 +716,44 @@ public class OffloadController {
             }
         }
 
-        final HashSet<String> localPrefixStrs = new HashSet<>();
-        for (IpPrefix pfx : prefixSet) localPrefixStrs.add(pfx.toString());
-        return localPrefixStrs;
+        replaceLocalPrefixes(mUpstreamAddressPrefixes, prefixSet);
+    }
+
+    // Replace the contents of one of the sources of local prefixes, only updating the reference
+    // counts of the prefixes which changed.
+    private void replaceLocalPrefixes(Set<IpPrefix> source, Set<IpPrefix> prefixes) {
+        final Iterator<IpPrefix> it = source.iterator();
+        while (it.hasNext()) {
+            final IpPrefix prefix = it.next();
+            if (prefixes.contains(prefix)) continue;
+            it.remove();
+            releaseLocalPrefix(prefix);
+        }
+        for (IpPrefix prefix : prefixes) {
+            if (source.add(prefix)) acquireLocalPrefix(prefix);
+        }
+    }
+
+    private void acquireLocalPrefix(IpPrefix prefix) {
+        final int count = mLocalPrefixRefCounts.getOrDefault(prefix, 0);
+        mLocalPrefixRefCounts.put(prefix, count + 1);
+        if (count == 0) onLocalPrefixChanged(prefix);
+    }
+
+    private void releaseLocalPrefix(IpPrefix prefix) {
+        final Integer count = mLocalPrefixRefCounts.get(prefix);
+        if (count == null) return;
+        if (count > 1) {
+            mLocalPrefixRefCounts.put(prefix, count - 1);
+            return;
+        }
+        mLocalPrefixRefCounts.remove(prefix);
+        onLocalPrefixChanged(prefix);
+    }
+
+    private void onLocalPrefixChanged(IpPrefix prefix) {
+        // A prefix which is added and then removed again before the next push is not a change.
+        if (!mUnpushedLocalPrefixChanges.remove(prefix)) mUnpushedLocalPrefixChanges.add(prefix);
     }
 
     private static boolean shouldIgnoreDownstreamRoute(RouteInfo route) {
@@ -699,7 +777,7 @@ public class OffloadController {
         LinkProperties lp = mUpstreamLinkProperties;
         String upstream = (lp != null) ? lp.getInterfaceName() : null;
         pw.println("Current upstream: " + upstream);
-        pw.println("Exempt prefixes: " + mLastLocalPrefixStrs);
+        pw.println("Exempt prefixes: " + getLocalPrefixStrings());
         pw.println("NAT timeout update callbacks received during the "
                 + (isStarted ? "current" : "last")
                 + " offload session: "
@@ -708,6 +786,8 @@ public class OffloadController {
                 + (isStarted ? "current" : "last")
                 + " offload session: "
                 + mNatUpdateNetlinkErrors);
+        pw.println("Next stats poll after " + mPollingInterval.getLastDelayMs() + " ms"
+                + (mPollingInterval.isBackedOff() ? " (idle)" : ""));
     }
 
     private void updateNatTimeout(
@@ -788,7 +868,7 @@ public class OffloadController {
         return null;
     }
 
-    private static int connectionTimeoutUpdateSecondsFor(int proto) {
+    static int connectionTimeoutUpdateSecondsFor(int proto) {
         // TODO: Replace this with more thoughtful work, perhaps reading from
         // and maybe writing to any required
         //
@@ -36,7 +36,6 @@ import android.util.ArrayMap;
 import android.util.ArraySet;
 import android.util.SparseArray;
 
-import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
 
 import com.android.internal.annotations.VisibleForTesting;
@@ -70,7 +69,8 @@ public class PrivateAddressCoordinator {
     // when tethering is down. Instead tethering would remove all deprecated upstreams from
     // mUpstreamPrefixMap when tethering is starting. See #maybeRemoveDeprecatedUpstreams().
     private final ArrayMap<Network, List<IpPrefix>> mUpstreamPrefixMap;
-    private final ArraySet<IpServer> mDownstreams;
+    // Prefixes of the addresses assigned to the downstreams, keyed by downstream.
+    private final ArrayMap<IpServer, IpPrefix> mDownstreams;
     private static final String LEGACY_WIFI_P2P_IFACE_ADDRESS = "192.168.49.1/24";
     private static final String LEGACY_BLUETOOTH_IFACE_ADDRESS = "192.168.44.1/24";
     private final List<IpPrefix> mTetheringPrefixes;
@@ -78,17 +78,26 @@ public class PrivateAddressCoordinator {
     private final TetheringConfiguration mConfig;
     // keyed by downstream type(TetheringManager.TETHERING_*).
     private final SparseArray<LinkAddress> mCachedAddresses;
+    // Indexes of the prefixes in mUpstreamPrefixMap, mCachedAddresses and mDownstreams, so that
+    // conflicts can be found without iterating over all the recorded prefixes.
+    private final Ipv4PrefixIndex<Network> mUpstreamIndex = new Ipv4PrefixIndex<>();
+    private final Ipv4PrefixIndex<Integer> mCachedIndex = new Ipv4PrefixIndex<>();
+    private final Ipv4PrefixIndex<IpServer> mDownstreamIndex = new Ipv4PrefixIndex<>();
+    // Number of candidate prefixes checked for conflicts by the last address request, and by all
+    // address requests.
+    private int mLastProbeCount;
+    private long mTotalProbeCount;
 
     public PrivateAddressCoordinator(Context context, TetheringConfiguration config) {
-        mDownstreams = new ArraySet<>();
+        mDownstreams = new ArrayMap<>();
         mUpstreamPrefixMap = new ArrayMap<>();
         mConnectivityMgr = (ConnectivityManager) context.getSystemService(
                 Context.CONNECTIVITY_SERVICE);
         mConfig = config;
         mCachedAddresses = new SparseArray<>();
         // Reserved static addresses for bluetooth and wifi p2p.
-        mCachedAddresses.put(TETHERING_BLUETOOTH, new LinkAddress(LEGACY_BLUETOOTH_IFACE_ADDRESS));
-        mCachedAddresses.put(TETHERING_WIFI_P2P, new LinkAddress(LEGACY_WIFI_P2P_IFACE_ADDRESS));
+        putCachedAddress(TETHERING_BLUETOOTH, new LinkAddress(LEGACY_BLUETOOTH_IFACE_ADDRESS));
+        putCachedAddress(TETHERING_WIFI_P2P, new LinkAddress(LEGACY_WIFI_P2P_IFACE_ADDRESS));
 
         mTetheringPrefixes = new ArrayList<>(Arrays.asList(new IpPrefix("192.168.0.0/16")));
         if (config.isSelectAllPrefixRangeEnabled()) {
@@ -117,7 +126,9 @@ public class PrivateAddressCoordinator {
             return;
         }
 
+        removeUpstreamPrefix(ns.network);
         mUpstreamPrefixMap.put(ns.network, ipv4Prefixes);
+        for (IpPrefix prefix : ipv4Prefixes) mUpstreamIndex.add(prefix, ns.network);
         handleMaybePrefixConflict(ipv4Prefixes);
     }
 
@@ -133,21 +144,22 @@ public class PrivateAddressCoordinator {
     }
 
     private void handleMaybePrefixConflict(final List<IpPrefix> prefixes) {
-        for (IpServer downstream : mDownstreams) {
-            final IpPrefix target = getDownstreamPrefix(downstream);
-
-            for (IpPrefix source : prefixes) {
-                if (isConflictPrefix(source, target)) {
-                    downstream.sendMessage(IpServer.CMD_NOTIFY_PREFIX_CONFLICT);
-                    break;
-                }
-            }
+        final ArraySet<IpServer> conflicts = new ArraySet<>();
+        for (IpPrefix source : prefixes) {
+            conflicts.addAll(mDownstreamIndex.findConflictOwners(source));
+        }
+
+        for (IpServer downstream : conflicts) {
+            downstream.sendMessage(IpServer.CMD_NOTIFY_PREFIX_CONFLICT);
         }
     }
 
     /** Remove IpPrefix records corresponding to input network. */
     public void removeUpstreamPrefix(final Network network) {
-        mUpstreamPrefixMap.remove(network);
+        final List<IpPrefix> prefixes = mUpstreamPrefixMap.remove(network);
+        if (prefixes == null) return;
+
+        for (IpPrefix prefix : prefixes) mUpstreamIndex.remove(prefix, network);
     }
 
     /**
@@ -161,7 +173,7 @@ public class PrivateAddressCoordinator {
         final Set<Network> toBeRemoved = new HashSet<>(mUpstreamPrefixMap.keySet());
         toBeRemoved.removeAll(asList(mConnectivityMgr.getAllNetworks()));
 
-        mUpstreamPrefixMap.removeAll(toBeRemoved);
+        for (Network network : toBeRemoved) removeUpstreamPrefix(network);
     }
 
     /**
@@ -178,15 +190,16 @@ public class PrivateAddressCoordinator {
         final LinkAddress cachedAddress = mCachedAddresses.get(ipServer.interfaceType());
         if (useLastAddress && cachedAddress != null
                 && !isConflictWithUpstream(asIpPrefix(cachedAddress))) {
-            mDownstreams.add(ipServer);
+            addDownstream(ipServer, cachedAddress);
             return cachedAddress;
         }
 
+        mLastProbeCount = 0;
         for (IpPrefix prefixRange : mTetheringPrefixes) {
             final LinkAddress newAddress = chooseDownstreamAddress(prefixRange);
             if (newAddress != null) {
-                mDownstreams.add(ipServer);
-                mCachedAddresses.put(ipServer.interfaceType(), newAddress);
+                addDownstream(ipServer, newAddress);
+                putCachedAddress(ipServer.interfaceType(), newAddress);
                 return newAddress;
             }
         }
@@ -195,6 +208,20 @@ public class PrivateAddressCoordinator {
         return null;
     }
 
+    private void addDownstream(final IpServer ipServer, final LinkAddress address) {
+        releaseDownstream(ipServer);
+        final IpPrefix prefix = asIpPrefix(address);
+        mDownstreams.put(ipServer, prefix);
+        mDownstreamIndex.add(prefix, ipServer);
+    }
+
+    private void putCachedAddress(final int type, final LinkAddress address) {
+        final LinkAddress oldAddress = mCachedAddresses.get(type);
+        if (oldAddress != null) mCachedIndex.remove(asIpPrefix(oldAddress), type);
+        mCachedAddresses.put(type, address);
+        mCachedIndex.add(asIpPrefix(address), type);
+    }
+
     private int getPrefixBaseAddress(final IpPrefix prefix) {
         return inet4AddressToIntHTH((Inet4Address) prefix.getAddress());
     }
@@ -291,6 +318,8 @@ public class PrivateAddressCoordinator {
         while (newSubPrefix < end) {
             final InetAddress address = intToInet4AddressHTH(baseAddress | newSubPrefix);
             final IpPrefix prefix = new IpPrefix(address, PREFIX_LENGTH);
+            mLastProbeCount++;
+            mTotalProbeCount++;
 
             final IpPrefix conflictPrefix = getConflictPrefix(prefix);
 
@@ -328,60 +357,42 @@ public class PrivateAddressCoordinator {
 
     /** Release downstream record for IpServer. */
     public void releaseDownstream(final IpServer ipServer) {
-        mDownstreams.remove(ipServer);
+        final IpPrefix prefix = mDownstreams.remove(ipServer);
+        if (prefix != null) mDownstreamIndex.remove(prefix, ipServer);
     }
 
     /** Clear current upstream prefixes records. */
     public void clearUpstreamPrefixes() {
         mUpstreamPrefixMap.clear();
+        mUpstreamIndex.clear();
+    }
+
+    /**
+     * Get the number of candidate prefixes checked for conflicts by the last address request that
+     * had to choose a new address.
+     */
+    @VisibleForTesting
+    public int getLastProbeCount() {
+        return mLastProbeCount;
     }
 
     private IpPrefix getConflictWithUpstream(final IpPrefix prefix) {
-        for (int i = 0; i < mUpstreamPrefixMap.size(); i++) {
-            final List<IpPrefix> list = mUpstreamPrefixMap.valueAt(i);
-            for (IpPrefix upstream : list) {
-                if (isConflictPrefix(prefix, upstream)) return upstream;
-            }
-        }
-        return null;
+        return mUpstreamIndex.findConflict(prefix);
     }
 
     private boolean isConflictWithUpstream(final IpPrefix prefix) {
         return getConflictWithUpstream(prefix) != null;
     }
 
-    private boolean isConflictPrefix(final IpPrefix prefix1, final IpPrefix prefix2) {
-        if (prefix2.getPrefixLength() < prefix1.getPrefixLength()) {
-            return prefix2.contains(prefix1.getAddress());
-        }
-
-        return prefix1.contains(prefix2.getAddress());
-    }
-
     // InUse Prefixes are prefixes of mCachedAddresses which are active downstream addresses, last
     // downstream addresses(reserved for next time) and static addresses(e.g. bluetooth, wifi p2p).
     private IpPrefix getInUseDownstreamPrefix(final IpPrefix prefix) {
-        for (int i = 0; i < mCachedAddresses.size(); i++) {
-            final IpPrefix downstream = asIpPrefix(mCachedAddresses.valueAt(i));
-            if (isConflictPrefix(prefix, downstream)) return downstream;
-        }
-
-        // IpServer may use manually-defined address (mStaticIpv4ServerAddr) which does not include
-        // in mCachedAddresses.
-        for (IpServer downstream : mDownstreams) {
-            final IpPrefix target = getDownstreamPrefix(downstream);
+        final IpPrefix cached = mCachedIndex.findConflict(prefix);
+        if (cached != null) return cached;
 
-            if (isConflictPrefix(prefix, target)) return target;
-        }
-
-        return null;
-    }
-
-    @NonNull
-    private IpPrefix getDownstreamPrefix(final IpServer downstream) {
-        final LinkAddress address = downstream.getAddress();
-
-        return asIpPrefix(address);
+        // Addresses of the downstreams may have been replaced in mCachedAddresses by a later
+        // request for a downstream of the same type.
+        return mDownstreamIndex.findConflict(prefix);
     }
 
     void dump(final IndentingPrintWriter pw) {
@@ -401,7 +412,8 @@ public class PrivateAddressCoordinator {
 
         pw.println("mDownstreams:");
         pw.increaseIndent();
-        for (IpServer ipServer : mDownstreams) {
+        for (int i = 0; i < mDownstreams.size(); i++) {
+            final IpServer ipServer = mDownstreams.keyAt(i);
             pw.println(ipServer.interfaceType() + " - " + ipServer.getAddress());
         }
         pw.decreaseIndent();
@@ -412,5 +424,8 @@ public class PrivateAddressCoordinator {
             pw.println(mCachedAddresses.keyAt(i) + " - " + mCachedAddresses.valueAt(i));
         }
         pw.decreaseIndent();
+
+        pw.println("Candidate prefixes probed: " + mLastProbeCount + " last request, "
+                + mTotalProbeCount + " total");
     }
 }
@@ -16,6 +16,14 @@
 
 package com.android.networkstack.tethering;
 
+import static com.android.networkstack.tethering.BpfStructCodecs.getBe16;
+import static com.android.networkstack.tethering.BpfStructCodecs.getBytes;
+import static com.android.networkstack.tethering.BpfStructCodecs.getMac;
+import static com.android.networkstack.tethering.BpfStructCodecs.getU32;
+import static com.android.networkstack.tethering.BpfStructCodecs.putBe16;
+import static com.android.networkstack.tethering.BpfStructCodecs.putZeros;
+import static com.android.networkstack.tethering.BpfStructCodecs.skip;
+
 import android.net.MacAddress;
 
 import androidx.annotation.NonNull;
@@ -26,6 +34,7 @@ import com.android.net.module.util.Struct.Type;
 
 import java.net.Inet4Address;
 import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
 import java.util.Objects;
 
 /** Key type for downstream & upstream IPv4 forwarding maps. */
@@ -65,6 +74,52 @@ public class Tether4Key extends Struct {
         this.dstPort = dstPort;
     }
 
+    /** Write this key at the current position of the buffer, without reflection. */
+    public void encode(@NonNull ByteBuffer buf) {
+        encode(buf, iif, dstMac.toByteArray(), l4proto, src4, dst4, srcPort, dstPort);
+    }
+
+    /**
+     * Write a key built from the given fields at the current position of the buffer, without
+     * creating a Tether4Key object.
+     */
+    public static void encode(@NonNull ByteBuffer buf, long iif, @NonNull byte[] dstMac,
+            short l4proto, @NonNull byte[] src4, @NonNull byte[] dst4, int srcPort,
+            int dstPort) {
+        buf.putInt((int) iif);
+        buf.put(dstMac);
+        buf.put((byte) l4proto);
+        putZeros(buf, 1);
+        buf.put(src4);
+        buf.put(dst4);
+        putBe16(buf, srcPort);
+        putBe16(buf, dstPort);
+    }
+
+    /** Read a key at the current position of the buffer, without reflection. */
+    @NonNull
+    public static Tether4Key decode(@NonNull ByteBuffer buf) {
+        final long iif = getU32(buf);
+        final MacAddress dstMac = getMac(buf);
+        final short l4proto = (short) (buf.get() & 0xff);
+        skip(buf, 1);
+        final byte[] src4 = getBytes(buf, 4);
+        final byte[] dst4 = getBytes(buf, 4);
+        final int srcPort = getBe16(buf);
+        final int dstPort = getBe16(buf);
+        return new Tether4Key(iif, dstMac, l4proto, src4, dst4, srcPort, dstPort);
+    }
+
+    /** Read the input interface index of a key in the buffer, without moving its position. */
+    public static long getIif(@NonNull ByteBuffer buf) {
+        return getIif(buf, buf.position());
+    }
+
+    /** Read the input interface index of a key at the given offset of the buffer. */
+    public static long getIif(@NonNull ByteBuffer buf, int offset) {
+        return Integer.toUnsignedLong(buf.getInt(offset));
+    }
+
     @Override
     public String toString() {
         try {
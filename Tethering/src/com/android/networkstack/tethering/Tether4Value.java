@@ -16,6 +16,13 @@
 
 package com.android.networkstack.tethering;
 
+import static com.android.networkstack.tethering.BpfStructCodecs.getBe16;
+import static com.android.networkstack.tethering.BpfStructCodecs.getBytes;
+import static com.android.networkstack.tethering.BpfStructCodecs.getMac;
+import static com.android.networkstack.tethering.BpfStructCodecs.getU16;
+import static com.android.networkstack.tethering.BpfStructCodecs.getU32;
+import static com.android.networkstack.tethering.BpfStructCodecs.putBe16;
+
 import android.net.MacAddress;
 
 import androidx.annotation.NonNull;
@@ -26,6 +33,7 @@ import com.android.net.module.util.Struct.Type;
 
 import java.net.InetAddress;
 import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
 import java.util.Objects;
 
 /** Value type for downstream & upstream IPv4 forwarding maps. */
@@ -79,6 +87,48 @@ public class Tether4Value extends Struct {
         this.lastUsed = lastUsed;
     }
 
+    /** Write this value at the current position of the buffer, without reflection. */
+    public void encode(@NonNull ByteBuffer buf) {
+        encode(buf, oif, ethDstMac.toByteArray(), ethSrcMac.toByteArray(), ethProto, pmtu,
+                src46, dst46, srcPort, dstPort, lastUsed);
+    }
+
+    /**
+     * Write a value built from the given fields at the current position of the buffer, without
+     * creating a Tether4Value object.
+     */
+    public static void encode(@NonNull ByteBuffer buf, long oif, @NonNull byte[] ethDstMac,
+            @NonNull byte[] ethSrcMac, int ethProto, int pmtu, @NonNull byte[] src46,
+            @NonNull byte[] dst46, int srcPort, int dstPort, long lastUsed) {
+        buf.putInt((int) oif);
+        buf.put(ethDstMac);
+        buf.put(ethSrcMac);
+        putBe16(buf, ethProto);
+        buf.putShort((short) pmtu);
+        buf.put(src46);
+        buf.put(dst46);
+        putBe16(buf, srcPort);
+        putBe16(buf, dstPort);
+        buf.putLong(lastUsed);
+    }
+
+    /** Read a value at the current position of the buffer, without reflection. */
+    @NonNull
+    public static Tether4Value decode(@NonNull ByteBuffer buf) {
+        final long oif = getU32(buf);
+        final MacAddress ethDstMac = getMac(buf);
+        final MacAddress ethSrcMac = getMac(buf);
+        final int ethProto = getBe16(buf);
+        final int pmtu = getU16(buf);
+        final byte[] src46 = getBytes(buf, 16);
+        final byte[] dst46 = getBytes(buf, 16);
+        final int srcPort = getBe16(buf);
+        final int dstPort = getBe16(buf);
+        final long lastUsed = buf.getLong();
+        return new Tether4Value(oif, ethDstMac, ethSrcMac, ethProto, pmtu, src46, dst46,
+                srcPort, dstPort, lastUsed);
+    }
+
     @Override
     public String toString() {
         try {
@@ -16,12 +16,18 @@
 
 package com.android.networkstack.tethering;
 
+import static com.android.networkstack.tethering.BpfStructCodecs.getBe16;
+import static com.android.networkstack.tethering.BpfStructCodecs.getMac;
+import static com.android.networkstack.tethering.BpfStructCodecs.getU16;
+import static com.android.networkstack.tethering.BpfStructCodecs.putBe16;
+
 import android.net.MacAddress;
 
 import androidx.annotation.NonNull;
 
 import com.android.net.module.util.Struct;
 
+import java.nio.ByteBuffer;
 import java.util.Objects;
 
 /** Value type for downstream and upstream IPv6 forwarding maps. */
@@ -52,6 +58,26 @@ public class Tether6Value extends Struct {
         this.pmtu = pmtu;
     }
 
+    /** Write this value at the current position of the buffer, without reflection. */
+    public void encode(@NonNull ByteBuffer buf) {
+        buf.putInt(oif);
+        buf.put(ethDstMac.toByteArray());
+        buf.put(ethSrcMac.toByteArray());
+        putBe16(buf, ethProto);
+        buf.putShort((short) pmtu);
+    }
+
+    /** Read a value at the current position of the buffer, without reflection. */
+    @NonNull
+    public static Tether6Value decode(@NonNull ByteBuffer buf) {
+        final int oif = buf.getInt();
+        final MacAddress ethDstMac = getMac(buf);
+        final MacAddress ethSrcMac = getMac(buf);
+        final int ethProto = getBe16(buf);
+        final int pmtu = getU16(buf);
+        return new Tether6Value(oif, ethDstMac, ethSrcMac, ethProto, pmtu);
+    }
+
     @Override
     public String toString() {
         return String.format("oif: %d, dstMac: %s, srcMac: %s, proto: %d, pmtu: %d", oif,
@@ -0,0 +1,77 @@
+/*
+ * Copyright (C) 2021 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.networkstack.tethering;
+
+import androidx.annotation.NonNull;
+
+import com.android.net.module.util.Struct;
+import com.android.net.module.util.Struct.Field;
+import com.android.net.module.util.Struct.Type;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Value type for the per-client tethering rate limit map. Holds one token bucket in each
+ * direction, rx for the traffic sent to the client and tx for the traffic sent by the client.
+ * The network stack only writes the rate and burst size, the tokens and refill times are
+ * maintained by the BPF programs.
+ */
+public class TetherClientRateLimitValue extends Struct {
+    @Field(order = 0, type = Type.U63)
+    public final long rateBytesPerSec; // Token refill rate.
+    @Field(order = 1, type = Type.U63)
+    public final long burstBytes; // Bucket size.
+    @Field(order = 2, type = Type.U63)
+    public final long fillTimeNs; // Time to refill an empty bucket.
+    @Field(order = 3, type = Type.U63)
+    public final long rxTokens;
+    @Field(order = 4, type = Type.U63)
+    public final long rxLastRefill; // Kernel updates on each refill with bpf_ktime_get_ns().
+    @Field(order = 5, type = Type.U63)
+    public final long txTokens;
+    @Field(order = 6, type = Type.U63)
+    public final long txLastRefill; // Kernel updates on each refill with bpf_ktime_get_ns().
+
+    public TetherClientRateLimitValue(final long rateBytesPerSec, final long burstBytes,
+            final long fillTimeNs, final long rxTokens, final long rxLastRefill,
+            final long txTokens, final long txLastRefill) {
+        this.rateBytesPerSec = rateBytesPerSec;
+        this.burstBytes = burstBytes;
+        this.fillTimeNs = fillTimeNs;
+        this.rxTokens = rxTokens;
+        this.rxLastRefill = rxLastRefill;
+        this.txTokens = txTokens;
+        this.txLastRefill = txLastRefill;
+    }
+
+    /** Write this value at the current position of the buffer, without reflection. */
+    public void encode(@NonNull ByteBuffer buf) {
+        buf.putLong(rateBytesPerSec);
+        buf.putLong(burstBytes);
+        buf.putLong(fillTimeNs);
+        buf.putLong(rxTokens);
+        buf.putLong(rxLastRefill);
+        buf.putLong(txTokens);
+        buf.putLong(txLastRefill);
+    }
+
+    /** Read a value at the current position of the buffer, without reflection. */
+    @NonNull
+    public static TetherClientRateLimitValue decode(@NonNull ByteBuffer buf) {
+        return new TetherClientRateLimitValue(buf.getLong(), buf.getLong(), buf.getLong(),
+                buf.getLong(), buf.getLong(), buf.getLong(), buf.getLong());
+    }
+}
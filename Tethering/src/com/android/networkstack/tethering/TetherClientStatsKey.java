@@ -0,0 +1,61 @@
+/*
+ * Copyright (C) 2021 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.networkstack.tethering;
+
+import static com.android.networkstack.tethering.BpfStructCodecs.getMac;
+import static com.android.networkstack.tethering.BpfStructCodecs.putZeros;
+import static com.android.networkstack.tethering.BpfStructCodecs.skip;
+
+import android.net.MacAddress;
+
+import androidx.annotation.NonNull;
+
+import com.android.net.module.util.Struct;
+
+import java.nio.ByteBuffer;
+import java.util.Objects;
+
+/** Key type for the per-client tethering stats map. */
+public class TetherClientStatsKey extends Struct {
+    @Field(order = 0, type = Type.S32)
+    public final int downstreamIfindex; // The downstream interface index.
+
+    @Field(order = 1, type = Type.EUI48, padding = 2)
+    public final MacAddress clientMac; // Client ethernet mac address.
+
+    public TetherClientStatsKey(int downstreamIfindex, @NonNull final MacAddress clientMac) {
+        Objects.requireNonNull(clientMac);
+
+        this.downstreamIfindex = downstreamIfindex;
+        this.clientMac = clientMac;
+    }
+
+    /** Write this key at the current position of the buffer, without reflection. */
+    public void encode(@NonNull ByteBuffer buf) {
+        buf.putInt(downstreamIfindex);
+        buf.put(clientMac.toByteArray());
+        putZeros(buf, 2);
+    }
+
+    /** Read a key at the current position of the buffer, without reflection. */
+    @NonNull
+    public static TetherClientStatsKey decode(@NonNull ByteBuffer buf) {
+        final int downstreamIfindex = buf.getInt();
+        final MacAddress clientMac = getMac(buf);
+        skip(buf, 2);
+        return new TetherClientStatsKey(downstreamIfindex, clientMac);
+    }
+}
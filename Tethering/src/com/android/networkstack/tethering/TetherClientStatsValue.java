@@ -0,0 +1,63 @@
+/*
+ * Copyright (C) 2021 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.networkstack.tethering;
+
+import androidx.annotation.NonNull;
+
+import com.android.net.module.util.Struct;
+import com.android.net.module.util.Struct.Field;
+import com.android.net.module.util.Struct.Type;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Value type for the per-client tethering stats map. rx is the traffic sent to the client, and
+ * tx the traffic sent by the client, as in TetherStatsValue.
+ */
+public class TetherClientStatsValue extends Struct {
+    // See TetherStatsValue.
+    @Field(order = 0, type = Type.U63)
+    public final long rxPackets;
+    @Field(order = 1, type = Type.U63)
+    public final long rxBytes;
+    @Field(order = 2, type = Type.U63)
+    public final long txPackets;
+    @Field(order = 3, type = Type.U63)
+    public final long txBytes;
+
+    public TetherClientStatsValue(final long rxPackets, final long rxBytes,
+            final long txPackets, final long txBytes) {
+        this.rxPackets = rxPackets;
+        this.rxBytes = rxBytes;
+        this.txPackets = txPackets;
+        this.txBytes = txBytes;
+    }
+
+    /** Write this value at the current position of the buffer, without reflection. */
+    public void encode(@NonNull ByteBuffer buf) {
+        buf.putLong(rxPackets);
+        buf.putLong(rxBytes);
+        buf.putLong(txPackets);
+        buf.putLong(txBytes);
+    }
+
+    /** Read a value at the current position of the buffer, without reflection. */
+    @NonNull
+    public static TetherClientStatsValue decode(@NonNull ByteBuffer buf) {
+        return new TetherClientStatsValue(buf.getLong(), buf.getLong(), buf.getLong(),
+                buf.getLong());
+    }
+}
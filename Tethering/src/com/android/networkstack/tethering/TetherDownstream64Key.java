@@ -0,0 +1,131 @@
+/*
+ * Copyright (C) 2021 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.networkstack.tethering;
+
+import static com.android.networkstack.tethering.BpfStructCodecs.getBe16;
+import static com.android.networkstack.tethering.BpfStructCodecs.getBytes;
+import static com.android.networkstack.tethering.BpfStructCodecs.getMac;
+import static com.android.networkstack.tethering.BpfStructCodecs.getU32;
+import static com.android.networkstack.tethering.BpfStructCodecs.putBe16;
+import static com.android.networkstack.tethering.BpfStructCodecs.putZeros;
+import static com.android.networkstack.tethering.BpfStructCodecs.skip;
+
+import android.net.MacAddress;
+
+import androidx.annotation.NonNull;
+
+import com.android.net.module.util.Struct;
+import com.android.net.module.util.Struct.Field;
+import com.android.net.module.util.Struct.Type;
+
+import java.net.Inet6Address;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.util.Objects;
+
+/** Key type for downstream 464xlat forwarding map. */
+public class TetherDownstream64Key extends Struct {
+    @Field(order = 0, type = Type.U32)
+    public final long iif;
+
+    @Field(order = 1, type = Type.EUI48)
+    public final MacAddress dstMac;
+
+    @Field(order = 2, type = Type.U8, padding = 1)
+    public final short l4proto;
+
+    @Field(order = 3, type = Type.ByteArray, arraysize = 16)
+    public final byte[] src6;
+
+    @Field(order = 4, type = Type.ByteArray, arraysize = 16)
+    public final byte[] dst6;
+
+    @Field(order = 5, type = Type.UBE16)
+    public final int srcPort;
+
+    @Field(order = 6, type = Type.UBE16)
+    public final int dstPort;
+
+    public TetherDownstream64Key(final long iif, @NonNull final MacAddress dstMac,
+            final short l4proto, final byte[] src6, final byte[] dst6, final int srcPort,
+            final int dstPort) {
+        Objects.requireNonNull(dstMac);
+
+        this.iif = iif;
+        this.dstMac = dstMac;
+        this.l4proto = l4proto;
+        this.src6 = src6;
+        this.dst6 = dst6;
+        this.srcPort = srcPort;
+        this.dstPort = dstPort;
+    }
+
+    /** Write this key at the current position of the buffer, without reflection. */
+    public void encode(@NonNull ByteBuffer buf) {
+        encode(buf, iif, dstMac.toByteArray(), l4proto, src6, dst6, srcPort, dstPort);
+    }
+
+    /**
+     * Write a key built from the given fields at the current position of the buffer, without
+     * creating a TetherDownstream64Key object.
+     */
+    public static void encode(@NonNull ByteBuffer buf, long iif, @NonNull byte[] dstMac,
+            short l4proto, @NonNull byte[] src6, @NonNull byte[] dst6, int srcPort,
+            int dstPort) {
+        buf.putInt((int) iif);
+        buf.put(dstMac);
+        buf.put((byte) l4proto);
+        putZeros(buf, 1);
+        buf.put(src6);
+        buf.put(dst6);
+        putBe16(buf, srcPort);
+        putBe16(buf, dstPort);
+    }
+
+    /** Read a key at the current position of the buffer, without reflection. */
+    @NonNull
+    public static TetherDownstream64Key decode(@NonNull ByteBuffer buf) {
+        final long iif = getU32(buf);
+        final MacAddress dstMac = getMac(buf);
+        final short l4proto = (short) (buf.get() & 0xff);
+        skip(buf, 1);
+        final byte[] src6 = getBytes(buf, 16);
+        final byte[] dst6 = getBytes(buf, 16);
+        final int srcPort = getBe16(buf);
+        final int dstPort = getBe16(buf);
+        return new TetherDownstream64Key(iif, dstMac, l4proto, src6, dst6, srcPort, dstPort);
+    }
+
+    /** Read the input interface index of a key at the given offset of the buffer. */
+    public static long getIif(@NonNull ByteBuffer buf, int offset) {
+        return Integer.toUnsignedLong(buf.getInt(offset));
+    }
+
+    @Override
+    public String toString() {
+        try {
+            return String.format(
+                    "iif: %d, dstMac: %s, l4proto: %d, src6: %s, dst6: %s, "
+                            + "srcPort: %d, dstPort: %d",
+                    iif, dstMac, l4proto,
+                    Inet6Address.getByAddress(src6), Inet6Address.getByAddress(dst6),
+                    Short.toUnsignedInt((short) srcPort), Short.toUnsignedInt((short) dstPort));
+        } catch (UnknownHostException | IllegalArgumentException e) {
+            return String.format("Invalid IP address", e);
+        }
+    }
+}
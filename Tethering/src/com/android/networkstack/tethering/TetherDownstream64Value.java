@@ -0,0 +1,146 @@
+/*
+ * Copyright (C) 2021 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.networkstack.tethering;
+
+import static com.android.networkstack.tethering.BpfStructCodecs.getBe16;
+import static com.android.networkstack.tethering.BpfStructCodecs.getBytes;
+import static com.android.networkstack.tethering.BpfStructCodecs.getMac;
+import static com.android.networkstack.tethering.BpfStructCodecs.getU16;
+import static com.android.networkstack.tethering.BpfStructCodecs.getU32;
+import static com.android.networkstack.tethering.BpfStructCodecs.putBe16;
+
+import android.net.MacAddress;
+
+import androidx.annotation.NonNull;
+
+import com.android.net.module.util.Struct;
+import com.android.net.module.util.Struct.Field;
+import com.android.net.module.util.Struct.Type;
+
+import java.net.Inet4Address;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.util.Objects;
+
+/** Value type for downstream 464xlat forwarding map. */
+public class TetherDownstream64Value extends Struct {
+    @Field(order = 0, type = Type.U32)
+    public final long oif;
+
+    // The ethhdr struct which is defined in uapi/linux/if_ether.h
+    @Field(order = 1, type = Type.EUI48)
+    public final MacAddress ethDstMac;
+    @Field(order = 2, type = Type.EUI48)
+    public final MacAddress ethSrcMac;
+    @Field(order = 3, type = Type.UBE16)
+    public final int ethProto;  // Packet type ID field.
+
+    @Field(order = 4, type = Type.U16)
+    public final int pmtu;
+
+    @Field(order = 5, type = Type.ByteArray, arraysize = 4)
+    public final byte[] src4;
+
+    @Field(order = 6, type = Type.ByteArray, arraysize = 4)
+    public final byte[] dst4;
+
+    @Field(order = 7, type = Type.UBE16)
+    public final int srcPort;
+
+    @Field(order = 8, type = Type.UBE16)
+    public final int outPort;
+
+    @Field(order = 9, type = Type.U63)
+    public final long lastUsed;
+
+    public TetherDownstream64Value(final long oif, @NonNull final MacAddress ethDstMac,
+            @NonNull final MacAddress ethSrcMac, final int ethProto, final int pmtu,
+            final byte[] src4, final byte[] dst4, final int srcPort,
+            final int outPort, final long lastUsed) {
+        Objects.requireNonNull(ethDstMac);
+        Objects.requireNonNull(ethSrcMac);
+
+        this.oif = oif;
+        this.ethDstMac = ethDstMac;
+        this.ethSrcMac = ethSrcMac;
+        this.ethProto = ethProto;
+        this.pmtu = pmtu;
+        this.src4 = src4;
+        this.dst4 = dst4;
+        this.srcPort = srcPort;
+        this.outPort = outPort;
+        this.lastUsed = lastUsed;
+    }
+
+    /** Write this value at the current position of the buffer, without reflection. */
+    public void encode(@NonNull ByteBuffer buf) {
+        encode(buf, oif, ethDstMac.toByteArray(), ethSrcMac.toByteArray(), ethProto, pmtu,
+                src4, dst4, srcPort, outPort, lastUsed);
+    }
+
+    /**
+     * Write a value built from the given fields at the current position of the buffer, without
+     * creating a TetherDownstream64Value object.
+     */
+    public static void encode(@NonNull ByteBuffer buf, long oif, @NonNull byte[] ethDstMac,
+            @NonNull byte[] ethSrcMac, int ethProto, int pmtu, @NonNull byte[] src4,
+            @NonNull byte[] dst4, int srcPort, int outPort, long lastUsed) {
+        buf.putInt((int) oif);
+        buf.put(ethDstMac);
+        buf.put(ethSrcMac);
+        putBe16(buf, ethProto);
+        buf.putShort((short) pmtu);
+        buf.put(src4);
+        buf.put(dst4);
+        putBe16(buf, srcPort);
+        putBe16(buf, outPort);
+        buf.putLong(lastUsed);
+    }
+
+    /** Read a value at the current position of the buffer, without reflection. */
+    @NonNull
+    public static TetherDownstream64Value decode(@NonNull ByteBuffer buf) {
+        final long oif = getU32(buf);
+        final MacAddress ethDstMac = getMac(buf);
+        final MacAddress ethSrcMac = getMac(buf);
+        final int ethProto = getBe16(buf);
+        final int pmtu = getU16(buf);
+        final byte[] src4 = getBytes(buf, 4);
+        final byte[] dst4 = getBytes(buf, 4);
+        final int srcPort = getBe16(buf);
+        final int outPort = getBe16(buf);
+        final long lastUsed = buf.getLong();
+        return new TetherDownstream64Value(oif, ethDstMac, ethSrcMac, ethProto, pmtu, src4, dst4,
+                srcPort, outPort, lastUsed);
+    }
+
+    @Override
+    public String toString() {
+        try {
+            return String.format(
+                    "oif: %d, ethDstMac: %s, ethSrcMac: %s, ethProto: %d, pmtu: %d, "
+                            + "src4: %s, dst4: %s, srcPort: %d, outPort: %d, "
+                            + "lastUsed: %d",
+                    oif, ethDstMac, ethSrcMac, ethProto, pmtu,
+                    Inet4Address.getByAddress(src4), Inet4Address.getByAddress(dst4),
+                    Short.toUnsignedInt((short) srcPort), Short.toUnsignedInt((short) outPort),
+                    lastUsed);
+        } catch (UnknownHostException | IllegalArgumentException e) {
+            return String.format("Invalid IP address", e);
+        }
+    }
+}
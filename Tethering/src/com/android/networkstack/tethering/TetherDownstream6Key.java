@@ -16,6 +16,12 @@
 
 package com.android.networkstack.tethering;
 
+import static com.android.networkstack.tethering.BpfStructCodecs.getBytes;
+import static com.android.networkstack.tethering.BpfStructCodecs.getMac;
+import static com.android.networkstack.tethering.BpfStructCodecs.getU32;
+import static com.android.networkstack.tethering.BpfStructCodecs.putZeros;
+import static com.android.networkstack.tethering.BpfStructCodecs.skip;
+
 import android.net.MacAddress;
 
 import androidx.annotation.NonNull;
@@ -27,6 +33,7 @@ import com.android.net.module.util.Struct.Type;
 import java.net.Inet6Address;
 import java.net.InetAddress;
 import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
 import java.util.Arrays;
 import java.util.Objects;
 
@@ -56,6 +63,24 @@ public class TetherDownstream6Key extends Struct {
         this.neigh6 = neigh6;
     }
 
+    /** Write this key at the current position of the buffer, without reflection. */
+    public void encode(@NonNull ByteBuffer buf) {
+        buf.putInt((int) iif);
+        buf.put(dstMac.toByteArray());
+        putZeros(buf, 2);
+        buf.put(neigh6);
+    }
+
+    /** Read a key at the current position of the buffer, without reflection. */
+    @NonNull
+    public static TetherDownstream6Key decode(@NonNull ByteBuffer buf) {
+        final long iif = getU32(buf);
+        final MacAddress dstMac = getMac(buf);
+        skip(buf, 2);
+        final byte[] neigh6 = getBytes(buf, 16);
+        return new TetherDownstream6Key(iif, dstMac, neigh6);
+    }
+
     @Override
     public String toString() {
         try {
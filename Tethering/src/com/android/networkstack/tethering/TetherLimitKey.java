@@ -16,10 +16,16 @@
 
 package com.android.networkstack.tethering;
 
+import static com.android.networkstack.tethering.BpfStructCodecs.getU32;
+
+import androidx.annotation.NonNull;
+
 import com.android.net.module.util.Struct;
 import com.android.net.module.util.Struct.Field;
 import com.android.net.module.util.Struct.Type;
 
+import java.nio.ByteBuffer;
+
 /** The key of BpfMap which is used for tethering per-interface limit. */
 public class TetherLimitKey extends Struct {
     @Field(order = 0, type = Type.U32)
@@ -29,6 +35,17 @@ public class TetherLimitKey extends Struct {
         this.ifindex = ifindex;
     }
 
+    /** Write this key at the current position of the buffer, without reflection. */
+    public void encode(@NonNull ByteBuffer buf) {
+        buf.putInt((int) ifindex);
+    }
+
+    /** Read a key at the current position of the buffer, without reflection. */
+    @NonNull
+    public static TetherLimitKey decode(@NonNull ByteBuffer buf) {
+        return new TetherLimitKey(getU32(buf));
+    }
+
     // TODO: remove equals, hashCode and toString once aosp/1536721 is merged.
     @Override
     public boolean equals(Object obj) {
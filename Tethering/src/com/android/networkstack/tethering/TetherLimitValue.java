@@ -16,10 +16,14 @@
 
 package com.android.networkstack.tethering;
 
+import androidx.annotation.NonNull;
+
 import com.android.net.module.util.Struct;
 import com.android.net.module.util.Struct.Field;
 import com.android.net.module.util.Struct.Type;
 
+import java.nio.ByteBuffer;
+
 /** The value of BpfMap which is used for tethering per-interface limit. */
 public class TetherLimitValue extends Struct {
     // Use the signed long variable to store the int64 limit on limit BPF map.
@@ -33,6 +37,17 @@ public class TetherLimitValue extends Struct {
         this.limit = limit;
     }
 
+    /** Write this value at the current position of the buffer, without reflection. */
+    public void encode(@NonNull ByteBuffer buf) {
+        buf.putLong(limit);
+    }
+
+    /** Read a value at the current position of the buffer, without reflection. */
+    @NonNull
+    public static TetherLimitValue decode(@NonNull ByteBuffer buf) {
+        return new TetherLimitValue(buf.getLong());
+    }
+
     // TODO: remove equals, hashCode and toString once aosp/1536721 is merged.
     @Override
     public boolean equals(Object obj) {
@@ -0,0 +1,78 @@
+/*
+ * Copyright (C) 2021 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.networkstack.tethering;
+
+import androidx.annotation.NonNull;
+
+import com.android.net.module.util.Struct;
+import com.android.net.module.util.Struct.Field;
+import com.android.net.module.util.Struct.Type;
+
+import java.nio.ByteBuffer;
+
+/**
+ * The value of the BpfMaps which are used for tethering per-interface quota reservations: the
+ * bytes reserved from the limit by all cpus, or the reserved bytes not used yet by each cpu.
+ */
+public class TetherQuotaValue extends Struct {
+    // The reserved bytes never exceed the limit, see TetherLimitValue.
+    @Field(order = 0, type = Type.U63)
+    public final long bytes;
+
+    public TetherQuotaValue(final long bytes) {
+        this.bytes = bytes;
+    }
+
+    /** Write this value at the current position of the buffer, without reflection. */
+    public void encode(@NonNull ByteBuffer buf) {
+        buf.putLong(bytes);
+    }
+
+    /** Read a value at the current position of the buffer, without reflection. */
+    @NonNull
+    public static TetherQuotaValue decode(@NonNull ByteBuffer buf) {
+        return new TetherQuotaValue(buf.getLong());
+    }
+
+    /** Sum two values, e.g. to merge the values of the cpus of a per-cpu map. */
+    @NonNull
+    public static TetherQuotaValue sum(@NonNull TetherQuotaValue a, @NonNull TetherQuotaValue b) {
+        return new TetherQuotaValue(a.bytes + b.bytes);
+    }
+
+    // TODO: remove equals, hashCode and toString once aosp/1536721 is merged.
+    @Override
+    public boolean equals(Object obj) {
+        if (this == obj) return true;
+
+        if (!(obj instanceof TetherQuotaValue)) return false;
+
+        final TetherQuotaValue that = (TetherQuotaValue) obj;
+
+        return bytes == that.bytes;
+    }
+
+    @Override
+    public int hashCode() {
+        return Long.hashCode(bytes);
+    }
+
+    @Override
+    public String toString() {
+        return String.format("bytes: %d", bytes);
+    }
+}
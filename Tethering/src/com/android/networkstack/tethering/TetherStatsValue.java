@@ -16,10 +16,14 @@
 
 package com.android.networkstack.tethering;
 
+import androidx.annotation.NonNull;
+
 import com.android.net.module.util.Struct;
 import com.android.net.module.util.Struct.Field;
 import com.android.net.module.util.Struct.Type;
 
+import java.nio.ByteBuffer;
+
 /** The key of BpfMap which is used for tethering stats. */
 public class TetherStatsValue extends Struct {
     // Use the signed long variable to store the uint64 stats from stats BPF map.
@@ -48,6 +52,31 @@ public class TetherStatsValue extends Struct {
         this.txErrors = txErrors;
     }
 
+    /** Write this value at the current position of the buffer, without reflection. */
+    public void encode(@NonNull ByteBuffer buf) {
+        buf.putLong(rxPackets);
+        buf.putLong(rxBytes);
+        buf.putLong(rxErrors);
+        buf.putLong(txPackets);
+        buf.putLong(txBytes);
+        buf.putLong(txErrors);
+    }
+
+    /** Read a value at the current position of the buffer, without reflection. */
+    @NonNull
+    public static TetherStatsValue decode(@NonNull ByteBuffer buf) {
+        return new TetherStatsValue(buf.getLong(), buf.getLong(), buf.getLong(), buf.getLong(),
+                buf.getLong(), buf.getLong());
+    }
+
+    /** Sum two values, e.g. to merge the values of the cpus of the per-cpu stats map. */
+    @NonNull
+    public static TetherStatsValue sum(@NonNull TetherStatsValue a, @NonNull TetherStatsValue b) {
+        return new TetherStatsValue(a.rxPackets + b.rxPackets, a.rxBytes + b.rxBytes,
+                a.rxErrors + b.rxErrors, a.txPackets + b.txPackets, a.txBytes + b.txBytes,
+                a.txErrors + b.txErrors);
+    }
+
     // TODO: remove equals, hashCode and toString once aosp/1536721 is merged.
     @Override
     public boolean equals(Object obj) {
@@ -16,12 +16,17 @@
 
 package com.android.networkstack.tethering;
 
+import static com.android.networkstack.tethering.BpfStructCodecs.getMac;
+import static com.android.networkstack.tethering.BpfStructCodecs.putZeros;
+import static com.android.networkstack.tethering.BpfStructCodecs.skip;
+
 import android.net.MacAddress;
 
 import androidx.annotation.NonNull;
 
 import com.android.net.module.util.Struct;
 
+import java.nio.ByteBuffer;
 import java.util.Objects;
 
 /** Key type for upstream IPv6 forwarding map. */
@@ -38,4 +43,20 @@ public class TetherUpstream6Key extends Struct {
         this.iif = iif;
         this.dstMac = dstMac;
     }
+
+    /** Write this key at the current position of the buffer, without reflection. */
+    public void encode(@NonNull ByteBuffer buf) {
+        buf.putInt(iif);
+        buf.put(dstMac.toByteArray());
+        putZeros(buf, 2);
+    }
+
+    /** Read a key at the current position of the buffer, without reflection. */
+    @NonNull
+    public static TetherUpstream6Key decode(@NonNull ByteBuffer buf) {
+        final int iif = buf.getInt();
+        final MacAddress dstMac = getMac(buf);
+        skip(buf, 2);
+        return new TetherUpstream6Key(iif, dstMac);
+    }
 }
@@ -47,6 +47,7 @@ import static android.net.TetheringManager.TETHER_ERROR_SERVICE_UNAVAIL;
 import static android.net.TetheringManager.TETHER_ERROR_UNAVAIL_IFACE;
 import static android.net.TetheringManager.TETHER_ERROR_UNKNOWN_IFACE;
 import static android.net.TetheringManager.TETHER_ERROR_UNKNOWN_TYPE;
+import static android.net.TetheringManager.TETHER_ERROR_UNSUPPORTED;
 import static android.net.TetheringManager.TETHER_HARDWARE_OFFLOAD_FAILED;
 import static android.net.TetheringManager.TETHER_HARDWARE_OFFLOAD_STARTED;
 import static android.net.TetheringManager.TETHER_HARDWARE_OFFLOAD_STOPPED;
@@ -83,6 +84,7 @@ import android.net.ITetheringEventCallback;
 import android.net.IpPrefix;
 import android.net.LinkAddress;
 import android.net.LinkProperties;
+import android.net.MacAddress;
 import android.net.Network;
 import android.net.NetworkCapabilities;
 import android.net.NetworkInfo;
@@ -132,6 +134,7 @@ import com.android.internal.util.MessageUtils;
 import com.android.internal.util.State;
 import com.android.internal.util.StateMachine;
 import com.android.net.module.util.BaseNetdUnsolicitedEventListener;
+import com.android.networkstack.tethering.UpstreamNetworkMonitor.LocalPrefixUpdate;
 
 import java.io.FileDescriptor;
 import java.io.PrintWriter;
@@ -231,6 +234,7 @@ public class Tethering {
     private final UserRestrictionActionListener mTetheringRestriction;
     private final ActiveDataSubIdListener mActiveDataSubIdListener;
     private final ConnectedClientsTracker mConnectedClientsTracker;
+    private final Runnable mPruneExpiredClientsTask = this::pruneExpiredClients;
     private final TetheringThreadExecutor mExecutor;
     private final TetheringNotificationUpdater mNotificationUpdater;
     private final UserManager mUserManager;
@@ -248,6 +252,11 @@ public class Tethering {
     private boolean mWifiTetherRequested;
     private Network mTetherUpstream;
     private TetherStatesParcel mTetherStatesParcel;
+    // Whether a tether state publication is scheduled after the current handler message.
+    private boolean mTetherStateChangePending = false;
+    private int mTetherStateBroadcastCount = 0;
+    private int mSuppressedTetherStateBroadcastCount = 0;
+    private final Runnable mTetherStateChangedTask = this::sendTetherStateChangedBroadcast;
     private boolean mDataSaverEnabled = false;
     private String mWifiP2pTetherInterface = null;
     private int mOffloadStatus = TETHER_HARDWARE_OFFLOAD_STOPPED;
@@ -356,6 +365,7 @@ public class Tethering {
                         return mConfig;
                     }
                 });
+        mBpfCoordinator.setClientStatsCallback(this::updateClientTrafficStats);
 
         startStateMachineUpdaters();
     }
@@ -518,22 +528,7 @@ public class Tethering {
     }
 
     private int ifaceNameToType(String iface) {
-        final TetheringConfiguration cfg = mConfig;
-
-        if (cfg.isWifi(iface)) {
-            return TETHERING_WIFI;
-        } else if (cfg.isWigig(iface)) {
-            return TETHERING_WIGIG;
-        } else if (cfg.isWifiP2p(iface)) {
-            return TETHERING_WIFI_P2P;
-        } else if (cfg.isUsb(iface)) {
-            return TETHERING_USB;
-        } else if (cfg.isBluetooth(iface)) {
-            return TETHERING_BLUETOOTH;
-        } else if (cfg.isNcm(iface)) {
-            return TETHERING_NCM;
-        }
-        return TETHERING_INVALID;
+        return mConfig.getDownstreamType(iface);
     }
 
     void interfaceAdded(String iface) {
@@ -629,6 +624,25 @@ public class Tethering {
         if (result != TETHER_ERROR_NO_ERROR) mActiveTetheringRequests.remove(type);
     }
 
+    void setTetheredClientRateLimit(@NonNull final MacAddress clientMac, final long bytesPerSecond,
+            final long burstBytes, @NonNull final IIntResultListener listener) {
+        mHandler.post(() -> {
+            final int result;
+            if (!mBpfCoordinator.isClientRateLimitSupported()) {
+                result = TETHER_ERROR_UNSUPPORTED;
+            } else if (bytesPerSecond > 0) {
+                result = mBpfCoordinator.setClientRateLimit(clientMac, bytesPerSecond, burstBytes)
+                        ? TETHER_ERROR_NO_ERROR : TETHER_ERROR_INTERNAL_ERROR;
+            } else {
+                result = mBpfCoordinator.removeClientRateLimit(clientMac)
+                        ? TETHER_ERROR_NO_ERROR : TETHER_ERROR_INTERNAL_ERROR;
+            }
+            try {
+                listener.onResult(result);
+            } catch (RemoteException e) { }
+        });
+    }
+
     private int setWifiTethering(final boolean enable) {
         final long ident = Binder.clearCallingIdentity();
         try {
@@ -843,9 +857,22 @@ public class Tethering {
         return true;
     }
 
+    // State changes are published once per handler message, however many interfaces changed
+    // state while processing it: the broadcast and callbacks only contain the latest states.
+    private void scheduleTetherStateChangedBroadcast() {
+        if (mTetherStateChangePending) {
+            mSuppressedTetherStateBroadcastCount++;
+            return;
+        }
+        mTetherStateChangePending = true;
+        mHandler.postAtFrontOfQueue(mTetherStateChangedTask);
+    }
+
     // TODO: Figure out how to update for local hotspot mode interfaces.
     private void sendTetherStateChangedBroadcast() {
+        mTetherStateChangePending = false;
         if (!isTetheringSupported()) return;
+        mTetherStateBroadcastCount++;
 
         final ArrayList<String> availableList = new ArrayList<>();
         final ArrayList<String> tetherList = new ArrayList<>();
@@ -1705,7 +1732,7 @@ public class Tethering {
         @VisibleForTesting
         void handleUpstreamNetworkMonitorCallback(int arg1, Object o) {
             if (arg1 == UpstreamNetworkMonitor.NOTIFY_LOCAL_PREFIXES) {
-                mOffload.sendOffloadExemptPrefixes((Set<IpPrefix>) o);
+                mOffload.updateUpstreamLocalPrefixes((LocalPrefixUpdate) o);
                 return;
             }
 
@@ -1890,7 +1917,10 @@ public class Tethering {
                         break;
                     case EVENT_UPSTREAM_CALLBACK: {
                         updateUpstreamWanted();
-                        if (mUpstreamWanted) {
+                        // Local prefix updates are deltas, so they must not be dropped even if
+                        // no upstream is wanted.
+                        if (mUpstreamWanted
+                                || message.arg1 == UpstreamNetworkMonitor.NOTIFY_LOCAL_PREFIXES) {
                             handleUpstreamNetworkMonitorCallback(message.arg1, message.obj);
                         }
                         break;
@@ -2023,11 +2053,17 @@ public class Tethering {
                 mOffloadController.removeDownstreamInterface(ifname);
             }
 
-            public void sendOffloadExemptPrefixes() {
-                sendOffloadExemptPrefixes(mUpstreamNetworkMonitor.getLocalPrefixes());
+            public void updateUpstreamLocalPrefixes(final LocalPrefixUpdate update) {
+                mOffloadController.updateUpstreamLocalPrefixes(update.added, update.removed);
             }
 
-            public void sendOffloadExemptPrefixes(final Set<IpPrefix> localPrefixes) {
+            public void sendOffloadExemptPrefixes() {
+                // Resynchronize the upstream prefixes, in case some updates were received while
+                // tethering was not running. This is cheap when nothing changed.
+                mOffloadController.setUpstreamLocalPrefixes(
+                        mUpstreamNetworkMonitor.getLocalPrefixes());
+
+                final Set<IpPrefix> localPrefixes = new HashSet<>();
                 // Add in well-known minimum set.
                 PrefixUtils.addNonForwardablePrefixes(localPrefixes);
                 // Add tragically hardcoded prefixes.
@@ -2187,7 +2223,10 @@ public class Tethering {
         }
     }
 
-    private void reportTetherClientsChanged(List<TetheredClient> clients) {
+    // Only the clients that changed are sent: callbacks get the full list in onCallbackStarted,
+    // and TetheringManager keeps it up to date.
+    private void reportTetherClientsUpdated(List<TetheredClient> addedOrUpdated,
+            List<TetheredClient> removed) {
         final int length = mTetheringEventCallbacks.beginBroadcast();
         try {
             for (int i = 0; i < length; i++) {
@@ -2195,7 +2234,8 @@ public class Tethering {
                     final CallbackCookie cookie =
                             (CallbackCookie) mTetheringEventCallbacks.getBroadcastCookie(i);
                     if (!cookie.hasListClientsPermission) continue;
-                    mTetheringEventCallbacks.getBroadcastItem(i).onTetherClientsChanged(clients);
+                    mTetheringEventCallbacks.getBroadcastItem(i).onTetherClientsUpdated(
+                            addedOrUpdated, removed);
                 } catch (RemoteException e) {
                     // Not really very much to do here.
                 }
@@ -2301,6 +2341,13 @@ public class Tethering {
             pw.println("Current upstream interface(s): " + mCurrentUpstreamIfaceSet);
             pw.decreaseIndent();
         }
+        pw.println("Tether state broadcasts: " + mTetherStateBroadcastCount
+                + " sent, " + mSuppressedTetherStateBroadcastCount + " suppressed");
+
+        pw.println("Upstream network monitor:");
+        pw.increaseIndent();
+        mUpstreamNetworkMonitor.dump(pw);
+        pw.decreaseIndent();
 
         pw.println("Hardware offload:");
         pw.increaseIndent();
@@ -2336,8 +2383,33 @@ public class Tethering {
     private void updateConnectedClients(final List<WifiClient> wifiClients) {
         if (mConnectedClientsTracker.updateConnectedClients(mTetherMainSM.getAllDownstreams(),
                 wifiClients)) {
-            reportTetherClientsChanged(mConnectedClientsTracker.getLastTetheredClients());
+            reportTetherClientsUpdated(mConnectedClientsTracker.getLastUpdatedClients(),
+                    mConnectedClientsTracker.getLastRemovedClients());
         }
+        scheduleClientsExpiration();
+    }
+
+    private void updateClientTrafficStats() {
+        if (mConnectedClientsTracker.updateTrafficStats(mBpfCoordinator.getClientStats())) {
+            reportTetherClientsUpdated(mConnectedClientsTracker.getLastUpdatedClients(),
+                    mConnectedClientsTracker.getLastRemovedClients());
+        }
+    }
+
+    private void pruneExpiredClients() {
+        if (mConnectedClientsTracker.pruneExpiredClients()) {
+            reportTetherClientsUpdated(mConnectedClientsTracker.getLastUpdatedClients(),
+                    mConnectedClientsTracker.getLastRemovedClients());
+        }
+        scheduleClientsExpiration();
+    }
+
+    // Only one wakeup is scheduled, for the earliest lease expiration of all clients.
+    private void scheduleClientsExpiration() {
+        mHandler.removeCallbacks(mPruneExpiredClientsTask);
+        final long delayMs = mConnectedClientsTracker.getNextExpirationDelayMs();
+        if (delayMs < 0) return;
+        mHandler.postDelayed(mPruneExpiredClientsTask, delayMs);
     }
 
     private IpServer.Callback makeControlCallback() {
@@ -2400,7 +2472,7 @@ public class Tethering {
                 return;
         }
         mTetherMainSM.sendMessage(which, state, 0, who);
-        sendTetherStateChangedBroadcast();
+        scheduleTetherStateChangedBroadcast();
     }
 
     private void notifyLinkPropertiesChanged(IpServer who, LinkProperties newLp) {
@@ -2458,6 +2530,7 @@ public class Tethering {
                 new IpServer(iface, mLooper, interfaceType, mLog, mNetd, mBpfCoordinator,
                              makeControlCallback(), mConfig.enableLegacyDhcpServer,
                              mConfig.isBpfOffloadEnabled(), mPrivateAddressCoordinator,
+                             mConfig.isFastStartEnabled(),
                              mDeps.getIpServerDependencies()));
         mTetherStates.put(iface, tetherState);
         tetherState.ipServer.start();
@@ -21,6 +21,13 @@ import static android.net.ConnectivityManager.TYPE_ETHERNET;
 import static android.net.ConnectivityManager.TYPE_MOBILE;
 import static android.net.ConnectivityManager.TYPE_MOBILE_DUN;
 import static android.net.ConnectivityManager.TYPE_MOBILE_HIPRI;
+import static android.net.TetheringManager.TETHERING_BLUETOOTH;
+import static android.net.TetheringManager.TETHERING_INVALID;
+import static android.net.TetheringManager.TETHERING_NCM;
+import static android.net.TetheringManager.TETHERING_USB;
+import static android.net.TetheringManager.TETHERING_WIFI;
+import static android.net.TetheringManager.TETHERING_WIFI_P2P;
+import static android.net.TetheringManager.TETHERING_WIGIG;
 import static android.provider.DeviceConfig.NAMESPACE_CONNECTIVITY;
 
 import android.content.Context;
@@ -41,6 +48,9 @@ import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
 import java.util.StringJoiner;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
 
 /**
  * A utility class to encapsulate the various tethering configuration elements.
@@ -109,6 +119,53 @@ public class TetheringConfiguration {
     public static final String TETHER_FORCE_UPSTREAM_AUTOMATIC_VERSION =
             "tether_force_upstream_automatic_version";
 
+    /**
+     * Experiment flag to parse and coalesce the conntrack events of BPF offload on a dedicated
+     * thread instead of the tethering handler thread.
+     *
+     * This flag is enabled if !=0 and less than the module APK version: see
+     * {@link DeviceConfigUtils#isFeatureEnabled}.
+     */
+    public static final String TETHER_CONNTRACK_READER_THREAD_VERSION =
+            "tether_conntrack_reader_thread_version";
+
+    /**
+     * Experiment flag to configure downstream interfaces in parallel with the creation of their
+     * DHCP server.
+     *
+     * This flag is enabled if !=0 and less than the module APK version: see
+     * {@link DeviceConfigUtils#isFeatureEnabled}.
+     */
+    public static final String TETHER_FAST_START_VERSION = "tether_fast_start_version";
+
+    /**
+     * Experiment flag to forward offloaded packets with XDP programs, on the interfaces which
+     * support it, before they reach the tc programs.
+     *
+     * This flag is enabled if !=0 and less than the module APK version: see
+     * {@link DeviceConfigUtils#isFeatureEnabled}.
+     */
+    public static final String TETHER_XDP_OFFLOAD_VERSION = "tether_xdp_offload_version";
+
+    /**
+     * Experiment flag to count the offloaded traffic of each tethered client, in addition to the
+     * traffic of each upstream.
+     *
+     * This flag is enabled if !=0 and less than the module APK version: see
+     * {@link DeviceConfigUtils#isFeatureEnabled}.
+     */
+    public static final String TETHER_CLIENT_STATS_VERSION = "tether_client_stats_version";
+
+    /**
+     * Experiment flag to limit the rate of the offloaded traffic of the tethered clients given a
+     * rate limit with TetheringManager#setTetheredClientRateLimitAsync.
+     *
+     * This flag is enabled if !=0 and less than the module APK version: see
+     * {@link DeviceConfigUtils#isFeatureEnabled}.
+     */
+    public static final String TETHER_CLIENT_RATE_LIMIT_VERSION =
+            "tether_client_rate_limit_version";
+
     /**
      * Default value that used to periodic polls tether offload stats from tethering offload HAL
      * to make the data warnings work.
@@ -141,6 +198,13 @@ public class TetheringConfiguration {
     private final boolean mEnableWifiP2pDedicatedIp;
 
     private final boolean mEnableSelectAllPrefixRange;
+    private final boolean mEnableConntrackReaderThread;
+    private final boolean mEnableFastStart;
+    private final boolean mEnableXdpOffload;
+    private final boolean mEnableClientStats;
+    private final boolean mEnableClientRateLimit;
+
+    private final DownstreamIfaceClassifier mDownstreamClassifier;
 
     public TetheringConfiguration(Context ctx, SharedLog log, int id) {
         final SharedLog configLog = log.forSubComponent("config");
@@ -159,6 +223,7 @@ public class TetheringConfiguration {
                 res, R.array.config_tether_wifi_p2p_regexs);
         tetherableBluetoothRegexs = getResourceStringArray(
                 res, R.array.config_tether_bluetooth_regexs);
+        mDownstreamClassifier = new DownstreamIfaceClassifier(configLog);
 
         isDunRequired = checkDunRequired(ctx);
 
@@ -195,27 +260,34 @@ public class TetheringConfiguration {
         mEnableSelectAllPrefixRange = getDeviceConfigBoolean(
                 TETHER_ENABLE_SELECT_ALL_PREFIX_RANGES, true /* defaultValue */);
 
+        mEnableConntrackReaderThread = isFeatureEnabled(ctx,
+                TETHER_CONNTRACK_READER_THREAD_VERSION);
+        mEnableFastStart = isFeatureEnabled(ctx, TETHER_FAST_START_VERSION);
+        mEnableXdpOffload = isFeatureEnabled(ctx, TETHER_XDP_OFFLOAD_VERSION);
+        mEnableClientStats = isFeatureEnabled(ctx, TETHER_CLIENT_STATS_VERSION);
+        mEnableClientRateLimit = isFeatureEnabled(ctx, TETHER_CLIENT_RATE_LIMIT_VERSION);
+
         configLog.log(toString());
     }
 
     /** Check whether input interface belong to usb.*/
     public boolean isUsb(String iface) {
-        return matchesDownstreamRegexs(iface, tetherableUsbRegexs);
+        return mDownstreamClassifier.matches(iface, TETHERING_USB);
     }
 
     /** Check whether input interface belong to wifi.*/
     public boolean isWifi(String iface) {
-        return matchesDownstreamRegexs(iface, tetherableWifiRegexs);
+        return mDownstreamClassifier.matches(iface, TETHERING_WIFI);
     }
 
     /** Check whether input interface belong to wigig.*/
     public boolean isWigig(String iface) {
-        return matchesDownstreamRegexs(iface, tetherableWigigRegexs);
+        return mDownstreamClassifier.matches(iface, TETHERING_WIGIG);
     }
 
     /** Check whether this interface is Wifi P2P interface. */
     public boolean isWifiP2p(String iface) {
-        return matchesDownstreamRegexs(iface, tetherableWifiP2pRegexs);
+        return mDownstreamClassifier.matches(iface, TETHERING_WIFI_P2P);
     }
 
     /** Check whether using legacy mode for wifi P2P. */
@@ -225,12 +297,21 @@ public class TetheringConfiguration {
 
     /** Check whether input interface belong to bluetooth.*/
     public boolean isBluetooth(String iface) {
-        return matchesDownstreamRegexs(iface, tetherableBluetoothRegexs);
+        return mDownstreamClassifier.matches(iface, TETHERING_BLUETOOTH);
     }
 
     /** Check if interface is ncm */
     public boolean isNcm(String iface) {
-        return matchesDownstreamRegexs(iface, tetherableNcmRegexs);
+        return mDownstreamClassifier.matches(iface, TETHERING_NCM);
+    }
+
+    /**
+     * Get the tethering type of a downstream interface, or TETHERING_INVALID if the interface
+     * name matches no downstream regex. If the name matches the regexs of several types, wifi
+     * wins over wigig, wifi p2p, usb, bluetooth and ncm, in this order.
+     */
+    public int getDownstreamType(String iface) {
+        return mDownstreamClassifier.getType(iface);
     }
 
     /** Check whether no ui entitlement application is available.*/
@@ -283,6 +364,21 @@ public class TetheringConfiguration {
 
         pw.print("mEnableSelectAllPrefixRange: ");
         pw.println(mEnableSelectAllPrefixRange);
+
+        pw.print("enableConntrackReaderThread: ");
+        pw.println(mEnableConntrackReaderThread);
+
+        pw.print("enableFastStart: ");
+        pw.println(mEnableFastStart);
+
+        pw.print("enableXdpOffload: ");
+        pw.println(mEnableXdpOffload);
+
+        pw.print("enableClientStats: ");
+        pw.println(mEnableClientStats);
+
+        pw.print("enableClientRateLimit: ");
+        pw.println(mEnableClientRateLimit);
     }
 
     /** Returns the string representation of this object.*/
@@ -348,6 +444,31 @@ public class TetheringConfiguration {
         return mEnableSelectAllPrefixRange;
     }
 
+    /** Whether the conntrack events of BPF offload are processed on a dedicated thread. */
+    public boolean isConntrackReaderThreadEnabled() {
+        return mEnableConntrackReaderThread;
+    }
+
+    /** Whether downstream interfaces are brought up in fast start mode. */
+    public boolean isFastStartEnabled() {
+        return mEnableFastStart;
+    }
+
+    /** Whether offloaded packets are forwarded by XDP programs where supported. */
+    public boolean isXdpOffloadEnabled() {
+        return mEnableXdpOffload;
+    }
+
+    /** Whether the offloaded traffic of each tethered client is counted. */
+    public boolean isClientStatsEnabled() {
+        return mEnableClientStats;
+    }
+
+    /** Whether the offloaded traffic of the tethered clients can be rate limited. */
+    public boolean isClientRateLimitEnabled() {
+        return mEnableClientRateLimit;
+    }
+
     private static Collection<Integer> getUpstreamIfaceTypes(Resources res, boolean dunRequired) {
         final int[] ifaceTypes = res.getIntArray(R.array.config_tether_upstream_types);
         final ArrayList<Integer> upstreamIfaceTypes = new ArrayList<>(ifaceTypes.length);
@@ -391,11 +512,76 @@ public class TetheringConfiguration {
         return upstreamIfaceTypes;
     }
 
-    private static boolean matchesDownstreamRegexs(String iface, String[] regexs) {
-        for (String regex : regexs) {
-            if (iface.matches(regex)) return true;
+    /**
+     * Classifies interface names by the downstream regexs of this configuration.
+     *
+     * All the regexs are compiled once, and the types matched by each interface name are cached,
+     * so that classifying a known interface does not run any regex. This is called on every
+     * interface event, and may be called from binder threads as well as the tethering thread.
+     */
+    private class DownstreamIfaceClassifier {
+        // The cache is cleared when it grows beyond this size, which only happens if interfaces
+        // keep being created with new names.
+        private static final int MAX_CACHED_IFACES = 256;
+        // The types in the order in which #getType checks them.
+        private final int[] mTypes = { TETHERING_WIFI, TETHERING_WIGIG, TETHERING_WIFI_P2P,
+                TETHERING_USB, TETHERING_BLUETOOTH, TETHERING_NCM };
+        private final Pattern[][] mPatterns = new Pattern[mTypes.length][];
+        // Bitmask of the types matched by each interface name, indexed by (1 << type).
+        private final ConcurrentHashMap<String, Integer> mTypeMasks = new ConcurrentHashMap<>();
+
+        DownstreamIfaceClassifier(SharedLog log) {
+            final String[][] regexs = { tetherableWifiRegexs, tetherableWigigRegexs,
+                    tetherableWifiP2pRegexs, tetherableUsbRegexs, tetherableBluetoothRegexs,
+                    tetherableNcmRegexs };
+            for (int i = 0; i < mTypes.length; i++) {
+                mPatterns[i] = compile(log, regexs[i]);
+            }
+        }
+
+        private Pattern[] compile(SharedLog log, String[] regexs) {
+            final ArrayList<Pattern> patterns = new ArrayList<>(regexs.length);
+            for (String regex : regexs) {
+                try {
+                    patterns.add(Pattern.compile(regex));
+                } catch (PatternSyntaxException e) {
+                    log.e("Ignoring invalid downstream regex " + regex + ": " + e);
+                }
+            }
+            return patterns.toArray(new Pattern[0]);
+        }
+
+        boolean matches(String iface, int type) {
+            return (getTypeMask(iface) & (1 << type)) != 0;
+        }
+
+        int getType(String iface) {
+            final int mask = getTypeMask(iface);
+            for (int type : mTypes) {
+                if ((mask & (1 << type)) != 0) return type;
+            }
+            return TETHERING_INVALID;
+        }
+
+        private int getTypeMask(String iface) {
+            if (iface == null) return 0;
+
+            final Integer cached = mTypeMasks.get(iface);
+            if (cached != null) return cached;
+
+            int mask = 0;
+            for (int i = 0; i < mTypes.length; i++) {
+                for (Pattern pattern : mPatterns[i]) {
+                    if (pattern.matcher(iface).matches()) {
+                        mask |= 1 << mTypes[i];
+                        break;
+                    }
+                }
+            }
+            if (mTypeMasks.size() >= MAX_CACHED_IFACES) mTypeMasks.clear();
+            mTypeMasks.put(iface, mask);
+            return mask;
         }
-        return false;
     }
 
     private static String[] getLegacyDhcpRanges(Resources res) {
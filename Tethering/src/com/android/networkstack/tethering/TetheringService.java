@@ -21,6 +21,7 @@ import static android.Manifest.permission.NETWORK_STACK;
 import static android.Manifest.permission.TETHER_PRIVILEGED;
 import static android.content.pm.PackageManager.PERMISSION_GRANTED;
 import static android.net.NetworkStack.PERMISSION_MAINLINE_NETWORK_STACK;
+import static android.net.TetheringManager.TETHER_ERROR_INTERNAL_ERROR;
 import static android.net.TetheringManager.TETHER_ERROR_NO_ACCESS_TETHERING_PERMISSION;
 import static android.net.TetheringManager.TETHER_ERROR_NO_CHANGE_TETHERING_PERMISSION;
 import static android.net.TetheringManager.TETHER_ERROR_NO_ERROR;
@@ -35,6 +36,7 @@ import android.net.IIntResultListener;
 import android.net.INetworkStackConnector;
 import android.net.ITetheringConnector;
 import android.net.ITetheringEventCallback;
+import android.net.MacAddress;
 import android.net.NetworkCapabilities;
 import android.net.NetworkRequest;
 import android.net.NetworkStack;
@@ -207,6 +209,40 @@ public class TetheringService extends Service {
             } catch (RemoteException e) { }
         }
 
+        @Override
+        public void setTetheredClientRateLimit(String clientMac, long bytesPerSecond,
+                long burstBytes, String callerPkg, String callingAttributionTag,
+                IIntResultListener listener) {
+            try {
+                // Rate limits affect the clients of all callers, so they are reserved to
+                // privileged callers.
+                if (!hasTetherPrivilegedPermission()) {
+                    listener.onResult(TETHER_ERROR_NO_CHANGE_TETHERING_PERMISSION);
+                    return;
+                }
+                if (!mTethering.isTetheringSupported()) {
+                    listener.onResult(TETHER_ERROR_UNSUPPORTED);
+                    return;
+                }
+            } catch (RemoteException e) {
+                return;
+            }
+
+            // This is a oneway call, so the caller would not see an exception thrown here.
+            final MacAddress mac;
+            try {
+                mac = MacAddress.fromString(clientMac);
+            } catch (IllegalArgumentException | NullPointerException e) {
+                Log.e(TAG, "Invalid client MAC address: " + clientMac);
+                try {
+                    listener.onResult(TETHER_ERROR_INTERNAL_ERROR);
+                } catch (RemoteException re) { }
+                return;
+            }
+
+            mTethering.setTetheredClientRateLimit(mac, bytesPerSecond, burstBytes, listener);
+        }
+
         @Override
         protected void dump(@NonNull FileDescriptor fd, @NonNull PrintWriter writer,
                     @Nullable String[] args) {
@@ -39,19 +39,25 @@ import android.net.NetworkRequest;
 import android.net.util.PrefixUtils;
 import android.net.util.SharedLog;
 import android.os.Handler;
+import android.os.SystemClock;
 import android.util.Log;
+import android.util.SparseArray;
 import android.util.SparseIntArray;
 
 import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
 
 import com.android.internal.annotations.VisibleForTesting;
+import com.android.internal.util.IndentingPrintWriter;
 import com.android.internal.util.StateMachine;
 
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashSet;
 import java.util.Objects;
 import java.util.Set;
+import java.util.concurrent.TimeUnit;
 
 
 /**
@@ -107,13 +113,37 @@ public class UpstreamNetworkMonitor {
         sLegacyTypeToTransport.put(TYPE_ETHERNET,     NetworkCapabilities.TRANSPORT_ETHERNET);
     }
 
+    // The NetworkCapabilities required by each legacy type. Must not be modified.
+    private static final SparseArray<NetworkCapabilities> sLegacyTypeToCapabilities =
+            new SparseArray<>();
+    static {
+        for (int i = 0; i < sLegacyTypeToTransport.size(); i++) {
+            final int type = sLegacyTypeToTransport.keyAt(i);
+            sLegacyTypeToCapabilities.put(type, networkCapabilitiesForType(type));
+        }
+    }
+
     private final Context mContext;
     private final SharedLog mLog;
     private final StateMachine mTarget;
     private final Handler mHandler;
     private final int mWhat;
     private final HashMap<Network, UpstreamNetworkState> mNetworkMap = new HashMap<>();
-    private HashSet<IpPrefix> mLocalPrefixes;
+    // The networks in mNetworkMap which satisfy each legacy type, in the order in which they
+    // started to satisfy it. Updated when capabilities change, so that selecting an upstream
+    // does not need to look at every network.
+    private final SparseArray<LinkedHashSet<Network>> mNetworksByLegacyType =
+            new SparseArray<>();
+    // The cellular DUN networks in mNetworkMap, in the same order.
+    private final LinkedHashSet<Network> mDunNetworks = new LinkedHashSet<>();
+    // Statistics about the duration of the upstream selections.
+    private long mUpstreamSelectionCount;
+    private long mLastUpstreamSelectionNs;
+    private long mMaxUpstreamSelectionNs;
+    // The local prefixes of each network in mNetworkMap.
+    private final HashMap<Network, Set<IpPrefix>> mNetworkLocalPrefixes = new HashMap<>();
+    // Number of networks which have each local prefix.
+    private final HashMap<IpPrefix, Integer> mLocalPrefixRefCounts = new HashMap<>();
     private ConnectivityManager mCM;
     private EntitlementManager mEntitlementMgr;
     private NetworkCallback mListenAllCallback;
@@ -140,7 +170,6 @@ public class UpstreamNetworkMonitor {
         mHandler = mTarget.getHandler();
         mLog = log.forSubComponent(TAG);
         mWhat = what;
-        mLocalPrefixes = new HashSet<>();
         mIsDefaultCellularUpstream = false;
     }
 
@@ -200,6 +229,10 @@ public class UpstreamNetworkMonitor {
 
         mTetheringUpstreamNetwork = null;
         mNetworkMap.clear();
+        mNetworksByLegacyType.clear();
+        mDunNetworks.clear();
+        mNetworkLocalPrefixes.clear();
+        mLocalPrefixRefCounts.clear();
     }
 
     private void reevaluateUpstreamRequirements(boolean tryCell, boolean autoUpstream,
@@ -304,10 +337,14 @@ public class UpstreamNetworkMonitor {
      * Select the first available network from |perferredTypes|.
      */
     public UpstreamNetworkState selectPreferredUpstreamType(Iterable<Integer> preferredTypes) {
+        final long startNs = SystemClock.elapsedRealtimeNanos();
         final TypeStatePair typeStatePair = findFirstAvailableUpstreamByType(
-                mNetworkMap.values(), preferredTypes, isCellularUpstreamPermitted());
+                preferredTypes, isCellularUpstreamPermitted());
+        final long durationNs = onUpstreamSelected(startNs);
 
-        mLog.log("preferred upstream type: " + typeStatePair.type);
+        mLog.log("preferred upstream type: " + typeStatePair.type + " network: "
+                + ((typeStatePair.ns != null) ? typeStatePair.ns.network : null)
+                + " selected in " + TimeUnit.NANOSECONDS.toMicros(durationNs) + "us");
 
         switch (typeStatePair.type) {
             case TYPE_MOBILE_DUN:
@@ -342,6 +379,13 @@ public class UpstreamNetworkMonitor {
      * Returns null if no current upstream is available.
      */
     public UpstreamNetworkState getCurrentPreferredUpstream() {
+        final long startNs = SystemClock.elapsedRealtimeNanos();
+        final UpstreamNetworkState ns = findCurrentPreferredUpstream();
+        onUpstreamSelected(startNs);
+        return ns;
+    }
+
+    private UpstreamNetworkState findCurrentPreferredUpstream() {
         final UpstreamNetworkState dfltState = (mDefaultInternetNetwork != null)
                 ? mNetworkMap.get(mDefaultInternetNetwork)
                 : null;
@@ -353,7 +397,29 @@ public class UpstreamNetworkMonitor {
 
         // Find a DUN network. Note that code in Tethering causes a DUN request
         // to be filed, but this might be moved into this class in future.
-        return findFirstDunNetwork(mNetworkMap.values());
+        return mDunNetworks.isEmpty() ? null : mNetworkMap.get(mDunNetworks.iterator().next());
+    }
+
+    // Record the duration of an upstream selection which started at startNs, and return it.
+    private long onUpstreamSelected(long startNs) {
+        final long durationNs = SystemClock.elapsedRealtimeNanos() - startNs;
+        mUpstreamSelectionCount++;
+        mLastUpstreamSelectionNs = durationNs;
+        mMaxUpstreamSelectionNs = Math.max(mMaxUpstreamSelectionNs, durationNs);
+        return durationNs;
+    }
+
+    /** Get the duration of the last upstream selection, in nanoseconds. */
+    public long getLastUpstreamSelectionNs() {
+        return mLastUpstreamSelectionNs;
+    }
+
+    /** Dump upstream selection information. */
+    public void dump(IndentingPrintWriter pw) {
+        pw.println("Tracked networks: " + mNetworkMap.size());
+        pw.println(String.format("Upstream selections: %d, last %dus, max %dus",
+                mUpstreamSelectionCount, TimeUnit.NANOSECONDS.toMicros(mLastUpstreamSelectionNs),
+                TimeUnit.NANOSECONDS.toMicros(mMaxUpstreamSelectionNs)));
     }
 
     /** Tell UpstreamNetworkMonitor which network is the current upstream of tethering. */
@@ -363,7 +429,7 @@ public class UpstreamNetworkMonitor {
 
     /** Return local prefixes. */
     public Set<IpPrefix> getLocalPrefixes() {
-        return (Set<IpPrefix>) mLocalPrefixes.clone();
+        return new HashSet<>(mLocalPrefixRefCounts.keySet());
     }
 
     private boolean isCellularUpstreamPermitted() {
@@ -398,6 +464,7 @@ public class UpstreamNetworkMonitor {
 
         mNetworkMap.put(network, new UpstreamNetworkState(
                 prev.linkProperties, newNc, network));
+        updateNetworkIndex(network, newNc);
         // TODO: If sufficient information is available to select a more
         // preferable upstream, do so now and notify the target.
         notifyTarget(EVENT_ON_CAPABILITIES, network);
@@ -460,9 +527,33 @@ public class UpstreamNetworkMonitor {
         // preferable upstream, do so now and notify the target.  Likewise,
         // if the current upstream network is gone, notify the target of the
         // fact that we now have no upstream at all.
+        updateNetworkIndex(network, null);
         notifyTarget(EVENT_ON_LOST, mNetworkMap.remove(network));
     }
 
+    private void updateNetworkIndex(Network network, @Nullable NetworkCapabilities nc) {
+        for (int i = 0; i < sLegacyTypeToCapabilities.size(); i++) {
+            final int type = sLegacyTypeToCapabilities.keyAt(i);
+            LinkedHashSet<Network> networks = mNetworksByLegacyType.get(type);
+            if (nc != null && sLegacyTypeToCapabilities.valueAt(i)
+                    .satisfiedByNetworkCapabilities(nc)) {
+                if (networks == null) {
+                    networks = new LinkedHashSet<>();
+                    mNetworksByLegacyType.put(type, networks);
+                }
+                networks.add(network);
+            } else if (networks != null) {
+                networks.remove(network);
+            }
+        }
+
+        if (nc != null && isCellular(nc) && nc.hasCapability(NET_CAPABILITY_DUN)) {
+            mDunNetworks.add(network);
+        } else {
+            mDunNetworks.remove(network);
+        }
+    }
+
     private void maybeHandleNetworkSwitch(@NonNull Network network) {
         if (Objects.equals(mDefaultInternetNetwork, network)) return;
 
@@ -481,11 +572,47 @@ public class UpstreamNetworkMonitor {
         notifyTarget(EVENT_DEFAULT_SWITCHED, ns);
     }
 
-    private void recomputeLocalPrefixes() {
-        final HashSet<IpPrefix> localPrefixes = allLocalPrefixes(mNetworkMap.values());
-        if (!mLocalPrefixes.equals(localPrefixes)) {
-            mLocalPrefixes = localPrefixes;
-            notifyTarget(NOTIFY_LOCAL_PREFIXES, localPrefixes.clone());
+    /**
+     * Update the local prefixes of a network, after its LinkProperties changed or it was lost.
+     *
+     * Only the prefixes of that network are recomputed. If the set of local prefixes of all
+     * networks changes, the target is notified of the added and removed prefixes.
+     */
+    private void updateLocalPrefixes(Network network) {
+        final UpstreamNetworkState ns = mNetworkMap.get(network);
+        final Set<IpPrefix> newPrefixes = (ns != null)
+                ? PrefixUtils.localPrefixesFrom(ns.linkProperties) : Collections.emptySet();
+        final Set<IpPrefix> oldPrefixes = mNetworkLocalPrefixes.getOrDefault(network,
+                Collections.emptySet());
+        if (newPrefixes.equals(oldPrefixes)) return;
+
+        if (newPrefixes.isEmpty()) {
+            mNetworkLocalPrefixes.remove(network);
+        } else {
+            mNetworkLocalPrefixes.put(network, newPrefixes);
+        }
+
+        final HashSet<IpPrefix> added = new HashSet<>();
+        final HashSet<IpPrefix> removed = new HashSet<>();
+        for (IpPrefix prefix : oldPrefixes) {
+            if (newPrefixes.contains(prefix)) continue;
+            final int count = mLocalPrefixRefCounts.get(prefix);
+            if (count > 1) {
+                mLocalPrefixRefCounts.put(prefix, count - 1);
+            } else {
+                mLocalPrefixRefCounts.remove(prefix);
+                removed.add(prefix);
+            }
+        }
+        for (IpPrefix prefix : newPrefixes) {
+            if (oldPrefixes.contains(prefix)) continue;
+            final int count = mLocalPrefixRefCounts.getOrDefault(prefix, 0);
+            mLocalPrefixRefCounts.put(prefix, count + 1);
+            if (count == 0) added.add(prefix);
+        }
+
+        if (!added.isEmpty() || !removed.isEmpty()) {
+            notifyTarget(NOTIFY_LOCAL_PREFIXES, new LocalPrefixUpdate(added, removed));
         }
     }
 
@@ -562,7 +689,7 @@ public class UpstreamNetworkMonitor {
             // also match the LISTEN_ALL callback by construction of the LISTEN_ALL callback.
             // So it's not useful to do this work for non-LISTEN_ALL callbacks.
             if (mCallbackType == CALLBACK_LISTEN_ALL) {
-                recomputeLocalPrefixes();
+                updateLocalPrefixes(network);
             }
         }
 
@@ -582,7 +709,7 @@ public class UpstreamNetworkMonitor {
             // also match the LISTEN_ALL callback by construction of the LISTEN_ALL callback.
             // So it's not useful to do this work for non-LISTEN_ALL callbacks.
             if (mCallbackType == CALLBACK_LISTEN_ALL) {
-                recomputeLocalPrefixes();
+                updateLocalPrefixes(network);
             }
         }
     }
@@ -599,21 +726,31 @@ public class UpstreamNetworkMonitor {
         mTarget.sendMessage(mWhat, which, 0, obj);
     }
 
+    /** The local prefixes added and removed by a NOTIFY_LOCAL_PREFIXES notification. */
+    public static class LocalPrefixUpdate {
+        @NonNull
+        public final Set<IpPrefix> added;
+        @NonNull
+        public final Set<IpPrefix> removed;
+
+        public LocalPrefixUpdate(@NonNull Set<IpPrefix> added, @NonNull Set<IpPrefix> removed) {
+            this.added = added;
+            this.removed = removed;
+        }
+    }
+
     private static class TypeStatePair {
         public int type = TYPE_NONE;
         public UpstreamNetworkState ns = null;
     }
 
-    private static TypeStatePair findFirstAvailableUpstreamByType(
-            Iterable<UpstreamNetworkState> netStates, Iterable<Integer> preferredTypes,
+    private TypeStatePair findFirstAvailableUpstreamByType(Iterable<Integer> preferredTypes,
             boolean isCellularUpstreamPermitted) {
         final TypeStatePair result = new TypeStatePair();
 
         for (int type : preferredTypes) {
-            NetworkCapabilities nc;
-            try {
-                nc = networkCapabilitiesForType(type);
-            } catch (IllegalArgumentException iae) {
+            final NetworkCapabilities nc = sLegacyTypeToCapabilities.get(type);
+            if (nc == null) {
                 Log.e(TAG, "No NetworkCapabilities mapping for legacy type: " + type);
                 continue;
             }
@@ -621,60 +758,27 @@ public class UpstreamNetworkMonitor {
                 continue;
             }
 
-            for (UpstreamNetworkState value : netStates) {
-                if (!nc.satisfiedByNetworkCapabilities(value.networkCapabilities)) {
-                    continue;
-                }
+            final LinkedHashSet<Network> networks = mNetworksByLegacyType.get(type);
+            if (networks == null || networks.isEmpty()) continue;
 
-                result.type = type;
-                result.ns = value;
-                return result;
-            }
+            result.type = type;
+            result.ns = mNetworkMap.get(networks.iterator().next());
+            return result;
         }
 
         return result;
     }
 
-    private static HashSet<IpPrefix> allLocalPrefixes(Iterable<UpstreamNetworkState> netStates) {
-        final HashSet<IpPrefix> prefixSet = new HashSet<>();
-
-        for (UpstreamNetworkState ns : netStates) {
-            final LinkProperties lp = ns.linkProperties;
-            if (lp == null) continue;
-            prefixSet.addAll(PrefixUtils.localPrefixesFrom(lp));
-        }
-
-        return prefixSet;
-    }
-
-    private static boolean isCellular(UpstreamNetworkState ns) {
-        return (ns != null) && isCellular(ns.networkCapabilities);
-    }
-
     private static boolean isCellular(NetworkCapabilities nc) {
         return (nc != null) && nc.hasTransport(TRANSPORT_CELLULAR)
                && nc.hasCapability(NET_CAPABILITY_NOT_VPN);
     }
 
-    private static boolean hasCapability(UpstreamNetworkState ns, int netCap) {
-        return (ns != null) && (ns.networkCapabilities != null)
-               && ns.networkCapabilities.hasCapability(netCap);
-    }
-
     private static boolean isNetworkUsableAndNotCellular(UpstreamNetworkState ns) {
         return (ns != null) && (ns.networkCapabilities != null) && (ns.linkProperties != null)
                && !isCellular(ns.networkCapabilities);
     }
 
-    private static UpstreamNetworkState findFirstDunNetwork(
-            Iterable<UpstreamNetworkState> netStates) {
-        for (UpstreamNetworkState ns : netStates) {
-            if (isCellular(ns) && hasCapability(ns, NET_CAPABILITY_DUN)) return ns;
-        }
-
-        return null;
-    }
-
     /**
      * Given a legacy type (TYPE_WIFI, ...) returns the corresponding NetworkCapabilities instance.
      * This function is used for deprecated legacy type and be disabled by default.
@@ -23,6 +23,7 @@ import static com.android.net.module.util.NetworkStackConstants.ETHER_SRC_ADDR_O
 
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
 
 import android.app.Instrumentation;
 import android.content.Context;
@@ -310,6 +311,25 @@ public class DadProxyTest {
         receivePacketAndExpectForwarded(ns, mTetheredPacketReader, out, mUpstreamPacketReader);
     }
 
+    @Test
+    public void testNsForwardingBurst() throws Exception {
+        ByteBuffer ns = createDadPacket(NeighborPacketForwarder.ICMPV6_NEIGHBOR_SOLICITATION);
+
+        ByteBuffer out = copy(ns);
+        updateSrcMac(out, mUpstreamParams);
+
+        // Wait for DAD to finish, then check that packets received together are all forwarded.
+        receivePacketAndExpectForwarded(ns, mTetheredPacketReader, out, mUpstreamPacketReader);
+        final int burst = 5;
+        for (int i = 0; i < burst; i++) {
+            mTetheredPacketReader.sendResponse(ns);
+        }
+        for (int i = 0; i < burst; i++) {
+            assertTrue("Did not receive packet " + i + " of burst",
+                    waitForPacket(out, mUpstreamPacketReader));
+        }
+    }
+
     @Test
     // TODO: remove test once DAD works in both directions.
     public void testNsForwardingFromUpstreamToTether() throws Exception {
@@ -81,6 +81,9 @@ import java.net.InetAddress;
 import java.nio.ByteBuffer;
 import java.util.HashSet;
 import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
 
 @RunWith(AndroidJUnit4.class)
 @SmallTest
@@ -304,6 +307,26 @@ public final class RouterAdvertisementDaemonTest {
                 IPV6_ADDR_ALL_NODES_MULTICAST, slla);
     }
 
+    private <T> T runOnHandler(final Callable<T> callable) throws Exception {
+        final CompletableFuture<T> result = new CompletableFuture<>();
+        mHandler.post(() -> {
+            try {
+                result.complete(callable.call());
+            } catch (Exception e) {
+                result.completeExceptionally(e);
+            }
+        });
+        return result.get(PACKET_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+    }
+
+    private void buildNewRaOnHandler(final RouterAdvertisementDaemon daemon,
+            final RaParams deprecatedParams, final RaParams newParams) throws Exception {
+        runOnHandler(() -> {
+            daemon.buildNewRa(deprecatedParams, newParams);
+            return null;
+        });
+    }
+
     @Test
     public void testUnSolicitRouterAdvertisement() throws Exception {
         assertTrue(mRaDaemon.start());
@@ -341,4 +364,44 @@ public final class RouterAdvertisementDaemonTest {
         mTetheredPacketReader.sendResponse(rs);
         assertUnicastRaPacket(new TestRaPacket(null, params1));
     }
+
+    @Test
+    public void testUnSolicitRouterAdvertisementOnHandler() throws Exception {
+        final RouterAdvertisementDaemon daemon =
+                new RouterAdvertisementDaemon(mTetheredParams, mHandler);
+        assertTrue(runOnHandler(daemon::start));
+        final RaParams params1 = createRaParams("2001:1122:3344::5566");
+        buildNewRaOnHandler(daemon, null, params1);
+        assertMulticastRaPacket(new TestRaPacket(null, params1));
+
+        final RaParams params2 = createRaParams("2006:3344:5566::7788");
+        buildNewRaOnHandler(daemon, params1, params2);
+        assertMulticastRaPacket(new TestRaPacket(params1, params2));
+
+        runOnHandler(() -> {
+            daemon.stop();
+            return null;
+        });
+    }
+
+    @Test
+    public void testSolicitRouterAdvertisementOnHandler() throws Exception {
+        final RouterAdvertisementDaemon daemon =
+                new RouterAdvertisementDaemon(mTetheredParams, mHandler);
+        assertTrue(runOnHandler(daemon::start));
+        final RaParams params1 = createRaParams("2001:1122:3344::5566");
+        buildNewRaOnHandler(daemon, null, params1);
+        assertMulticastRaPacket(new TestRaPacket(null, params1));
+
+        // Solicitations are answered with a rate-limited multicast RA.
+        final ByteBuffer rs = createRsPacket("fe80::1122:3344:5566:7788");
+        mTetheredPacketReader.sendResponse(rs);
+        mTetheredPacketReader.sendResponse(rs);
+        assertMulticastRaPacket(new TestRaPacket(null, params1));
+
+        runOnHandler(() -> {
+            daemon.stop();
+            return null;
+        });
+    }
 }
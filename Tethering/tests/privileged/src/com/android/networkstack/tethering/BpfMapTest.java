@@ -33,6 +33,7 @@ import android.util.ArrayMap;
 
 import androidx.test.runner.AndroidJUnit4;
 
+import com.android.net.module.util.Struct;
 import com.android.testutils.DevSdkIgnoreRule.IgnoreUpTo;
 
 import org.junit.Before;
@@ -41,6 +42,8 @@ import org.junit.Test;
 import org.junit.runner.RunWith;
 
 import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
 import java.util.NoSuchElementException;
 import java.util.concurrent.atomic.AtomicInteger;
 
@@ -52,6 +55,8 @@ public final class BpfMapTest {
     private static final int TEST_MAP_SIZE = 16;
     private static final String TETHER_DOWNSTREAM6_FS_PATH =
             "/sys/fs/bpf/tethering/map_test_tether_downstream6_map";
+    private static final String TETHER_STATS_FS_PATH =
+            "/sys/fs/bpf/tethering/map_test_tether_stats_map";
 
     private ArrayMap<TetherDownstream6Key, Tether6Value> mTestData;
 
@@ -299,6 +304,27 @@ public final class BpfMapTest {
         assertTrue(resultMap.isEmpty());
     }
 
+    @Test
+    public void testIterateFullMap() throws Exception {
+        final ArrayMap<TetherDownstream6Key, Tether6Value> resultMap = new ArrayMap<>();
+        for (int i = 1; i <= TEST_MAP_SIZE; i++) {
+            final TetherDownstream6Key key =
+                    createTetherDownstream6Key(i, "00:00:00:00:00:01", "2001:db8::" + i);
+            final Tether6Value value = createTether6Value(100 + i, "de:ad:be:ef:00:01",
+                    "de:ad:be:ef:00:02", ETH_P_IPV6, 1500);
+            mTestMap.insertEntry(key, value);
+            resultMap.put(key, value);
+        }
+
+        // Every entry is visited exactly once, whether the map is read in batches or key by key.
+        mTestMap.forEach((key, value) -> {
+            if (!value.equals(resultMap.remove(key))) {
+                fail("Unexpected result: " + key + ", value: " + value);
+            }
+        });
+        assertTrue(resultMap.isEmpty());
+    }
+
     @Test
     public void testIterateEmptyMap() throws Exception {
         // Can't use an int because variables used in a lambda must be final.
@@ -389,4 +415,94 @@ public final class BpfMapTest {
             assertEquals(OsConstants.E2BIG, expected.errno);
         }
     }
+
+    @Test
+    public void testInsertAndDeleteEntriesDirect() throws Exception {
+        final int keySize = Struct.getSize(TetherDownstream6Key.class);
+        final int valueSize = Struct.getSize(Tether6Value.class);
+        final int count = mTestData.size();
+        final ByteBuffer keys = ByteBuffer.allocateDirect(keySize * count)
+                .order(ByteOrder.nativeOrder());
+        final ByteBuffer values = ByteBuffer.allocateDirect(valueSize * count)
+                .order(ByteOrder.nativeOrder());
+        for (int i = 0; i < count; i++) {
+            mTestData.keyAt(i).encode(keys);
+            mTestData.valueAt(i).encode(values);
+        }
+        keys.flip();
+        values.flip();
+
+        // The entry which already exists fails alone and is not replaced, with or without batch
+        // support. The others are inserted.
+        mTestMap.insertEntry(mTestData.keyAt(1), mTestData.valueAt(0));
+        final int[] errnos = new int[count];
+        mTestMap.insertEntriesDirect(keys, values, count, errnos);
+        assertEquals(0, errnos[0]);
+        assertEquals(OsConstants.EEXIST, errnos[1]);
+        assertEquals(0, errnos[2]);
+        assertEquals(mTestData.valueAt(0), mTestMap.getValue(mTestData.keyAt(0)));
+        assertEquals(mTestData.valueAt(0), mTestMap.getValue(mTestData.keyAt(1)));
+        assertEquals(mTestData.valueAt(2), mTestMap.getValue(mTestData.keyAt(2)));
+
+        // The key which does not exist fails alone, and the others are still deleted.
+        mTestMap.deleteEntry(mTestData.keyAt(2));
+        mTestMap.deleteEntriesDirect(keys, count, errnos);
+        assertEquals(0, errnos[0]);
+        assertEquals(0, errnos[1]);
+        assertEquals(OsConstants.ENOENT, errnos[2]);
+        assertTrue(mTestMap.isEmpty());
+    }
+
+    @Test
+    public void testPerCpuMap() throws Exception {
+        try (BpfMap<TetherStatsKey, TetherStatsValue> map = new BpfMap<>(TETHER_STATS_FS_PATH,
+                BpfMap.BPF_F_RDWR, TetherStatsKey.class, TetherStatsValue.class,
+                TetherStatsValue::sum)) {
+            map.clear();
+            final TetherStatsKey key = new TetherStatsKey(101);
+            final TetherStatsValue value = new TetherStatsValue(1, 2, 3, 4, 5, 6);
+
+            // The written value is stored for the first cpu only, so it is also the sum.
+            map.insertEntry(key, value);
+            assertEquals(value, map.getValue(key));
+
+            // The raw value holds the value of each cpu. The value size is 8 byte aligned.
+            final int numCpus = map.getValueSize() / Struct.getSize(TetherStatsValue.class);
+            assertTrue(numCpus >= 1);
+            final ByteBuffer rawKey = ByteBuffer.allocateDirect(Struct.getSize(
+                    TetherStatsKey.class)).order(ByteOrder.nativeOrder());
+            key.encode(rawKey);
+            rawKey.flip();
+            final ByteBuffer rawValue = ByteBuffer.allocateDirect(map.getValueSize())
+                    .order(ByteOrder.nativeOrder());
+            for (int cpu = 0; cpu < numCpus; cpu++) value.encode(rawValue);
+            rawValue.flip();
+            map.updateEntryDirect(rawKey, rawValue);
+
+            final TetherStatsValue sum = new TetherStatsValue(numCpus, 2 * numCpus, 3 * numCpus,
+                    4 * numCpus, 5 * numCpus, 6 * numCpus);
+            assertEquals(sum, map.getValue(key));
+            final AtomicInteger count = new AtomicInteger(0);
+            map.forEach((k, v) -> {
+                assertEquals(key, k);
+                assertEquals(sum, v);
+                count.incrementAndGet();
+            });
+            assertEquals(1, count.get());
+
+            map.clear();
+            assertTrue(map.isEmpty());
+        }
+    }
+
+    @Test
+    public void testParseNumPossibleCpus() {
+        assertEquals(1, BpfMap.parseNumPossibleCpus("0\n"));
+        assertEquals(8, BpfMap.parseNumPossibleCpus("0-7\n"));
+        assertEquals(5, BpfMap.parseNumPossibleCpus("0-3,6"));
+        try {
+            BpfMap.parseNumPossibleCpus("");
+            fail("Parsing an empty cpu list should throw NumberFormatException");
+        } catch (NumberFormatException expected) { }
+    }
 }
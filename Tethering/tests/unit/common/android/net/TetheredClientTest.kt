@@ -52,7 +52,8 @@ class TetheredClientTest {
     @Test
     fun testParceling() {
         assertParcelSane(TEST_ADDRINFO1, fieldCount = 2)
-        assertParcelSane(makeTestClient(), fieldCount = 3)
+        assertParcelSane(makeTestClient(), fieldCount = 7)
+        assertParcelSane(makeTestClient().withTrafficStats(1L, 2L, 3L, 4L), fieldCount = 7)
     }
 
     @Test
@@ -88,6 +89,11 @@ class TetheredClientTest {
                 TEST_MACADDR,
                 listOf(TEST_ADDRINFO1, TEST_ADDRINFO2),
                 TETHERING_USB))
+
+        // Different traffic stats
+        assertNotEquals(makeTestClient(), makeTestClient().withTrafficStats(0L, 0L, 0L, 1L))
+        assertEquals(makeTestClient().withTrafficStats(1L, 2L, 3L, 4L),
+                makeTestClient().withTrafficStats(1L, 2L, 3L, 4L))
     }
 
     @Test
@@ -100,11 +106,32 @@ class TetheredClientTest {
                 TETHERING_USB), client1.addAddresses(client2))
     }
 
+    @Test
+    fun testAddAddresses_KeepsTrafficStats() {
+        val client1 = TetheredClient(TEST_MACADDR, listOf(TEST_ADDRINFO1), TETHERING_USB)
+                .withTrafficStats(100L, 2L, 300L, 4L)
+        val client2 = TetheredClient(TEST_MACADDR, listOf(TEST_ADDRINFO2), TETHERING_USB)
+        assertEquals(TetheredClient(
+                TEST_MACADDR,
+                listOf(TEST_ADDRINFO1, TEST_ADDRINFO2),
+                TETHERING_USB, 100L, 2L, 300L, 4L), client1.addAddresses(client2))
+    }
+
     @Test
     fun testGetters() {
         assertEquals(TEST_MACADDR, makeTestClient().macAddress)
         assertEquals(listOf(TEST_ADDRINFO1, TEST_ADDRINFO2), makeTestClient().addresses)
         assertEquals(TETHERING_BLUETOOTH, makeTestClient().tetheringType)
+        assertEquals(0L, makeTestClient().rxBytes)
+        assertEquals(0L, makeTestClient().txPackets)
+
+        val client = makeTestClient().withTrafficStats(1L, 2L, 3L, 4L)
+        assertEquals(TEST_MACADDR, client.macAddress)
+        assertEquals(listOf(TEST_ADDRINFO1, TEST_ADDRINFO2), client.addresses)
+        assertEquals(1L, client.rxBytes)
+        assertEquals(2L, client.rxPackets)
+        assertEquals(3L, client.txBytes)
+        assertEquals(4L, client.txPackets)
     }
 
     @Test
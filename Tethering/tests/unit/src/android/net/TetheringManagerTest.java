@@ -0,0 +1,265 @@
+/*
+ * Copyright (C) 2021 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.net;
+
+import static android.net.TetheringManager.TETHER_ERROR_NO_ACCESS_TETHERING_PERMISSION;
+import static android.net.TetheringManager.TETHER_ERROR_NO_CHANGE_TETHERING_PERMISSION;
+import static android.net.TetheringManager.TETHER_ERROR_NO_ERROR;
+import static android.net.TetheringManager.TETHER_ERROR_SERVICE_UNAVAIL;
+import static android.net.TetheringManager.TETHER_ERROR_UNAVAIL_IFACE;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertThrows;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.verifyNoMoreInteractions;
+import static org.mockito.Mockito.when;
+
+import android.content.Context;
+import android.os.IBinder;
+
+import androidx.test.filters.SmallTest;
+import androidx.test.runner.AndroidJUnit4;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.function.Consumer;
+
+@RunWith(AndroidJUnit4.class)
+@SmallTest
+public final class TetheringManagerTest {
+    private static final String TEST_CALLER_PKG = "com.android.test";
+    private static final String TEST_IFACE = "test_wlan0";
+
+    @Mock private Context mContext;
+    @Mock private IBinder mConnectorBinder;
+    @Mock private ITetheringConnector mConnector;
+    @Mock private TetheringManager.ResultCallback<Integer> mIntCallback;
+    @Mock private TetheringManager.ResultCallback<String[]> mIfacesCallback;
+
+    private final TestExecutor mExecutor = new TestExecutor();
+
+    // Runs the callbacks only when asked to, to check that they are not run on binder threads.
+    private static class TestExecutor implements Executor {
+        private final List<Runnable> mPending = new ArrayList<>();
+
+        @Override
+        public void execute(Runnable command) {
+            mPending.add(command);
+        }
+
+        void runAll() {
+            final List<Runnable> pending = new ArrayList<>(mPending);
+            mPending.clear();
+            for (Runnable r : pending) {
+                r.run();
+            }
+        }
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        MockitoAnnotations.initMocks(this);
+        when(mContext.getOpPackageName()).thenReturn(TEST_CALLER_PKG);
+        when(mConnectorBinder.queryLocalInterface(any())).thenReturn(mConnector);
+    }
+
+    private TetheringManager makeConnectedManager() {
+        return new TetheringManager(mContext, () -> mConnectorBinder);
+    }
+
+    private ITetheringEventCallback verifyRegisteredEventCallback() throws Exception {
+        final ArgumentCaptor<ITetheringEventCallback> captor =
+                ArgumentCaptor.forClass(ITetheringEventCallback.class);
+        verify(mConnector).registerTetheringEventCallback(captor.capture(), eq(TEST_CALLER_PKG));
+        return captor.getValue();
+    }
+
+    private IIntResultListener verifyTetherRequest() throws Exception {
+        final ArgumentCaptor<IIntResultListener> captor =
+                ArgumentCaptor.forClass(IIntResultListener.class);
+        verify(mConnector).tether(eq(TEST_IFACE), eq(TEST_CALLER_PKG), any(), captor.capture());
+        return captor.getValue();
+    }
+
+    private static TetheringCallbackStartedParcel makeStartedParcel(String[] tethered) {
+        final TetherStatesParcel states = new TetherStatesParcel();
+        states.availableList = new String[0];
+        states.tetheredList = tethered;
+        states.localOnlyList = new String[0];
+        states.erroredIfaceList = new String[0];
+        states.lastErrorList = new int[0];
+        final TetheringCallbackStartedParcel parcel = new TetheringCallbackStartedParcel();
+        parcel.config = new TetheringConfigurationParcel();
+        parcel.states = states;
+        return parcel;
+    }
+
+    @Test
+    public void testTetherAsync() throws Exception {
+        final TetheringManager manager = makeConnectedManager();
+
+        manager.tetherAsync(TEST_IFACE, mExecutor, mIntCallback);
+        verifyTetherRequest().onResult(TETHER_ERROR_UNAVAIL_IFACE);
+        verify(mIntCallback, never()).onResult(anyInt());
+
+        mExecutor.runAll();
+        verify(mIntCallback).onResult(TETHER_ERROR_UNAVAIL_IFACE);
+        verifyNoMoreInteractions(mIntCallback);
+    }
+
+    @Test
+    public void testTetherAsyncPermissionFailure() throws Exception {
+        final TetheringManager manager = makeConnectedManager();
+
+        manager.tetherAsync(TEST_IFACE, mExecutor, mIntCallback);
+        verifyTetherRequest().onResult(TETHER_ERROR_NO_CHANGE_TETHERING_PERMISSION);
+        mExecutor.runAll();
+
+        verify(mIntCallback).onError(TETHER_ERROR_NO_CHANGE_TETHERING_PERMISSION);
+        verifyNoMoreInteractions(mIntCallback);
+    }
+
+    @Test
+    public void testQueryAsyncPermissionFailure() throws Exception {
+        final TetheringManager manager = makeConnectedManager();
+
+        manager.getTetheredIfacesAsync(mExecutor, mIfacesCallback);
+        verifyRegisteredEventCallback().onCallbackStopped(
+                TETHER_ERROR_NO_ACCESS_TETHERING_PERMISSION);
+        mExecutor.runAll();
+
+        verify(mIfacesCallback).onError(TETHER_ERROR_NO_ACCESS_TETHERING_PERMISSION);
+        verifyNoMoreInteractions(mIfacesCallback);
+    }
+
+    @Test
+    public void testQueryAsyncFromCachedState() throws Exception {
+        final TetheringManager manager = makeConnectedManager();
+        final String[] tethered = new String[] { TEST_IFACE };
+
+        // Queries made before the callback is started are answered when it starts.
+        manager.getTetheredIfacesAsync(mExecutor, mIfacesCallback);
+        final ITetheringEventCallback eventCallback = verifyRegisteredEventCallback();
+        eventCallback.onCallbackStarted(makeStartedParcel(tethered));
+        mExecutor.runAll();
+        verify(mIfacesCallback).onResult(tethered);
+
+        // Once the callback is started, queries are answered from the cached state without calls
+        // to the service.
+        final TetherStatesParcel states = makeStartedParcel(new String[0]).states;
+        states.erroredIfaceList = new String[] { TEST_IFACE };
+        states.lastErrorList = new int[] { TETHER_ERROR_UNAVAIL_IFACE };
+        eventCallback.onTetherStatesChanged(states);
+        manager.getLastTetherErrorAsync(TEST_IFACE, mExecutor, mIntCallback);
+        verify(mIntCallback, never()).onResult(anyInt());
+        mExecutor.runAll();
+
+        verify(mIntCallback).onResult(TETHER_ERROR_UNAVAIL_IFACE);
+        verifyNoMoreInteractions(mConnector);
+    }
+
+    @Test
+    public void testConnectFromNotifier() throws Exception {
+        final IBinder[] connectorBinder = new IBinder[1];
+        final List<Runnable> notifications = new ArrayList<>();
+        final Consumer<Runnable> notifier = notifications::add;
+        final TetheringManager manager =
+                new TetheringManager(mContext, () -> connectorBinder[0], notifier);
+        assertEquals(1, notifications.size());
+
+        // Calls are queued until the connector is available.
+        manager.tetherAsync(TEST_IFACE, mExecutor, mIntCallback);
+        notifications.get(0).run();
+        verifyNoMoreInteractions(mConnector);
+
+        connectorBinder[0] = mConnectorBinder;
+        notifications.get(0).run();
+        verifyRegisteredEventCallback();
+        final IIntResultListener listener = verifyTetherRequest();
+
+        // Repeated notifications do not send the queued calls again.
+        notifications.get(0).run();
+        verify(mConnector, times(1)).registerTetheringEventCallback(any(), any());
+        verify(mConnector, times(1)).tether(any(), any(), any(), any());
+
+        // Calls made after connecting are sent immediately.
+        manager.untetherAsync(TEST_IFACE, mExecutor, mIntCallback);
+        verify(mConnector).untether(eq(TEST_IFACE), eq(TEST_CALLER_PKG), any(), any());
+
+        listener.onResult(TETHER_ERROR_NO_ERROR);
+        mExecutor.runAll();
+        verify(mIntCallback).onResult(TETHER_ERROR_NO_ERROR);
+    }
+
+    @Test
+    public void testSetTetheredClientRateLimitAsync() throws Exception {
+        final TetheringManager manager = makeConnectedManager();
+        final MacAddress clientMac = MacAddress.fromString("12:34:56:78:90:ab");
+        assertThrows(IllegalArgumentException.class, () ->
+                manager.setTetheredClientRateLimitAsync(clientMac, 0L, 2000L, mExecutor,
+                        mIntCallback));
+        assertThrows(IllegalArgumentException.class, () ->
+                manager.setTetheredClientRateLimitAsync(clientMac, 1000L, (1L << 32) + 1,
+                        mExecutor, mIntCallback));
+
+        final ArgumentCaptor<IIntResultListener> captor =
+                ArgumentCaptor.forClass(IIntResultListener.class);
+        manager.setTetheredClientRateLimitAsync(clientMac, 1000L, 2000L, mExecutor,
+                mIntCallback);
+        verify(mConnector).setTetheredClientRateLimit(eq(clientMac.toString()), eq(1000L),
+                eq(2000L), eq(TEST_CALLER_PKG), any(), captor.capture());
+        captor.getValue().onResult(TETHER_ERROR_NO_ERROR);
+        mExecutor.runAll();
+        verify(mIntCallback).onResult(TETHER_ERROR_NO_ERROR);
+
+        manager.removeTetheredClientRateLimitAsync(clientMac, mExecutor, mIntCallback);
+        verify(mConnector).setTetheredClientRateLimit(eq(clientMac.toString()), eq(0L), eq(0L),
+                eq(TEST_CALLER_PKG), any(), any());
+    }
+
+    @Test
+    public void testServiceDiedBeforeReplying() throws Exception {
+        final TetheringManager manager = makeConnectedManager();
+        final ArgumentCaptor<IBinder.DeathRecipient> captor =
+                ArgumentCaptor.forClass(IBinder.DeathRecipient.class);
+        verify(mConnectorBinder).linkToDeath(captor.capture(), anyInt());
+
+        manager.tetherAsync(TEST_IFACE, mExecutor, mIntCallback);
+        final IIntResultListener listener = verifyTetherRequest();
+        captor.getValue().binderDied();
+        mExecutor.runAll();
+        verify(mIntCallback).onError(TETHER_ERROR_SERVICE_UNAVAIL);
+
+        // A late reply is not sent to the callback again.
+        listener.onResult(TETHER_ERROR_NO_ERROR);
+        mExecutor.runAll();
+        verifyNoMoreInteractions(mIntCallback);
+    }
+}
@@ -110,6 +110,8 @@ import com.android.networkstack.tethering.Tether6Value;
 import com.android.networkstack.tethering.TetherDownstream6Key;
 import com.android.networkstack.tethering.TetherLimitKey;
 import com.android.networkstack.tethering.TetherLimitValue;
+import com.android.networkstack.tethering.TetherQuotaKey;
+import com.android.networkstack.tethering.TetherQuotaValue;
 import com.android.networkstack.tethering.TetherStatsKey;
 import com.android.networkstack.tethering.TetherStatsValue;
 import com.android.networkstack.tethering.TetherUpstream6Key;
@@ -182,6 +184,8 @@ public class IpServerTest {
     @Mock private BpfMap<TetherUpstream6Key, Tether6Value> mBpfUpstream6Map;
     @Mock private BpfMap<TetherStatsKey, TetherStatsValue> mBpfStatsMap;
     @Mock private BpfMap<TetherLimitKey, TetherLimitValue> mBpfLimitMap;
+    @Mock private BpfMap<TetherQuotaKey, TetherQuotaValue> mBpfQuotaMap;
+    @Mock private BpfMap<TetherQuotaKey, TetherQuotaValue> mBpfQuotaCacheMap;
 
     @Captor private ArgumentCaptor<DhcpServingParamsParcel> mDhcpParamsCaptor;
 
@@ -193,6 +197,7 @@ public class IpServerTest {
     private NeighborEventConsumer mNeighborEventConsumer;
     private BpfCoordinator mBpfCoordinator;
     private BpfCoordinator.Dependencies mBpfDeps;
+    private boolean mUsingFastStart;
 
     private void initStateMachine(int interfaceType) throws Exception {
         initStateMachine(interfaceType, false /* usingLegacyDhcp */, DEFAULT_USING_BPF_OFFLOAD);
@@ -201,7 +206,7 @@ public class IpServerTest {
     private void initStateMachine(int interfaceType, boolean usingLegacyDhcp,
             boolean usingBpfOffload) throws Exception {
         when(mDependencies.getDadProxy(any(), any())).thenReturn(mDadProxy);
-        when(mDependencies.getRouterAdvertisementDaemon(any())).thenReturn(mRaDaemon);
+        when(mDependencies.getRouterAdvertisementDaemon(any(), any())).thenReturn(mRaDaemon);
         when(mDependencies.getInterfaceParams(IFACE_NAME)).thenReturn(TEST_IFACE_PARAMS);
         when(mDependencies.getInterfaceParams(UPSTREAM_IFACE)).thenReturn(UPSTREAM_IFACE_PARAMS);
         when(mDependencies.getInterfaceParams(UPSTREAM_IFACE2)).thenReturn(UPSTREAM_IFACE_PARAMS2);
@@ -220,7 +225,8 @@ public class IpServerTest {
 
         mIpServer = new IpServer(
                 IFACE_NAME, mLooper.getLooper(), interfaceType, mSharedLog, mNetd, mBpfCoordinator,
-                mCallback, usingLegacyDhcp, usingBpfOffload, mAddressCoordinator, mDependencies);
+                mCallback, usingLegacyDhcp, usingBpfOffload, mAddressCoordinator,
+                mUsingFastStart, mDependencies);
         mIpServer.start();
         mNeighborEventConsumer = neighborCaptor.getValue();
 
@@ -300,7 +306,7 @@ public class IpServerTest {
                     }
 
                     @NonNull
-                    public ConntrackMonitor getConntrackMonitor(
+                    public ConntrackMonitor getConntrackMonitor(Handler handler,
                             ConntrackMonitor.ConntrackEventConsumer consumer) {
                         return mConntrackMonitor;
                     }
@@ -334,6 +340,16 @@ public class IpServerTest {
                     public BpfMap<TetherLimitKey, TetherLimitValue> getBpfLimitMap() {
                         return mBpfLimitMap;
                     }
+
+                    @Nullable
+                    public BpfMap<TetherQuotaKey, TetherQuotaValue> getBpfQuotaMap() {
+                        return mBpfQuotaMap;
+                    }
+
+                    @Nullable
+                    public BpfMap<TetherQuotaKey, TetherQuotaValue> getBpfQuotaCacheMap() {
+                        return mBpfQuotaCacheMap;
+                    }
                 };
         mBpfCoordinator = spy(new BpfCoordinator(mBpfDeps));
 
@@ -346,7 +362,8 @@ public class IpServerTest {
                 .thenReturn(mIpNeighborMonitor);
         mIpServer = new IpServer(IFACE_NAME, mLooper.getLooper(), TETHERING_BLUETOOTH, mSharedLog,
                 mNetd, mBpfCoordinator, mCallback, false /* usingLegacyDhcp */,
-                DEFAULT_USING_BPF_OFFLOAD, mAddressCoordinator, mDependencies);
+                DEFAULT_USING_BPF_OFFLOAD, mAddressCoordinator, false /* usingFastStart */,
+                mDependencies);
         mIpServer.start();
         mLooper.dispatchAll();
         verify(mCallback).updateInterfaceState(
@@ -1264,6 +1281,26 @@ public class IpServerTest {
         verify(mDhcpServer).stop(any());
     }
 
+    @Test
+    public void testFastStartCreatesDhcpServerBeforeConfiguringInterface() throws Exception {
+        mUsingFastStart = true;
+        initStateMachine(TETHERING_WIFI);
+
+        // The DHCP server is requested before the interface is configured.
+        dispatchCommand(IpServer.CMD_TETHER_REQUESTED, STATE_TETHERED);
+        final InOrder inOrder = inOrder(mDependencies, mNetd);
+        inOrder.verify(mDependencies).makeDhcpServer(eq(IFACE_NAME), any(), any());
+        inOrder.verify(mNetd).interfaceSetCfg(any());
+        verify(mDhcpServer).startWithCallbacks(any(), any());
+
+        // A stopped DHCP server is never restarted: a new one is created when tethering restarts.
+        dispatchCommand(IpServer.CMD_TETHER_UNREQUESTED);
+        verify(mDhcpServer).stop(any());
+        dispatchCommand(IpServer.CMD_TETHER_REQUESTED, STATE_TETHERED);
+        verify(mDependencies, times(2)).makeDhcpServer(eq(IFACE_NAME), any(), any());
+        verify(mDhcpServer, never()).updateParams(any(), any());
+    }
+
     private void assertDhcpServingParams(final DhcpServingParamsParcel params,
             final IpPrefix prefix) {
         // Last address byte is random
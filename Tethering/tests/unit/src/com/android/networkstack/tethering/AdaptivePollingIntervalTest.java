@@ -0,0 +1,142 @@
+/*
+ * Copyright (C) 2021 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.networkstack.tethering;
+
+import static android.net.netstats.provider.NetworkStatsProvider.QUOTA_UNLIMITED;
+
+import static com.android.networkstack.tethering.AdaptivePollingInterval.HEAVY_TRAFFIC_BYTES_PER_SEC;
+import static com.android.networkstack.tethering.AdaptivePollingInterval.IDLE_POLLS_BEFORE_BACKOFF;
+import static com.android.networkstack.tethering.AdaptivePollingInterval.MAX_POLL_INTERVAL_MS;
+import static com.android.networkstack.tethering.AdaptivePollingInterval.MIN_POLL_INTERVAL_MS;
+import static com.android.networkstack.tethering.TetheringConfiguration.DEFAULT_TETHER_OFFLOAD_POLL_INTERVAL_MS;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import androidx.test.filters.SmallTest;
+import androidx.test.runner.AndroidJUnit4;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+@RunWith(AndroidJUnit4.class)
+@SmallTest
+public class AdaptivePollingIntervalTest {
+    private static final long BASE_MS = DEFAULT_TETHER_OFFLOAD_POLL_INTERVAL_MS;
+
+    private final AdaptivePollingInterval mInterval = new AdaptivePollingInterval();
+    private long mNowMs = 1_000_000L;
+
+    // Poll after the last returned delay, as the scheduled polling task does.
+    private long pollAndGetNextDelay(long bytes, long remainingQuota) {
+        mNowMs += mInterval.getLastDelayMs();
+        mInterval.onPolled(bytes, mNowMs);
+        return mInterval.getNextDelayMs(BASE_MS, remainingQuota);
+    }
+
+    @Test
+    public void testBackoffWhenIdle() {
+        assertEquals(BASE_MS, mInterval.getNextDelayMs(BASE_MS, QUOTA_UNLIMITED));
+
+        // A few idle polls do not change the interval.
+        for (int i = 0; i < IDLE_POLLS_BEFORE_BACKOFF; i++) {
+            assertEquals(BASE_MS, pollAndGetNextDelay(0, QUOTA_UNLIMITED));
+        }
+        assertFalse(mInterval.isBackedOff());
+
+        // Then the interval doubles up to the maximum.
+        assertEquals(BASE_MS * 2, pollAndGetNextDelay(0, QUOTA_UNLIMITED));
+        assertEquals(BASE_MS * 4, pollAndGetNextDelay(0, QUOTA_UNLIMITED));
+        assertTrue(mInterval.isBackedOff());
+        for (int i = 0; i < 40; i++) pollAndGetNextDelay(0, QUOTA_UNLIMITED);
+        assertEquals(MAX_POLL_INTERVAL_MS, pollAndGetNextDelay(0, QUOTA_UNLIMITED));
+
+        // Traffic brings the interval back.
+        assertEquals(BASE_MS, pollAndGetNextDelay(100, QUOTA_UNLIMITED));
+
+        // So does reset.
+        for (int i = 0; i <= IDLE_POLLS_BEFORE_BACKOFF; i++) pollAndGetNextDelay(0, 1);
+        assertTrue(mInterval.reset());
+        assertFalse(mInterval.reset());
+        assertEquals(BASE_MS, mInterval.getNextDelayMs(BASE_MS, QUOTA_UNLIMITED));
+    }
+
+    @Test
+    public void testBackoffCappedByQuota() {
+        for (int i = 0; i < IDLE_POLLS_BEFORE_BACKOFF + 40; i++) {
+            pollAndGetNextDelay(0, QUOTA_UNLIMITED);
+        }
+        assertTrue(mInterval.isBackedOff());
+
+        // No backoff if heavy traffic would use up the quota within the configured interval.
+        final long bytesPerBaseInterval = HEAVY_TRAFFIC_BYTES_PER_SEC * BASE_MS / 1000;
+        assertEquals(BASE_MS, mInterval.getNextDelayMs(BASE_MS, 1));
+        assertEquals(BASE_MS, mInterval.getNextDelayMs(BASE_MS, bytesPerBaseInterval));
+
+        // Otherwise no longer than the time heavy traffic would take to use up the quota.
+        assertEquals(BASE_MS * 3, mInterval.getNextDelayMs(BASE_MS, bytesPerBaseInterval * 3));
+        assertEquals(MAX_POLL_INTERVAL_MS, mInterval.getNextDelayMs(BASE_MS,
+                HEAVY_TRAFFIC_BYTES_PER_SEC * MAX_POLL_INTERVAL_MS / 1000 * 2));
+    }
+
+    @Test
+    public void testFastPollingUnderLoad() {
+        mInterval.getNextDelayMs(BASE_MS, QUOTA_UNLIMITED);
+
+        // Light traffic with plenty of quota uses the configured interval.
+        assertEquals(BASE_MS, pollAndGetNextDelay(1000, 100_000_000L));
+
+        // Heavy traffic polls more often.
+        final long heavyBytes = HEAVY_TRAFFIC_BYTES_PER_SEC * BASE_MS / 1000;
+        assertEquals(BASE_MS / 4, pollAndGetNextDelay(heavyBytes, QUOTA_UNLIMITED));
+
+        // 1MB/s with 4MB left: the next poll is within 2 seconds.
+        assertEquals(2000, pollAndGetNextDelay(1_000_000L * (BASE_MS / 4) / 1000, 4_000_000L));
+
+        // But never below the minimum interval.
+        assertEquals(MIN_POLL_INTERVAL_MS, pollAndGetNextDelay(100_000_000L, 1000));
+    }
+
+    @Test
+    public void testRateOverElapsedTime() {
+        final long heavyBytes = HEAVY_TRAFFIC_BYTES_PER_SEC * BASE_MS / 1000;
+
+        // The first poll has no previous poll to compute the rate from.
+        mInterval.onPolled(heavyBytes, mNowMs);
+        assertEquals(BASE_MS, mInterval.getNextDelayMs(BASE_MS, QUOTA_UNLIMITED));
+
+        // A poll which runs late is not mistaken for heavy traffic.
+        mNowMs += BASE_MS * 2;
+        mInterval.onPolled(heavyBytes, mNowMs);
+        assertEquals(BASE_MS, mInterval.getNextDelayMs(BASE_MS, QUOTA_UNLIMITED));
+
+        // A poll which is rescheduled early sees the actual rate.
+        mNowMs += BASE_MS / 2;
+        mInterval.onPolled(heavyBytes / 2, mNowMs);
+        assertEquals(BASE_MS / 4, mInterval.getNextDelayMs(BASE_MS, QUOTA_UNLIMITED));
+
+        // The time polling is stopped does not count.
+        mInterval.onPollingStopped();
+        mNowMs += MAX_POLL_INTERVAL_MS;
+        mInterval.onPolled(heavyBytes, mNowMs);
+        assertEquals(BASE_MS, mInterval.getNextDelayMs(BASE_MS, QUOTA_UNLIMITED));
+        mNowMs += BASE_MS;
+        mInterval.onPolled(heavyBytes, mNowMs);
+        assertEquals(BASE_MS / 4, mInterval.getNextDelayMs(BASE_MS, QUOTA_UNLIMITED));
+    }
+}
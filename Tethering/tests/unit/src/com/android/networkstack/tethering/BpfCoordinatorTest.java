@@ -32,6 +32,9 @@ import static android.net.netlink.ConntrackMessage.TupleProto;
 import static android.net.netlink.NetlinkConstants.IPCTNL_MSG_CT_DELETE;
 import static android.net.netlink.NetlinkConstants.IPCTNL_MSG_CT_NEW;
 import static android.net.netstats.provider.NetworkStatsProvider.QUOTA_UNLIMITED;
+import static android.system.OsConstants.EEXIST;
+import static android.system.OsConstants.ENOBUFS;
+import static android.system.OsConstants.ENOENT;
 import static android.system.OsConstants.ETH_P_IP;
 import static android.system.OsConstants.ETH_P_IPV6;
 import static android.system.OsConstants.IPPROTO_TCP;
@@ -39,6 +42,10 @@ import static android.system.OsConstants.IPPROTO_UDP;
 
 import static com.android.dx.mockito.inline.extended.ExtendedMockito.doReturn;
 import static com.android.dx.mockito.inline.extended.ExtendedMockito.staticMockMarker;
+import static com.android.networkstack.tethering.BpfCoordinator.CONNTRACK_BATCH_WINDOW_MS;
+import static com.android.networkstack.tethering.BpfCoordinator.CONNTRACK_TIMEOUT_UPDATE_INTERVAL_MS;
+import static com.android.networkstack.tethering.BpfCoordinator.IPV4_RULE_IDLE_TIMEOUT_MS;
+import static com.android.networkstack.tethering.BpfCoordinator.MAX_CLIENT_RATE_LIMIT;
 import static com.android.networkstack.tethering.BpfCoordinator.StatsType;
 import static com.android.networkstack.tethering.BpfCoordinator.StatsType.STATS_PER_IFACE;
 import static com.android.networkstack.tethering.BpfCoordinator.StatsType.STATS_PER_UID;
@@ -47,6 +54,8 @@ import static com.android.networkstack.tethering.BpfUtils.UPSTREAM;
 import static com.android.networkstack.tethering.TetheringConfiguration.DEFAULT_TETHER_OFFLOAD_POLL_INTERVAL_MS;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
 import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
@@ -58,15 +67,22 @@ import static org.mockito.Matchers.anyString;
 import static org.mockito.Matchers.eq;
 import static org.mockito.Mockito.argThat;
 import static org.mockito.Mockito.clearInvocations;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.doNothing;
+import static org.mockito.Mockito.doThrow;
 import static org.mockito.Mockito.inOrder;
+import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.never;
 import static org.mockito.Mockito.spy;
+import static org.mockito.Mockito.timeout;
+import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
 import android.app.usage.NetworkStatsManager;
 import android.net.INetd;
 import android.net.InetAddresses;
+import android.net.IpPrefix;
 import android.net.LinkAddress;
 import android.net.LinkProperties;
 import android.net.MacAddress;
@@ -78,9 +94,11 @@ import android.net.ip.ConntrackMonitor.ConntrackEventConsumer;
 import android.net.ip.IpServer;
 import android.net.netlink.NetlinkConstants;
 import android.net.util.InterfaceParams;
+import android.net.util.TetheringUtils.ForwardedStats;
 import android.net.util.SharedLog;
 import android.os.Build;
 import android.os.Handler;
+import android.os.Looper;
 import android.os.test.TestLooper;
 import android.system.ErrnoException;
 
@@ -110,14 +128,20 @@ import org.mockito.InOrder;
 import org.mockito.Mock;
 import org.mockito.MockitoAnnotations;
 import org.mockito.MockitoSession;
+import org.mockito.stubbing.Answer;
 
+import java.io.IOException;
 import java.net.Inet4Address;
 import java.net.Inet6Address;
 import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.function.BiConsumer;
 
@@ -207,6 +231,8 @@ public class BpfCoordinatorTest {
     @Mock private BpfMap<Tether4Key, Tether4Value> mBpfUpstream4Map;
     @Mock private BpfMap<TetherDownstream6Key, Tether6Value> mBpfDownstream6Map;
     @Mock private BpfMap<TetherUpstream6Key, Tether6Value> mBpfUpstream6Map;
+    @Mock private BpfMap<TetherDevKey, TetherDevValue> mBpfXdpDevMap;
+    @Mock private BpfMap<TetherDownstream64Key, TetherDownstream64Value> mBpfDownstream64Map;
 
     // Late init since methods must be called by the thread that created this object.
     private TestableNetworkStatsProviderCbBinder mTetherStatsProviderCb;
@@ -223,6 +249,15 @@ public class BpfCoordinatorTest {
             spy(new TestBpfMap<>(TetherStatsKey.class, TetherStatsValue.class));
     private final TestBpfMap<TetherLimitKey, TetherLimitValue> mBpfLimitMap =
             spy(new TestBpfMap<>(TetherLimitKey.class, TetherLimitValue.class));
+    private final TestBpfMap<TetherQuotaKey, TetherQuotaValue> mBpfQuotaMap =
+            spy(new TestBpfMap<>(TetherQuotaKey.class, TetherQuotaValue.class));
+    private final TestBpfMap<TetherQuotaKey, TetherQuotaValue> mBpfQuotaCacheMap =
+            spy(new TestBpfMap<>(TetherQuotaKey.class, TetherQuotaValue.class));
+    private final TestBpfMap<TetherClientStatsKey, TetherClientStatsValue> mBpfClientStatsMap =
+            spy(new TestBpfMap<>(TetherClientStatsKey.class, TetherClientStatsValue.class));
+    private final TestBpfMap<TetherClientRateLimitKey, TetherClientRateLimitValue>
+            mBpfClientRateLimitMap = spy(new TestBpfMap<>(TetherClientRateLimitKey.class,
+                    TetherClientRateLimitValue.class));
     private BpfCoordinator.Dependencies mDeps =
             spy(new BpfCoordinator.Dependencies() {
                     @NonNull
@@ -251,7 +286,8 @@ public class BpfCoordinatorTest {
                     }
 
                     @NonNull
-                    public ConntrackMonitor getConntrackMonitor(ConntrackEventConsumer consumer) {
+                    public ConntrackMonitor getConntrackMonitor(Handler handler,
+                            ConntrackEventConsumer consumer) {
                         return mConntrackMonitor;
                     }
 
@@ -284,6 +320,39 @@ public class BpfCoordinatorTest {
                     public BpfMap<TetherLimitKey, TetherLimitValue> getBpfLimitMap() {
                         return mBpfLimitMap;
                     }
+
+                    @Nullable
+                    public BpfMap<TetherQuotaKey, TetherQuotaValue> getBpfQuotaMap() {
+                        return mBpfQuotaMap;
+                    }
+
+                    @Nullable
+                    public BpfMap<TetherQuotaKey, TetherQuotaValue> getBpfQuotaCacheMap() {
+                        return mBpfQuotaCacheMap;
+                    }
+
+                    @Nullable
+                    public BpfMap<TetherDevKey, TetherDevValue> getBpfXdpDevMap() {
+                        return mBpfXdpDevMap;
+                    }
+
+                    @Nullable
+                    public BpfMap<TetherDownstream64Key, TetherDownstream64Value>
+                            getBpfDownstream64Map() {
+                        return mBpfDownstream64Map;
+                    }
+
+                    @Nullable
+                    public BpfMap<TetherClientStatsKey, TetherClientStatsValue>
+                            getBpfClientStatsMap() {
+                        return mBpfClientStatsMap;
+                    }
+
+                    @Nullable
+                    public BpfMap<TetherClientRateLimitKey, TetherClientRateLimitValue>
+                            getBpfClientRateLimitMap() {
+                        return mBpfClientRateLimitMap;
+                    }
             });
 
     @Before public void setUp() {
@@ -496,6 +565,10 @@ public class BpfCoordinatorTest {
                 verifyWithOrder(inOrder, mBpfStatsMap).insertEntry(key, new TetherStatsValue(
                         0L /* rxPackets */, 0L /* rxBytes */, 0L /* rxErrors */,
                         0L /* txPackets */, 0L /* txBytes */, 0L /* txErrors */));
+                // Nothing is reserved from the new limit yet.
+                final TetherQuotaKey quotaKey = new TetherQuotaKey(ifIndex);
+                assertEquals(new TetherQuotaValue(0), mBpfQuotaMap.getValue(quotaKey));
+                assertEquals(new TetherQuotaValue(0), mBpfQuotaCacheMap.getValue(quotaKey));
             }
             verifyWithOrder(inOrder, mBpfLimitMap).updateEntry(new TetherLimitKey(ifIndex),
                     new TetherLimitValue(quotaBytes));
@@ -521,6 +594,8 @@ public class BpfCoordinatorTest {
             inOrder.verify(mBpfStatsMap).getValue(new TetherStatsKey(ifIndex));
             inOrder.verify(mBpfStatsMap).deleteEntry(new TetherStatsKey(ifIndex));
             inOrder.verify(mBpfLimitMap).deleteEntry(new TetherLimitKey(ifIndex));
+            assertNull(mBpfQuotaMap.getValue(new TetherQuotaKey(ifIndex)));
+            assertNull(mBpfQuotaCacheMap.getValue(new TetherQuotaKey(ifIndex)));
         } else {
             inOrder.verify(mNetd).tetherOffloadGetAndClearStats(ifIndex);
         }
@@ -962,6 +1037,60 @@ public class BpfCoordinatorTest {
                 .addEntry(buildTestEntry(STATS_PER_UID, mobileIface, 50, 60, 70, 80)));
     }
 
+    @Test
+    public void testSetDataLimitAfterTetherOffloadRuleUpdate() throws Exception {
+        setupFunctioningNetdInterface();
+
+        final BpfCoordinator coordinator = makeBpfCoordinator();
+
+        final String ethIface = "eth1";
+        final String mobileIface = "rmnet_data0";
+        final Integer ethIfIndex = 100;
+        final Integer mobileIfIndex = 101;
+        coordinator.addUpstreamNameToLookupTable(ethIfIndex, ethIface);
+        coordinator.addUpstreamNameToLookupTable(mobileIfIndex, mobileIface);
+
+        final Ipv6ForwardingRule ethernetRuleA = buildTestForwardingRule(
+                ethIfIndex, NEIGH_A, MAC_A);
+        final Ipv6ForwardingRule ethernetRuleB = buildTestForwardingRule(
+                ethIfIndex, NEIGH_B, MAC_B);
+        coordinator.tetherOffloadRuleAdd(mIpServer, ethernetRuleA);
+        coordinator.tetherOffloadRuleAdd(mIpServer, ethernetRuleB);
+        updateStatsEntryForTetherOffloadGetAndClearStats(
+                buildTestTetherStatsParcel(ethIfIndex, 0, 0, 0, 0));
+        coordinator.tetherOffloadRuleUpdate(mIpServer, mobileIfIndex);
+
+        // The rules are migrated in place.
+        final LinkedHashMap<Inet6Address, Ipv6ForwardingRule> rules =
+                coordinator.getForwardingRulesForTesting().get(mIpServer);
+        assertEquals(2, rules.size());
+        for (Ipv6ForwardingRule rule : rules.values()) {
+            assertEquals((int) mobileIfIndex, rule.upstreamIfindex);
+        }
+
+        // The data limit is only applied on the upstream which has rules.
+        final InOrder inOrder = inOrder(mNetd, mBpfDownstream6Map, mBpfLimitMap, mBpfStatsMap);
+        final long limit = 12345;
+        mTetherStatsProvider.onSetLimit(ethIface, limit);
+        waitForIdle();
+        verifyNeverTetherOffloadSetInterfaceQuota(inOrder);
+        mTetherStatsProvider.onSetLimit(mobileIface, limit);
+        waitForIdle();
+        verifyTetherOffloadSetInterfaceQuota(inOrder, mobileIfIndex, limit, false /* isInit */);
+        inOrder.verifyNoMoreInteractions();
+
+        // Clearing the rules removes the upstream from the index.
+        updateStatsEntryForTetherOffloadGetAndClearStats(
+                buildTestTetherStatsParcel(mobileIfIndex, 0, 0, 0, 0));
+        coordinator.tetherOffloadRuleClear(mIpServer);
+        assertNull(coordinator.getForwardingRulesForTesting().get(mIpServer));
+        clearInvocations(mNetd, mBpfDownstream6Map, mBpfLimitMap, mBpfStatsMap);
+        final InOrder inOrderAfterClear = inOrder(mNetd, mBpfLimitMap, mBpfStatsMap);
+        mTetherStatsProvider.onSetLimit(mobileIface, limit + 1);
+        waitForIdle();
+        verifyNeverTetherOffloadSetInterfaceQuota(inOrderAfterClear);
+    }
+
     private void checkBpfDisabled() throws Exception {
         // The caller may mock the global dependencies |mDeps| which is used in
         // #makeBpfCoordinator for testing.
@@ -1080,6 +1209,24 @@ public class BpfCoordinatorTest {
         checkBpfDisabled();
     }
 
+    @Test
+    @IgnoreUpTo(Build.VERSION_CODES.R)
+    public void testBpfDisabledbyNoBpfQuotaMap() throws Exception {
+        setupFunctioningNetdInterface();
+        doReturn(null).when(mDeps).getBpfQuotaMap();
+
+        checkBpfDisabled();
+    }
+
+    @Test
+    @IgnoreUpTo(Build.VERSION_CODES.R)
+    public void testBpfDisabledbyNoBpfQuotaCacheMap() throws Exception {
+        setupFunctioningNetdInterface();
+        doReturn(null).when(mDeps).getBpfQuotaCacheMap();
+
+        checkBpfDisabled();
+    }
+
     @Test
     @IgnoreUpTo(Build.VERSION_CODES.R)
     public void testBpfMapClear() throws Exception {
@@ -1092,6 +1239,8 @@ public class BpfCoordinatorTest {
         verify(mBpfUpstream6Map).clear();
         verify(mBpfStatsMap).clear();
         verify(mBpfLimitMap).clear();
+        verify(mBpfQuotaMap).clear();
+        verify(mBpfQuotaCacheMap).clear();
     }
 
     @Test
@@ -1147,6 +1296,91 @@ public class BpfCoordinatorTest {
         }
     }
 
+    @Test
+    @IgnoreUpTo(Build.VERSION_CODES.R)
+    public void testAttachDetachXdpProgram() throws Exception {
+        setupFunctioningNetdInterface();
+        when(mTetherConfig.isXdpOffloadEnabled()).thenReturn(true);
+
+        final String intIface1 = "wlan1";
+        final String intIface2 = "rndis0";
+        final String extIface = "rmnet_data0";
+        final int intIfIndex1 = 101;
+        final int intIfIndex2 = 102;
+        final int extIfIndex = 103;
+        doReturn(new InterfaceParams(intIface1, intIfIndex1, MAC_A,
+                NetworkStackConstants.ETHER_MTU)).when(mDeps).getInterfaceParams(intIface1);
+        doReturn(new InterfaceParams(intIface2, intIfIndex2, MAC_B,
+                NetworkStackConstants.ETHER_MTU)).when(mDeps).getInterfaceParams(intIface2);
+        doReturn(new InterfaceParams(extIface, extIfIndex, null /* macAddr, rawip */,
+                NetworkStackConstants.ETHER_MTU)).when(mDeps).getInterfaceParams(extIface);
+
+        // Static mocking for BpfUtils.
+        MockitoSession mockSession = ExtendedMockito.mockitoSession()
+                .mockStatic(BpfUtils.class)
+                .startMocking();
+        try {
+            final BpfUtils mockMarkerBpfUtils = staticMockMarker(BpfUtils.class);
+            final BpfCoordinator coordinator = makeBpfCoordinator();
+
+            // [1] Add the forwarding pair <wlan1, rmnet_data0>. Expect that both tc and native XDP
+            // are attached on wlan1 and rmnet_data0, and only the ethernet interface wlan1 is added
+            // to the XDP redirect devices.
+            coordinator.maybeAttachProgram(intIface1, extIface);
+            ExtendedMockito.verify(() -> BpfUtils.attachProgram(intIface1, UPSTREAM));
+            ExtendedMockito.verify(() -> BpfUtils.attachXdpProgram(intIface1, UPSTREAM,
+                    true /* nativeMode */));
+            ExtendedMockito.verify(() -> BpfUtils.attachProgram(extIface, DOWNSTREAM));
+            ExtendedMockito.verify(() -> BpfUtils.attachXdpProgram(extIface, DOWNSTREAM,
+                    true /* nativeMode */));
+            ExtendedMockito.verifyNoMoreInteractions(mockMarkerBpfUtils);
+            ExtendedMockito.clearInvocations(mockMarkerBpfUtils);
+            verify(mBpfXdpDevMap).updateEntry(new TetherDevKey(intIfIndex1),
+                    new TetherDevValue(intIfIndex1));
+            verify(mBpfXdpDevMap, never()).updateEntry(eq(new TetherDevKey(extIfIndex)), any());
+
+            // [2] Add the forwarding pair <rndis0, rmnet_data0> while native XDP can't be attached
+            // on rndis0. Expect that rndis0 falls back to generic XDP, and is not a redirect device
+            // since it can't transmit redirected frames.
+            ExtendedMockito.doThrow(new IOException("Native XDP not supported")).when(
+                    () -> BpfUtils.attachXdpProgram(intIface2, UPSTREAM, true /* nativeMode */));
+            coordinator.maybeAttachProgram(intIface2, extIface);
+            ExtendedMockito.verify(() -> BpfUtils.attachProgram(intIface2, UPSTREAM));
+            ExtendedMockito.verify(() -> BpfUtils.attachXdpProgram(intIface2, UPSTREAM,
+                    true /* nativeMode */));
+            ExtendedMockito.verify(() -> BpfUtils.attachXdpProgram(intIface2, UPSTREAM,
+                    false /* nativeMode */));
+            ExtendedMockito.verifyNoMoreInteractions(mockMarkerBpfUtils);
+            ExtendedMockito.clearInvocations(mockMarkerBpfUtils);
+            verify(mBpfXdpDevMap, never()).updateEntry(eq(new TetherDevKey(intIfIndex2)), any());
+
+            // [3] Remove the forwarding pair <rndis0, rmnet_data0>. Expect that the generic XDP
+            // program is detached from rndis0, which was never a redirect device.
+            coordinator.maybeDetachProgram(intIface2, extIface);
+            ExtendedMockito.verify(() -> BpfUtils.detachProgram(intIface2));
+            ExtendedMockito.verify(() -> BpfUtils.detachXdpProgram(intIface2,
+                    false /* nativeMode */));
+            ExtendedMockito.verifyNoMoreInteractions(mockMarkerBpfUtils);
+            ExtendedMockito.clearInvocations(mockMarkerBpfUtils);
+            verify(mBpfXdpDevMap, never()).deleteEntry(new TetherDevKey(intIfIndex2));
+
+            // [4] Remove the forwarding pair <wlan1, rmnet_data0>. Expect that both tc and XDP
+            // are detached on wlan1 and rmnet_data0.
+            coordinator.maybeDetachProgram(intIface1, extIface);
+            ExtendedMockito.verify(() -> BpfUtils.detachProgram(intIface1));
+            ExtendedMockito.verify(() -> BpfUtils.detachXdpProgram(intIface1,
+                    true /* nativeMode */));
+            ExtendedMockito.verify(() -> BpfUtils.detachProgram(extIface));
+            ExtendedMockito.verify(() -> BpfUtils.detachXdpProgram(extIface,
+                    true /* nativeMode */));
+            ExtendedMockito.verifyNoMoreInteractions(mockMarkerBpfUtils);
+            verify(mBpfXdpDevMap).deleteEntry(new TetherDevKey(intIfIndex1));
+            verify(mBpfXdpDevMap, never()).deleteEntry(new TetherDevKey(extIfIndex));
+        } finally {
+            mockSession.finishMocking();
+        }
+    }
+
     @Test
     public void testTetheringConfigSetPollingInterval() throws Exception {
         setupFunctioningNetdInterface();
@@ -1258,6 +1492,43 @@ public class BpfCoordinatorTest {
         verify(mConntrackMonitor).stop();
     }
 
+    @Test
+    @IgnoreUpTo(Build.VERSION_CODES.R)
+    public void testStartStopConntrackMonitoringOnReaderThread() throws Exception {
+        setupFunctioningNetdInterface();
+        when(mTetherConfig.isConntrackReaderThreadEnabled()).thenReturn(true);
+        final List<Looper> loopers = Collections.synchronizedList(new ArrayList<>());
+        doAnswer(invocation -> loopers.add(Looper.myLooper())).when(mConntrackMonitor).start();
+        doAnswer(invocation -> loopers.add(Looper.myLooper())).when(mConntrackMonitor).stop();
+
+        final BpfCoordinator coordinator = makeBpfCoordinator();
+
+        // [1] The reader thread is only created when monitoring starts.
+        verify(mDeps, never()).getConntrackHandler();
+
+        // [2] The monitor is started and stopped on the reader thread without waiting for it,
+        // and the reader thread quits once the monitoring stops.
+        coordinator.startMonitoring(mIpServer);
+        coordinator.stopMonitoring(mIpServer);
+        verify(mDeps).getConntrackHandler();
+        verify(mConntrackMonitor, timeout(1000 /* millis */)).stop();
+        assertEquals(2, loopers.size());
+        final Looper readerLooper = loopers.get(0);
+        assertNotEquals(mTestLooper.getLooper(), readerLooper);
+        assertEquals(readerLooper, loopers.get(1));
+        readerLooper.getThread().join(1000 /* millis */);
+        assertFalse(readerLooper.getThread().isAlive());
+        waitForIdle();
+
+        // [3] A new reader thread is started for the next monitoring.
+        coordinator.startMonitoring(mIpServer);
+        verify(mConntrackMonitor, timeout(1000 /* millis */).times(2)).start();
+        assertEquals(3, loopers.size());
+        assertNotEquals(readerLooper, loopers.get(2));
+        assertTrue(loopers.get(2).getThread().isAlive());
+        coordinator.stopMonitoring(mIpServer);
+    }
+
     // Test network topology:
     //
     //         public network (rawip)                 private network
@@ -1333,6 +1604,31 @@ public class BpfCoordinatorTest {
                 PRIVATE_ADDR_V4MAPPED_BYTES, REMOTE_PORT, PRIVATE_PORT, 0 /* lastUsed */);
     }
 
+    // Conntrack events are queued for a short window before the rules are written.
+    private void acceptAndFlush(@NonNull ConntrackEvent e) {
+        mConsumer.accept(e);
+        mTestLooper.moveTimeForward(CONNTRACK_BATCH_WINDOW_MS);
+        waitForIdle();
+    }
+
+    // Match a direct buffer which holds the encoded key or value of an IPv4 rule. Note that the
+    // consumer reuses its buffers, so the match must be verified before the next batch.
+    private static ByteBuffer encodedAs(@NonNull Struct expected) {
+        final ByteBuffer expectedBuf = ByteBuffer.allocate(Struct.getSize(expected.getClass()))
+                .order(ByteOrder.nativeOrder());
+        if (expected instanceof Tether4Key) {
+            ((Tether4Key) expected).encode(expectedBuf);
+        } else if (expected instanceof Tether4Value) {
+            ((Tether4Value) expected).encode(expectedBuf);
+        } else if (expected instanceof TetherDownstream64Key) {
+            ((TetherDownstream64Key) expected).encode(expectedBuf);
+        } else {
+            ((TetherDownstream64Value) expected).encode(expectedBuf);
+        }
+        expectedBuf.flip();
+        return argThat(buf -> buf != null && buf.isDirect() && expectedBuf.equals(buf));
+    }
+
     @NonNull
     private ConntrackEvent makeTestConntrackEvent(short msgType, int proto) {
         if (msgType != IPCTNL_MSG_CT_NEW && msgType != IPCTNL_MSG_CT_DELETE) {
@@ -1368,6 +1664,118 @@ public class BpfCoordinatorTest {
         coordinator.tetherOffloadClientAdd(mIpServer, clientInfo);
     }
 
+    @Test
+    @IgnoreUpTo(Build.VERSION_CODES.R)
+    public void testClientStats() throws Exception {
+        when(mTetherConfig.isClientStatsEnabled()).thenReturn(true);
+        final BpfCoordinator coordinator = makeBpfCoordinator();
+        final Runnable callback = mock(Runnable.class);
+        coordinator.setClientStatsCallback(callback);
+        coordinator.startPolling();
+
+        // [1] Adding a client starts counting its traffic on the downstream.
+        final TetherClientStatsKey key = new TetherClientStatsKey(DOWNSTREAM_IFINDEX, MAC_A);
+        final TetherClientStatsValue zeroValue = new TetherClientStatsValue(0, 0, 0, 0);
+        setDownstreamAndClientInformationTo(coordinator);
+        verify(mBpfClientStatsMap).insertEntry(key, zeroValue);
+
+        // [2] Adding an IPv6 rule of the same client doesn't add the entry again.
+        coordinator.tetherOffloadRuleAdd(mIpServer,
+                buildTestForwardingRule(UPSTREAM_IFINDEX, NEIGH_A, MAC_A));
+        verify(mBpfClientStatsMap).insertEntry(any(), any());
+
+        // [3] The traffic counted since the previous poll is accumulated.
+        mBpfClientStatsMap.updateEntry(key, new TetherClientStatsValue(10, 1000, 5, 500));
+        mTestLooper.moveTimeForward(DEFAULT_TETHER_OFFLOAD_POLL_INTERVAL_MS);
+        waitForIdle();
+        assertClientStats(coordinator, MAC_A, new ForwardedStats(1000, 10, 500, 5));
+        verify(callback).run();
+
+        // [4] No new traffic doesn't run the callback.
+        clearInvocations(callback);
+        mTestLooper.moveTimeForward(DEFAULT_TETHER_OFFLOAD_POLL_INTERVAL_MS);
+        waitForIdle();
+        verify(callback, never()).run();
+
+        // [5] The entry is removed only once the client and its IPv6 rule are removed, and the
+        // traffic counted since the previous poll is still accumulated.
+        mBpfClientStatsMap.updateEntry(key, new TetherClientStatsValue(12, 1200, 6, 600));
+        coordinator.tetherOffloadClientRemove(mIpServer, new ClientInfo(DOWNSTREAM_IFINDEX,
+                DOWNSTREAM_MAC, PRIVATE_ADDR, MAC_A /* client mac */));
+        verify(mBpfClientStatsMap, never()).deleteEntry(any());
+        coordinator.tetherOffloadRuleRemove(mIpServer,
+                buildTestForwardingRule(UPSTREAM_IFINDEX, NEIGH_A, MAC_A));
+        verify(mBpfClientStatsMap).deleteEntry(key);
+        assertNull(mBpfClientStatsMap.getValue(key));
+        assertClientStats(coordinator, MAC_A, new ForwardedStats(1200, 12, 600, 6));
+    }
+
+    @Test
+    @IgnoreUpTo(Build.VERSION_CODES.R)
+    public void testClientRateLimit() throws Exception {
+        when(mTetherConfig.isClientRateLimitEnabled()).thenReturn(true);
+        final BpfCoordinator coordinator = makeBpfCoordinator();
+        final TetherClientRateLimitKey key = new TetherClientRateLimitKey(DOWNSTREAM_IFINDEX,
+                MAC_A);
+        final ClientInfo clientInfo = new ClientInfo(DOWNSTREAM_IFINDEX, DOWNSTREAM_MAC,
+                PRIVATE_ADDR, MAC_A /* client mac */);
+        assertTrue(coordinator.isClientRateLimitSupported());
+
+        // [1] Invalid limits are rejected.
+        assertFalse(coordinator.setClientRateLimit(MAC_A, 0 /* bytesPerSecond */, 2000));
+        assertFalse(coordinator.setClientRateLimit(MAC_A, 1000, MAX_CLIENT_RATE_LIMIT + 1));
+
+        // [2] The limit of a client which is not connected is applied once it connects. The
+        // buckets take 2s to fill at 1000 bytes/s.
+        assertTrue(coordinator.setClientRateLimit(MAC_A, 1000, 2000));
+        verify(mBpfClientRateLimitMap, never()).updateEntry(any(), any());
+        coordinator.tetherOffloadClientAdd(mIpServer, clientInfo);
+        verify(mBpfClientRateLimitMap).updateEntry(key,
+                new TetherClientRateLimitValue(1000, 2000, 2_000_000_000L, 0, 0, 0, 0));
+        verify(mBpfClientStatsMap, never()).insertEntry(any(), any());
+
+        // [3] A new limit replaces the limit of a connected client.
+        assertTrue(coordinator.setClientRateLimit(MAC_A, 3000, 1000));
+        verify(mBpfClientRateLimitMap).updateEntry(key,
+                new TetherClientRateLimitValue(3000, 1000, 333_333_334L, 0, 0, 0, 0));
+
+        // [4] The limit is removed from the map once the client disconnects, but kept for when
+        // it connects again.
+        coordinator.tetherOffloadClientRemove(mIpServer, clientInfo);
+        verify(mBpfClientRateLimitMap).deleteEntry(key);
+        assertNull(mBpfClientRateLimitMap.getValue(key));
+        coordinator.tetherOffloadClientAdd(mIpServer, clientInfo);
+        assertEquals(3000, mBpfClientRateLimitMap.getValue(key).rateBytesPerSec);
+
+        // [5] Removing the limit removes it from the map. Removing it again succeeds.
+        clearInvocations(mBpfClientRateLimitMap);
+        assertTrue(coordinator.removeClientRateLimit(MAC_A));
+        verify(mBpfClientRateLimitMap).deleteEntry(key);
+        assertNull(mBpfClientRateLimitMap.getValue(key));
+        assertTrue(coordinator.removeClientRateLimit(MAC_A));
+        coordinator.tetherOffloadClientRemove(mIpServer, clientInfo);
+        verify(mBpfClientRateLimitMap).deleteEntry(key);
+    }
+
+    @Test
+    public void testClientRateLimitDisabled() throws Exception {
+        final BpfCoordinator coordinator = makeBpfCoordinator();
+        assertFalse(coordinator.isClientRateLimitSupported());
+        assertFalse(coordinator.setClientRateLimit(MAC_A, 1000, 2000));
+        assertFalse(coordinator.removeClientRateLimit(MAC_A));
+        verify(mBpfClientRateLimitMap, never()).updateEntry(any(), any());
+    }
+
+    private void assertClientStats(@NonNull BpfCoordinator coordinator,
+            @NonNull MacAddress clientMac, @NonNull ForwardedStats expected) {
+        final ForwardedStats stats = coordinator.getClientStats().get(clientMac);
+        assertNotNull(stats);
+        assertEquals(expected.rxBytes, stats.rxBytes);
+        assertEquals(expected.rxPackets, stats.rxPackets);
+        assertEquals(expected.txBytes, stats.txBytes);
+        assertEquals(expected.txPackets, stats.txPackets);
+    }
+
     // TODO: Test the IPv4 and IPv6 exist concurrently.
     // TODO: Test the IPv4 rule delete failed.
     @Test
@@ -1376,10 +1784,6 @@ public class BpfCoordinatorTest {
         final BpfCoordinator coordinator = makeBpfCoordinator();
         coordinator.startPolling();
 
-        // Needed because tetherOffloadRuleRemove of api31.BpfCoordinatorShimImpl only decreases
-        // the count while the entry is deleted. In the other words, deleteEntry returns true.
-        doReturn(true).when(mBpfDownstream4Map).deleteEntry(any());
-
         // Needed because BpfCoordinator#addUpstreamIfindexToMap queries interface parameter for
         // interface index.
         doReturn(UPSTREAM_IFACE_PARAMS).when(mDeps).getInterfaceParams(UPSTREAM_IFACE);
@@ -1412,37 +1816,451 @@ public class BpfCoordinatorTest {
         final Tether4Value expectedDownstream4ValueUdp = makeDownstream4Value();
 
         // [1] Adding the first rule on current upstream immediately sends the quota.
-        mConsumer.accept(makeTestConntrackEvent(IPCTNL_MSG_CT_NEW, IPPROTO_TCP));
+        acceptAndFlush(makeTestConntrackEvent(IPCTNL_MSG_CT_NEW, IPPROTO_TCP));
         verifyTetherOffloadSetInterfaceQuota(inOrder, UPSTREAM_IFINDEX, limit, true /* isInit */);
-        inOrder.verify(mBpfUpstream4Map)
-                .insertEntry(eq(expectedUpstream4KeyTcp), eq(expectedUpstream4ValueTcp));
-        inOrder.verify(mBpfDownstream4Map)
-                .insertEntry(eq(expectedDownstream4KeyTcp), eq(expectedDownstream4ValueTcp));
+        inOrder.verify(mBpfUpstream4Map).insertEntriesDirect(
+                encodedAs(expectedUpstream4KeyTcp), encodedAs(expectedUpstream4ValueTcp), eq(1), any());
+        inOrder.verify(mBpfDownstream4Map).insertEntriesDirect(
+                encodedAs(expectedDownstream4KeyTcp), encodedAs(expectedDownstream4ValueTcp), eq(1), any());
         inOrder.verifyNoMoreInteractions();
 
         // [2] Adding the second rule on current upstream does not send the quota.
-        mConsumer.accept(makeTestConntrackEvent(IPCTNL_MSG_CT_NEW, IPPROTO_UDP));
+        acceptAndFlush(makeTestConntrackEvent(IPCTNL_MSG_CT_NEW, IPPROTO_UDP));
         verifyNeverTetherOffloadSetInterfaceQuota(inOrder);
-        inOrder.verify(mBpfUpstream4Map)
-                .insertEntry(eq(expectedUpstream4KeyUdp), eq(expectedUpstream4ValueUdp));
-        inOrder.verify(mBpfDownstream4Map)
-                .insertEntry(eq(expectedDownstream4KeyUdp), eq(expectedDownstream4ValueUdp));
+        inOrder.verify(mBpfUpstream4Map).insertEntriesDirect(
+                encodedAs(expectedUpstream4KeyUdp), encodedAs(expectedUpstream4ValueUdp), eq(1), any());
+        inOrder.verify(mBpfDownstream4Map).insertEntriesDirect(
+                encodedAs(expectedDownstream4KeyUdp), encodedAs(expectedDownstream4ValueUdp), eq(1), any());
         inOrder.verifyNoMoreInteractions();
 
         // [3] Removing the second rule on current upstream does not send the quota.
-        mConsumer.accept(makeTestConntrackEvent(IPCTNL_MSG_CT_DELETE, IPPROTO_UDP));
+        acceptAndFlush(makeTestConntrackEvent(IPCTNL_MSG_CT_DELETE, IPPROTO_UDP));
         verifyNeverTetherOffloadSetInterfaceQuota(inOrder);
-        inOrder.verify(mBpfUpstream4Map).deleteEntry(eq(expectedUpstream4KeyUdp));
-        inOrder.verify(mBpfDownstream4Map).deleteEntry(eq(expectedDownstream4KeyUdp));
+        inOrder.verify(mBpfUpstream4Map).deleteEntriesDirect(
+                encodedAs(expectedUpstream4KeyUdp), eq(1), any());
+        inOrder.verify(mBpfDownstream4Map).deleteEntriesDirect(
+                encodedAs(expectedDownstream4KeyUdp), eq(1), any());
         inOrder.verifyNoMoreInteractions();
 
         // [4] Removing the last rule on current upstream immediately sends the cleanup stuff.
         updateStatsEntryForTetherOffloadGetAndClearStats(
                 buildTestTetherStatsParcel(UPSTREAM_IFINDEX, 0, 0, 0, 0));
-        mConsumer.accept(makeTestConntrackEvent(IPCTNL_MSG_CT_DELETE, IPPROTO_TCP));
-        inOrder.verify(mBpfUpstream4Map).deleteEntry(eq(expectedUpstream4KeyTcp));
-        inOrder.verify(mBpfDownstream4Map).deleteEntry(eq(expectedDownstream4KeyTcp));
+        acceptAndFlush(makeTestConntrackEvent(IPCTNL_MSG_CT_DELETE, IPPROTO_TCP));
+        inOrder.verify(mBpfUpstream4Map).deleteEntriesDirect(
+                encodedAs(expectedUpstream4KeyTcp), eq(1), any());
+        inOrder.verify(mBpfDownstream4Map).deleteEntriesDirect(
+                encodedAs(expectedDownstream4KeyTcp), eq(1), any());
         verifyTetherOffloadGetAndClearStats(inOrder, UPSTREAM_IFINDEX);
         inOrder.verifyNoMoreInteractions();
     }
+
+    @Test
+    @IgnoreUpTo(Build.VERSION_CODES.R)
+    public void testClearDataLimitAfterRule4AddedTwice() throws Exception {
+        final BpfCoordinator coordinator = makeBpfCoordinator();
+        coordinator.startPolling();
+        doReturn(UPSTREAM_IFACE_PARAMS).when(mDeps).getInterfaceParams(UPSTREAM_IFACE);
+        coordinator.addUpstreamNameToLookupTable(UPSTREAM_IFINDEX, UPSTREAM_IFACE);
+        setUpstreamInformationTo(coordinator);
+        setDownstreamAndClientInformationTo(coordinator);
+
+        final long limit = 12345;
+        final InOrder inOrder = inOrder(mNetd, mBpfUpstream4Map, mBpfDownstream4Map, mBpfLimitMap,
+                mBpfStatsMap);
+        mTetherStatsProvider.onSetLimit(UPSTREAM_IFACE, limit);
+        waitForIdle();
+        acceptAndFlush(makeTestConntrackEvent(IPCTNL_MSG_CT_NEW, IPPROTO_TCP));
+        verifyTetherOffloadSetInterfaceQuota(inOrder, UPSTREAM_IFINDEX, limit, true /* isInit */);
+
+        // Conntrack reports the updates of a flow as new events too. The rules already exist, so
+        // they are not counted again on their upstream.
+        doAnswer(invocation -> {
+            ((int[]) invocation.getArgument(3))[0] = EEXIST;
+            return null;
+        }).when(mBpfDownstream4Map).insertEntriesDirect(any(), any(), eq(1), any());
+        acceptAndFlush(makeTestConntrackEvent(IPCTNL_MSG_CT_NEW, IPPROTO_TCP));
+        inOrder.verify(mBpfDownstream4Map).insertEntriesDirect(
+                encodedAs(makeDownstream4Key(IPPROTO_TCP)), encodedAs(makeDownstream4Value()),
+                eq(1), any());
+
+        // Removing the flow once removes the last rule on the upstream and clears the limit.
+        updateStatsEntryForTetherOffloadGetAndClearStats(
+                buildTestTetherStatsParcel(UPSTREAM_IFINDEX, 0, 0, 0, 0));
+        acceptAndFlush(makeTestConntrackEvent(IPCTNL_MSG_CT_DELETE, IPPROTO_TCP));
+        inOrder.verify(mBpfDownstream4Map).deleteEntriesDirect(
+                encodedAs(makeDownstream4Key(IPPROTO_TCP)), eq(1), any());
+        verifyTetherOffloadGetAndClearStats(inOrder, UPSTREAM_IFINDEX);
+    }
+
+    @Test
+    @IgnoreUpTo(Build.VERSION_CODES.R)
+    public void testConntrackEventClientLookup() throws Exception {
+        final BpfCoordinator coordinator = makeBpfCoordinator();
+        coordinator.startPolling();
+        doReturn(UPSTREAM_IFACE_PARAMS).when(mDeps).getInterfaceParams(UPSTREAM_IFACE);
+        coordinator.addUpstreamNameToLookupTable(UPSTREAM_IFINDEX, UPSTREAM_IFACE);
+        setUpstreamInformationTo(coordinator);
+
+        // Events from an unknown client are ignored.
+        acceptAndFlush(makeTestConntrackEvent(IPCTNL_MSG_CT_NEW, IPPROTO_TCP));
+        verify(mBpfUpstream4Map, never()).insertEntriesDirect(any(), any(), anyInt(), any());
+
+        // The client is found even if it is not on the first downstream.
+        final ClientInfo otherClient = new ClientInfo(DOWNSTREAM_IFINDEX + 1, MAC_B,
+                (Inet4Address) InetAddresses.parseNumericAddress("192.168.90.20"), MAC_B);
+        coordinator.tetherOffloadClientAdd(mIpServer, otherClient);
+        final ClientInfo clientInfo = new ClientInfo(DOWNSTREAM_IFINDEX, DOWNSTREAM_MAC,
+                PRIVATE_ADDR, MAC_A /* client mac */);
+        coordinator.tetherOffloadClientAdd(mIpServer2, clientInfo);
+        acceptAndFlush(makeTestConntrackEvent(IPCTNL_MSG_CT_NEW, IPPROTO_TCP));
+        verify(mBpfUpstream4Map).insertEntriesDirect(encodedAs(makeUpstream4Key(IPPROTO_TCP)),
+                encodedAs(makeUpstream4Value()), eq(1), any());
+        clearInvocations(mBpfUpstream4Map);
+
+        // Events are ignored again once the client is removed.
+        coordinator.tetherOffloadClientRemove(mIpServer2, clientInfo);
+        acceptAndFlush(makeTestConntrackEvent(IPCTNL_MSG_CT_NEW, IPPROTO_UDP));
+        verify(mBpfUpstream4Map, never()).insertEntriesDirect(any(), any(), anyInt(), any());
+    }
+
+    @Test
+    @IgnoreUpTo(Build.VERSION_CODES.R)
+    public void testConntrackEventCoalescing() throws Exception {
+        final BpfCoordinator coordinator = makeBpfCoordinator();
+        coordinator.startPolling();
+        doReturn(UPSTREAM_IFACE_PARAMS).when(mDeps).getInterfaceParams(UPSTREAM_IFACE);
+        coordinator.addUpstreamNameToLookupTable(UPSTREAM_IFINDEX, UPSTREAM_IFACE);
+        setUpstreamInformationTo(coordinator);
+        setDownstreamAndClientInformationTo(coordinator);
+
+        // The rules of a flow which is created and deleted within the window are not added. They
+        // are still removed, since the NEW event may have been an update of an offloaded flow.
+        final Answer<Void> ruleMissing = invocation -> {
+            ((int[]) invocation.getArgument(2))[0] = ENOENT;
+            return null;
+        };
+        doAnswer(ruleMissing).doNothing().when(mBpfUpstream4Map)
+                .deleteEntriesDirect(any(), anyInt(), any());
+        doAnswer(ruleMissing).doNothing().when(mBpfDownstream4Map)
+                .deleteEntriesDirect(any(), anyInt(), any());
+        mConsumer.accept(makeTestConntrackEvent(IPCTNL_MSG_CT_NEW, IPPROTO_TCP));
+        mConsumer.accept(makeTestConntrackEvent(IPCTNL_MSG_CT_DELETE, IPPROTO_TCP));
+        mTestLooper.moveTimeForward(CONNTRACK_BATCH_WINDOW_MS);
+        waitForIdle();
+        verify(mBpfUpstream4Map, never()).insertEntriesDirect(any(), any(), anyInt(), any());
+        verify(mBpfUpstream4Map).deleteEntriesDirect(encodedAs(makeUpstream4Key(IPPROTO_TCP)),
+                eq(1), any());
+        verify(mBpfDownstream4Map).deleteEntriesDirect(
+                encodedAs(makeDownstream4Key(IPPROTO_TCP)), eq(1), any());
+        assertEquals(1, mConsumer.getCoalescedEventCount());
+        clearInvocations(mBpfUpstream4Map, mBpfDownstream4Map);
+
+        // The rules of the flows created within the window are written in one batch.
+        mConsumer.accept(makeTestConntrackEvent(IPCTNL_MSG_CT_NEW, IPPROTO_TCP));
+        mConsumer.accept(makeTestConntrackEvent(IPCTNL_MSG_CT_NEW, IPPROTO_UDP));
+        mConsumer.accept(makeTestConntrackEvent(IPCTNL_MSG_CT_NEW, IPPROTO_UDP));
+        verify(mBpfUpstream4Map, never()).insertEntriesDirect(any(), any(), anyInt(), any());
+        mTestLooper.moveTimeForward(CONNTRACK_BATCH_WINDOW_MS);
+        waitForIdle();
+        verify(mBpfUpstream4Map).insertEntriesDirect(any(), any(), eq(2), any());
+        verify(mBpfDownstream4Map).insertEntriesDirect(any(), any(), eq(2), any());
+        assertEquals(2, mConsumer.getCoalescedEventCount());
+
+        // Stopping the monitoring flushes the queued events right away.
+        coordinator.startMonitoring(mIpServer);
+        mConsumer.accept(makeTestConntrackEvent(IPCTNL_MSG_CT_DELETE, IPPROTO_TCP));
+        coordinator.stopMonitoring(mIpServer);
+        verify(mBpfUpstream4Map).deleteEntriesDirect(encodedAs(makeUpstream4Key(IPPROTO_TCP)),
+                eq(1), any());
+    }
+
+    @Test
+    @IgnoreUpTo(Build.VERSION_CODES.R)
+    public void testConntrackEventsOnReaderThread() throws Exception {
+        final TestLooper readerLooper = new TestLooper();
+        doReturn(new Handler(readerLooper.getLooper())).when(mDeps).getConntrackHandler();
+        final BpfCoordinator coordinator = makeBpfCoordinator();
+        coordinator.startPolling();
+        doReturn(UPSTREAM_IFACE_PARAMS).when(mDeps).getInterfaceParams(UPSTREAM_IFACE);
+        coordinator.addUpstreamNameToLookupTable(UPSTREAM_IFINDEX, UPSTREAM_IFACE);
+        setUpstreamInformationTo(coordinator);
+        setDownstreamAndClientInformationTo(coordinator);
+        coordinator.startMonitoring(mIpServer);
+        readerLooper.dispatchAll();
+        verify(mConntrackMonitor).start();
+
+        // The batch is built on the reader thread but only written on the handler thread.
+        mConsumer.accept(makeTestConntrackEvent(IPCTNL_MSG_CT_NEW, IPPROTO_TCP));
+        readerLooper.moveTimeForward(CONNTRACK_BATCH_WINDOW_MS);
+        readerLooper.dispatchAll();
+        verify(mBpfUpstream4Map, never()).insertEntriesDirect(any(), any(), anyInt(), any());
+        waitForIdle();
+        verify(mBpfUpstream4Map).insertEntriesDirect(encodedAs(makeUpstream4Key(IPPROTO_TCP)),
+                encodedAs(makeUpstream4Value()), eq(1), any());
+        verify(mBpfDownstream4Map).insertEntriesDirect(
+                encodedAs(makeDownstream4Key(IPPROTO_TCP)), encodedAs(makeDownstream4Value()),
+                eq(1), any());
+        clearInvocations(mBpfUpstream4Map, mBpfDownstream4Map);
+
+        // Adding another client does not invalidate the batches built before.
+        mConsumer.accept(makeTestConntrackEvent(IPCTNL_MSG_CT_NEW, IPPROTO_TCP));
+        readerLooper.moveTimeForward(CONNTRACK_BATCH_WINDOW_MS);
+        readerLooper.dispatchAll();
+        final ClientInfo otherClient = new ClientInfo(DOWNSTREAM_IFINDEX, DOWNSTREAM_MAC,
+                (Inet4Address) InetAddresses.parseNumericAddress("192.168.80.20"), MAC_B);
+        coordinator.tetherOffloadClientAdd(mIpServer, otherClient);
+        waitForIdle();
+        verify(mBpfUpstream4Map).insertEntriesDirect(encodedAs(makeUpstream4Key(IPPROTO_TCP)),
+                encodedAs(makeUpstream4Value()), eq(1), any());
+        assertEquals(0, mConsumer.getReencodedBatchCount());
+        clearInvocations(mBpfUpstream4Map, mBpfDownstream4Map);
+
+        // A batch built before the client is removed is encoded again, and no longer adds
+        // the rules of that client.
+        mConsumer.accept(makeTestConntrackEvent(IPCTNL_MSG_CT_NEW, IPPROTO_UDP));
+        readerLooper.moveTimeForward(CONNTRACK_BATCH_WINDOW_MS);
+        readerLooper.dispatchAll();
+        final ClientInfo clientInfo = new ClientInfo(DOWNSTREAM_IFINDEX, DOWNSTREAM_MAC,
+                PRIVATE_ADDR, MAC_A /* client mac */);
+        coordinator.tetherOffloadClientRemove(mIpServer, clientInfo);
+        waitForIdle();
+        verify(mBpfUpstream4Map, never()).insertEntriesDirect(any(), any(), anyInt(), any());
+        verify(mBpfDownstream4Map, never()).insertEntriesDirect(any(), any(), anyInt(), any());
+        assertEquals(1, mConsumer.getReencodedBatchCount());
+    }
+
+    private static final IpPrefix NAT64_PREFIX = new IpPrefix("64:ff9b::/96");
+    private static final Inet4Address CLAT_IPV4_ADDR =
+            (Inet4Address) InetAddresses.parseNumericAddress("192.0.0.4");
+    private static final Inet6Address CLAT_IPV6_ADDR =
+            (Inet6Address) InetAddresses.parseNumericAddress("2001:db8::464:1");
+    // The NAT64 address of REMOTE_ADDR, 64:ff9b::8c70:874.
+    private static final byte[] REMOTE_ADDR_NAT64_BYTES =
+            InetAddresses.parseNumericAddress("64:ff9b::140.112.8.116").getAddress();
+
+    // Same as #makeTestConntrackEvent, for a flow translated by clat.
+    @NonNull
+    private ConntrackEvent makeTestClatConntrackEvent(short msgType, int proto) {
+        final int status = (msgType == IPCTNL_MSG_CT_NEW) ? ESTABLISHED_MASK : DYING_MASK;
+        final int timeoutSec = (msgType == IPCTNL_MSG_CT_NEW) ? 100 /* nonzero, new */
+                : 0 /* unused, delete */;
+        return new ConntrackEvent(
+                (short) (NetlinkConstants.NFNL_SUBSYS_CTNETLINK << 8 | msgType),
+                new Tuple(new TupleIpv4(PRIVATE_ADDR, REMOTE_ADDR),
+                        new TupleProto((byte) proto, PRIVATE_PORT, REMOTE_PORT)),
+                new Tuple(new TupleIpv4(REMOTE_ADDR, CLAT_IPV4_ADDR),
+                        new TupleProto((byte) proto, REMOTE_PORT, PUBLIC_PORT)),
+                status,
+                timeoutSec);
+    }
+
+    private void setClatUpstreamInformationTo(final BpfCoordinator coordinator) {
+        setClatUpstreamInformationTo(coordinator, UPSTREAM_IFACE);
+    }
+
+    private void setClatUpstreamInformationTo(final BpfCoordinator coordinator,
+            @NonNull String upstreamIface) {
+        final LinkProperties stacked = new LinkProperties();
+        stacked.setInterfaceName("v4-" + upstreamIface);
+        stacked.addLinkAddress(new LinkAddress(CLAT_IPV4_ADDR, 32 /* prefix length */));
+        final LinkProperties lp = new LinkProperties();
+        lp.setInterfaceName(upstreamIface);
+        lp.setNat64Prefix(NAT64_PREFIX);
+        lp.addStackedLink(stacked);
+        coordinator.addUpstreamIfindexToMap(lp);
+    }
+
+    @NonNull
+    private Tether4Value makeClatUpstream4Value(int upstreamIfindex,
+            @NonNull Inet6Address clatIpv6) {
+        return new Tether4Value(upstreamIfindex,
+                MacAddress.ALL_ZEROS_ADDRESS /* ethDstMac (rawip) */,
+                MacAddress.ALL_ZEROS_ADDRESS /* ethSrcMac (rawip) */, ETH_P_IPV6,
+                NetworkStackConstants.ETHER_MTU, clatIpv6.getAddress(),
+                REMOTE_ADDR_NAT64_BYTES, PUBLIC_PORT, REMOTE_PORT, 0 /* lastUsed */);
+    }
+
+    @NonNull
+    private TetherDownstream64Key makeDownstream64Key(int upstreamIfindex,
+            @NonNull Inet6Address clatIpv6) {
+        return new TetherDownstream64Key(upstreamIfindex,
+                MacAddress.ALL_ZEROS_ADDRESS /* dstMac (rawip) */, (short) IPPROTO_TCP,
+                REMOTE_ADDR_NAT64_BYTES, clatIpv6.getAddress(), REMOTE_PORT, PUBLIC_PORT);
+    }
+
+    @Test
+    @IgnoreUpTo(Build.VERSION_CODES.R)
+    public void testConntrackEventOnClatUpstream() throws Exception {
+        final BpfCoordinator coordinator = makeBpfCoordinator();
+        coordinator.startPolling();
+        doReturn(UPSTREAM_IFACE_PARAMS).when(mDeps).getInterfaceParams(UPSTREAM_IFACE);
+        doReturn(CLAT_IPV6_ADDR).when(mDeps).getClatIpv6Address(UPSTREAM_IFACE);
+        coordinator.addUpstreamNameToLookupTable(UPSTREAM_IFINDEX, UPSTREAM_IFACE);
+        setClatUpstreamInformationTo(coordinator);
+        setDownstreamAndClientInformationTo(coordinator);
+
+        // The upstream rule translates to IPv6 and the downstream rule is in the downstream64 map.
+        final Tether4Key upstreamKey = makeUpstream4Key(IPPROTO_TCP);
+        final Tether4Value upstreamValue = makeClatUpstream4Value(UPSTREAM_IFINDEX,
+                CLAT_IPV6_ADDR);
+        final TetherDownstream64Key downstreamKey = makeDownstream64Key(UPSTREAM_IFINDEX,
+                CLAT_IPV6_ADDR);
+        final TetherDownstream64Value downstreamValue = new TetherDownstream64Value(
+                DOWNSTREAM_IFINDEX, MAC_A /* client mac */, DOWNSTREAM_MAC, ETH_P_IP,
+                NetworkStackConstants.ETHER_MTU, REMOTE_ADDR.getAddress(),
+                PRIVATE_ADDR.getAddress(), REMOTE_PORT, PRIVATE_PORT, 0 /* lastUsed */);
+
+        acceptAndFlush(makeTestClatConntrackEvent(IPCTNL_MSG_CT_NEW, IPPROTO_TCP));
+        verify(mBpfUpstream4Map).insertEntriesDirect(encodedAs(upstreamKey),
+                encodedAs(upstreamValue), eq(1), any());
+        verify(mBpfDownstream64Map).insertEntriesDirect(encodedAs(downstreamKey),
+                encodedAs(downstreamValue), eq(1), any());
+        verify(mBpfDownstream4Map, never()).insertEntriesDirect(any(), any(), anyInt(), any());
+
+        acceptAndFlush(makeTestClatConntrackEvent(IPCTNL_MSG_CT_DELETE, IPPROTO_TCP));
+        verify(mBpfUpstream4Map).deleteEntriesDirect(encodedAs(upstreamKey), eq(1), any());
+        verify(mBpfDownstream64Map).deleteEntriesDirect(encodedAs(downstreamKey), eq(1), any());
+        verify(mBpfDownstream4Map, never()).deleteEntriesDirect(any(), anyInt(), any());
+
+        // The flows are no longer offloaded once clat is stopped.
+        clearInvocations(mBpfUpstream4Map, mBpfDownstream64Map);
+        final LinkProperties lp = new LinkProperties();
+        lp.setInterfaceName(UPSTREAM_IFACE);
+        coordinator.addUpstreamIfindexToMap(lp);
+        acceptAndFlush(makeTestClatConntrackEvent(IPCTNL_MSG_CT_NEW, IPPROTO_TCP));
+        verify(mBpfUpstream4Map, never()).insertEntriesDirect(any(), any(), anyInt(), any());
+        verify(mBpfDownstream64Map, never()).insertEntriesDirect(any(), any(), anyInt(), any());
+    }
+
+    @Test
+    @IgnoreUpTo(Build.VERSION_CODES.R)
+    public void testConntrackEventOnClatUpstreamChange() throws Exception {
+        final String upstreamIface2 = "rmnet1";
+        final int upstreamIfindex2 = 1003;
+        final Inet6Address clatIpv6Addr2 =
+                (Inet6Address) InetAddresses.parseNumericAddress("2001:db8:1::464:1");
+        final BpfCoordinator coordinator = makeBpfCoordinator();
+        coordinator.startPolling();
+        doReturn(UPSTREAM_IFACE_PARAMS).when(mDeps).getInterfaceParams(UPSTREAM_IFACE);
+        doReturn(new InterfaceParams(upstreamIface2, upstreamIfindex2,
+                null /* macAddr, rawip */, NetworkStackConstants.ETHER_MTU)).when(mDeps)
+                .getInterfaceParams(upstreamIface2);
+        doReturn(CLAT_IPV6_ADDR).when(mDeps).getClatIpv6Address(UPSTREAM_IFACE);
+        doReturn(clatIpv6Addr2).when(mDeps).getClatIpv6Address(upstreamIface2);
+        coordinator.addUpstreamNameToLookupTable(UPSTREAM_IFINDEX, UPSTREAM_IFACE);
+        coordinator.addUpstreamNameToLookupTable(upstreamIfindex2, upstreamIface2);
+        setClatUpstreamInformationTo(coordinator, UPSTREAM_IFACE);
+        setDownstreamAndClientInformationTo(coordinator);
+        final Tether4Key upstreamKey = makeUpstream4Key(IPPROTO_TCP);
+
+        // [1] Switch to the second clat upstream. Both clat interfaces use the same IPv4
+        // address, and the flows are offloaded to the current upstream only.
+        setClatUpstreamInformationTo(coordinator, upstreamIface2);
+        acceptAndFlush(makeTestClatConntrackEvent(IPCTNL_MSG_CT_NEW, IPPROTO_TCP));
+        verify(mBpfUpstream4Map).insertEntriesDirect(encodedAs(upstreamKey),
+                encodedAs(makeClatUpstream4Value(upstreamIfindex2, clatIpv6Addr2)), eq(1),
+                any());
+        verify(mBpfDownstream64Map).insertEntriesDirect(
+                encodedAs(makeDownstream64Key(upstreamIfindex2, clatIpv6Addr2)), any(), eq(1),
+                any());
+        clearInvocations(mBpfUpstream4Map, mBpfDownstream64Map);
+
+        // [2] Switch back to the first clat upstream.
+        setClatUpstreamInformationTo(coordinator, UPSTREAM_IFACE);
+        acceptAndFlush(makeTestClatConntrackEvent(IPCTNL_MSG_CT_NEW, IPPROTO_TCP));
+        verify(mBpfUpstream4Map).insertEntriesDirect(encodedAs(upstreamKey),
+                encodedAs(makeClatUpstream4Value(UPSTREAM_IFINDEX, CLAT_IPV6_ADDR)), eq(1),
+                any());
+        verify(mBpfDownstream64Map).insertEntriesDirect(
+                encodedAs(makeDownstream64Key(UPSTREAM_IFINDEX, CLAT_IPV6_ADDR)), any(), eq(1),
+                any());
+    }
+
+    @Test
+    public void testFindClatIpv6Address() throws Exception {
+        final List<String> lines = Arrays.asList(
+                "1    lo              ff020000000000000000000000000001     1",
+                "10   rmnet0          20010db8000000000000000000000000     1",
+                "10   rmnet0          fe800000000000000000000000000464     1",
+                "10   rmnet0          20010db8000000000000000004640001     1",
+                "11   wlan0           20010db8000000010000000004640002     1");
+        assertEquals(CLAT_IPV6_ADDR, BpfCoordinator.findClatIpv6Address(lines, UPSTREAM_IFACE));
+        assertNull(BpfCoordinator.findClatIpv6Address(lines, "rmnet1"));
+    }
+
+    @NonNull
+    private Tether4Value makeUpstream4Value(long lastUsed) {
+        final Tether4Value v = makeUpstream4Value();
+        return new Tether4Value(v.oif, v.ethDstMac, v.ethSrcMac, v.ethProto, v.pmtu, v.src46,
+                v.dst46, v.srcPort, v.dstPort, lastUsed);
+    }
+
+    @Test
+    @IgnoreUpTo(Build.VERSION_CODES.R)
+    public void testIpv4RuleSweep() throws Exception {
+        final BpfCoordinator coordinator = makeBpfCoordinator();
+        doReturn(UPSTREAM_IFACE_PARAMS).when(mDeps).getInterfaceParams(UPSTREAM_IFACE);
+        coordinator.addUpstreamNameToLookupTable(UPSTREAM_IFINDEX, UPSTREAM_IFACE);
+        setUpstreamInformationTo(coordinator);
+        setDownstreamAndClientInformationTo(coordinator);
+        coordinator.startMonitoring(mIpServer);
+        acceptAndFlush(makeTestConntrackEvent(IPCTNL_MSG_CT_NEW, IPPROTO_TCP));
+        acceptAndFlush(makeTestConntrackEvent(IPCTNL_MSG_CT_NEW, IPPROTO_UDP));
+
+        final long nowNs = 1_000_000_000_000L;
+        doReturn(nowNs).when(mDeps).elapsedRealtimeNanos();
+        doNothing().when(mDeps).sendNetfilterMessage(any());
+        final Tether4Value[] upstreamValues = new Tether4Value[2];
+        doAnswer(invocation -> {
+            final BiConsumer<Tether4Key, Tether4Value> action = invocation.getArgument(0);
+            action.accept(makeUpstream4Key(IPPROTO_TCP), upstreamValues[0]);
+            action.accept(makeUpstream4Key(IPPROTO_UDP), upstreamValues[1]);
+            return null;
+        }).when(mBpfUpstream4Map).forEach(any());
+
+        // The conntrack timeouts of the flows which were recently forwarded are refreshed.
+        upstreamValues[0] = upstreamValues[1] = makeUpstream4Value(nowNs - 1_000_000_000L);
+        mTestLooper.moveTimeForward(CONNTRACK_TIMEOUT_UPDATE_INTERVAL_MS);
+        waitForIdle();
+        verify(mDeps, times(2)).sendNetfilterMessage(any());
+        verify(mBpfUpstream4Map, never()).deleteEntriesDirect(any(), anyInt(), any());
+
+        // The rules which have never been used are left alone.
+        clearInvocations(mDeps);
+        upstreamValues[0] = upstreamValues[1] = makeUpstream4Value(0 /* lastUsed */);
+        mTestLooper.moveTimeForward(CONNTRACK_TIMEOUT_UPDATE_INTERVAL_MS);
+        waitForIdle();
+        verify(mDeps, never()).sendNetfilterMessage(any());
+        verify(mBpfUpstream4Map, never()).deleteEntriesDirect(any(), anyInt(), any());
+
+        // The conntrack entry of the idle UDP flow is expired, so that its delete event removes
+        // the rules, and the flow is offloaded again by a new event if it resumes. The idle TCP
+        // flow is left alone.
+        upstreamValues[0] = upstreamValues[1] = makeUpstream4Value(
+                nowNs - IPV4_RULE_IDLE_TIMEOUT_MS * 1_000_000L);
+        mTestLooper.moveTimeForward(CONNTRACK_TIMEOUT_UPDATE_INTERVAL_MS);
+        waitForIdle();
+        verify(mDeps).sendNetfilterMessage(any());
+        verify(mBpfUpstream4Map, never()).deleteEntriesDirect(any(), anyInt(), any());
+
+        // Other errors do not tell whether the conntrack entry is gone, so the rules are kept.
+        doThrow(new ErrnoException("sendNetfilterMessage", ENOBUFS)).when(mDeps)
+                .sendNetfilterMessage(any());
+        mTestLooper.moveTimeForward(CONNTRACK_TIMEOUT_UPDATE_INTERVAL_MS);
+        waitForIdle();
+        verify(mBpfUpstream4Map, never()).deleteEntriesDirect(any(), anyInt(), any());
+        verify(mBpfDownstream4Map, never()).deleteEntriesDirect(any(), anyInt(), any());
+
+        // If the conntrack entry is already gone without a delete event, the rules are removed.
+        updateStatsEntryForTetherOffloadGetAndClearStats(
+                buildTestTetherStatsParcel(UPSTREAM_IFINDEX, 0, 0, 0, 0));
+        doThrow(new ErrnoException("sendNetfilterMessage", ENOENT)).when(mDeps)
+                .sendNetfilterMessage(any());
+        mTestLooper.moveTimeForward(CONNTRACK_TIMEOUT_UPDATE_INTERVAL_MS);
+        waitForIdle();
+        verify(mBpfUpstream4Map).deleteEntriesDirect(encodedAs(makeUpstream4Key(IPPROTO_UDP)),
+                eq(1), any());
+        verify(mBpfDownstream4Map).deleteEntriesDirect(
+                encodedAs(makeDownstream4Key(IPPROTO_UDP)), eq(1), any());
+    }
 }
@@ -0,0 +1,137 @@
+/*
+ * Copyright (C) 2021 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.networkstack.tethering;
+
+import static android.system.OsConstants.ETH_P_IP;
+import static android.system.OsConstants.ETH_P_IPV6;
+import static android.system.OsConstants.IPPROTO_TCP;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+
+import android.net.InetAddresses;
+import android.net.MacAddress;
+
+import androidx.test.filters.SmallTest;
+import androidx.test.runner.AndroidJUnit4;
+
+import com.android.net.module.util.Struct;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.function.BiConsumer;
+
+@RunWith(AndroidJUnit4.class)
+@SmallTest
+public class BpfStructCodecsTest {
+    private static final MacAddress MAC_A = MacAddress.fromString("00:00:00:00:00:0a");
+    private static final MacAddress MAC_B = MacAddress.fromString("11:22:33:44:55:66");
+    private static final byte[] ADDR4_A = InetAddresses.parseNumericAddress("192.168.80.12")
+            .getAddress();
+    private static final byte[] ADDR4_B = InetAddresses.parseNumericAddress("140.112.8.116")
+            .getAddress();
+    private static final byte[] ADDR6_A = InetAddresses.parseNumericAddress("2001:db8::1")
+            .getAddress();
+    private static final byte[] ADDR6_B = InetAddresses.parseNumericAddress("::ffff:1.2.3.4")
+            .getAddress();
+
+    // Check that the hand written codec has the same layout as the reflective Struct methods.
+    private <T extends Struct> void assertCodec(Class<T> clazz, T obj,
+            BiConsumer<T, ByteBuffer> encoder) {
+        final byte[] expected = obj.writeToBytes(ByteOrder.nativeOrder());
+        final ByteBuffer buf = ByteBuffer.allocate(Struct.getSize(clazz))
+                .order(ByteOrder.nativeOrder());
+        encoder.accept(obj, buf);
+        assertEquals(0, buf.remaining());
+        assertArrayEquals(expected, buf.array());
+
+        assertNotNull(BpfStructCodecs.getDecoder(clazz));
+        final ByteBuffer in = ByteBuffer.wrap(expected).order(ByteOrder.nativeOrder());
+        final T decoded = BpfStructCodecs.decode(clazz, in);
+        assertEquals(0, in.remaining());
+        assertEquals(obj, decoded);
+        assertEquals(Struct.parse(clazz,
+                ByteBuffer.wrap(expected).order(ByteOrder.nativeOrder())), decoded);
+    }
+
+    @Test
+    public void testTether4Codecs() {
+        assertCodec(Tether4Key.class, new Tether4Key(0xfffffff0L, MAC_A, (short) IPPROTO_TCP,
+                ADDR4_A, ADDR4_B, 62449, 443), Tether4Key::encode);
+        assertCodec(Tether4Value.class, new Tether4Value(7, MAC_A, MAC_B, ETH_P_IP, 1500,
+                ADDR6_A, ADDR6_B, 443, 62449, 123456789L), Tether4Value::encode);
+    }
+
+    @Test
+    public void testTether64Codecs() {
+        assertCodec(TetherDownstream64Key.class, new TetherDownstream64Key(0xfffffff0L, MAC_A,
+                (short) IPPROTO_TCP, ADDR6_A, ADDR6_B, 443, 62449),
+                TetherDownstream64Key::encode);
+        assertCodec(TetherDownstream64Value.class, new TetherDownstream64Value(7, MAC_A, MAC_B,
+                ETH_P_IP, 1500, ADDR4_A, ADDR4_B, 443, 62449, 123456789L),
+                TetherDownstream64Value::encode);
+    }
+
+    @Test
+    public void testTether4KeyEncodeFromFields() {
+        final Tether4Key key = new Tether4Key(5, MAC_B, (short) IPPROTO_TCP, ADDR4_A, ADDR4_B,
+                1024, 65535);
+        final ByteBuffer buf = ByteBuffer.allocateDirect(Struct.getSize(Tether4Key.class))
+                .order(ByteOrder.nativeOrder());
+        Tether4Key.encode(buf, 5, MAC_B.toByteArray(), (short) IPPROTO_TCP, ADDR4_A, ADDR4_B,
+                1024, 65535);
+        buf.flip();
+        assertEquals(5, Tether4Key.getIif(buf));
+        assertEquals(0, buf.position());
+        assertEquals(key, Tether4Key.decode(buf));
+    }
+
+    @Test
+    public void testTether6Codecs() {
+        assertCodec(TetherDownstream6Key.class, new TetherDownstream6Key(11, MAC_A, ADDR6_A),
+                TetherDownstream6Key::encode);
+        assertCodec(TetherUpstream6Key.class, new TetherUpstream6Key(12, MAC_B),
+                TetherUpstream6Key::encode);
+        assertCodec(Tether6Value.class, new Tether6Value(13, MAC_A, MAC_B, ETH_P_IPV6, 1280),
+                Tether6Value::encode);
+    }
+
+    @Test
+    public void testStatsAndLimitCodecs() {
+        assertCodec(TetherStatsKey.class, new TetherStatsKey(0x80000001L),
+                TetherStatsKey::encode);
+        assertCodec(TetherStatsValue.class, new TetherStatsValue(1, 2, 3, 4, 5, Long.MAX_VALUE),
+                TetherStatsValue::encode);
+        assertCodec(TetherClientStatsKey.class, new TetherClientStatsKey(14, MAC_B),
+                TetherClientStatsKey::encode);
+        assertCodec(TetherClientStatsValue.class, new TetherClientStatsValue(1, 2, 3,
+                Long.MAX_VALUE), TetherClientStatsValue::encode);
+        assertCodec(TetherClientRateLimitKey.class, new TetherClientRateLimitKey(15, MAC_A),
+                TetherClientRateLimitKey::encode);
+        assertCodec(TetherClientRateLimitValue.class, new TetherClientRateLimitValue(1, 2, 3, 4,
+                5, 6, Long.MAX_VALUE), TetherClientRateLimitValue::encode);
+        assertCodec(TetherLimitKey.class, new TetherLimitKey(99), TetherLimitKey::encode);
+        assertCodec(TetherLimitValue.class, new TetherLimitValue(-1), TetherLimitValue::encode);
+        assertCodec(TetherQuotaKey.class, new TetherQuotaKey(98), TetherQuotaKey::encode);
+        assertCodec(TetherQuotaValue.class, new TetherQuotaValue(Long.MAX_VALUE),
+                TetherQuotaValue::encode);
+    }
+}
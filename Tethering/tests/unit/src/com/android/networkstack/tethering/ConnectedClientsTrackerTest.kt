@@ -23,6 +23,7 @@ import android.net.TetheredClient.AddressInfo
 import android.net.TetheringManager.TETHERING_USB
 import android.net.TetheringManager.TETHERING_WIFI
 import android.net.ip.IpServer
+import android.net.util.TetheringUtils.ForwardedStats
 import android.net.wifi.WifiClient
 import androidx.test.filters.SmallTest
 import androidx.test.runner.AndroidJUnit4
@@ -134,6 +135,119 @@ class ConnectedClientsTrackerTest {
         assertSameClients(expectedClients, assertNewClients(tracker, servers, null))
     }
 
+    @Test
+    fun testUpdateConnectedClients_Deltas() {
+        doReturn(listOf(client1)).`when`(server1).allLeases
+        doReturn(emptyList<TetheredClient>()).`when`(server2).allLeases
+        val tracker = ConnectedClientsTracker(clock)
+        assertNewClients(tracker, servers, listOf(wifiClient1))
+        assertSameClients(listOf(client1), tracker.lastUpdatedClients)
+        assertSameClients(emptyList(), tracker.lastRemovedClients)
+
+        // Only the new client is reported
+        doReturn(listOf(client3)).`when`(server2).allLeases
+        assertNewClients(tracker, servers, null)
+        assertSameClients(listOf(client3), tracker.lastUpdatedClients)
+        assertSameClients(emptyList(), tracker.lastRemovedClients)
+
+        // No change
+        assertFalse(tracker.updateConnectedClients(servers, null))
+        assertSameClients(emptyList(), tracker.lastUpdatedClients)
+        assertSameClients(emptyList(), tracker.lastRemovedClients)
+        assertSameClients(listOf(client1, client3), tracker.lastTetheredClients)
+
+        // Client 1 lease lost but still L2-connected: updated. Client 3 removed.
+        doReturn(emptyList<TetheredClient>()).`when`(server1).allLeases
+        doReturn(emptyList<TetheredClient>()).`when`(server2).allLeases
+        val client1WithoutAddr = TetheredClient(client1Addr, emptyList(), TETHERING_WIFI)
+        assertSameClients(listOf(client1WithoutAddr), assertNewClients(tracker, servers, null))
+        assertSameClients(listOf(client1WithoutAddr), tracker.lastUpdatedClients)
+        assertSameClients(listOf(client3), tracker.lastRemovedClients)
+
+        // Client 1 L2-disconnected: removed as it was last reported
+        assertSameClients(emptyList(), assertNewClients(tracker, servers, emptyList()))
+        assertSameClients(emptyList(), tracker.lastUpdatedClients)
+        assertSameClients(listOf(client1WithoutAddr), tracker.lastRemovedClients)
+    }
+
+    @Test
+    fun testPruneExpiredClients() {
+        val tracker = ConnectedClientsTracker(clock)
+        assertEquals(-1, tracker.nextExpirationDelayMs)
+        doReturn(listOf(client1, client2)).`when`(server1).allLeases
+        doReturn(listOf(client3)).`when`(server2).allLeases
+        assertNewClients(tracker, servers, listOf(wifiClient1, wifiClient2))
+        assertEquals(10, tracker.nextExpirationDelayMs)
+
+        // Nothing expired yet
+        clock.time += 9
+        assertFalse(tracker.pruneExpiredClients())
+        assertEquals(1, tracker.nextExpirationDelayMs)
+
+        // Client 3 has no remaining lease: removed. Client 2 loses its "t + 10" address.
+        clock.time += 1
+        val client2Exp30 = TetheredClient(client2Addr, listOf(client2Exp30AddrInfo),
+                TETHERING_WIFI)
+        assertTrue(tracker.pruneExpiredClients())
+        assertSameClients(listOf(client2Exp30), tracker.lastUpdatedClients)
+        assertSameClients(listOf(client3), tracker.lastRemovedClients)
+        assertSameClients(listOf(client1, client2Exp30), tracker.lastTetheredClients)
+        assertEquals(10, tracker.nextExpirationDelayMs)
+
+        // Client 1 has no remaining lease but is L2-connected
+        clock.time += 10
+        val client1WithoutAddr = TetheredClient(client1Addr, emptyList(), TETHERING_WIFI)
+        assertTrue(tracker.pruneExpiredClients())
+        assertSameClients(listOf(client1WithoutAddr), tracker.lastUpdatedClients)
+        assertSameClients(emptyList(), tracker.lastRemovedClients)
+        assertEquals(10, tracker.nextExpirationDelayMs)
+
+        // Client 2 lease renewed before its expiration: the old expiration is ignored
+        val client2Renewed = TetheredClient(client2Addr, listOf(makeAddrInfo(
+                "192.168.43.45/32", "my_hostname", clock.time + 100)), TETHERING_WIFI)
+        doReturn(listOf(client1, client2Renewed)).`when`(server1).allLeases
+        doReturn(emptyList<TetheredClient>()).`when`(server2).allLeases
+        assertNewClients(tracker, servers, null)
+        clock.time += 10
+        assertFalse(tracker.pruneExpiredClients())
+        assertEquals(90, tracker.nextExpirationDelayMs)
+        assertSameClients(listOf(client1WithoutAddr, client2Renewed), tracker.lastTetheredClients)
+    }
+
+    @Test
+    fun testUpdateTrafficStats() {
+        doReturn(listOf(client1)).`when`(server1).allLeases
+        doReturn(listOf(client3)).`when`(server2).allLeases
+        val tracker = ConnectedClientsTracker(clock)
+        assertNewClients(tracker, servers, listOf(wifiClient1))
+
+        // Only the clients whose traffic changed are reported
+        val client3Stats = client3.withTrafficStats(1000L, 10L, 200L, 5L)
+        assertTrue(tracker.updateTrafficStats(mapOf(
+                client3Addr to ForwardedStats(1000L, 10L, 200L, 5L),
+                client2Addr to ForwardedStats(1L, 1L, 1L, 1L))))
+        assertSameClients(listOf(client3Stats), tracker.lastUpdatedClients)
+        assertSameClients(emptyList(), tracker.lastRemovedClients)
+        assertSameClients(listOf(client1, client3Stats), tracker.lastTetheredClients)
+
+        // No change
+        assertFalse(tracker.updateTrafficStats(mapOf(
+                client3Addr to ForwardedStats(1000L, 10L, 200L, 5L))))
+
+        // The traffic is kept when the clients are updated
+        doReturn(emptyList<TetheredClient>()).`when`(server1).allLeases
+        val client1WithoutAddr = TetheredClient(client1Addr, emptyList(), TETHERING_WIFI)
+        assertNewClients(tracker, servers, null)
+        assertSameClients(listOf(client1WithoutAddr), tracker.lastUpdatedClients)
+        assertSameClients(listOf(client1WithoutAddr, client3Stats), tracker.lastTetheredClients)
+
+        // The traffic is also kept when addresses expire
+        clock.time += 10
+        assertTrue(tracker.pruneExpiredClients())
+        assertSameClients(listOf(client3Stats), tracker.lastRemovedClients)
+        assertSameClients(listOf(client1WithoutAddr), tracker.lastTetheredClients)
+    }
+
     private fun assertNewClients(
         tracker: ConnectedClientsTracker,
         ipServers: Iterable<IpServer>,
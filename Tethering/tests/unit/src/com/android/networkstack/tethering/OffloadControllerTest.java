@@ -416,6 +416,47 @@ public class OffloadControllerTest {
         inOrder.verifyNoMoreInteractions();
     }
 
+    @Test
+    public void testUpstreamLocalPrefixUpdates() throws Exception {
+        setupFunctioningHardwareInterface();
+        enableOffload();
+
+        final OffloadController offload = makeOffloadController();
+        offload.start();
+        final InOrder inOrder = inOrder(mHardware);
+
+        final IpPrefix loopback = new IpPrefix("127.0.0.0/8");
+        final IpPrefix cellPrefix = new IpPrefix("2001:db8:0:1::/64");
+        final IpPrefix wifiPrefix = new IpPrefix("2001:db8:4:fd00::/64");
+        offload.setLocalPrefixes(Set.of(loopback, wifiPrefix));
+        inOrder.verify(mHardware).setLocalPrefixes(mStringArrayCaptor.capture());
+        assertEquals(2, mStringArrayCaptor.getValue().size());
+
+        // Upstream prefixes are added to the exempt prefixes.
+        offload.updateUpstreamLocalPrefixes(Set.of(cellPrefix), Set.of());
+        inOrder.verify(mHardware).setLocalPrefixes(mStringArrayCaptor.capture());
+        ArrayList<String> localPrefixes = mStringArrayCaptor.getValue();
+        assertEquals(3, localPrefixes.size());
+        assertContainsAll(localPrefixes, "127.0.0.0/8", "2001:db8:4:fd00::/64",
+                "2001:db8:0:1::/64");
+
+        // An upstream prefix which is also exempt for another reason does not change anything,
+        // and stays exempt after the upstream removes it.
+        offload.updateUpstreamLocalPrefixes(Set.of(wifiPrefix), Set.of());
+        offload.updateUpstreamLocalPrefixes(Set.of(), Set.of(wifiPrefix));
+        inOrder.verify(mHardware, never()).setLocalPrefixes(any());
+
+        // Resynchronizing with the same upstream prefixes does not change anything either.
+        offload.setUpstreamLocalPrefixes(Set.of(cellPrefix));
+        inOrder.verify(mHardware, never()).setLocalPrefixes(any());
+
+        offload.updateUpstreamLocalPrefixes(Set.of(), Set.of(cellPrefix));
+        inOrder.verify(mHardware).setLocalPrefixes(mStringArrayCaptor.capture());
+        localPrefixes = mStringArrayCaptor.getValue();
+        assertEquals(2, localPrefixes.size());
+        assertContainsAll(localPrefixes, "127.0.0.0/8", "2001:db8:4:fd00::/64");
+    }
+
     private static @NonNull Entry buildTestEntry(@NonNull OffloadController.StatsType how,
             @NonNull String iface, long rxBytes, long txBytes) {
         return new Entry(iface, how == STATS_PER_IFACE ? UID_ALL : UID_TETHERING, SET_DEFAULT,
@@ -508,6 +508,51 @@ public final class PrivateAddressCoordinatorTest {
         assertEquals("Wrong prefix: ", new LinkAddress("10.31.44.42/24"), classA2);
     }
 
+    @Test
+    public void testConflictingPrefixesAreSkipped() throws Exception {
+        // Upstreams covering 192.168.0.0 ~ 192.168.127.255 and 192.168.128.0/24.
+        final UpstreamNetworkState wifiUpstream = buildUpstreamNetworkState(mWifiNetwork,
+                new LinkAddress("192.168.0.3/17"), null,
+                makeNetworkCapabilities(TRANSPORT_WIFI));
+        mPrivateAddressCoordinator.updateUpstreamPrefix(wifiUpstream);
+        final UpstreamNetworkState mobileUpstream = buildUpstreamNetworkState(mMobileNetwork,
+                new LinkAddress("192.168.128.9/24"), null,
+                makeNetworkCapabilities(TRANSPORT_CELLULAR));
+        mPrivateAddressCoordinator.updateUpstreamPrefix(mobileUpstream);
+
+        final int fakeSubAddr = 0x2b05; // 43.5
+        when(mPrivateAddressCoordinator.getRandomInt()).thenReturn(fakeSubAddr);
+        final LinkAddress hotspotAddress = requestDownstreamAddress(mHotspotIpServer,
+                false /* useLastAddress */);
+        assertEquals(new LinkAddress("192.168.129.5/24"), hotspotAddress);
+        // 192.168.43.0/24 conflicts with the whole /17, so the next candidate probed is
+        // 192.168.128.0/24, then 192.168.129.0/24.
+        assertEquals(3, mPrivateAddressCoordinator.getLastProbeCount());
+
+        final LinkAddress usbAddress = requestDownstreamAddress(mUsbIpServer,
+                false /* useLastAddress */);
+        assertEquals(new LinkAddress("192.168.130.5/24"), usbAddress);
+        assertEquals(4, mPrivateAddressCoordinator.getLastProbeCount());
+
+        // Only the downstream overlapping with the new upstream prefix is notified.
+        final UpstreamNetworkState mobileUpstream2 = buildUpstreamNetworkState(mMobileNetwork2,
+                new LinkAddress("192.168.130.1/23"), null,
+                makeNetworkCapabilities(TRANSPORT_CELLULAR));
+        mPrivateAddressCoordinator.updateUpstreamPrefix(mobileUpstream2);
+        verify(mUsbIpServer).sendMessage(IpServer.CMD_NOTIFY_PREFIX_CONFLICT);
+        verify(mHotspotIpServer, never()).sendMessage(IpServer.CMD_NOTIFY_PREFIX_CONFLICT);
+        mPrivateAddressCoordinator.releaseDownstream(mUsbIpServer);
+
+        // Removing the upstreams frees their prefixes.
+        mPrivateAddressCoordinator.removeUpstreamPrefix(mWifiNetwork);
+        final LinkAddress ethAddress = requestDownstreamAddress(mEthernetIpServer,
+                false /* useLastAddress */);
+        assertEquals(new LinkAddress("192.168.43.5/24"), ethAddress);
+        assertEquals(1, mPrivateAddressCoordinator.getLastProbeCount());
+        mPrivateAddressCoordinator.releaseDownstream(mHotspotIpServer);
+        mPrivateAddressCoordinator.releaseDownstream(mEthernetIpServer);
+    }
+
     private void verifyNotifyConflictAndRelease(final IpServer ipServer) throws Exception {
         verify(ipServer).sendMessage(IpServer.CMD_NOTIFY_PREFIX_CONFLICT);
         mPrivateAddressCoordinator.releaseDownstream(ipServer);
@@ -21,6 +21,9 @@ import static android.net.ConnectivityManager.TYPE_MOBILE;
 import static android.net.ConnectivityManager.TYPE_MOBILE_DUN;
 import static android.net.ConnectivityManager.TYPE_MOBILE_HIPRI;
 import static android.net.ConnectivityManager.TYPE_WIFI;
+import static android.net.TetheringManager.TETHERING_INVALID;
+import static android.net.TetheringManager.TETHERING_USB;
+import static android.net.TetheringManager.TETHERING_WIFI;
 import static android.provider.DeviceConfig.NAMESPACE_CONNECTIVITY;
 import static android.telephony.SubscriptionManager.INVALID_SUBSCRIPTION_ID;
 
@@ -524,6 +527,46 @@ public class TetheringConfigurationTest {
         assertChooseUpstreamAutomaticallyIs(false);
     }
 
+    @Test
+    public void testConntrackReaderThreadFlag() throws Exception {
+        assertFalse(new TetheringConfiguration(mMockContext, mLog, INVALID_SUBSCRIPTION_ID)
+                .isConntrackReaderThreadEnabled());
+
+        doReturn(Long.toString(TEST_PACKAGE_VERSION - 1)).when(
+                () -> DeviceConfig.getProperty(eq(NAMESPACE_CONNECTIVITY),
+                        eq(TetheringConfiguration.TETHER_CONNTRACK_READER_THREAD_VERSION)));
+        assertTrue(new TetheringConfiguration(mMockContext, mLog, INVALID_SUBSCRIPTION_ID)
+                .isConntrackReaderThreadEnabled());
+    }
+
+    @Test
+    public void testDownstreamType() throws Exception {
+        when(mResources.getStringArray(R.array.config_tether_usb_regexs))
+                .thenReturn(new String[]{ "test_rndis\\d", "test_usb\\d" });
+        when(mResources.getStringArray(R.array.config_tether_ncm_regexs))
+                .thenReturn(new String[]{ "test_usb\\d", "[invalid" });
+        final TetheringConfiguration cfg = new TetheringConfiguration(
+                mMockContext, mLog, INVALID_SUBSCRIPTION_ID);
+
+        assertEquals(TETHERING_WIFI, cfg.getDownstreamType("test_wlan0"));
+        assertEquals(TETHERING_USB, cfg.getDownstreamType("test_rndis0"));
+        assertEquals(TETHERING_INVALID, cfg.getDownstreamType("test_wlan"));
+        assertEquals(TETHERING_INVALID, cfg.getDownstreamType("test_wlan00"));
+        assertEquals(TETHERING_INVALID, cfg.getDownstreamType("[invalid"));
+
+        // An interface matching several types is classified as the first of them, but matches
+        // each of them.
+        assertEquals(TETHERING_USB, cfg.getDownstreamType("test_usb1"));
+        assertTrue(cfg.isUsb("test_usb1"));
+        assertTrue(cfg.isNcm("test_usb1"));
+        assertFalse(cfg.isNcm("test_rndis0"));
+        assertFalse(cfg.isWifi("test_usb1"));
+
+        // Cached results are the same.
+        assertEquals(TETHERING_USB, cfg.getDownstreamType("test_usb1"));
+        assertTrue(cfg.isNcm("test_usb1"));
+    }
+
     private void setTetherForceUpstreamAutomaticFlagVersion(Long version) {
         doReturn(version == null ? null : Long.toString(version)).when(
                 () -> DeviceConfig.getProperty(eq(NAMESPACE_CONNECTIVITY),
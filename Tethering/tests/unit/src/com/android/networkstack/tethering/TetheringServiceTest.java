@@ -20,6 +20,7 @@ import static android.Manifest.permission.ACCESS_NETWORK_STATE;
 import static android.Manifest.permission.TETHER_PRIVILEGED;
 import static android.Manifest.permission.WRITE_SETTINGS;
 import static android.net.TetheringManager.TETHERING_WIFI;
+import static android.net.TetheringManager.TETHER_ERROR_INTERNAL_ERROR;
 import static android.net.TetheringManager.TETHER_ERROR_NO_ACCESS_TETHERING_PERMISSION;
 import static android.net.TetheringManager.TETHER_ERROR_NO_CHANGE_TETHERING_PERMISSION;
 import static android.net.TetheringManager.TETHER_ERROR_NO_ERROR;
@@ -36,6 +37,7 @@ import android.content.Intent;
 import android.net.IIntResultListener;
 import android.net.ITetheringConnector;
 import android.net.ITetheringEventCallback;
+import android.net.MacAddress;
 import android.net.TetheringRequestParcel;
 import android.os.Bundle;
 import android.os.Handler;
@@ -62,6 +64,7 @@ public final class TetheringServiceTest {
     private static final String TEST_IFACE_NAME = "test_wlan0";
     private static final String TEST_CALLER_PKG = "com.android.shell";
     private static final String TEST_ATTRIBUTION_TAG = null;
+    private static final MacAddress TEST_CLIENT_MAC = MacAddress.fromString("12:34:56:78:90:ab");
     @Mock private ITetheringEventCallback mITetheringEventCallback;
     @Rule public ServiceTestRule mServiceTestRule;
     private Tethering mTethering;
@@ -481,4 +484,34 @@ public final class TetheringServiceTest {
             verifyNoMoreInteractionsForTethering();
         });
     }
+
+    @Test
+    public void testSetTetheredClientRateLimit() throws Exception {
+        // Unlike the other calls, WRITE_SETTINGS is not enough.
+        runAsWriteSettings((result) -> {
+            mTetheringConnector.setTetheredClientRateLimit(TEST_CLIENT_MAC.toString(), 1000L,
+                    2000L, TEST_CALLER_PKG, TEST_ATTRIBUTION_TAG, result);
+            result.assertResult(TETHER_ERROR_NO_CHANGE_TETHERING_PERMISSION);
+            verifyNoMoreInteractionsForTethering();
+        });
+
+        runAsTetherPrivileged((result) -> {
+            mTetheringConnector.setTetheredClientRateLimit(TEST_CLIENT_MAC.toString(), 1000L,
+                    2000L, TEST_CALLER_PKG, TEST_ATTRIBUTION_TAG, result);
+            verify(mTethering).isTetheringSupported();
+            verify(mTethering).setTetheredClientRateLimit(TEST_CLIENT_MAC, 1000L, 2000L, result);
+            verifyNoMoreInteractionsForTethering();
+        });
+    }
+
+    @Test
+    public void testSetTetheredClientRateLimitInvalidMac() throws Exception {
+        runAsTetherPrivileged((result) -> {
+            mTetheringConnector.setTetheredClientRateLimit("not a mac", 1000L, 2000L,
+                    TEST_CALLER_PKG, TEST_ATTRIBUTION_TAG, result);
+            result.assertResult(TETHER_ERROR_INTERNAL_ERROR);
+            verify(mTethering).isTetheringSupported();
+            verifyNoMoreInteractionsForTethering();
+        });
+    }
 }
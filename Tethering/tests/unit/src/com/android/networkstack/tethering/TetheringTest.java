@@ -36,6 +36,7 @@ import static android.net.TetheringManager.ACTION_TETHER_STATE_CHANGED;
 import static android.net.TetheringManager.EXTRA_ACTIVE_LOCAL_ONLY;
 import static android.net.TetheringManager.EXTRA_ACTIVE_TETHER;
 import static android.net.TetheringManager.EXTRA_AVAILABLE_TETHER;
+import static android.net.TetheringManager.EXTRA_ERRORED_TETHER;
 import static android.net.TetheringManager.TETHERING_ETHERNET;
 import static android.net.TetheringManager.TETHERING_NCM;
 import static android.net.TetheringManager.TETHERING_USB;
@@ -69,6 +70,7 @@ import static com.android.testutils.TestPermissionUtil.runAsShell;
 import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
 import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
@@ -190,6 +192,7 @@ import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Vector;
 
@@ -325,7 +328,7 @@ public class TetheringTest {
 
         @Override
         public RouterAdvertisementDaemon getRouterAdvertisementDaemon(
-                InterfaceParams ifParams) {
+                Handler handler, InterfaceParams ifParams) {
             return mRouterAdvertisementDaemon;
         }
 
@@ -1380,6 +1383,35 @@ public class TetheringTest {
         verifyNoMoreInteractions(mNetd);
     }
 
+    @Test
+    public void testStateChangesInOneMessageSendOneBroadcast() throws Exception {
+        when(mWifiManager.startTetheredHotspot(any(SoftApConfiguration.class))).thenReturn(true);
+        doThrow(new RemoteException()).when(mNetd).tetherInterfaceAdd(TEST_WLAN_IFNAME);
+
+        mTethering.startTethering(createTetheringRequestParcel(TETHERING_WIFI), null);
+        mLooper.dispatchAll();
+        mTethering.interfaceStatusChanged(TEST_WLAN_IFNAME, true);
+        mLooper.dispatchAll();
+        verifyTetheringBroadcast(TEST_WLAN_IFNAME, EXTRA_AVAILABLE_TETHER);
+        assertEquals(0, mIntents.size());
+        verify(mNotificationUpdater, times(1)).onDownstreamChanged(DOWNSTREAM_NONE);
+
+        // Failing to tether the interface changes its state twice while the IpServer processes
+        // the tether request: STATE_TETHERED -> STATE_AVAILABLE. Only the final states are sent.
+        sendWifiApStateChanged(WIFI_AP_STATE_ENABLED, TEST_WLAN_IFNAME, IFACE_IP_MODE_TETHERED);
+        verify(mNetd, times(1)).tetherInterfaceAdd(TEST_WLAN_IFNAME);
+        assertEquals(1, mIntents.size());
+        final Intent bcast = mIntents.get(0);
+        assertEquals(ACTION_TETHER_STATE_CHANGED, bcast.getAction());
+        assertEquals(Collections.emptyList(), bcast.getStringArrayListExtra(EXTRA_ACTIVE_TETHER));
+        assertEquals(Collections.emptyList(),
+                bcast.getStringArrayListExtra(EXTRA_AVAILABLE_TETHER));
+        assertEquals(Arrays.asList(TEST_WLAN_IFNAME),
+                bcast.getStringArrayListExtra(EXTRA_ERRORED_TETHER));
+        verify(mNotificationUpdater, times(2)).onDownstreamChanged(DOWNSTREAM_NONE);
+        verify(mNotificationUpdater, never()).onDownstreamChanged(eq(1 << TETHERING_WIFI));
+    }
+
     private UserRestrictionActionListener makeUserRestrictionActionListener(
             final Tethering tethering, final boolean currentDisallow, final boolean nextDisallow) {
         final Bundle newRestrictions = new Bundle();
@@ -1496,6 +1528,8 @@ public class TetheringTest {
         private final ArrayList<TetherStatesParcel> mTetherStates = new ArrayList<>();
         private final ArrayList<Integer> mOffloadStatus = new ArrayList<>();
         private final ArrayList<List<TetheredClient>> mTetheredClients = new ArrayList<>();
+        // Clients as rebuilt from the updates, like TetheringManager does.
+        private final HashMap<MacAddress, TetheredClient> mCurrentClients = new HashMap<>();
 
         // This function will remove the recorded callbacks, so it must be called once for
         // each callback. If this is called after multiple callback, the order matters.
@@ -1564,8 +1598,15 @@ public class TetheringTest {
         }
 
         @Override
-        public void onTetherClientsChanged(List<TetheredClient> clients) {
-            mTetheredClients.add(clients);
+        public void onTetherClientsUpdated(List<TetheredClient> addedOrUpdated,
+                List<TetheredClient> removed) {
+            for (TetheredClient client : removed) {
+                assertNotNull(mCurrentClients.remove(client.getMacAddress()));
+            }
+            for (TetheredClient client : addedOrUpdated) {
+                assertNotEquals(client, mCurrentClients.put(client.getMacAddress(), client));
+            }
+            mTetheredClients.add(new ArrayList<>(mCurrentClients.values()));
         }
 
         @Override
@@ -1580,6 +1621,10 @@ public class TetheringTest {
             mTetherStates.add(parcel.states);
             mOffloadStatus.add(parcel.offloadStatus);
             mTetheredClients.add(parcel.tetheredClients);
+            mCurrentClients.clear();
+            for (TetheredClient client : parcel.tetheredClients) {
+                mCurrentClients.put(client.getMacAddress(), client);
+            }
         }
 
         @Override
@@ -378,6 +378,49 @@ public class UpstreamNetworkMonitorTest {
                 mUNM.selectPreferredUpstreamType(preferredTypes));
     }
 
+    @Test
+    public void testSelectPreferredUpstreamTypeFollowsCapabilities() throws Exception {
+        final Collection<Integer> preferredTypes = new ArrayList<>();
+        preferredTypes.add(TYPE_WIFI);
+        preferredTypes.add(TYPE_MOBILE_HIPRI);
+        mUNM.startTrackDefaultNetwork(sDefaultRequest, mEntitleMgr);
+        mUNM.startObserveAllNetworks();
+
+        final TestNetworkAgent wifiAgent = new TestNetworkAgent(mCM, WIFI_CAPABILITIES);
+        wifiAgent.fakeConnect();
+        final TestNetworkAgent cellAgent = new TestNetworkAgent(mCM, CELL_CAPABILITIES);
+        cellAgent.fakeConnect();
+        mLooper.dispatchAll();
+        assertEquals(wifiAgent.networkId,
+                mUNM.selectPreferredUpstreamType(preferredTypes).network);
+
+        // Wi-Fi no longer provides internet: it is no longer selected.
+        wifiAgent.networkCapabilities.removeCapability(NET_CAPABILITY_INTERNET);
+        sendCapabilities(wifiAgent);
+        assertEquals(cellAgent.networkId,
+                mUNM.selectPreferredUpstreamType(preferredTypes).network);
+
+        // Wi-Fi provides internet again.
+        wifiAgent.networkCapabilities.addCapability(NET_CAPABILITY_INTERNET);
+        sendCapabilities(wifiAgent);
+        assertEquals(wifiAgent.networkId,
+                mUNM.selectPreferredUpstreamType(preferredTypes).network);
+
+        // Networks which were lost are never selected.
+        wifiAgent.fakeDisconnect();
+        cellAgent.fakeDisconnect();
+        mLooper.dispatchAll();
+        assertSatisfiesLegacyType(TYPE_NONE, mUNM.selectPreferredUpstreamType(preferredTypes));
+    }
+
+    private void sendCapabilities(TestNetworkAgent agent) {
+        for (NetworkCallback cb : mCM.mListening.keySet()) {
+            cb.onCapabilitiesChanged(agent.networkId,
+                    new NetworkCapabilities(agent.networkCapabilities));
+        }
+        mLooper.dispatchAll();
+    }
+
     @Test
     public void testGetCurrentPreferredUpstream() throws Exception {
         mUNM.startTrackDefaultNetwork(sDefaultRequest, mEntitleMgr);
@@ -557,6 +600,43 @@ public class UpstreamNetworkMonitorTest {
         assertTrue(local.isEmpty());
     }
 
+    @Test
+    public void testSharedLocalPrefixes() throws Exception {
+        mUNM.startTrackDefaultNetwork(sDefaultRequest, mEntitleMgr);
+        mUNM.startObserveAllNetworks();
+
+        // Two networks with the same prefix, for example a VPN and its underlying network.
+        final TestNetworkAgent wifiAgent = new TestNetworkAgent(mCM, WIFI_CAPABILITIES);
+        wifiAgent.linkProperties.setInterfaceName("wlan0");
+        wifiAgent.linkProperties.addLinkAddress(new LinkAddress("192.0.2.5/24"));
+        wifiAgent.fakeConnect();
+        wifiAgent.sendLinkProperties();
+        final TestNetworkAgent cellAgent = new TestNetworkAgent(mCM, CELL_CAPABILITIES);
+        cellAgent.linkProperties.setInterfaceName("rmnet_data0");
+        cellAgent.linkProperties.addLinkAddress(new LinkAddress("192.0.2.6/24"));
+        cellAgent.linkProperties.addLinkAddress(new LinkAddress("2001:db8:0:1::1/64"));
+        cellAgent.fakeConnect();
+        cellAgent.sendLinkProperties();
+        mLooper.dispatchAll();
+        assertPrefixSet(mUNM.getLocalPrefixes(), INCLUDES, "192.0.2.0/24", "2001:db8:0:1::/64");
+
+        // The prefix stays as long as one of the networks has it.
+        cellAgent.linkProperties.removeLinkAddress(new LinkAddress("2001:db8:0:1::1/64"));
+        cellAgent.sendLinkProperties();
+        mLooper.dispatchAll();
+        Set<IpPrefix> local = mUNM.getLocalPrefixes();
+        assertPrefixSet(local, INCLUDES, "192.0.2.0/24");
+        assertPrefixSet(local, EXCLUDES, "2001:db8:0:1::/64");
+
+        wifiAgent.fakeDisconnect();
+        mLooper.dispatchAll();
+        assertPrefixSet(mUNM.getLocalPrefixes(), INCLUDES, "192.0.2.0/24");
+
+        cellAgent.fakeDisconnect();
+        mLooper.dispatchAll();
+        assertTrue(mUNM.getLocalPrefixes().isEmpty());
+    }
+
     @Test
     public void testSelectMobileWhenMobileIsNotDefault() {
         final Collection<Integer> preferredTypes = new ArrayList<>();